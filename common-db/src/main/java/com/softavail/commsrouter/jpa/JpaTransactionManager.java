@@ -25,8 +25,10 @@ import java.util.Optional;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.EntityTransaction;
+import javax.persistence.LockTimeoutException;
 import javax.persistence.OptimisticLockException;
 import javax.persistence.PersistenceException;
+import javax.persistence.PessimisticLockException;
 
 /**
  * @author ikrustev
@@ -58,7 +60,7 @@ public class JpaTransactionManager {
             dbTransaction.rollback();
           }
 
-          if (OptimisticLockException.class.isInstance(ex.getCause()) && lockRetryCount > 0) {
+          if (isLockConflict(ex) && lockRetryCount > 0) {
             --lockRetryCount;
             continue;
           }
@@ -99,6 +101,13 @@ public class JpaTransactionManager {
     }
   }
 
+  // Lost version check, lost row lock claim, lock wait timeout or deadlock: worth another try
+  private static boolean isLockConflict(PersistenceException ex) {
+    return OptimisticLockException.class.isInstance(ex.getCause())
+        || PessimisticLockException.class.isInstance(ex)
+        || LockTimeoutException.class.isInstance(ex);
+  }
+
   public <RESULT> RESULT execute(TransactionLogic<RESULT> transactionLogic)
       throws CommsRouterException {
 
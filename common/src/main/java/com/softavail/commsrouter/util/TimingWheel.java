@@ -0,0 +1,218 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hashed hierarchical timing wheel. Level 0 has {@code wheelSize} buckets of {@code tickMillis}
+ * each, every next level has buckets as wide as the whole previous level. A timer goes to the
+ * lowest level that spans its deadline and moves down a level whenever its bucket comes due, so
+ * scheduling and cancelling are O(1) regardless of the number of timers.
+ *
+ * <p>Timers fire in batches, once the tick their deadline falls into has fully passed: never early,
+ * at most one tick late. Keys are unique, scheduling a key again replaces its deadline.
+ *
+ * <p>The levels stop short of where their arithmetic would overflow a long. Timers beyond the span
+ * of the top level are parked in an overflow set and inserted again each time the top level moves
+ * on a bucket.
+ *
+ * @param <K> the timer key
+ */
+public class TimingWheel<K> {
+
+  // Leaves room for adding a level span to any realistic current time
+  private static final long MAX_SPAN_MILLIS = Long.MAX_VALUE / 4;
+
+  private final long tickMillis;
+  private final int wheelSize;
+  private final int maxLevels;
+  private final List<Level> levels = new ArrayList<>();
+  private final Set<Timer<K>> overflow = new LinkedHashSet<>();
+  private final Map<K, Timer<K>> timers = new HashMap<>();
+  private final List<K> due = new ArrayList<>();
+  // Start of the current tick
+  private long currentMillis;
+
+  public TimingWheel(long tickMillis, int wheelSize, long startMillis) {
+    this(tickMillis, wheelSize, startMillis, maxLevels(tickMillis, wheelSize));
+  }
+
+  TimingWheel(long tickMillis, int wheelSize, long startMillis, int maxLevels) {
+    if (tickMillis <= 0 || wheelSize < 2) {
+      throw new IllegalArgumentException("tickMillis must be positive and wheelSize at least 2");
+    }
+    if (maxLevels < 1) {
+      throw new IllegalArgumentException("tickMillis times wheelSize is too large");
+    }
+    this.tickMillis = tickMillis;
+    this.wheelSize = wheelSize;
+    this.maxLevels = maxLevels;
+    this.currentMillis = startMillis - Math.floorMod(startMillis, tickMillis);
+    levels.add(new Level(tickMillis));
+  }
+
+  // The number of levels whose span does not exceed MAX_SPAN_MILLIS
+  private static int maxLevels(long tickMillis, int wheelSize) {
+    int maxLevels = 0;
+    if (wheelSize >= 2) {
+      for (long tick = tickMillis; tick > 0 && tick <= MAX_SPAN_MILLIS / wheelSize;
+          tick *= wheelSize) {
+        ++maxLevels;
+      }
+    }
+    return maxLevels;
+  }
+
+  public synchronized void schedule(K key, long deadlineMillis) {
+    cancel(key);
+    Timer<K> timer = new Timer<>(key, deadlineMillis);
+    timers.put(key, timer);
+    insert(timer);
+  }
+
+  /**
+   * @return true if the timer was pending
+   */
+  public synchronized boolean cancel(K key) {
+    Timer<K> timer = timers.remove(key);
+    if (timer == null) {
+      return false;
+    }
+    if (timer.bucket != null) {
+      timer.bucket.remove(timer);
+    } else {
+      due.remove(key);
+    }
+    return true;
+  }
+
+  /**
+   * Moves the wheel to the given time.
+   *
+   * @return the keys of the timers that came due, in no particular order
+   */
+  public synchronized List<K> advance(long nowMillis) {
+    if (timers.isEmpty()) {
+      // Nothing to cascade, jump straight there
+      currentMillis = Math.max(currentMillis, nowMillis - Math.floorMod(nowMillis, tickMillis));
+    }
+    while (currentMillis + tickMillis <= nowMillis) {
+      currentMillis += tickMillis;
+      // Fire the tick that just passed before cascading, as the cascade may refill its bucket
+      levels.get(0).takeBucket(currentMillis - tickMillis).forEach(this::fire);
+      if (!overflow.isEmpty()
+          && Math.floorMod(currentMillis, levels.get(maxLevels - 1).tickMillis) == 0) {
+        List<Timer<K>> parked = new ArrayList<>(overflow);
+        overflow.clear();
+        parked.forEach(this::insert);
+      }
+      for (int i = levels.size() - 1; i > 0; --i) {
+        Level level = levels.get(i);
+        if (Math.floorMod(currentMillis, level.tickMillis) == 0) {
+          level.takeBucket(currentMillis).forEach(this::insert);
+        }
+      }
+    }
+    List<K> result = new ArrayList<>(due);
+    due.clear();
+    result.forEach(timers::remove);
+    return result;
+  }
+
+  public synchronized int size() {
+    return timers.size();
+  }
+
+  private void insert(Timer<K> timer) {
+    if (timer.deadlineMillis < currentMillis) {
+      fire(timer);
+      return;
+    }
+    for (int i = 0; i < maxLevels; ++i) {
+      if (i == levels.size()) {
+        levels.add(new Level(levels.get(i - 1).tickMillis * wheelSize));
+      }
+      Level level = levels.get(i);
+      long levelStart = currentMillis - Math.floorMod(currentMillis, level.tickMillis);
+      if (timer.deadlineMillis < levelStart + level.tickMillis * wheelSize) {
+        level.add(timer);
+        return;
+      }
+    }
+    overflow.add(timer);
+    timer.bucket = overflow;
+  }
+
+  private void fire(Timer<K> timer) {
+    timer.bucket = null;
+    due.add(timer.key);
+  }
+
+  private class Level {
+
+    private final long tickMillis;
+    private final List<Set<Timer<K>>> buckets = new ArrayList<>();
+
+    Level(long tickMillis) {
+      this.tickMillis = tickMillis;
+      for (int i = 0; i < wheelSize; ++i) {
+        buckets.add(new LinkedHashSet<>());
+      }
+    }
+
+    void add(Timer<K> timer) {
+      Set<Timer<K>> bucket = buckets.get(index(timer.deadlineMillis));
+      bucket.add(timer);
+      timer.bucket = bucket;
+    }
+
+    Set<Timer<K>> takeBucket(long millis) {
+      int index = index(millis);
+      Set<Timer<K>> bucket = buckets.get(index);
+      if (bucket.isEmpty()) {
+        return bucket;
+      }
+      buckets.set(index, new LinkedHashSet<>());
+      return bucket;
+    }
+
+    private int index(long millis) {
+      return (int) Math.floorMod(Math.floorDiv(millis, tickMillis), (long) wheelSize);
+    }
+
+  }
+
+  private static class Timer<K> {
+
+    private final K key;
+    private final long deadlineMillis;
+    private Set<Timer<K>> bucket;
+
+    Timer(K key, long deadlineMillis) {
+      this.key = key;
+      this.deadlineMillis = deadlineMillis;
+    }
+
+  }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class TimingWheelTest {
+
+  private static final long TICK = 10;
+
+  @Test
+  public void testFiresOnTimeAcrossLevels() {
+    // A small wheel, so most of the timers go through several cascades
+    TimingWheel<Integer> wheel = new TimingWheel<>(TICK, 8, 0);
+    Random random = new Random(42);
+    Map<Integer, Long> deadlines = new HashMap<>();
+    for (int i = 0; i < 10000; ++i) {
+      long deadline = (long) random.nextInt(1000000);
+      deadlines.put(i, deadline);
+      wheel.schedule(i, deadline);
+    }
+
+    for (long now = TICK; now <= 1000000 + TICK; now += TICK) {
+      for (Integer key : wheel.advance(now)) {
+        long deadline = deadlines.remove(key);
+        assertTrue("Fired early: " + deadline + " at " + now, deadline < now);
+        assertTrue("Fired late: " + deadline + " at " + now, deadline >= now - 2 * TICK);
+      }
+    }
+    assertTrue(deadlines.isEmpty());
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testCancelAndReschedule() {
+    TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, 0);
+    wheel.schedule("cancelled", 100);
+    wheel.schedule("moved", 100);
+    wheel.schedule("kept", 100);
+
+    assertTrue(wheel.cancel("cancelled"));
+    assertFalse(wheel.cancel("cancelled"));
+    wheel.schedule("moved", 5000);
+
+    assertEquals(Arrays.asList("kept"), wheel.advance(200));
+    assertEquals(1, wheel.size());
+    assertTrue(wheel.advance(4000).isEmpty());
+    assertEquals(Arrays.asList("moved"), wheel.advance(5100));
+  }
+
+  @Test
+  public void testPastDeadlinesFireOnNextAdvance() {
+    TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, 1000);
+    wheel.schedule("past", 10);
+    wheel.schedule("now", 1000);
+
+    assertEquals(Arrays.asList("past"), wheel.advance(1000));
+    assertEquals(Arrays.asList("now"), wheel.advance(1010));
+  }
+
+  @Test
+  public void testParksTimersBeyondTopLevel() {
+    // Two levels span 640 millis, so the later timers wait in the overflow
+    TimingWheel<String> wheel = new TimingWheel<>(TICK, 8, 0, 2);
+    wheel.schedule("far", 5000);
+    wheel.schedule("cancelled", 7000);
+    wheel.schedule("never", Long.MAX_VALUE);
+
+    assertTrue(wheel.cancel("cancelled"));
+    assertTrue(wheel.advance(5000).isEmpty());
+    assertEquals(Arrays.asList("far"), wheel.advance(5010));
+    assertTrue(wheel.advance(10000).isEmpty());
+    assertEquals(1, wheel.size());
+  }
+
+  @Test
+  public void testFarDeadlinesDoNotOverflow() {
+    TimingWheel<String> wheel = new TimingWheel<>(1, 512, 1000);
+    wheel.schedule("max", Long.MAX_VALUE);
+    wheel.schedule("soon", 1500);
+
+    assertEquals(Arrays.asList("soon"), wheel.advance(1501));
+    assertTrue(wheel.cancel("max"));
+    assertEquals(0, wheel.size());
+  }
+
+  @Test
+  public void testFiresInBatches() {
+    TimingWheel<Integer> wheel = new TimingWheel<>(TICK, 512, 0);
+    for (int i = 0; i < 1000; ++i) {
+      wheel.schedule(i, 60000 + i % 100);
+    }
+
+    List<Integer> batch = wheel.advance(70000);
+
+    assertEquals(1000, new HashSet<>(batch).size());
+    assertEquals(0, wheel.size());
+  }
+
+}
@@ -24,6 +24,8 @@ public class CreateRouterArg {
 
   private String name;
   private String description;
+  private Boolean callbackBatching;
+  private Integer dispatchWeight;
 
   public String getName() {
     return name;
@@ -41,6 +43,22 @@ public class CreateRouterArg {
     this.description = description;
   }
 
+  public Boolean getCallbackBatching() {
+    return callbackBatching;
+  }
+
+  public void setCallbackBatching(Boolean callbackBatching) {
+    this.callbackBatching = callbackBatching;
+  }
+
+  public Integer getDispatchWeight() {
+    return dispatchWeight;
+  }
+
+  public void setDispatchWeight(Integer dispatchWeight) {
+    this.dispatchWeight = dispatchWeight;
+  }
+
   public static class Builder {
 
     private CreateRouterArg arg = new CreateRouterArg();
@@ -60,6 +78,16 @@ public class CreateRouterArg {
       return this;
     }
 
+    public Builder callbackBatching(Boolean callbackBatching) {
+      arg.setCallbackBatching(callbackBatching);
+      return this;
+    }
+
+    public Builder dispatchWeight(Integer dispatchWeight) {
+      arg.setDispatchWeight(dispatchWeight);
+      return this;
+    }
+
     public CreateRouterArg build() {
       return arg;
     }
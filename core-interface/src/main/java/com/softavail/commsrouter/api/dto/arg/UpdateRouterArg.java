@@ -24,6 +24,8 @@ public class UpdateRouterArg {
 
   private String name;
   private String description;
+  private Boolean callbackBatching;
+  private Integer dispatchWeight;
 
   public String getName() {
     return name;
@@ -41,4 +43,20 @@ public class UpdateRouterArg {
     this.description = description;
   }
 
+  public Boolean getCallbackBatching() {
+    return callbackBatching;
+  }
+
+  public void setCallbackBatching(Boolean callbackBatching) {
+    this.callbackBatching = callbackBatching;
+  }
+
+  public Integer getDispatchWeight() {
+    return dispatchWeight;
+  }
+
+  public void setDispatchWeight(Integer dispatchWeight) {
+    this.dispatchWeight = dispatchWeight;
+  }
+
 }
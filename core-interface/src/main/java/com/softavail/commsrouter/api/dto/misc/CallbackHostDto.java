@@ -0,0 +1,93 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.api.dto.misc;
+
+/**
+ * The circuit breaker and concurrency limit state of a callback host.
+ */
+public class CallbackHostDto {
+
+  private String host;
+  private String state;
+  private int consecutiveFailures;
+  private int inFlight;
+  private int concurrencyLimit;
+  private int parked;
+
+  public CallbackHostDto() {
+  }
+
+  public CallbackHostDto(String host, String state, int consecutiveFailures, int inFlight,
+      int concurrencyLimit, int parked) {
+
+    this.host = host;
+    this.state = state;
+    this.consecutiveFailures = consecutiveFailures;
+    this.inFlight = inFlight;
+    this.concurrencyLimit = concurrencyLimit;
+    this.parked = parked;
+  }
+
+  public String getHost() {
+    return host;
+  }
+
+  public void setHost(String host) {
+    this.host = host;
+  }
+
+  public String getState() {
+    return state;
+  }
+
+  public void setState(String state) {
+    this.state = state;
+  }
+
+  public int getConsecutiveFailures() {
+    return consecutiveFailures;
+  }
+
+  public void setConsecutiveFailures(int consecutiveFailures) {
+    this.consecutiveFailures = consecutiveFailures;
+  }
+
+  public int getInFlight() {
+    return inFlight;
+  }
+
+  public void setInFlight(int inFlight) {
+    this.inFlight = inFlight;
+  }
+
+  public int getConcurrencyLimit() {
+    return concurrencyLimit;
+  }
+
+  public void setConcurrencyLimit(int concurrencyLimit) {
+    this.concurrencyLimit = concurrencyLimit;
+  }
+
+  public int getParked() {
+    return parked;
+  }
+
+  public void setParked(int parked) {
+    this.parked = parked;
+  }
+
+}
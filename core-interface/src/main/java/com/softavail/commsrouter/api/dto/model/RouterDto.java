@@ -24,6 +24,8 @@ public class RouterDto extends ApiObjectRef {
 
   private String name;
   private String description;
+  private Boolean callbackBatching;
+  private Integer dispatchWeight;
 
   public RouterDto() {}
 
@@ -31,6 +33,8 @@ public class RouterDto extends ApiObjectRef {
     super(jpa);
     this.name = jpa.getName();
     this.description = jpa.getDescription();
+    this.callbackBatching = jpa.getCallbackBatching();
+    this.dispatchWeight = jpa.getDispatchWeight();
   }
 
   public String getName() {
@@ -49,6 +53,22 @@ public class RouterDto extends ApiObjectRef {
     this.description = description;
   }
 
+  public Boolean getCallbackBatching() {
+    return callbackBatching;
+  }
+
+  public void setCallbackBatching(Boolean callbackBatching) {
+    this.callbackBatching = callbackBatching;
+  }
+
+  public Integer getDispatchWeight() {
+    return dispatchWeight;
+  }
+
+  public void setDispatchWeight(Integer dispatchWeight) {
+    this.dispatchWeight = dispatchWeight;
+  }
+
   @Override
   public String toString() {
     return "Router: [" + "ref=" + getRef() + "]";
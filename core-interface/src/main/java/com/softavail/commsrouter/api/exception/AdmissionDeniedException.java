@@ -0,0 +1,46 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.api.exception;
+
+/**
+ * A new task was turned away: its router or queue has too many waiting tasks, or the node is
+ * falling behind with dispatching or callbacks. The client should try again later.
+ */
+public class AdmissionDeniedException extends CommsRouterException {
+
+  private final boolean overloaded;
+  private final int retryAfterSeconds;
+
+  /**
+   * @param overloaded the node as a whole is behind, rather than the router or queue over its
+   *        limit
+   */
+  public AdmissionDeniedException(String message, boolean overloaded, int retryAfterSeconds) {
+    super(message);
+    this.overloaded = overloaded;
+    this.retryAfterSeconds = retryAfterSeconds;
+  }
+
+  public boolean isOverloaded() {
+    return overloaded;
+  }
+
+  public int getRetryAfterSeconds() {
+    return retryAfterSeconds;
+  }
+
+}
@@ -19,6 +19,10 @@ package com.softavail.commsrouter.api.interfaces;
 import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
 import com.softavail.commsrouter.api.exception.CallbackException;
 
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+
 /**
  *
  * @author ikrustev
@@ -28,4 +32,36 @@ public interface TaskEventHandler {
   void onTaskAssigned(TaskAssignmentDto taskAssignment)
       throws CallbackException;
 
+  /**
+   * Delivers the assignment without holding the calling thread until it is through. The future
+   * fails with a {@link CallbackException} when the delivery should be retried.
+   *
+   * <p>Handlers that can not deliver asynchronously get {@link #onTaskAssigned} called in place.
+   */
+  default CompletableFuture<Void> onTaskAssignedAsync(TaskAssignmentDto taskAssignment) {
+    CompletableFuture<Void> delivery = new CompletableFuture<>();
+    try {
+      onTaskAssigned(taskAssignment);
+      delivery.complete(null);
+    } catch (CallbackException | RuntimeException e) {
+      delivery.completeExceptionally(e);
+    }
+    return delivery;
+  }
+
+  /**
+   * Delivers assignments going to the same callback URL together. Every assignment is acknowledged
+   * on its own: the returned futures follow the order of the given assignments and fail like the
+   * one of {@link #onTaskAssignedAsync}, so only the failed ones get retried.
+   *
+   * <p>Handlers that can not batch deliver the assignments one by one.
+   */
+  default List<CompletableFuture<Void>> onTasksAssignedAsync(
+      List<TaskAssignmentDto> taskAssignments) {
+
+    return taskAssignments.stream()
+        .map(this::onTaskAssignedAsync)
+        .collect(Collectors.toList());
+  }
+
 }
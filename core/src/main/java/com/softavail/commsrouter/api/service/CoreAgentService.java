@@ -36,6 +36,7 @@ import com.softavail.commsrouter.domain.AttributeGroup;
 import com.softavail.commsrouter.domain.Queue;
 import com.softavail.commsrouter.domain.Router;
 import com.softavail.commsrouter.eval.CommsRouterEvaluator;
+import com.softavail.commsrouter.jpa.TransactionLogic;
 import com.softavail.commsrouter.util.Fields;
 import com.softavail.commsrouter.util.Uuid;
 import org.apache.logging.log4j.LogManager;
@@ -63,7 +64,7 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
     RouterObjectRef routerObjectRef =
         RouterObjectRef.builder().setRef(Uuid.get()).setRouterRef(routerRef).build();
 
-    return app.db.transactionManager.execute((EntityManager em) -> {
+    return executeChangingCapabilities(routerRef, (EntityManager em) -> {
       return doCreate(em, createArg, routerObjectRef);
     });
   }
@@ -72,7 +73,7 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
   public ApiObjectRef replace(CreateAgentArg createArg, RouterObjectRef objectRef)
       throws CommsRouterException {
 
-    return app.db.transactionManager.execute((em) -> {
+    return executeChangingCapabilities(objectRef.getRouterRef(), (em) -> {
       Agent agent = repository.getNoThrow(em, objectRef);
       if (agent != null) {
         if (!agent.getState().isDeleteAllowed()) {
@@ -81,6 +82,9 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
         }
         em.remove(agent);
         em.flush();
+        if (app.capabilityIndex != null) {
+          app.capabilityIndex.remove(objectRef.getRouterRef(), agent.getId());
+        }
       }
       return doCreate(em, createArg, objectRef);
     });
@@ -104,6 +108,9 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
     agent.setCapabilities(app.entityMapper.attributes.fromDto(createArg.getCapabilities()));
     agent.setState(AgentState.offline);
     em.persist(agent);
+    if (app.capabilityIndex != null) {
+      app.capabilityIndex.update(objectRef.getRouterRef(), agent.getId(), agent.getCapabilities());
+    }
     attachQueues(em, agent, true);
     return agent.cloneApiObjectRef();
   }
@@ -149,8 +156,13 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
       throws CommsRouterException {
 
     AgentDispatchInfo dispatchInfo = updateAgent(updateArg, objectRef);
-    if (dispatchInfo != null) {
+    if (dispatchInfo == null) {
+      return;
+    }
+    if (dispatchInfo.getState() == AgentState.ready) {
       app.taskDispatcher.dispatchAgent(dispatchInfo);
+    } else {
+      app.taskDispatcher.releaseAgent(dispatchInfo);
     }
 
   }
@@ -186,9 +198,10 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
           "Setting agent state to '" + updateArg.getState() + "' not allowed");
     }
 
-    return app.db.transactionManager.execute((em) -> {
+    TransactionLogic<AgentDispatchInfo> logic = (em) -> {
 
       Agent agent;
+      boolean queuesChanged = false;
       if (updateArg.getCapabilities() != null) {
 
         // validate capabilities
@@ -199,7 +212,7 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
         app.db.router.lockConfigByRef(em, objectRef.getRouterRef());
         agent = app.db.agent.get(em, objectRef);
         checkResourceVersion(agent, objectRef);
-        updateCapabilities(em, agent, updateArg.getCapabilities());
+        queuesChanged = updateCapabilities(em, agent, updateArg.getCapabilities());
       } else {
         agent = app.db.agent.get(em, objectRef);
         checkResourceVersion(agent, objectRef);
@@ -208,15 +221,19 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
       Fields.update(agent::setAddress, agent.getAddress(), updateArg.getAddress());
       Fields.update(agent::setName, agent.getName(), updateArg.getName());
       Fields.update(agent::setDescription, agent.getDescription(), updateArg.getDescription());
+      final AgentState oldState = agent.getState();
       boolean agentBecameAvailable = updateState(agent, updateArg.getState());
-      if (!agentBecameAvailable) {
+      boolean agentLeftReady =
+          oldState == AgentState.ready && agent.getState() != AgentState.ready;
+      boolean readyAgentQueuesChanged = queuesChanged && agent.getState() == AgentState.ready;
+      if (!agentBecameAvailable && !agentLeftReady && !readyAgentQueuesChanged) {
         return null;
       }
-      AgentDispatchInfo dispatchInfo = new AgentDispatchInfo();
-      dispatchInfo.setAgentId(agent.getId());
-      dispatchInfo.setRouterId(agent.getRouter().getId());
-      return dispatchInfo;
-    });
+      return app.entityMapper.agent.toDispatchInfo(agent);
+    };
+    return updateArg.getCapabilities() != null
+        ? executeChangingCapabilities(objectRef.getRouterRef(), logic)
+        : app.db.transactionManager.execute(logic);
   }
 
   private boolean updateState(Agent agent, AgentState newState)
@@ -249,32 +266,66 @@ public class CoreAgentService extends CoreRouterObjectService<AgentDto, Agent>
     return agentBecameAvailable;
   }
 
-  private void updateCapabilities(EntityManager em, Agent agent, AttributeGroupDto newCapabilities)
-      throws CommsRouterException {
+  private boolean updateCapabilities(EntityManager em, Agent agent,
+      AttributeGroupDto newCapabilities) throws CommsRouterException {
 
     if (capabilitiesAreEqual(newCapabilities,
         app.entityMapper.attributes.toDto(agent.getCapabilities()))) {
       LOGGER.info("Agent {}: no capabilities change - will keep current queues", agent.getRef());
-      return;
+      return false;
     }
     LOGGER.info("Agent {}: detaching all queues due to capabilities change", agent.getRef());
 
     agent.setCapabilities(app.entityMapper.attributes.fromDto(newCapabilities));
+    if (app.capabilityIndex != null) {
+      app.capabilityIndex.update(agent.getRouter().getRef(), agent.getId(),
+          agent.getCapabilities());
+    }
     agent.getAgentQueueMappings().clear();
     attachQueues(em, agent, false);
+    return true;
   }
 
   @Override
   public void delete(RouterObjectRef routerObjectRef) throws CommsRouterException {
-    app.db.transactionManager.executeVoid((em) -> {
-      app.db.router.lockConfigByRef(em, routerObjectRef.getRouterRef());
+    String routerRef = routerObjectRef.getRouterRef();
+    AgentDispatchInfo dispatchInfo = executeChangingCapabilities(routerRef, (em) -> {
+      app.db.router.lockConfigByRef(em, routerRef);
       Agent agent = app.db.agent.get(em, routerObjectRef);
       if (!agent.getState().isDeleteAllowed()) {
         throw new InvalidStateException(
             "Deleting agent in state " + agent.getState() + " not allowed");
       }
+      AgentDispatchInfo info = app.entityMapper.agent.toDispatchInfo(agent);
       em.remove(agent);
+      if (app.capabilityIndex != null) {
+        app.capabilityIndex.remove(routerRef, agent.getId());
+      }
+      return info;
     });
+    app.taskDispatcher.releaseAgent(dispatchInfo);
+  }
+
+  /**
+   * Runs a transaction that changes the capabilities of agents of the router. The capability index
+   * gets the changes within the transaction, is not used for the router until it ends and drops
+   * the router if it fails.
+   */
+  private <T> T executeChangingCapabilities(String routerRef, TransactionLogic<T> logic)
+      throws CommsRouterException {
+
+    if (app.capabilityIndex == null) {
+      return app.db.transactionManager.execute(logic);
+    }
+    app.capabilityIndex.beginChange(routerRef);
+    boolean committed = false;
+    try {
+      T result = app.db.transactionManager.execute(logic);
+      committed = true;
+      return result;
+    } finally {
+      app.capabilityIndex.endChange(routerRef, committed);
+    }
   }
 
 }
@@ -18,6 +18,7 @@ package com.softavail.commsrouter.api.service;
 
 import com.softavail.commsrouter.api.dto.arg.CreateQueueArg;
 import com.softavail.commsrouter.api.dto.arg.UpdateQueueArg;
+import com.softavail.commsrouter.api.dto.model.AgentState;
 import com.softavail.commsrouter.api.dto.model.ApiObjectRef;
 import com.softavail.commsrouter.api.dto.model.QueueDto;
 import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
@@ -26,6 +27,7 @@ import com.softavail.commsrouter.api.dto.model.TaskState;
 import com.softavail.commsrouter.api.exception.CommsRouterException;
 import com.softavail.commsrouter.api.exception.ExpressionException;
 import com.softavail.commsrouter.api.interfaces.QueueService;
+import com.softavail.commsrouter.app.AgentDispatchInfo;
 import com.softavail.commsrouter.app.AppContext;
 import com.softavail.commsrouter.domain.Agent;
 import com.softavail.commsrouter.domain.AgentQueueMapping;
@@ -33,15 +35,20 @@ import com.softavail.commsrouter.domain.Queue;
 import com.softavail.commsrouter.domain.Router;
 import com.softavail.commsrouter.domain.Task;
 import com.softavail.commsrouter.eval.CommsRouterEvaluator;
+import com.softavail.commsrouter.eval.RsqlEvaluator;
 import com.softavail.commsrouter.util.Fields;
 import com.softavail.commsrouter.util.Uuid;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.stream.Collectors;
 import javax.persistence.EntityManager;
 
 /**
@@ -63,24 +70,32 @@ public class CoreQueueService extends CoreRouterObjectService<QueueDto, Queue>
     RouterObjectRef routerObjectRef =
         RouterObjectRef.builder().setRef(Uuid.get()).setRouterRef(routerRef).build();
 
-    return app.db.transactionManager.execute((em) -> {
-      return doCreate(em, createArg, routerObjectRef);
+    List<AgentDispatchInfo> readyAgents = new ArrayList<>();
+    ApiObjectRef ref = app.db.transactionManager.execute((em) -> {
+      return doCreate(em, createArg, routerObjectRef, readyAgents);
     });
+    readyAgents.forEach(app.taskDispatcher::indexAgent);
+    return ref;
   }
 
   @Override
   public ApiObjectRef replace(CreateQueueArg createArg, RouterObjectRef objectRef)
       throws CommsRouterException {
 
-    return app.db.transactionManager.execute((em) -> {
+    List<AgentDispatchInfo> readyAgents = new ArrayList<>();
+    ApiObjectRef ref = app.db.transactionManager.execute((em) -> {
+      readyAgents.clear();
       app.db.queue.delete(em, objectRef);
       em.flush();
-      return doCreate(em, createArg, objectRef);
+      return doCreate(em, createArg, objectRef, readyAgents);
     });
+    readyAgents.forEach(app.taskDispatcher::indexAgent);
+    return ref;
   }
 
   private ApiObjectRef doCreate(EntityManager em, CreateQueueArg createArg,
-      RouterObjectRef objectRef) throws CommsRouterException {
+      RouterObjectRef objectRef, List<AgentDispatchInfo> readyAgents)
+      throws CommsRouterException {
 
     app.db.router.lockConfigByRef(em, objectRef.getRouterRef());
 
@@ -94,18 +109,19 @@ public class CoreQueueService extends CoreRouterObjectService<QueueDto, Queue>
     queue.setDescription(createArg.getDescription());
     queue.setPredicate(createArg.getPredicate());
     em.persist(queue);
-    attachAgents(em, queue, evaluator, true);
+    attachAgents(em, queue, evaluator, true, Collections.emptyList(), readyAgents);
     return queue.cloneApiObjectRef();
   }
 
   private void attachAgents(EntityManager em, Queue queue, CommsRouterEvaluator evaluator,
-      boolean isNewQueue) throws CommsRouterException {
+      boolean isNewQueue, Collection<Agent> attachedAgents, List<AgentDispatchInfo> readyAgents)
+      throws CommsRouterException {
 
     LOGGER.info("Queue {}: attaching agents...", queue.getRef());
 
     int attachedAgentsCount = 0;
     long millis = System.currentTimeMillis();
-    List<Agent> agents = app.db.agent.list(em, queue.getRouter().getRef());
+    List<Agent> agents = listCandidateAgents(em, queue, evaluator, attachedAgents);
     for (Agent agent : agents) {
       try {
         if (evaluator.evaluate(agent.getCapabilities())) {
@@ -120,8 +136,15 @@ public class CoreQueueService extends CoreRouterObjectService<QueueDto, Queue>
             agent.getAgentQueueMappings().add(mapping);
           }
           queue.getAgentQueueMappings().add(mapping);
+          if (agent.getState() == AgentState.ready) {
+            readyAgents.add(app.entityMapper.agent.toDispatchInfo(agent));
+          }
         } else if (!isNewQueue) {
-          agent.getAgentQueueMappings().remove(new AgentQueueMapping(agent, queue));
+          boolean detached =
+              agent.getAgentQueueMappings().remove(new AgentQueueMapping(agent, queue));
+          if (detached && agent.getState() == AgentState.ready) {
+            readyAgents.add(app.entityMapper.agent.toDispatchInfo(agent));
+          }
         }
       } catch (CommsRouterException | RuntimeException ex) {
         LOGGER.error("Queue {}: failure attaching agent {}: {}", queue.getRef(), agent.getRef(), ex,
@@ -135,28 +158,53 @@ public class CoreQueueService extends CoreRouterObjectService<QueueDto, Queue>
     LOGGER.info("Queue {}: agents attached: {}", queue.getRef(), attachedAgentsCount);
   }
 
+  /**
+   * The agents that may match the predicate. Narrowed down through the capability index if it can
+   * resolve the predicate, the agents attached so far are kept to be detached if they no longer
+   * match.
+   */
+  private List<Agent> listCandidateAgents(EntityManager em, Queue queue,
+      CommsRouterEvaluator evaluator, Collection<Agent> attachedAgents) {
+
+    String routerRef = queue.getRouter().getRef();
+    if (app.capabilityIndex != null && evaluator instanceof RsqlEvaluator) {
+      Set<Long> agentIds =
+          app.capabilityIndex.resolve(em, routerRef, ((RsqlEvaluator) evaluator).getRootNode());
+      if (agentIds != null) {
+        LOGGER.debug("Queue {}: {} agents resolved through the capability index",
+            queue.getRef(), agentIds.size());
+        attachedAgents.forEach(agent -> agentIds.add(agent.getId()));
+        return app.db.agent.list(em, agentIds);
+      }
+    }
+    return app.db.agent.list(em, routerRef);
+  }
+
   @Override
   public void update(UpdateQueueArg updateArg, RouterObjectRef objectRef)
       throws CommsRouterException {
 
+    List<AgentDispatchInfo> readyAgents = new ArrayList<>();
     app.db.transactionManager.executeVoid((em) -> {
+      readyAgents.clear();
       Queue queue;
       if (updateArg.getPredicate() != null) {
         // ! get the queue after the router config lock
         app.db.router.lockConfigByRef(em, objectRef.getRouterRef());
         queue = app.db.queue.get(em, objectRef);
         checkResourceVersion(queue, objectRef);
-        updatePredicate(em, queue, updateArg.getPredicate());
+        updatePredicate(em, queue, updateArg.getPredicate(), readyAgents);
       } else {
         queue = app.db.queue.get(em, objectRef);
         checkResourceVersion(queue, objectRef);
       }
       Fields.update(queue::setDescription, queue.getDescription(), updateArg.getDescription());
     });
+    readyAgents.forEach(app.taskDispatcher::indexAgent);
   }
 
-  private void updatePredicate(EntityManager em, Queue queue, String predicate)
-      throws CommsRouterException {
+  private void updatePredicate(EntityManager em, Queue queue, String predicate,
+      List<AgentDispatchInfo> readyAgents) throws CommsRouterException {
 
     if (Objects.equals(queue.getPredicate(), predicate)) {
       LOGGER.info("Queue {}: no predicate change - will keep current agents", queue.getRef());
@@ -169,8 +217,11 @@ public class CoreQueueService extends CoreRouterObjectService<QueueDto, Queue>
     evaluator.validate();
 
     queue.setPredicate(predicate);
+    List<Agent> attachedAgents = queue.getAgentQueueMappings().stream()
+        .map(AgentQueueMapping::getAgent)
+        .collect(Collectors.toList());
     queue.getAgentQueueMappings().clear();
-    attachAgents(em, queue, evaluator, false);
+    attachAgents(em, queue, evaluator, false, attachedAgents, readyAgents);
   }
 
   @Override
@@ -25,9 +25,12 @@ import com.softavail.commsrouter.api.dto.misc.PaginatedList;
 import com.softavail.commsrouter.api.dto.misc.PagingRequest;
 import com.softavail.commsrouter.api.dto.model.ApiObjectRef;
 import com.softavail.commsrouter.api.dto.model.RouterDto;
+import com.softavail.commsrouter.api.exception.BadValueException;
 import com.softavail.commsrouter.api.exception.CommsRouterException;
 import com.softavail.commsrouter.api.interfaces.RouterService;
 import com.softavail.commsrouter.app.AppContext;
+import com.softavail.commsrouter.app.CapabilityIndex;
+import com.softavail.commsrouter.app.TaskDispatcher;
 import com.softavail.commsrouter.domain.Router;
 import com.softavail.commsrouter.domain.RouterConfig;
 import com.softavail.commsrouter.jpa.RouterRepository;
@@ -51,43 +54,70 @@ public class CoreRouterService
     implements RouterService {
 
   private final RouterRepository routerRepository;
+  private final CapabilityIndex capabilityIndex;
+  private final TaskDispatcher taskDispatcher;
 
   public CoreRouterService(AppContext app) {
     super(app.db.transactionManager, app.entityMapper.router);
     routerRepository = app.db.router;
+    capabilityIndex = app.capabilityIndex;
+    taskDispatcher = app.taskDispatcher;
   }
 
   @Override
   public ApiObjectRef create(CreateRouterArg createArg)
       throws CommsRouterException {
 
-    return transactionManager.execute((em) -> {
+    ApiObjectRef objectRef = transactionManager.execute((em) -> {
       ApiObjectRef objectId = new ApiObjectRef(Uuid.get());
       return doCreate(em, createArg, objectId);
     });
+    publishConfig(objectRef, createArg);
+    return objectRef;
   }
 
   @Override
   public ApiObjectRef replace(CreateRouterArg createArg, String ref)
       throws CommsRouterException {
 
-    return transactionManager.execute((em) -> {
+    ApiObjectRef objectRef = transactionManager.execute((em) -> {
       routerRepository.deleteByRef(em, ref);
       em.flush();
       return doCreate(em, createArg, new ApiObjectRef(ref));
     });
+    invalidateCapabilities(ref);
+    publishConfig(objectRef, createArg);
+    return objectRef;
   }
 
   @Override
   public void update(UpdateRouterArg updateArg, ApiObjectRef routerRef)
       throws CommsRouterException {
 
-    transactionManager.executeVoid((em) -> {
+    Router updated = transactionManager.execute((em) -> {
       Router router = routerRepository.getByRef(em, routerRef.getRef());
       checkResourceVersion(router, routerRef);
       Fields.update(router::setName, router.getName(), updateArg.getName());
       Fields.update(router::setDescription, router.getDescription(), updateArg.getDescription());
+      RouterConfig config = router.getConfig();
+      Fields.update(config::setCallbackBatching, config.getCallbackBatching(),
+          updateArg.getCallbackBatching());
+      validateDispatchWeight(updateArg.getDispatchWeight());
+      Fields.update(config::setDispatchWeight, config.getDispatchWeight(),
+          updateArg.getDispatchWeight());
+      return router;
     });
+    taskDispatcher.onRouterConfigChanged(updated.getId(), updated.getRef(), updated.getConfig());
+  }
+
+  // The dispatcher keeps the settings of the router off the assignment transactions
+  private void publishConfig(ApiObjectRef objectRef, CreateRouterArg createArg) {
+    RouterConfig routerConfig = new RouterConfig();
+    if (createArg != null) {
+      routerConfig.setCallbackBatching(createArg.getCallbackBatching());
+      routerConfig.setDispatchWeight(createArg.getDispatchWeight());
+    }
+    taskDispatcher.onRouterConfigChanged(objectRef.getId(), objectRef.getRef(), routerConfig);
   }
 
   private ApiObjectRef doCreate(EntityManager em, CreateRouterArg createArg, ApiObjectRef objectId)
@@ -100,12 +130,23 @@ public class CoreRouterService
     }
     em.persist(router);
     RouterConfig routerConfig = new RouterConfig();
+    if (createArg != null) {
+      routerConfig.setCallbackBatching(createArg.getCallbackBatching());
+      validateDispatchWeight(createArg.getDispatchWeight());
+      routerConfig.setDispatchWeight(createArg.getDispatchWeight());
+    }
     router.setConfig(routerConfig);
     routerConfig.setRouter(router);
     em.persist(routerConfig);
     return new ApiObjectRef(router.getId(), router.getRef(), router.hashString());
   }
 
+  private static void validateDispatchWeight(Integer dispatchWeight) throws BadValueException {
+    if (dispatchWeight != null && dispatchWeight < 1) {
+      throw new BadValueException("Dispatch weight must be at least 1");
+    }
+  }
+
   @Override
   public RouterDto get(String ref)
       throws CommsRouterException {
@@ -165,9 +206,22 @@ public class CoreRouterService
   public void delete(String ref)
       throws CommsRouterException {
 
-    transactionManager.executeVoid((em) -> {
+    Long routerId = transactionManager.execute((em) -> {
+      Long id = routerRepository.getIdByRefNoThrow(em, ref);
       routerRepository.deleteByRef(em, ref);
+      return id;
     });
+    invalidateCapabilities(ref);
+    if (routerId != null) {
+      taskDispatcher.onRouterConfigChanged(routerId, ref, null);
+    }
+  }
+
+  private void invalidateCapabilities(String ref) {
+    // The agents of the router are gone
+    if (capabilityIndex != null) {
+      capabilityIndex.invalidate(ref);
+    }
   }
 
 }
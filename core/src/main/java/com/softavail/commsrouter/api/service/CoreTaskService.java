@@ -70,6 +70,7 @@ public class CoreTaskService extends CoreRouterObjectService<TaskDto, Task> impl
       throws CommsRouterException {
 
     validate(createArg);
+    app.admission.checkLoad();
 
     RouterObjectRef routerObjectId =
         RouterObjectRef.builder().setRef(Uuid.get()).setRouterRef(routerId)
@@ -99,6 +100,7 @@ public class CoreTaskService extends CoreRouterObjectService<TaskDto, Task> impl
       throws CommsRouterException {
 
     validate(createArg);
+    app.admission.checkLoad();
 
     TaskDispatchInfo dispatchInfo = app.db.transactionManager.execute(em -> {
 
@@ -128,7 +130,7 @@ public class CoreTaskService extends CoreRouterObjectService<TaskDto, Task> impl
         rejectTaskAssignment(objectRef);
         break;
       case canceled:
-        app.db.transactionManager.executeVoidWithLockRetry(em -> cancelTask(em, objectRef));
+        cancelTask(objectRef);
         break;
       case completed:
         completeTask(objectRef);
@@ -203,6 +205,7 @@ public class CoreTaskService extends CoreRouterObjectService<TaskDto, Task> impl
         .validate(createArg.getRequirements(), obj.getRouterRef());
 
     Task task = fromPlan(em, createArg, obj);
+    app.admission.checkQuota(em, task);
     task.setState(TaskState.waiting);
     task.setCallbackUrl(createArg.getCallbackUrl().toString());
     task.setUserContext(app.entityMapper.attributes.fromDto(createArg.getUserContext()));
@@ -327,12 +330,14 @@ public class CoreTaskService extends CoreRouterObjectService<TaskDto, Task> impl
   private void rejectTaskAssignment(RouterObjectRef objectRef) throws CommsRouterException {
     final TaskDispatchInfo dispatchInfo = app.db.transactionManager
         .executeWithLockRetry(em -> rejectAssignment(em, objectRef));
+    app.taskDispatcher.onTaskStateChanged(dispatchInfo.getTaskId(), TaskState.waiting);
     app.taskDispatcher.dispatchTask(dispatchInfo);
   }
 
   private void completeTask(RouterObjectRef objectRef) throws CommsRouterException {
     final AgentDispatchInfo dispatchInfo = app.db.transactionManager
         .executeWithLockRetry(em -> completeTask(em, objectRef));
+    app.taskDispatcher.onTaskStateChanged(dispatchInfo.getReleasedTaskId(), TaskState.completed);
     app.taskDispatcher.dispatchAgent(dispatchInfo);
   }
 
@@ -363,13 +368,19 @@ public class CoreTaskService extends CoreRouterObjectService<TaskDto, Task> impl
       throw new InternalErrorException("Unexpected agent state: " + agent.getState());
     }
     agent.setState(AgentState.ready);
-    AgentDispatchInfo dispatchInfo = new AgentDispatchInfo();
-    dispatchInfo.setAgentId(agent.getId());
-    dispatchInfo.setRouterId(agent.getRouter().getId());
+    AgentDispatchInfo dispatchInfo = app.entityMapper.agent.toDispatchInfo(agent);
+    dispatchInfo.setReleasedTaskId(task.getId());
     return dispatchInfo;
   }
 
-  private void cancelTask(EntityManager em, RouterObjectRef taskRef)
+  private void cancelTask(RouterObjectRef objectRef) throws CommsRouterException {
+    final TaskDispatchInfo dispatchInfo = app.db.transactionManager
+        .executeWithLockRetry(em -> cancelTask(em, objectRef));
+    app.taskDispatcher.onTaskStateChanged(dispatchInfo.getTaskId(), TaskState.canceled);
+    app.taskDispatcher.cancelTask(dispatchInfo);
+  }
+
+  private TaskDispatchInfo cancelTask(EntityManager em, RouterObjectRef taskRef)
       throws NotFoundException, InvalidStateException {
 
     Task task = app.db.task.get(em, taskRef);
@@ -378,8 +389,9 @@ public class CoreTaskService extends CoreRouterObjectService<TaskDto, Task> impl
       case waiting:
         assert task.getAgent() == null : "Waiting task " + task.getRef() + " has assigned agent: "
             + task.getAgent().getRef();
+        TaskDispatchInfo dispatchInfo = app.entityMapper.task.toDispatchInfo(task);
         task.makeCanceled();
-        return;
+        return dispatchInfo;
       case canceled:
         throw new InvalidStateException("Task already canceled");
       case assigned:
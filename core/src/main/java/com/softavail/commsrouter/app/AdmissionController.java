@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.api.exception.AdmissionDeniedException;
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.Task;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.persistence.EntityManager;
+
+/**
+ * Decides whether a new task is taken in. Keeps the backlog bounded during incidents: tasks are
+ * refused while the node is behind with dispatching or callbacks, and while the router or queue of
+ * the task has too many waiting. Every limit is off when set to 0.
+ *
+ * <p>The waiting tasks are counted in memory per router and queue: recounted in the DB at most
+ * once per {@link #RECOUNT_MILLIS} and raised by every task taken in meanwhile. So the quota check
+ * costs no query on most creates, and concurrent creates on this node can not overshoot the limit.
+ * Assignments and the tasks taken in by other nodes show on the next recount.
+ *
+ * <p>The refusals are counted per reason ({@code AdmissionController.denied.<reason>}).
+ */
+public class AdmissionController {
+
+  private static final Logger LOGGER = LogManager.getLogger(AdmissionController.class);
+
+  static final long RECOUNT_MILLIS = 1000;
+
+  private final JpaDbFacade db;
+  private final TaskDispatcher taskDispatcher;
+  private final int maxWaitingPerRouter;
+  private final int maxWaitingPerQueue;
+  private final int maxDispatchBacklog;
+  private final int maxCallbacksInFlight;
+  private final int retryAfterSeconds;
+  private final Meter routerDenied;
+  private final Meter queueDenied;
+  private final Meter dispatchDenied;
+  private final Meter callbacksDenied;
+  private final Map<Long, WaitingCount> queueCounts = new ConcurrentHashMap<>();
+  private final Map<Long, WaitingCount> routerCounts = new ConcurrentHashMap<>();
+
+  public AdmissionController(JpaDbFacade db, CoreConfiguration configuration,
+      TaskDispatcher taskDispatcher, MetricRegistry metrics) {
+
+    this.db = db;
+    this.taskDispatcher = taskDispatcher;
+    this.maxWaitingPerRouter = limit(configuration.getAdmissionMaxWaitingPerRouter());
+    this.maxWaitingPerQueue = limit(configuration.getAdmissionMaxWaitingPerQueue());
+    this.maxDispatchBacklog = limit(configuration.getAdmissionMaxDispatchBacklog());
+    this.maxCallbacksInFlight = limit(configuration.getAdmissionMaxCallbacksInFlight());
+    this.retryAfterSeconds = configuration.getAdmissionRetryAfterSeconds();
+    String prefix = MetricRegistry.name(AdmissionController.class, "denied");
+    this.routerDenied = metrics.meter(MetricRegistry.name(prefix, "router"));
+    this.queueDenied = metrics.meter(MetricRegistry.name(prefix, "queue"));
+    this.dispatchDenied = metrics.meter(MetricRegistry.name(prefix, "dispatch"));
+    this.callbacksDenied = metrics.meter(MetricRegistry.name(prefix, "callbacks"));
+  }
+
+  private static int limit(Integer value) {
+    return value == null ? 0 : value;
+  }
+
+  /**
+   * Refuses new tasks while the node is behind. Cheap, meant to run before any DB work.
+   */
+  public void checkLoad() throws AdmissionDeniedException {
+    if (maxDispatchBacklog > 0 && taskDispatcher.getDispatchBacklog() >= maxDispatchBacklog) {
+      deny(dispatchDenied, true, "Dispatching is behind, try again later");
+    }
+    if (maxCallbacksInFlight > 0
+        && taskDispatcher.getCallbacksInFlight() >= maxCallbacksInFlight) {
+      deny(callbacksDenied, true, "Callback delivery is behind, try again later");
+    }
+  }
+
+  /**
+   * Refuses the task if its router or queue is at its limit of waiting tasks, counts it in
+   * otherwise. Runs in the creating transaction, once the queue of the task is known and before it
+   * is persisted. A rolled back transaction gives its place back.
+   */
+  public void checkQuota(EntityManager em, Task task) throws CommsRouterException {
+    if (maxWaitingPerQueue == 0 && maxWaitingPerRouter == 0) {
+      return;
+    }
+
+    long now = System.currentTimeMillis();
+    WaitingCount queueCount = null;
+    if (maxWaitingPerQueue > 0) {
+      Long queueId = task.getQueue().getId();
+      queueCount = queueCounts.computeIfAbsent(queueId, id -> new WaitingCount());
+      if (queueCount.isStale(now)) {
+        queueCount.recount(db.queue.getQueueSize(em, queueId), now);
+      }
+      if (!queueCount.tryAdmit(maxWaitingPerQueue)) {
+        deny(queueDenied, false, "Too many waiting tasks in queue " + task.getQueue().getRef());
+      }
+    }
+    WaitingCount routerCount = null;
+    if (maxWaitingPerRouter > 0) {
+      Long routerId = task.getRouter().getId();
+      routerCount = routerCounts.computeIfAbsent(routerId, id -> new WaitingCount());
+      if (routerCount.isStale(now)) {
+        routerCount.recount(db.task.countWaiting(em, routerId), now);
+      }
+      if (!routerCount.tryAdmit(maxWaitingPerRouter)) {
+        release(queueCount);
+        deny(routerDenied, false, "Too many waiting tasks in router " + task.getRouter().getRef());
+      }
+    }
+
+    WaitingCount admittedToQueue = queueCount;
+    WaitingCount admittedToRouter = routerCount;
+    em.unwrap(SessionImplementor.class).getActionQueue().registerProcess(
+        (success, session) -> {
+          if (!success) {
+            release(admittedToQueue);
+            release(admittedToRouter);
+          }
+        });
+  }
+
+  private static void release(WaitingCount count) {
+    if (count != null) {
+      count.release();
+    }
+  }
+
+  private void deny(Meter meter, boolean overloaded, String message)
+      throws AdmissionDeniedException {
+
+    meter.mark();
+    LOGGER.debug("Task denied: {}", message);
+    throw new AdmissionDeniedException(message, overloaded, retryAfterSeconds);
+  }
+
+  private static class WaitingCount {
+
+    private final AtomicLong count = new AtomicLong();
+    private volatile long countedAt;
+
+    boolean isStale(long now) {
+      return now - countedAt >= RECOUNT_MILLIS;
+    }
+
+    // Tasks admitted by transactions still in progress are not in the DB count yet, so a recount
+    // may let a few more in. The limit is a guard against runaway backlogs, not an exact cap.
+    void recount(long waiting, long now) {
+      count.set(waiting);
+      countedAt = now;
+    }
+
+    boolean tryAdmit(int limit) {
+      for (; ; ) {
+        long current = count.get();
+        if (current >= limit) {
+          return false;
+        }
+        if (count.compareAndSet(current, current + 1)) {
+          return true;
+        }
+      }
+    }
+
+    void release() {
+      count.decrementAndGet();
+    }
+
+  }
+
+}
@@ -16,6 +16,11 @@
 
 package com.softavail.commsrouter.app;
 
+import com.softavail.commsrouter.api.dto.model.AgentState;
+
+import java.util.Date;
+import java.util.List;
+
 /**
  *
  * @author ikrustev
@@ -24,6 +29,11 @@ public class AgentDispatchInfo {
 
   private Long routerId;
   private Long agentId;
+  private AgentState state;
+  private Date lastTimeAtBusyState;
+  private List<Long> queueIds;
+  // The task the agent just finished, if any
+  private Long releasedTaskId;
 
   public Long getAgentId() {
     return agentId;
@@ -33,6 +43,14 @@ public class AgentDispatchInfo {
     this.agentId = agentId;
   }
 
+  public AgentState getState() {
+    return state;
+  }
+
+  public void setState(AgentState state) {
+    this.state = state;
+  }
+
   public Long getRouterId() {
     return routerId;
   }
@@ -41,4 +59,28 @@ public class AgentDispatchInfo {
     this.routerId = routerId;
   }
 
+  public Date getLastTimeAtBusyState() {
+    return lastTimeAtBusyState;
+  }
+
+  public void setLastTimeAtBusyState(Date lastTimeAtBusyState) {
+    this.lastTimeAtBusyState = lastTimeAtBusyState;
+  }
+
+  public List<Long> getQueueIds() {
+    return queueIds;
+  }
+
+  public void setQueueIds(List<Long> queueIds) {
+    this.queueIds = queueIds;
+  }
+
+  public Long getReleasedTaskId() {
+    return releasedTaskId;
+  }
+
+  public void setReleasedTaskId(Long releasedTaskId) {
+    this.releasedTaskId = releasedTaskId;
+  }
+
 }
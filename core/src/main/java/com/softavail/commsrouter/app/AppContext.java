@@ -16,11 +16,15 @@
 
 package com.softavail.commsrouter.app;
 
+import com.codahale.metrics.MetricRegistry;
 import com.softavail.commsrouter.api.service.Services;
 import com.softavail.commsrouter.api.service.Validators;
 import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
 import com.softavail.commsrouter.eval.CommsRouterEvaluatorFactory;
+import com.softavail.commsrouter.eval.EvaluatorCache;
 import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 /**
  *
@@ -28,6 +32,8 @@ import com.softavail.commsrouter.jpa.JpaDbFacade;
  */
 public class AppContext {
 
+  private static final Logger LOGGER = LogManager.getLogger(AppContext.class);
+
   public final JpaDbFacade db;
   public final CommsRouterEvaluatorFactory evaluatorFactory;
   public final TaskDispatcher taskDispatcher;
@@ -35,6 +41,8 @@ public class AppContext {
   public final CoreConfiguration coreConfiguration;
   public final Services svc;
   public final Validators validators;
+  public final AdmissionController admission;
+  public final CapabilityIndex capabilityIndex;
 
   public AppContext(JpaDbFacade db, CommsRouterEvaluatorFactory evaluatorFactory,
       TaskDispatcher taskDispatcher, EntityMappers dtoMappers,
@@ -44,8 +52,31 @@ public class AppContext {
     this.taskDispatcher = taskDispatcher;
     this.entityMapper = dtoMappers;
     this.coreConfiguration = coreConfiguration;
+    this.capabilityIndex = createCapabilityIndex(db, coreConfiguration,
+        taskDispatcher.getMetricRegistry());
     this.svc = new Services(this);
     this.validators = new Validators(this);
+    this.admission = new AdmissionController(db, coreConfiguration, taskDispatcher,
+        taskDispatcher.getMetricRegistry());
+    if (coreConfiguration.getEvaluatorCacheSize() > 0) {
+      evaluatorFactory.setCache(new EvaluatorCache(coreConfiguration.getEvaluatorCacheSize(),
+          taskDispatcher.getMetricRegistry()));
+    }
+  }
+
+  private static CapabilityIndex createCapabilityIndex(JpaDbFacade db,
+      CoreConfiguration configuration, MetricRegistry metrics) {
+
+    if (!configuration.getQueueEnableCapabilityIndex()) {
+      return null;
+    }
+    Integer leaseDuration = configuration.getDispatcherRouterLeaseDuration();
+    if (leaseDuration != null && leaseDuration > 0) {
+      // Agents change through all the nodes, the index would only see the local changes
+      LOGGER.warn("Router leases are enabled, the in-memory capability index is disabled");
+      return null;
+    }
+    return new CapabilityIndex(db, metrics);
   }
 
 }
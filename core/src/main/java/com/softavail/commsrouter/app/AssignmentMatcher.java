@@ -0,0 +1,289 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.softavail.commsrouter.api.dto.model.AgentState;
+import com.softavail.commsrouter.api.dto.model.TaskState;
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.Agent;
+import com.softavail.commsrouter.domain.Task;
+import com.softavail.commsrouter.domain.result.MatchResult;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+
+/**
+ * Finds the next task/agent pair to assign. Uses the in-memory indexes when they are enabled and
+ * falls back to the DB queries otherwise. Whatever an index returns is verified against the DB in
+ * the current transaction, stale entries get dropped.
+ */
+public class AssignmentMatcher {
+
+  private static final Logger LOGGER = LogManager.getLogger(AssignmentMatcher.class);
+
+  private static final Comparator<Task> TASK_ORDER = Comparator
+      .comparing((Task task) -> task.getPriority() == null ? 0L : task.getPriority(),
+          Comparator.reverseOrder())
+      .thenComparing(Task::getId);
+
+  private final JpaDbFacade db;
+  private final WaitingTaskIndex waitingTaskIndex;
+  private final ReadyAgentIndex readyAgentIndex;
+
+  public AssignmentMatcher(JpaDbFacade db, WaitingTaskIndex waitingTaskIndex,
+      ReadyAgentIndex readyAgentIndex) {
+    this.db = db;
+    this.waitingTaskIndex = waitingTaskIndex;
+    this.readyAgentIndex = readyAgentIndex;
+  }
+
+  public Optional<MatchResult> findForQueue(EntityManager em, Long queueId)
+      throws CommsRouterException {
+
+    return claimForQueue(em, queueId, 1).stream().findFirst();
+  }
+
+  /**
+   * Finds and claims up to maxPairs disjoint pairs of the queue. All the candidates are found
+   * first and claimed afterwards, in one global order: the tasks by id, then the agents by id.
+   * {@link #findForAgent} claims its single task before its agent too, so no two transactions wait
+   * for each other. A pair that lost its task or agent to a concurrent claim is dropped. Only if no
+   * pair at all could be claimed, the search is repeated without the rows lost.
+   */
+  public List<MatchResult> claimForQueue(EntityManager em, Long queueId, int maxPairs)
+      throws CommsRouterException {
+
+    // The DB queries see the candidates as still free, so they have to be skipped explicitly
+    Set<Long> skippedTaskIds = new HashSet<>();
+    Set<Long> skippedAgentIds = new HashSet<>();
+    for (; ; ) {
+      List<MatchResult> candidates = new ArrayList<>();
+      while (candidates.size() < maxPairs) {
+        Optional<MatchResult> candidate =
+            findCandidate(em, queueId, skippedTaskIds, skippedAgentIds);
+        if (!candidate.isPresent()) {
+          break;
+        }
+        candidates.add(candidate.get());
+        skippedTaskIds.add(candidate.get().task.getId());
+        skippedAgentIds.add(candidate.get().agent.getId());
+      }
+      if (candidates.isEmpty()) {
+        return candidates;
+      }
+
+      List<MatchResult> taskClaimed = new ArrayList<>();
+      for (MatchResult match : sorted(candidates, match -> match.task.getId())) {
+        if (claimTask(em, match.task) && queueId.equals(match.task.getQueue().getId())) {
+          taskClaimed.add(match);
+        } else {
+          onClaimLost("task", match.task.getId());
+          // Not locked, so free to pair again
+          skippedAgentIds.remove(match.agent.getId());
+        }
+      }
+      List<MatchResult> claimed = new ArrayList<>();
+      for (MatchResult match : sorted(taskClaimed, match -> match.agent.getId())) {
+        if (claimAgent(em, match.agent)) {
+          claimed.add(match);
+        } else {
+          onClaimLost("agent", match.agent.getId());
+          // Locked by this transaction and still waiting
+          skippedTaskIds.remove(match.task.getId());
+        }
+      }
+      if (!claimed.isEmpty()) {
+        // Back in the order found, the most urgent task first
+        candidates.retainAll(claimed);
+        return candidates;
+      }
+    }
+  }
+
+  private Optional<MatchResult> findCandidate(EntityManager em, Long queueId,
+      Set<Long> skippedTaskIds, Set<Long> skippedAgentIds) throws CommsRouterException {
+
+    if (waitingTaskIndex == null && readyAgentIndex == null) {
+      return db.queue.findAssignment(em, queueId, skippedTaskIds, skippedAgentIds);
+    }
+    Optional<Task> task = findTask(em, queueId, skippedTaskIds);
+    if (!task.isPresent()) {
+      return Optional.empty();
+    }
+    return findAgent(em, queueId, skippedAgentIds)
+        .map(agent -> new MatchResult(task.get(), agent));
+  }
+
+  private static List<MatchResult> sorted(List<MatchResult> matches,
+      Function<MatchResult, Long> id) {
+
+    List<MatchResult> result = new ArrayList<>(matches);
+    result.sort(Comparator.comparing(id));
+    return result;
+  }
+
+  /**
+   * Finds and claims a waiting task for the given agent, if it is still ready.
+   */
+  public Optional<MatchResult> findForAgent(EntityManager em, Long agentId)
+      throws CommsRouterException {
+
+    Set<Long> skippedTaskIds = new HashSet<>();
+    for (; ; ) {
+      Optional<MatchResult> candidate = readyAgentIndex == null
+          ? db.queue.findAssignmentForAgent(em, agentId, skippedTaskIds)
+          : findIndexedForAgent(em, agentId, skippedTaskIds);
+      if (!candidate.isPresent()) {
+        return Optional.empty();
+      }
+
+      MatchResult match = candidate.get();
+      if (!claimTask(em, match.task)) {
+        onClaimLost("task", match.task.getId());
+        // A plain query may keep returning the row from its snapshot within this transaction
+        skippedTaskIds.add(match.task.getId());
+        continue;
+      }
+      if (!claimAgent(em, match.agent)
+          || !isServing(match.agent, match.task.getQueue().getId())) {
+        // The agent went busy or offline meanwhile, nothing more to do for it
+        return Optional.empty();
+      }
+      return candidate;
+    }
+  }
+
+  private Optional<MatchResult> findIndexedForAgent(EntityManager em, Long agentId,
+      Set<Long> skippedTaskIds) throws CommsRouterException {
+
+    Agent agent = em.find(Agent.class, agentId);
+    if (agent == null || agent.getState() != AgentState.ready) {
+      LOGGER.debug("Dropping stale ready agent {}", agentId);
+      readyAgentIndex.remove(agentId);
+      return Optional.empty();
+    }
+
+    // The agent is loaded anyway, so take its queues from the DB rather than from the index
+    Set<Long> queueIds = agent.getAgentQueueMappings().stream()
+        .map(mapping -> mapping.getQueue().getId())
+        .collect(Collectors.toSet());
+    if (queueIds.isEmpty()) {
+      return Optional.empty();
+    }
+
+    Optional<Task> task;
+    if (waitingTaskIndex == null) {
+      task = db.queue.findWaitingTask(em, queueIds, skippedTaskIds);
+    } else {
+      task = Optional.empty();
+      for (Long queueId : queueIds) {
+        Optional<Task> candidate = findTask(em, queueId, skippedTaskIds);
+        if (candidate.isPresent()
+            && (!task.isPresent() || TASK_ORDER.compare(candidate.get(), task.get()) < 0)) {
+          task = candidate;
+        }
+      }
+    }
+
+    return task.map(waiting -> new MatchResult(waiting, agent));
+  }
+
+  // Claims lock the task rows before the agent rows, each kind by ascending id, see claimForQueue.
+  // Only a search repeated after a lost claim may lock out of that order, a deadlock it could
+  // cause is broken by the DB and retried as a lock conflict.
+  // After the lock the entity holds the latest committed state.
+
+  private static boolean claimTask(EntityManager em, Task task) {
+    em.refresh(task, LockModeType.PESSIMISTIC_WRITE);
+    return task.getState() == TaskState.waiting && task.getQueue() != null;
+  }
+
+  private static boolean claimAgent(EntityManager em, Agent agent) {
+    em.refresh(agent, LockModeType.PESSIMISTIC_WRITE);
+    return agent.getState() == AgentState.ready;
+  }
+
+  private static void onClaimLost(String kind, Long id) {
+    LOGGER.debug("Claim of {} {} lost to a concurrent assignment", kind, id);
+  }
+
+  private Optional<Task> findTask(EntityManager em, Long queueId, Set<Long> matchedTaskIds)
+      throws CommsRouterException {
+
+    if (waitingTaskIndex == null) {
+      return db.queue.findWaitingTask(em, Collections.singleton(queueId), matchedTaskIds);
+    }
+
+    for (; ; ) {
+      Optional<Long> taskId = waitingTaskIndex.peek(queueId, matchedTaskIds);
+      if (!taskId.isPresent()) {
+        return Optional.empty();
+      }
+
+      Task task = em.find(Task.class, taskId.get());
+      if (task != null && task.getState() == TaskState.waiting
+          && task.getQueue() != null && queueId.equals(task.getQueue().getId())) {
+        return Optional.of(task);
+      }
+
+      // The index is behind the DB, drop the stale entry and look further
+      LOGGER.debug("Queue {}: dropping stale waiting task {}", queueId, taskId.get());
+      waitingTaskIndex.remove(taskId.get(), queueId);
+    }
+  }
+
+  private Optional<Agent> findAgent(EntityManager em, Long queueId, Set<Long> matchedAgentIds)
+      throws CommsRouterException {
+
+    if (readyAgentIndex == null) {
+      return db.queue.findReadyAgent(em, queueId, matchedAgentIds);
+    }
+
+    for (; ; ) {
+      Optional<Long> agentId = readyAgentIndex.peek(queueId, matchedAgentIds);
+      if (!agentId.isPresent()) {
+        return Optional.empty();
+      }
+
+      Agent agent = em.find(Agent.class, agentId.get());
+      if (agent != null && agent.getState() == AgentState.ready && isServing(agent, queueId)) {
+        return Optional.of(agent);
+      }
+
+      LOGGER.debug("Queue {}: dropping stale ready agent {}", queueId, agentId.get());
+      readyAgentIndex.remove(agentId.get(), queueId);
+    }
+  }
+
+  private static boolean isServing(Agent agent, Long queueId) {
+    return agent.getAgentQueueMappings().stream()
+        .anyMatch(mapping -> queueId.equals(mapping.getQueue().getId()));
+  }
+
+}
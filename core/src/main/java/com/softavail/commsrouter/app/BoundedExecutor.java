@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.softavail.commsrouter.util.ThreadPoolKiller;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed size pool with a bounded queue, one per kind of dispatcher work, so a backlog of one
+ * kind can not starve the others.
+ *
+ * <p>Reports its queue depth ({@code name.depth}), busy threads ({@code name.active}), the time
+ * work waits in the queue ({@code name.latency}) and the work turned away because the queue was
+ * full ({@code name.rejected}). Rejected work throws {@link RejectedExecutionException}, the caller
+ * decides whether to retry it.
+ */
+public class BoundedExecutor implements Executor {
+
+  private static final Logger LOGGER = LogManager.getLogger(BoundedExecutor.class);
+
+  private final String name;
+  private final ThreadPoolExecutor threadPool;
+  private final Timer latency;
+  private final Meter rejected;
+
+  public BoundedExecutor(String name, int size, int queueCapacity, MetricRegistry metrics) {
+    this.name = name;
+    this.threadPool = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<>(queueCapacity), newThreadFactory(name));
+    String prefix = MetricRegistry.name(BoundedExecutor.class, name);
+    metrics.register(MetricRegistry.name(prefix, "depth"),
+        (Gauge<Integer>) () -> threadPool.getQueue().size());
+    metrics.register(MetricRegistry.name(prefix, "active"),
+        (Gauge<Integer>) threadPool::getActiveCount);
+    this.latency = metrics.timer(MetricRegistry.name(prefix, "latency"));
+    this.rejected = metrics.meter(MetricRegistry.name(prefix, "rejected"));
+    LOGGER.info("Thread pool '{}': {} threads, queue capacity {}", name, size, queueCapacity);
+  }
+
+  static ThreadFactory newThreadFactory(String name) {
+    AtomicInteger counter = new AtomicInteger();
+    return runnable -> new Thread(runnable, name + "-" + counter.incrementAndGet());
+  }
+
+  @Override
+  public void execute(Runnable work) {
+    long submitted = System.nanoTime();
+    try {
+      threadPool.execute(() -> {
+        latency.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+        try {
+          work.run();
+        } catch (RuntimeException e) {
+          LOGGER.error("Thread pool '{}': failure: {}", name, e, e);
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      rejected.mark();
+      throw e;
+    }
+  }
+
+  /**
+   * The work waiting for a thread.
+   */
+  public int getDepth() {
+    return threadPool.getQueue().size();
+  }
+
+  public void close(long waitSeconds) {
+    ThreadPoolKiller.shutdown(threadPool, name, waitSeconds);
+  }
+
+}
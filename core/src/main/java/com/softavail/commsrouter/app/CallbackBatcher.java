@@ -0,0 +1,188 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
+import com.softavail.commsrouter.api.exception.CallbackException;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Collects the assignments going to the same callback URL for a short window and hands them to
+ * the event handler together. A batch goes out when the window closes or when it is full.
+ *
+ * <p>Every assignment keeps a future of its own, completed from the per item result of the batch,
+ * so the retries of the dispatcher still work assignment by assignment. A retried assignment
+ * simply joins the next batch of its URL.
+ *
+ * <p>A batch goes through the {@link CallbackBreakers} of its host as one callback: it takes one
+ * concurrency slot, and counts as a failure only if none of its assignments got through.
+ */
+public class CallbackBatcher {
+
+  private static final Logger LOGGER = LogManager.getLogger(CallbackBatcher.class);
+
+  private final TaskEventHandler taskEventHandler;
+  private final CallbackBreakers breakers;
+  private final ScheduledExecutorService timer;
+  private final Executor sender;
+  private final long windowMillis;
+  private final int maxSize;
+  private final Histogram batchSizes;
+  private final Map<String, Batch> open = new HashMap<>();
+
+  /**
+   * @param timer closes the windows
+   * @param sender sends the batches whose window closed
+   */
+  public CallbackBatcher(TaskEventHandler taskEventHandler, CallbackBreakers breakers,
+      ScheduledExecutorService timer, Executor sender, long windowMillis, int maxSize,
+      MetricRegistry metrics) {
+
+    this.taskEventHandler = taskEventHandler;
+    this.breakers = breakers;
+    this.timer = timer;
+    this.sender = sender;
+    this.windowMillis = windowMillis;
+    this.maxSize = Math.max(1, maxSize);
+    this.batchSizes = metrics.histogram(MetricRegistry.name(CallbackBatcher.class, "size"));
+  }
+
+  /**
+   * Adds the assignment to the open batch of its callback URL.
+   *
+   * @param abandoned whether the assignment no longer needs a callback: a batch parked by its
+   *     breaker is dropped if this holds for all of its assignments
+   * @return completes once the assignment got through, fails if it should be retried
+   */
+  public CompletableFuture<Void> submit(TaskAssignmentDto taskAssignment,
+      BooleanSupplier abandoned) {
+
+    String callbackUrl = taskAssignment.getTask().getCallbackUrl();
+    CompletableFuture<Void> delivery = new CompletableFuture<>();
+    Batch full = null;
+    synchronized (open) {
+      Batch batch = open.get(callbackUrl);
+      if (batch == null) {
+        Batch created = new Batch(callbackUrl);
+        open.put(callbackUrl, created);
+        timer.schedule(() -> sender.execute(() -> close(created)), windowMillis,
+            TimeUnit.MILLISECONDS);
+        batch = created;
+      }
+      batch.assignments.add(taskAssignment);
+      batch.deliveries.add(delivery);
+      batch.abandoned.add(abandoned);
+      if (batch.assignments.size() >= maxSize) {
+        open.remove(callbackUrl);
+        full = batch;
+      }
+    }
+    if (full != null) {
+      send(full);
+    }
+    return delivery;
+  }
+
+  private void close(Batch batch) {
+    synchronized (open) {
+      if (!open.remove(batch.callbackUrl, batch)) {
+        // Went out full before the window closed
+        return;
+      }
+    }
+    send(batch);
+  }
+
+  private void send(Batch batch) {
+    batchSizes.update(batch.assignments.size());
+    breakers.call(batch.callbackUrl, () -> post(batch),
+        () -> batch.abandoned.stream().allMatch(BooleanSupplier::getAsBoolean))
+        .whenComplete((ignored, throwable) -> {
+          if (throwable != null) {
+            // Never went out, or went out and failed as a whole: fail whatever is not done yet
+            batch.deliveries.forEach(delivery -> delivery.completeExceptionally(throwable));
+          }
+        });
+  }
+
+  // Completes every assignment from its own result. The returned future fails if none got through.
+  private CompletableFuture<Void> post(Batch batch) {
+    LOGGER.debug("Sending {} assignments to {}", batch.assignments.size(), batch.callbackUrl);
+    CompletableFuture<Void> outcome = new CompletableFuture<>();
+    List<CompletableFuture<Void>> results;
+    try {
+      results = taskEventHandler.onTasksAssignedAsync(batch.assignments);
+    } catch (RuntimeException e) {
+      LOGGER.error("Batched callback to {} failed: {}", batch.callbackUrl, e, e);
+      outcome.completeExceptionally(e);
+      return outcome;
+    }
+    for (int i = 0; i < batch.deliveries.size(); ++i) {
+      CompletableFuture<Void> delivery = batch.deliveries.get(i);
+      if (i >= results.size()) {
+        delivery.completeExceptionally(new CallbackException());
+        continue;
+      }
+      results.get(i).whenComplete((ignored, throwable) -> {
+        if (throwable == null) {
+          delivery.complete(null);
+        } else {
+          delivery.completeExceptionally(throwable);
+        }
+      });
+    }
+    CompletableFuture.allOf(batch.deliveries.toArray(new CompletableFuture<?>[0]))
+        .whenComplete((ignored, throwable) -> {
+          boolean anyThrough = batch.deliveries.stream()
+              .anyMatch(delivery -> !delivery.isCompletedExceptionally());
+          if (anyThrough) {
+            outcome.complete(null);
+          } else {
+            outcome.completeExceptionally(new CallbackException());
+          }
+        });
+    return outcome;
+  }
+
+  private static class Batch {
+
+    private final String callbackUrl;
+    private final List<TaskAssignmentDto> assignments = new ArrayList<>();
+    private final List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+    private final List<BooleanSupplier> abandoned = new ArrayList<>();
+
+    Batch(String callbackUrl) {
+      this.callbackUrl = callbackUrl;
+    }
+
+  }
+
+}
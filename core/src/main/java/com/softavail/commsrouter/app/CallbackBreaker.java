@@ -0,0 +1,265 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.softavail.commsrouter.api.dto.misc.CallbackHostDto;
+import com.softavail.commsrouter.api.exception.CallbackException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Circuit breaker and concurrency limit of the callbacks to one host.
+ *
+ * <p>Too many consecutive failures open the circuit. While it is open the callback attempts are
+ * parked, holding no thread, instead of failing into the retry backoff. After the open period one
+ * parked attempt goes out as a probe: if it gets through the circuit closes and the parked
+ * attempts are replayed, otherwise the circuit stays open for another period.
+ *
+ * <p>The attempts in flight are limited AIMD style: every failure halves the limit, every success
+ * raises it by the inverse of the limit, so about one per limit callbacks. Attempts over the
+ * limit are parked too, until one in flight completes.
+ */
+public class CallbackBreaker {
+
+  private static final Logger LOGGER = LogManager.getLogger(CallbackBreaker.class);
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final String host;
+  private final int failureThreshold;
+  private final long openMillis;
+  private final int maxConcurrency;
+  private final ScheduledExecutorService timerPool;
+  private final Executor replayExecutor;
+
+  private final Deque<Attempt> parked = new ArrayDeque<>();
+  private State state = State.CLOSED;
+  private int consecutiveFailures;
+  private double limit;
+  private int inFlight;
+  private boolean probing;
+
+  public CallbackBreaker(String host, int failureThreshold, long openMillis, int maxConcurrency,
+      ScheduledExecutorService timerPool, Executor replayExecutor) {
+
+    this.host = host;
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+    this.maxConcurrency = Math.max(1, maxConcurrency);
+    this.timerPool = timerPool;
+    this.replayExecutor = replayExecutor;
+    this.limit = this.maxConcurrency;
+  }
+
+  /**
+   * Starts the attempt now or parks it until the host can take it.
+   *
+   * @param attempt starts the callback, the future completes with its outcome
+   * @param abandoned checked before a parked attempt is replayed: when true the attempt fails
+   *     with a {@link CallbackException} without going out
+   * @return the outcome of the attempt, once it has been made
+   */
+  public CompletableFuture<Void> call(Supplier<CompletableFuture<Void>> attempt,
+      BooleanSupplier abandoned) {
+
+    Attempt call = new Attempt(attempt, abandoned);
+    boolean start;
+    synchronized (this) {
+      start = parked.isEmpty() && tryAcquire(call);
+      if (!start) {
+        parked.add(call);
+      }
+    }
+    if (start) {
+      start(call);
+    }
+    return call.result;
+  }
+
+  public synchronized State getState() {
+    return state;
+  }
+
+  public synchronized int getParked() {
+    return parked.size();
+  }
+
+  public synchronized CallbackHostDto toDto() {
+    return new CallbackHostDto(host, state.name(), consecutiveFailures, inFlight, (int) limit,
+        parked.size());
+  }
+
+  private boolean tryAcquire(Attempt call) {
+    switch (state) {
+      case CLOSED:
+        if (inFlight < (int) limit) {
+          ++inFlight;
+          return true;
+        }
+        return false;
+      case HALF_OPEN:
+        if (!probing) {
+          probing = true;
+          call.probe = true;
+          ++inFlight;
+          return true;
+        }
+        return false;
+      case OPEN:
+      default:
+        return false;
+    }
+  }
+
+  // The parked attempts that can go out now, in arrival order
+  private List<Attempt> takeStartable() {
+    List<Attempt> startable = new ArrayList<>();
+    while (!parked.isEmpty() && tryAcquire(parked.peek())) {
+      startable.add(parked.poll());
+    }
+    return startable;
+  }
+
+  private void start(Attempt call) {
+    CompletableFuture<Void> outcome;
+    try {
+      outcome = call.attempt.get();
+    } catch (RuntimeException e) {
+      outcome = new CompletableFuture<>();
+      outcome.completeExceptionally(e);
+    }
+    outcome.whenComplete((ignored, failure) -> {
+      onComplete(call, failure == null);
+      if (failure == null) {
+        call.result.complete(null);
+      } else {
+        call.result.completeExceptionally(failure);
+      }
+    });
+  }
+
+  private void replay(List<Attempt> calls) {
+    calls.forEach(call -> {
+      try {
+        replayExecutor.execute(() -> {
+          if (call.abandoned.getAsBoolean()) {
+            release(call);
+            call.result.completeExceptionally(
+                new CallbackException("Abandoned while parked for " + host));
+          } else {
+            start(call);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        // Shutting down
+        release(call);
+        call.result.completeExceptionally(e);
+      }
+    });
+  }
+
+  private void onComplete(Attempt call, boolean success) {
+    List<Attempt> startable;
+    synchronized (this) {
+      --inFlight;
+      if (success) {
+        consecutiveFailures = 0;
+        limit = Math.min(maxConcurrency, limit + 1.0 / limit);
+        if (call.probe) {
+          probing = false;
+          state = State.CLOSED;
+          LOGGER.info("Callback host {}: circuit closed, replaying {} parked callbacks", host,
+              parked.size());
+        }
+      } else {
+        ++consecutiveFailures;
+        limit = Math.max(1.0, limit / 2);
+        if (call.probe) {
+          probing = false;
+          open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+          open();
+        }
+      }
+      startable = takeStartable();
+    }
+    replay(startable);
+  }
+
+  // An acquired attempt that did not go out after all: frees its slot without judging the host
+  private void release(Attempt call) {
+    List<Attempt> startable;
+    synchronized (this) {
+      --inFlight;
+      if (call.probe) {
+        probing = false;
+      }
+      startable = takeStartable();
+    }
+    replay(startable);
+  }
+
+  private void open() {
+    state = State.OPEN;
+    LOGGER.warn("Callback host {}: circuit open after {} consecutive failures", host,
+        consecutiveFailures);
+    try {
+      timerPool.schedule(this::halfOpen, openMillis, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      LOGGER.debug("Callback host {}: timer pool down, staying open", host);
+    }
+  }
+
+  private void halfOpen() {
+    List<Attempt> startable;
+    synchronized (this) {
+      state = State.HALF_OPEN;
+      LOGGER.info("Callback host {}: circuit half open, probing", host);
+      startable = takeStartable();
+    }
+    replay(startable);
+  }
+
+  private static class Attempt {
+
+    private final Supplier<CompletableFuture<Void>> attempt;
+    private final BooleanSupplier abandoned;
+    private final CompletableFuture<Void> result = new CompletableFuture<>();
+    private boolean probe;
+
+    Attempt(Supplier<CompletableFuture<Void>> attempt, BooleanSupplier abandoned) {
+      this.attempt = attempt;
+      this.abandoned = abandoned;
+    }
+
+  }
+
+}
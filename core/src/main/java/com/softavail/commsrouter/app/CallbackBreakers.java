@@ -0,0 +1,109 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.api.dto.misc.CallbackHostDto;
+
+import java.net.URI;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * One {@link CallbackBreaker} per callback host, created on the first callback to it.
+ *
+ * <p>Reports the hosts with an open circuit ({@code open}) and the parked callbacks of all the
+ * hosts ({@code parked}).
+ */
+public class CallbackBreakers {
+
+  private final ConcurrentMap<String, CallbackBreaker> breakers = new ConcurrentHashMap<>();
+  private final int failureThreshold;
+  private final long openMillis;
+  private final int maxConcurrency;
+  private final ScheduledExecutorService timerPool;
+  private final Executor replayExecutor;
+
+  public CallbackBreakers(CoreConfiguration configuration, ScheduledExecutorService timerPool,
+      Executor replayExecutor, MetricRegistry metrics) {
+
+    this.failureThreshold = configuration.getCallbackBreakerFailureThreshold();
+    this.openMillis = TimeUnit.SECONDS.toMillis(configuration.getCallbackBreakerOpenSeconds());
+    this.maxConcurrency = configuration.getCallbackMaxConcurrency();
+    this.timerPool = timerPool;
+    this.replayExecutor = replayExecutor;
+    metrics.register(MetricRegistry.name(CallbackBreakers.class, "open"),
+        (Gauge<Long>) () -> breakers.values().stream()
+            .filter(breaker -> breaker.getState() != CallbackBreaker.State.CLOSED)
+            .count());
+    metrics.register(MetricRegistry.name(CallbackBreakers.class, "parked"),
+        (Gauge<Integer>) () -> breakers.values().stream()
+            .mapToInt(CallbackBreaker::getParked)
+            .sum());
+  }
+
+  public boolean isEnabled() {
+    return failureThreshold > 0;
+  }
+
+  /**
+   * Makes the callback attempt through the breaker of the URL's host.
+   *
+   * @see CallbackBreaker#call
+   */
+  public CompletableFuture<Void> call(String callbackUrl,
+      Supplier<CompletableFuture<Void>> attempt, BooleanSupplier abandoned) {
+
+    if (!isEnabled()) {
+      return attempt.get();
+    }
+    String host = getHost(callbackUrl);
+    return breakers.computeIfAbsent(host, key -> new CallbackBreaker(key, failureThreshold,
+        openMillis, maxConcurrency, timerPool, replayExecutor))
+        .call(attempt, abandoned);
+  }
+
+  public List<CallbackHostDto> getHosts() {
+    return breakers.values().stream()
+        .map(CallbackBreaker::toDto)
+        .sorted(Comparator.comparing(CallbackHostDto::getHost))
+        .collect(Collectors.toList());
+  }
+
+  static String getHost(String callbackUrl) {
+    try {
+      URI uri = URI.create(callbackUrl);
+      if (uri.getHost() != null) {
+        return uri.getPort() == -1 ? uri.getHost() : uri.getHost() + ":" + uri.getPort();
+      }
+    } catch (IllegalArgumentException e) {
+      // Share a breaker with the URLs alike
+    }
+    return String.valueOf(callbackUrl);
+  }
+
+}
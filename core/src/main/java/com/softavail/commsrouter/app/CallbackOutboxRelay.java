@@ -0,0 +1,236 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
+import com.softavail.commsrouter.api.dto.model.TaskState;
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.Agent;
+import com.softavail.commsrouter.domain.CallbackOutbox;
+import com.softavail.commsrouter.domain.Task;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.hibernate.engine.spi.SessionImplementor;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.BiConsumer;
+import javax.persistence.EntityManager;
+
+/**
+ * The transactional outbox of the assignment callbacks. Every assignment is recorded in the
+ * transaction that makes it, so a crash between the commit and a delivered callback does not lose
+ * it. Entries whose callback got through (or whose task moved on) are deleted in batches.
+ *
+ * <p>Each entry names the node delivering its callback. Entries older than one relay period whose
+ * node is no longer alive, e.g. a previous run or a node that crashed, are taken over by the relay
+ * of a live node and handed to its dispatcher again, provided the task is still assigned to the
+ * same agent. A live node's entries are left alone, however long it keeps retrying them.
+ *
+ * <p>The nodes are alive while their dispatcher node rows have not expired. With router leases
+ * the lease rounds refresh the rows, otherwise each relay run does.
+ */
+public class CallbackOutboxRelay {
+
+  private static final Logger LOGGER = LogManager.getLogger(CallbackOutboxRelay.class);
+
+  private static final int PAGE_SIZE = 500;
+  // Relay periods a node is deemed alive for after its last run, when the relay refreshes its row
+  private static final int NODE_TTL_PERIODS = 3;
+
+  private final JpaDbFacade db;
+  private final EntityMappers mappers;
+  private final String nodeId;
+  private final long graceMillis;
+  // Whether the relay keeps the row of the node alive, as the lease rounds do not
+  private final boolean refreshNode;
+  private final BiConsumer<TaskAssignmentDto, Long> resubmit;
+  // Committed entries written by this node, not yet submitted: task id -> entry id
+  private final Map<Long, Long> written = new ConcurrentHashMap<>();
+  // Committed entries written or relayed by this node and not deleted yet
+  private final Set<Long> owned = ConcurrentHashMap.newKeySet();
+  private final ConcurrentLinkedQueue<Long> done = new ConcurrentLinkedQueue<>();
+
+  public CallbackOutboxRelay(JpaDbFacade db, EntityMappers mappers, String nodeId,
+      int relaySeconds, boolean refreshNode, BiConsumer<TaskAssignmentDto, Long> resubmit,
+      MetricRegistry metrics) {
+
+    this.db = db;
+    this.mappers = mappers;
+    this.nodeId = nodeId;
+    this.graceMillis = relaySeconds * 1000L;
+    this.refreshNode = refreshNode;
+    this.resubmit = resubmit;
+    String prefix = MetricRegistry.name(CallbackOutboxRelay.class);
+    metrics.register(MetricRegistry.name(prefix, "owned"), (Gauge<Integer>) owned::size);
+    metrics.register(MetricRegistry.name(prefix, "done"), (Gauge<Integer>) done::size);
+  }
+
+  /**
+   * Records the assignment in the transaction making it. The entry is taken over by this node only
+   * once the transaction commits, a rolled back or retried one leaves nothing behind.
+   */
+  public void record(EntityManager em, Task task, Agent agent) {
+    CallbackOutbox entry = new CallbackOutbox(task, agent, nodeId);
+    em.persist(entry);
+    Long taskId = task.getId();
+    Long entryId = entry.getId();
+    em.unwrap(SessionImplementor.class).getActionQueue().registerProcess(
+        (success, session) -> {
+          if (success) {
+            owned.add(entryId);
+            written.put(taskId, entryId);
+          }
+        });
+  }
+
+  /**
+   * The committed assignment of the task is about to be delivered.
+   *
+   * @return the id of its entry, null if the assignment was not recorded
+   */
+  public Long onSubmitted(Long taskId) {
+    return written.remove(taskId);
+  }
+
+  /**
+   * The callback got through or is no longer needed. The entry gets deleted on the next run and
+   * stays owned until then, so it is not relayed meanwhile.
+   */
+  public void onDone(Long entryId) {
+    done.add(entryId);
+  }
+
+  public void run() {
+    try {
+      if (refreshNode) {
+        Date now = new Date();
+        db.transactionManager.executeVoid(em -> {
+          db.routerLease.refreshNode(em, nodeId,
+              new Date(now.getTime() + NODE_TTL_PERIODS * graceMillis));
+          db.routerLease.deleteExpiredNodes(em, now);
+        });
+      }
+      deleteDone();
+      relayPending();
+    } catch (RuntimeException | CommsRouterException e) {
+      LOGGER.error("Callback outbox relay failed: {}", e, e);
+    }
+  }
+
+  /**
+   * Deletes the entries done so far, so they are not relayed after a restart.
+   */
+  public void flush() {
+    try {
+      deleteDone();
+    } catch (RuntimeException | CommsRouterException e) {
+      LOGGER.error("Callback outbox flush failed: {}", e, e);
+    }
+  }
+
+  /**
+   * Drops the row of the node on shutdown, so the entries it leaves are relayed right away.
+   */
+  public void leave() {
+    if (!refreshNode) {
+      return;
+    }
+    try {
+      db.transactionManager.executeVoid(em -> db.routerLease.deleteNode(em, nodeId));
+    } catch (RuntimeException | CommsRouterException e) {
+      LOGGER.warn("Node {}: could not leave: {}", nodeId, e.getMessage());
+    }
+  }
+
+  private void deleteDone() throws CommsRouterException {
+    List<Long> ids = new ArrayList<>();
+    for (Long id = done.poll(); id != null; id = done.poll()) {
+      ids.add(id);
+    }
+    List<List<Long>> chunks = Lists.partition(ids, PAGE_SIZE);
+    for (int i = 0; i < chunks.size(); ++i) {
+      List<Long> chunk = chunks.get(i);
+      try {
+        db.transactionManager.executeVoid(em -> db.callbackOutbox.delete(em, chunk));
+      } catch (RuntimeException | CommsRouterException e) {
+        // Still owned, so not relayed meanwhile; retried on the next run
+        chunks.subList(i, chunks.size()).forEach(done::addAll);
+        throw e;
+      }
+      owned.removeAll(chunk);
+    }
+  }
+
+  private void relayPending() throws CommsRouterException {
+    Date now = new Date();
+    Date createdBefore = new Date(now.getTime() - graceMillis);
+    Long afterId = 0L;
+    for (; ; ) {
+      final Long lastId = afterId;
+      List<TaskAssignmentDto> relayed = new ArrayList<>();
+      List<Long> relayedIds = new ArrayList<>();
+      List<CallbackOutbox> page = db.transactionManager.execute(em -> {
+        List<CallbackOutbox> entries =
+            db.callbackOutbox.listAbandoned(em, lastId, createdBefore, now, PAGE_SIZE);
+        List<Long> stale = new ArrayList<>();
+        entries.stream().filter(entry -> !owned.contains(entry.getId())).forEach(entry -> {
+          Task task = em.find(Task.class, entry.getTaskId());
+          if (task == null || task.getState() != TaskState.assigned || task.getAgent() == null
+              || !task.getAgent().getId().equals(entry.getAgentId())) {
+            stale.add(entry.getId());
+            return;
+          }
+          if (!db.callbackOutbox.takeOver(em, entry, nodeId)) {
+            // Another live node got there first
+            return;
+          }
+          relayed.add(new TaskAssignmentDto(
+              mappers.task.toDto(task), mappers.agent.toDto(task.getAgent())));
+          relayedIds.add(entry.getId());
+        });
+        if (!stale.isEmpty()) {
+          db.callbackOutbox.delete(em, stale);
+        }
+        return entries;
+      });
+      for (int i = 0; i < relayed.size(); ++i) {
+        Long entryId = relayedIds.get(i);
+        if (owned.add(entryId)) {
+          LOGGER.info("Relaying the assignment of task {} to agent {}",
+              relayed.get(i).getTask().getRef(), relayed.get(i).getAgent().getRef());
+          resubmit.accept(relayed.get(i), entryId);
+        }
+      }
+      if (page.size() < PAGE_SIZE) {
+        return;
+      }
+      afterId = page.get(page.size() - 1).getId();
+    }
+  }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import net.jodah.failsafe.util.concurrent.Scheduler;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the Failsafe callback attempts on the callback pool, while the delays between the retries
+ * are kept by the timer pool. A retry waiting for its delay holds no callback thread.
+ *
+ * <p>An attempt the full callback pool rejects is held back on the timer pool and offered again,
+ * rather than dropped: the task stays assigned until its callback gets through or is aborted.
+ */
+public class CallbackScheduler implements Scheduler {
+
+  private static final Logger LOGGER = LogManager.getLogger(CallbackScheduler.class);
+
+  private static final long REJECTED_RETRY_MILLIS = 1000;
+
+  private final ScheduledExecutorService timerPool;
+  private final BoundedExecutor callbackPool;
+
+  public CallbackScheduler(ScheduledExecutorService timerPool, BoundedExecutor callbackPool) {
+    this.timerPool = timerPool;
+    this.callbackPool = callbackPool;
+  }
+
+  @Override
+  public ScheduledFuture<?> schedule(Callable<?> callable, long delay, TimeUnit unit) {
+    Attempt attempt = new Attempt(callable);
+    attempt.submit(unit.toMillis(delay));
+    return attempt;
+  }
+
+  private class Attempt extends FutureTask<Object> implements ScheduledFuture<Object> {
+
+    private volatile ScheduledFuture<?> timer;
+
+    @SuppressWarnings("unchecked")
+    Attempt(Callable<?> callable) {
+      super((Callable<Object>) callable);
+    }
+
+    void submit(long delayMillis) {
+      if (isCancelled()) {
+        return;
+      }
+      if (delayMillis <= 0) {
+        try {
+          callbackPool.execute(this);
+          return;
+        } catch (RejectedExecutionException e) {
+          LOGGER.debug("Callback pool full, holding a callback back for {}ms",
+              REJECTED_RETRY_MILLIS);
+          delayMillis = REJECTED_RETRY_MILLIS;
+        }
+      }
+      try {
+        timer = timerPool.schedule(() -> submit(0), delayMillis, TimeUnit.MILLISECONDS);
+      } catch (RejectedExecutionException e) {
+        // Shutting down
+        LOGGER.debug("Timer pool down, dropping a callback");
+        cancel(false);
+      }
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+      ScheduledFuture<?> current = timer;
+      if (current != null) {
+        current.cancel(false);
+      }
+      return super.cancel(mayInterruptIfRunning);
+    }
+
+    @Override
+    public long getDelay(TimeUnit unit) {
+      ScheduledFuture<?> current = timer;
+      return current == null || current.isDone() ? 0 : current.getDelay(unit);
+    }
+
+    @Override
+    public int compareTo(Delayed other) {
+      return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+    }
+
+  }
+
+}
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.domain.Attribute;
+import com.softavail.commsrouter.domain.AttributeGroup;
+import com.softavail.commsrouter.domain.AttributeIndex;
+import com.softavail.commsrouter.domain.result.AgentCapabilityResult;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import cz.jirutka.rsql.parser.ast.AndNode;
+import cz.jirutka.rsql.parser.ast.ComparisonNode;
+import cz.jirutka.rsql.parser.ast.LogicalNode;
+import cz.jirutka.rsql.parser.ast.Node;
+import cz.jirutka.rsql.parser.ast.OrNode;
+import cz.jirutka.rsql.parser.ast.RSQLVisitor;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import javax.persistence.EntityManager;
+
+/**
+ * In-memory inverted index of the agent capabilities of every router: for each capability name the
+ * agents by value, sorted so that ranges are cheap too. Resolves an RSQL queue predicate to the
+ * agents it matches through set operations, so attaching the agents to a queue does not have to
+ * load and evaluate every agent of the router.
+ *
+ * <p>A router is loaded on first use. The agent changes reach the index within their transactions,
+ * under the router config lock. While such a transaction is open the index is not used for the
+ * router, and a failed one drops the router to be loaded again. An agent the index can not hold,
+ * e.g. one without capabilities or with values of mixed types, is left to the evaluation on its
+ * own, along with the agents resolved. A predicate the index can not resolve exactly, e.g. one the
+ * evaluation would fail on for some indexed agent, is left to the evaluation against all agents.
+ */
+public class CapabilityIndex {
+
+  private static final Logger LOGGER = LogManager.getLogger(CapabilityIndex.class);
+
+  private final JpaDbFacade db;
+  private final Map<String, RouterCapabilities> routers = new ConcurrentHashMap<>();
+  private final Meter resolved;
+  private final Meter fallbacks;
+
+  public CapabilityIndex(JpaDbFacade db, MetricRegistry metrics) {
+    this.db = db;
+    String prefix = MetricRegistry.name(CapabilityIndex.class);
+    this.resolved = metrics.meter(MetricRegistry.name(prefix, "resolved"));
+    this.fallbacks = metrics.meter(MetricRegistry.name(prefix, "fallbacks"));
+  }
+
+  /**
+   * The agents of the router that may match the predicate: the indexed ones that match it and the
+   * ones the index can not hold. Call with the router config lock held.
+   *
+   * @return null if the predicate has to be evaluated against all the agents
+   */
+  public Set<Long> resolve(EntityManager em, String routerRef, Node predicate) {
+    Set<Long> agentIds = router(routerRef)
+        .resolve(() -> db.agent.listCapabilities(em, routerRef), predicate);
+    if (agentIds == null) {
+      fallbacks.mark();
+    } else {
+      resolved.mark();
+    }
+    return agentIds;
+  }
+
+  /**
+   * A transaction that changes the capabilities of agents of the router is about to start.
+   */
+  public void beginChange(String routerRef) {
+    router(routerRef).beginChange();
+  }
+
+  public void endChange(String routerRef, boolean committed) {
+    router(routerRef).endChange(committed);
+  }
+
+  /**
+   * The agent got created or its capabilities replaced.
+   */
+  public void update(String routerRef, Long agentId, AttributeGroup capabilities) {
+    router(routerRef).update(agentId, capabilities);
+  }
+
+  public void remove(String routerRef, Long agentId) {
+    router(routerRef).remove(agentId);
+  }
+
+  /**
+   * Drops what is known about the router, it gets loaded again on next use.
+   */
+  public void invalidate(String routerRef) {
+    router(routerRef).clear();
+  }
+
+  private RouterCapabilities router(String routerRef) {
+    return routers.computeIfAbsent(routerRef, RouterCapabilities::new);
+  }
+
+  /**
+   * The agents having a capability, by type and value.
+   */
+  private static class Capability {
+
+    private final Map<Attribute.Type, TreeMap<Object, Set<Long>>> values =
+        new EnumMap<>(Attribute.Type.class);
+    private int agents;
+    // Agents with exactly one value, the only ones the ranges can be evaluated on
+    private int singleValued;
+    // Agents with numbers, those fail the evaluation against arguments that are not
+    private int numeric;
+
+  }
+
+  /**
+   * The values of a capability of an agent, all of the same type.
+   */
+  private static class Posting {
+
+    private final Attribute.Type type;
+    private final List<Object> values;
+
+    Posting(Attribute.Type type, List<Object> values) {
+      this.type = type;
+      this.values = values;
+    }
+
+  }
+
+  private static class RouterCapabilities implements RSQLVisitor<Set<Long>, Void> {
+
+    private final String routerRef;
+    private int changes;
+    private boolean loaded;
+    // The indexed agents
+    private final Set<Long> agents = new HashSet<>();
+    // Agents the evaluation would fail on or depends on the order of their capabilities for, left
+    // to the evaluation one by one
+    private final Set<Long> unindexable = new HashSet<>();
+    private final Map<Long, Map<String, Posting>> postings = new HashMap<>();
+    private final Map<String, Capability> capabilities = new HashMap<>();
+
+    RouterCapabilities(String routerRef) {
+      this.routerRef = routerRef;
+    }
+
+    synchronized Set<Long> resolve(Supplier<List<AgentCapabilityResult>> loader,
+        Node predicate) {
+
+      if (changes > 0) {
+        return null;
+      }
+      if (!loaded) {
+        load(loader.get());
+      }
+      Set<Long> agentIds = predicate.accept(this);
+      if (agentIds != null) {
+        agentIds.addAll(unindexable);
+      }
+      return agentIds;
+    }
+
+    synchronized void beginChange() {
+      ++changes;
+    }
+
+    synchronized void endChange(boolean committed) {
+      --changes;
+      if (!committed) {
+        clear();
+      }
+    }
+
+    synchronized void update(Long agentId, AttributeGroup group) {
+      if (!loaded) {
+        return;
+      }
+      removeAgent(agentId);
+      if (group == null) {
+        addAgent(agentId, null);
+        return;
+      }
+      Map<String, List<Object>> values = new LinkedHashMap<>();
+      for (AttributeIndex.Values capability : group.getIndex().values()) {
+        values.put(capability.getName(), capability.getValues());
+      }
+      addAgent(agentId, values);
+    }
+
+    synchronized void remove(Long agentId) {
+      if (loaded) {
+        removeAgent(agentId);
+      }
+    }
+
+    synchronized void clear() {
+      loaded = false;
+      agents.clear();
+      unindexable.clear();
+      postings.clear();
+      capabilities.clear();
+    }
+
+    private void load(List<AgentCapabilityResult> rows) {
+      Map<Long, Map<String, List<Object>>> byAgent = new LinkedHashMap<>();
+      for (AgentCapabilityResult row : rows) {
+        if (row.groupId == null) {
+          byAgent.put(row.agentId, null);
+          continue;
+        }
+        Map<String, List<Object>> values =
+            byAgent.computeIfAbsent(row.agentId, agentId -> new LinkedHashMap<>());
+        if (row.name != null) {
+          values.computeIfAbsent(row.name, name -> new ArrayList<>()).add(row.getValue());
+        }
+      }
+      byAgent.forEach(this::addAgent);
+      loaded = true;
+      LOGGER.info("Router {}: capability index loaded: {} agents, {} left to evaluation",
+          routerRef, agents.size(), unindexable.size());
+    }
+
+    private void addAgent(Long agentId, Map<String, List<Object>> values) {
+      if (values == null) {
+        // No capabilities at all, the evaluation fails on it
+        unindexable.add(agentId);
+        return;
+      }
+
+      Map<String, Posting> agentPostings = new HashMap<>();
+      for (Map.Entry<String, List<Object>> entry : values.entrySet()) {
+        Attribute.Type type = typeOf(entry.getValue().get(0));
+        for (Object value : entry.getValue()) {
+          if (type == null || typeOf(value) != type) {
+            // A value missing or of mixed types
+            unindexable.add(agentId);
+            return;
+          }
+        }
+        agentPostings.put(entry.getKey(), new Posting(type, new ArrayList<>(entry.getValue())));
+      }
+
+      agents.add(agentId);
+      postings.put(agentId, agentPostings);
+      agentPostings.forEach((name, posting) -> {
+        Capability capability = capabilities.computeIfAbsent(name, key -> new Capability());
+        TreeMap<Object, Set<Long>> byValue =
+            capability.values.computeIfAbsent(posting.type, type -> new TreeMap<>());
+        posting.values.forEach(value ->
+            byValue.computeIfAbsent(value, key -> new HashSet<>()).add(agentId));
+        ++capability.agents;
+        if (posting.values.size() == 1) {
+          ++capability.singleValued;
+        }
+        if (posting.type == Attribute.Type.DOUBLE) {
+          ++capability.numeric;
+        }
+      });
+    }
+
+    private void removeAgent(Long agentId) {
+      agents.remove(agentId);
+      unindexable.remove(agentId);
+      Map<String, Posting> agentPostings = postings.remove(agentId);
+      if (agentPostings == null) {
+        return;
+      }
+      agentPostings.forEach((name, posting) -> {
+        Capability capability = capabilities.get(name);
+        TreeMap<Object, Set<Long>> byValue = capability.values.get(posting.type);
+        posting.values.forEach(value -> {
+          Set<Long> agentIds = byValue.get(value);
+          if (agentIds != null && agentIds.remove(agentId) && agentIds.isEmpty()) {
+            byValue.remove(value);
+          }
+        });
+        if (byValue.isEmpty()) {
+          capability.values.remove(posting.type);
+        }
+        if (posting.values.size() == 1) {
+          --capability.singleValued;
+        }
+        if (posting.type == Attribute.Type.DOUBLE) {
+          --capability.numeric;
+        }
+        if (--capability.agents == 0) {
+          capabilities.remove(name);
+        }
+      });
+    }
+
+    private static Attribute.Type typeOf(Object value) {
+      if (value instanceof String) {
+        return Attribute.Type.STRING;
+      }
+      if (value instanceof Double) {
+        return Attribute.Type.DOUBLE;
+      }
+      if (value instanceof Boolean) {
+        return Attribute.Type.BOOLEAN;
+      }
+      return null;
+    }
+
+    // Resolution, with the semantics of EvalRsqlVisitor. Null when that can not be done exactly.
+
+    @Override
+    public Set<Long> visit(AndNode node, Void param) {
+      return combine(node, true);
+    }
+
+    @Override
+    public Set<Long> visit(OrNode node, Void param) {
+      return combine(node, false);
+    }
+
+    private Set<Long> combine(LogicalNode node, boolean intersect) {
+      Set<Long> result = null;
+      for (Node child : node) {
+        Set<Long> matched = child.accept(this);
+        if (matched == null) {
+          return null;
+        }
+        if (result == null) {
+          result = matched;
+        } else if (intersect) {
+          result.retainAll(matched);
+        } else {
+          result.addAll(matched);
+        }
+      }
+      return result;
+    }
+
+    @Override
+    public Set<Long> visit(ComparisonNode node, Void param) {
+      Capability capability = capabilities.get(node.getSelector());
+      if (capability == null) {
+        capability = new Capability();
+      }
+      List<String> arguments = node.getArguments();
+      try {
+        switch (node.getOperator().getSymbol()) {
+          case "==":
+            return lookup(capability, arguments.subList(0, 1));
+          case "!=":
+            return complement(lookup(capability, arguments.subList(0, 1)));
+          case "=in=":
+            return lookup(capability, arguments);
+          case "=out=":
+            return complement(lookup(capability, arguments));
+          case "=gt=":
+          case ">":
+            return range(capability, arguments.get(0), false, false);
+          case "=ge=":
+          case ">=":
+            return range(capability, arguments.get(0), false, true);
+          case "=lt=":
+          case "<":
+            return range(capability, arguments.get(0), true, false);
+          case "=le=":
+          case "<=":
+            return range(capability, arguments.get(0), true, true);
+          default:
+            return null;
+        }
+      } catch (NumberFormatException ex) {
+        // The evaluation fails on the agents with numbers
+        return null;
+      }
+    }
+
+    private Set<Long> lookup(Capability capability, List<String> arguments) {
+      if (capability.numeric > 0) {
+        // Every argument is parsed, a bad one fails even if another one matches
+        arguments.forEach(Double::parseDouble);
+      }
+      Set<Long> result = new HashSet<>();
+      capability.values.forEach((type, byValue) -> arguments.forEach(argument -> {
+        Set<Long> agentIds = byValue.get(parse(argument, type));
+        if (agentIds != null) {
+          result.addAll(agentIds);
+        }
+      }));
+      return result;
+    }
+
+    private Set<Long> complement(Set<Long> agentIds) {
+      Set<Long> result = new HashSet<>(agents);
+      result.removeAll(agentIds);
+      return result;
+    }
+
+    private Set<Long> range(Capability capability, String argument, boolean below,
+        boolean inclusive) {
+
+      if (capability.singleValued != agents.size()) {
+        // The evaluation fails on an agent with none or many values
+        return null;
+      }
+      Set<Long> result = new HashSet<>();
+      capability.values.forEach((type, byValue) -> {
+        Object bound = parse(argument, type);
+        NavigableMap<Object, Set<Long>> matched = below
+            ? byValue.headMap(bound, inclusive) : byValue.tailMap(bound, inclusive);
+        matched.values().forEach(result::addAll);
+      });
+      return result;
+    }
+
+    private static Object parse(String argument, Attribute.Type type) {
+      switch (type) {
+        case DOUBLE:
+          return Double.parseDouble(argument);
+        case BOOLEAN:
+          return Boolean.parseBoolean(argument);
+        default:
+          return argument;
+      }
+    }
+
+  }
+
+}
@@ -62,6 +62,126 @@ public interface CoreConfiguration {
       return 10;
     }
 
+    @Override
+    public Boolean getQueueEnableTaskIndex() {
+      return false;
+    }
+
+    @Override
+    public Boolean getQueueEnableAgentIndex() {
+      return false;
+    }
+
+    @Override
+    public Integer getQueueAssignmentBatchSize() {
+      return 1;
+    }
+
+    @Override
+    public Integer getDispatcherRouterLanes() {
+      return 0;
+    }
+
+    @Override
+    public Integer getDispatcherRouterLeaseDuration() {
+      return 0;
+    }
+
+    @Override
+    public Integer getDispatcherExpirationPollSeconds() {
+      return 0;
+    }
+
+    @Override
+    public Integer getDispatcherQueueCapacity() {
+      return 10000;
+    }
+
+    @Override
+    public Integer getDispatcherTimerPoolSize() {
+      return 2;
+    }
+
+    @Override
+    public Integer getDispatcherCallbackPoolSize() {
+      return 10;
+    }
+
+    @Override
+    public Integer getDispatcherCallbackQueueCapacity() {
+      return 10000;
+    }
+
+    @Override
+    public Integer getCallbackBreakerFailureThreshold() {
+      return 5;
+    }
+
+    @Override
+    public Integer getCallbackBreakerOpenSeconds() {
+      return 30;
+    }
+
+    @Override
+    public Integer getCallbackMaxConcurrency() {
+      return 50;
+    }
+
+    @Override
+    public Integer getDispatcherOutboxRelaySeconds() {
+      return 10;
+    }
+
+    @Override
+    public Integer getCallbackBatchWindowMillis() {
+      return 20;
+    }
+
+    @Override
+    public Integer getCallbackBatchMaxSize() {
+      return 100;
+    }
+
+    @Override
+    public Integer getAdmissionMaxWaitingPerRouter() {
+      return 0;
+    }
+
+    @Override
+    public Integer getAdmissionMaxWaitingPerQueue() {
+      return 0;
+    }
+
+    @Override
+    public Integer getAdmissionMaxDispatchBacklog() {
+      return 0;
+    }
+
+    @Override
+    public Integer getAdmissionMaxCallbacksInFlight() {
+      return 0;
+    }
+
+    @Override
+    public Integer getAdmissionRetryAfterSeconds() {
+      return 5;
+    }
+
+    @Override
+    public Integer getQueueFairShareQuota() {
+      return 0;
+    }
+
+    @Override
+    public Integer getEvaluatorCacheSize() {
+      return 1000;
+    }
+
+    @Override
+    public Boolean getQueueEnableCapabilityIndex() {
+      return false;
+    }
+
     @Override
     public Boolean getApiEnableExpressionSkillValidation() {
       return false;
@@ -95,6 +215,54 @@ public interface CoreConfiguration {
 
   Integer getJpaLockRetryCount();
 
+  Boolean getQueueEnableTaskIndex();
+
+  Boolean getQueueEnableAgentIndex();
+
+  Integer getQueueAssignmentBatchSize();
+
+  Integer getDispatcherRouterLanes();
+
+  Integer getDispatcherRouterLeaseDuration();
+
+  Integer getDispatcherExpirationPollSeconds();
+
+  Integer getDispatcherQueueCapacity();
+
+  Integer getDispatcherTimerPoolSize();
+
+  Integer getDispatcherCallbackPoolSize();
+
+  Integer getDispatcherCallbackQueueCapacity();
+
+  Integer getCallbackBreakerFailureThreshold();
+
+  Integer getCallbackBreakerOpenSeconds();
+
+  Integer getCallbackMaxConcurrency();
+
+  Integer getDispatcherOutboxRelaySeconds();
+
+  Integer getCallbackBatchWindowMillis();
+
+  Integer getCallbackBatchMaxSize();
+
+  Integer getAdmissionMaxWaitingPerRouter();
+
+  Integer getAdmissionMaxWaitingPerQueue();
+
+  Integer getAdmissionMaxDispatchBacklog();
+
+  Integer getAdmissionMaxCallbacksInFlight();
+
+  Integer getAdmissionRetryAfterSeconds();
+
+  Integer getQueueFairShareQuota();
+
+  Integer getEvaluatorCacheSize();
+
+  Boolean getQueueEnableCapabilityIndex();
+
   Boolean getApiEnableExpressionSkillValidation();
 
   Boolean getApiEnableAgentCapabilitiesValidation();
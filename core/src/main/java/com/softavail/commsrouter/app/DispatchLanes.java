@@ -0,0 +1,88 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.softavail.commsrouter.util.ThreadPoolKiller;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A fixed set of single-threaded executors. Every router is hashed to one of them, so all the
+ * dispatch work of a router runs in submission order on the same thread and never competes with
+ * itself for DB locks.
+ *
+ * <p>Each lane reports its queue depth ({@code lane-N.depth}) and the time work waits in the queue
+ * before it starts ({@code lane-N.latency}).
+ */
+public class DispatchLanes {
+
+  private static final Logger LOGGER = LogManager.getLogger(DispatchLanes.class);
+
+  private final List<ThreadPoolExecutor> lanes = new ArrayList<>();
+  private final List<Timer> latencies = new ArrayList<>();
+
+  public DispatchLanes(int count, MetricRegistry metrics) {
+    for (int i = 0; i < count; ++i) {
+      ThreadPoolExecutor lane = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+          new LinkedBlockingQueue<>());
+      String prefix = MetricRegistry.name(DispatchLanes.class, "lane-" + i);
+      metrics.register(MetricRegistry.name(prefix, "depth"),
+          (Gauge<Integer>) () -> lane.getQueue().size());
+      latencies.add(metrics.timer(MetricRegistry.name(prefix, "latency")));
+      lanes.add(lane);
+    }
+    LOGGER.info("Dispatch lanes: {}", count);
+  }
+
+  public void execute(Long routerId, Runnable work) {
+    int index = Math.floorMod(routerId.hashCode(), lanes.size());
+    Timer latency = latencies.get(index);
+    long submitted = System.nanoTime();
+    lanes.get(index).execute(() -> {
+      latency.update(System.nanoTime() - submitted, TimeUnit.NANOSECONDS);
+      try {
+        work.run();
+      } catch (RuntimeException e) {
+        LOGGER.error("Dispatch lane {}: failure: {}", index, e, e);
+      }
+    });
+  }
+
+  /**
+   * The work waiting on all of the lanes.
+   */
+  public int getDepth() {
+    return lanes.stream().mapToInt(lane -> lane.getQueue().size()).sum();
+  }
+
+  public void close(long waitSeconds) {
+    lanes.forEach(ThreadPoolExecutor::shutdown);
+    for (int i = 0; i < lanes.size(); ++i) {
+      ThreadPoolKiller.shutdown(lanes.get(i), "DispatchLane-" + i, waitSeconds);
+    }
+  }
+
+}
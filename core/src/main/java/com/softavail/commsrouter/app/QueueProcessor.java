@@ -18,13 +18,18 @@ package com.softavail.commsrouter.app;
 
 import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
 import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.result.MatchResult;
 import com.softavail.commsrouter.jpa.JpaDbFacade;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.Optional;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntSupplier;
 import javax.persistence.EntityManager;
 
 /**
@@ -39,10 +44,17 @@ public class QueueProcessor {
   private final JpaDbFacade db;
   private final TaskDispatcher taskDispatcher;
   private final ScheduledThreadPoolExecutor threadPool;
+  private final Executor dispatchExecutor;
   private final long processRetryDelaySeconds;
   private final StateChangeListener stateChangeListener;
+  private final AssignmentMatcher assignmentMatcher;
+  private final int assignmentBatchSize;
+  // Assignments per turn before yielding the thread, 0 for no limit
+  private final IntSupplier turnQuota;
 
-  private QueueProcessorState state;
+  private final AtomicReference<QueueProcessorState> state =
+      new AtomicReference<>(QueueProcessorState.IDLE);
+  private volatile long idleSince = System.nanoTime();
 
   public QueueProcessor(
       Long routerId,
@@ -50,86 +62,127 @@ public class QueueProcessor {
       JpaDbFacade db,
       TaskDispatcher taskDispatcher,
       ScheduledThreadPoolExecutor threadPool,
+      Executor dispatchExecutor,
       long processRetryDelaySeconds,
-      StateChangeListener stateChangeListener) {
+      StateChangeListener stateChangeListener,
+      AssignmentMatcher assignmentMatcher,
+      int assignmentBatchSize,
+      IntSupplier turnQuota) {
 
     this.routerId = routerId;
     this.queueId = queueId;
     this.db = db;
     this.taskDispatcher = taskDispatcher;
     this.threadPool = threadPool;
+    this.dispatchExecutor = dispatchExecutor;
     this.processRetryDelaySeconds = processRetryDelaySeconds;
     this.stateChangeListener = stateChangeListener;
-    this.state = QueueProcessorState.IDLE;
+    this.assignmentMatcher = assignmentMatcher;
+    this.assignmentBatchSize = Math.max(1, assignmentBatchSize);
+    this.turnQuota = turnQuota;
   }
 
   public Long getQueueId() {
     return queueId;
   }
 
-  public synchronized void process() {
-    LOGGER.debug("Queue processor {}: process in {}", queueId, state);
-    switch (state) {
-      case IDLE:
-        changeState(QueueProcessorState.CONSUME);
-        threadPool.submit(this::processQueue);
-        break;
-      case CONSUME:
-        changeState(QueueProcessorState.MUST_CONSUME);
-        break;
-      case MUST_CONSUME:
-      default:
-        break;
+  /**
+   * Makes sure the queue gets consumed after this call.
+   *
+   * @return false if the processor got evicted and a new one has to be used instead
+   */
+  public boolean process() {
+    for (; ; ) {
+      QueueProcessorState current = state.get();
+      LOGGER.debug("Queue processor {}: process in {}", queueId, current);
+      switch (current) {
+        case IDLE:
+          if (changeState(current, QueueProcessorState.CONSUME)) {
+            dispatchExecutor.execute(this::processQueue);
+            return true;
+          }
+          break;
+        case CONSUME:
+          if (changeState(current, QueueProcessorState.MUST_CONSUME)) {
+            return true;
+          }
+          break;
+        case MUST_CONSUME:
+          return true;
+        case EVICTED:
+        default:
+          return false;
+      }
+    }
+  }
+
+  private boolean tryComplete() {
+    for (; ; ) {
+      QueueProcessorState current = state.get();
+      LOGGER.debug("Queue processor {}: complete in {}", queueId, current);
+      switch (current) {
+        case MUST_CONSUME:
+          if (changeState(current, QueueProcessorState.CONSUME)) {
+            return false;
+          }
+          break;
+        case CONSUME:
+          idleSince = System.nanoTime();
+          if (changeState(current, QueueProcessorState.IDLE)) {
+            return true;
+          }
+          break;
+        default:
+          LOGGER.error("Queue processor {}: invalid complete state: {}", queueId, current);
+          throw new RuntimeException(
+              "Queue processor " + queueId + ": invalid complete state: " + current);
+      }
     }
   }
 
-  private synchronized boolean tryComplete() {
-    LOGGER.debug("Queue processor {}: complete in {}", queueId, state);
-    switch (state) {
-      case MUST_CONSUME:
-        changeState(QueueProcessorState.CONSUME);
-        return false;
-      case CONSUME:
-        changeState(QueueProcessorState.IDLE);
-        return true;
-      default:
-    }
-    LOGGER.error("Queue processor {}: invalid complete state: {}", queueId, state);
-    throw new RuntimeException(
-        "Queue processor " + queueId + ": invalid complete state: " + state);
+  /**
+   * Retires the processor if it has been idle for at least the given time. Once evicted it never
+   * processes again.
+   */
+  boolean tryEvict(long idleNanos) {
+    return System.nanoTime() - idleSince >= idleNanos
+        && changeState(QueueProcessorState.IDLE, QueueProcessorState.EVICTED);
   }
 
-  private void changeState(QueueProcessorState newState) {
-    LOGGER.debug("Queue processor {}:  change {} => {}", queueId, state, newState);
-    QueueProcessorState oldState = state;
-    state = newState;
+  private boolean changeState(QueueProcessorState oldState, QueueProcessorState newState) {
+    if (!state.compareAndSet(oldState, newState)) {
+      return false;
+    }
+    LOGGER.debug("Queue processor {}:  change {} => {}", queueId, oldState, newState);
     if (stateChangeListener != null) {
       StateChangeEvent changeEvent = new StateChangeEvent(queueId, oldState, newState);
       stateChangeListener.stateChanged(changeEvent);
     }
+    return true;
   }
 
-  public synchronized boolean isWorking() {
-    return state == QueueProcessorState.CONSUME || state == QueueProcessorState.MUST_CONSUME;
+  public boolean isWorking() {
+    QueueProcessorState current = state.get();
+    return current == QueueProcessorState.CONSUME || current == QueueProcessorState.MUST_CONSUME;
   }
 
   private void processQueue() {
 
+    int quota = turnQuota.getAsInt();
+    int assigned = 0;
     for (; ; ) {
-      Optional<TaskAssignmentDto> taskAssignmentDto;
+      List<TaskAssignmentDto> taskAssignments;
       try {
-        taskAssignmentDto = db.transactionManager.executeWithLockRetry(em -> {
-          db.router.lock(em, routerId);
-          return getAssignment(em);
-        });
+        taskAssignments = db.transactionManager.executeWithLockRetry(this::getAssignments);
       } catch (CommsRouterException | RuntimeException e) {
         // Failed to get assignment. Most probably DB is down, so let's try again a bit later.
         LOGGER.error("Queue processor {}: failure getting assignment: {}", queueId, e, e);
-        threadPool.schedule(this::processQueue, processRetryDelaySeconds, TimeUnit.SECONDS);
+        threadPool.schedule(() -> dispatchExecutor.execute(this::processQueue),
+            processRetryDelaySeconds, TimeUnit.SECONDS);
         return;
       }
 
-      if (!taskAssignmentDto.isPresent()) {
+      if (taskAssignments.isEmpty()) {
         // No task or no agent, try to complete.
         if (tryComplete()) {
           return;
@@ -138,16 +191,29 @@ public class QueueProcessor {
         continue;
       }
 
-      taskDispatcher.submitTaskAssignment(taskAssignmentDto.get());
+      taskAssignments.forEach(taskDispatcher::submitTaskAssignment);
+
+      assigned += taskAssignments.size();
+      if (quota > 0 && assigned >= quota) {
+        // Turn over: let the other queues have the thread and continue at the back of the line.
+        // The state stays consuming, so nobody else starts this queue meanwhile.
+        LOGGER.debug("Queue processor {}: yielding after {} assignments", queueId, assigned);
+        dispatchExecutor.execute(this::processQueue);
+        return;
+      }
     }
 
   }
 
-  @SuppressWarnings("unchecked")
-  private Optional<TaskAssignmentDto> getAssignment(EntityManager em)
+  private List<TaskAssignmentDto> getAssignments(EntityManager em)
       throws CommsRouterException {
 
-    return db.queue.findAssignment(em, queueId).map(taskDispatcher::assignTask);
+    // Up to assignmentBatchSize disjoint pairs claimed in the same transaction
+    List<TaskAssignmentDto> result = new ArrayList<>();
+    for (MatchResult match : assignmentMatcher.claimForQueue(em, queueId, assignmentBatchSize)) {
+      result.add(taskDispatcher.assignTask(em, match));
+    }
+    return result;
   }
 
   public static class Builder {
@@ -157,8 +223,12 @@ public class QueueProcessor {
     private JpaDbFacade db;
     private TaskDispatcher taskDispatcher;
     private ScheduledThreadPoolExecutor threadPool;
+    private Executor dispatchExecutor;
     private long processRetryDelaySeconds;
     private StateChangeListener stateChangeListener = null;
+    private AssignmentMatcher assignmentMatcher;
+    private int assignmentBatchSize = 1;
+    private IntSupplier turnQuota = () -> 0;
 
     public Builder setRouterId(Long routerId) {
       this.routerId = routerId;
@@ -185,6 +255,11 @@ public class QueueProcessor {
       return this;
     }
 
+    public Builder setDispatchExecutor(Executor dispatchExecutor) {
+      this.dispatchExecutor = dispatchExecutor;
+      return this;
+    }
+
     public Builder setProcessRetryDelaySeconds(long processRetryDelaySeconds) {
       this.processRetryDelaySeconds = processRetryDelaySeconds;
       return this;
@@ -195,9 +270,25 @@ public class QueueProcessor {
       return this;
     }
 
+    public Builder setAssignmentMatcher(AssignmentMatcher assignmentMatcher) {
+      this.assignmentMatcher = assignmentMatcher;
+      return this;
+    }
+
+    public Builder setAssignmentBatchSize(int assignmentBatchSize) {
+      this.assignmentBatchSize = assignmentBatchSize;
+      return this;
+    }
+
+    public Builder setTurnQuota(IntSupplier turnQuota) {
+      this.turnQuota = turnQuota;
+      return this;
+    }
+
     public QueueProcessor build() {
       return new QueueProcessor(routerId, queueId, db, taskDispatcher, threadPool,
-          processRetryDelaySeconds, stateChangeListener);
+          dispatchExecutor, processRetryDelaySeconds, stateChangeListener, assignmentMatcher,
+          assignmentBatchSize, turnQuota);
     }
   }
 
@@ -16,14 +16,12 @@
 
 package com.softavail.commsrouter.app;
 
-import com.google.common.collect.Maps;
-
-import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
 import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-import java.util.Map;
-import java.util.Optional;
-import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
@@ -32,56 +30,71 @@ import java.util.concurrent.TimeUnit;
  */
 public class QueueProcessorManager {
 
-  private static final boolean DO_NOT_INTERRUPT_IF_RUNNING = false;
+  private static final Logger LOGGER = LogManager.getLogger(QueueProcessorManager.class);
+  private static final long MIN_SWEEP_MILLIS = 1000;
 
-  private static final QueueProcessorManager instance = new QueueProcessorManager();
+  private final ConcurrentMap<Long, QueueProcessor> queueProcessors = new ConcurrentHashMap<>();
 
-  private final Map<Long, QueueProcessor> queueProcessors = Maps.newHashMap();
-  private final Map<Long, ScheduledFuture> scheduledFutures = Maps.newHashMap();
+  private final JpaDbFacade db;
+  private final TaskDispatcher taskDispatcher;
+  private final CoreConfiguration configuration;
+  private final ScheduledThreadPoolExecutor threadPool;
+  private final long evictionDelayNanos;
 
-  private QueueProcessorManager() {
-  }
+  public QueueProcessorManager(JpaDbFacade db, TaskDispatcher taskDispatcher,
+      CoreConfiguration configuration, ScheduledThreadPoolExecutor threadPool) {
 
-  public static QueueProcessorManager getInstance() {
-    return instance;
+    this.db = db;
+    this.taskDispatcher = taskDispatcher;
+    this.configuration = configuration;
+    this.threadPool = threadPool;
+    long evictionDelayMinutes = Math.max(0L, configuration.getQueueProcessorEvictionDelay());
+    this.evictionDelayNanos = TimeUnit.MINUTES.toNanos(evictionDelayMinutes);
+    // One sweeper for all processors instead of a future per idle transition. With no delay the
+    // idle processors go on the next sweep, within a second.
+    long sweepMillis = Math.max(MIN_SWEEP_MILLIS, TimeUnit.MINUTES.toMillis(evictionDelayMinutes));
+    threadPool.scheduleWithFixedDelay(this::evictIdleProcessors,
+        sweepMillis, sweepMillis, TimeUnit.MILLISECONDS);
   }
 
-  public synchronized void processQueue(Long routerId, Long queueId,
-      JpaDbFacade db,
-      EntityMappers mappers,
-      TaskDispatcher taskDispatcher,
-      CoreConfiguration configuration,
-      ScheduledThreadPoolExecutor threadPool) {
+  public void processQueue(Long routerId, Long queueId) {
+    for (; ; ) {
+      QueueProcessor queueProcessor = queueProcessors.computeIfAbsent(queueId,
+          key -> createQueueProcessor(routerId, queueId));
+      if (queueProcessor.process()) {
+        return;
+      }
+      // Evicted meanwhile, the sweeper is about to drop it from the map
+      queueProcessors.remove(queueId, queueProcessor);
+    }
+  }
 
-    Optional.ofNullable(scheduledFutures.get(queueId))
-        .ifPresent(scheduledFuture -> scheduledFuture.cancel(DO_NOT_INTERRUPT_IF_RUNNING));
+  int size() {
+    return queueProcessors.size();
+  }
 
-    QueueProcessor queueProcessor = queueProcessors.get(queueId);
-    if (queueProcessor == null) {
-      queueProcessor = new QueueProcessor.Builder()
-          .setRouterId(routerId)
-          .setQueueId(queueId)
-          .setDb(db)
-          .setTaskDispatcher(taskDispatcher)
-          .setThreadPool(threadPool)
-          .setProcessRetryDelaySeconds(configuration.getQueueProcessRetryDelay())
-          .setStateChangeListener((StateIdleListener) processedQueueId -> {
-            ScheduledFuture<?> schedule = threadPool.schedule(
-                () -> removeQueueProcessor(processedQueueId),
-                configuration.getQueueProcessorEvictionDelay(), TimeUnit.MINUTES);
-            scheduledFutures.put(processedQueueId, schedule);
-          })
-          .build();
-      queueProcessors.put(queueId, queueProcessor);
-    }
-    queueProcessor.process();
+  void evictIdleProcessors() {
+    queueProcessors.forEach((queueId, queueProcessor) -> {
+      if (queueProcessor.tryEvict(evictionDelayNanos)) {
+        queueProcessors.remove(queueId, queueProcessor);
+        LOGGER.debug("Queue processor {}: evicted", queueId);
+      }
+    });
   }
 
-  private synchronized void removeQueueProcessor(Long queueId) {
-    QueueProcessor queueProcessor = queueProcessors.get(queueId);
-    if (!queueProcessor.isWorking()) {
-      queueProcessors.remove(queueId);
-    }
+  private QueueProcessor createQueueProcessor(Long routerId, Long queueId) {
+    return new QueueProcessor.Builder()
+        .setRouterId(routerId)
+        .setQueueId(queueId)
+        .setDb(db)
+        .setTaskDispatcher(taskDispatcher)
+        .setThreadPool(threadPool)
+        .setDispatchExecutor(work -> taskDispatcher.executeForRouter(routerId, work))
+        .setProcessRetryDelaySeconds(configuration.getQueueProcessRetryDelay())
+        .setAssignmentMatcher(taskDispatcher.getAssignmentMatcher())
+        .setAssignmentBatchSize(configuration.getQueueAssignmentBatchSize())
+        .setTurnQuota(() -> taskDispatcher.getTurnQuota(routerId))
+        .build();
   }
 
 }
@@ -21,6 +21,6 @@ package com.softavail.commsrouter.app;
  */
 enum QueueProcessorState {
 
-  CONSUME, MUST_CONSUME, IDLE
+  CONSUME, MUST_CONSUME, IDLE, EVICTED
 
 }
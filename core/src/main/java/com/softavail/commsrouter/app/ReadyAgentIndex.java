@@ -0,0 +1,132 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the ready agents of every queue, ordered the same way as the assignment
+ * query: longest idle first (lastTimeAtBusyState ascending), then id ascending.
+ *
+ * <p>The DB stays the system of record. Entries may go stale (e.g. an agent got detached from a
+ * queue), so the users of the index must verify the picked agent and drop the entry if it does not
+ * match.
+ */
+public class ReadyAgentIndex {
+
+  private static final Comparator<Entry> ORDER = Comparator
+      .comparingLong((Entry entry) -> entry.lastTimeAtBusyState)
+      .thenComparing(entry -> entry.agentId);
+
+  private final Map<Long, NavigableSet<Entry>> queues = new HashMap<>();
+  private final Map<Long, Entry> agents = new HashMap<>();
+
+  public synchronized void add(Long agentId, Date lastTimeAtBusyState, Collection<Long> queueIds) {
+    Objects.requireNonNull(agentId);
+    remove(agentId);
+    Entry entry = new Entry(agentId,
+        lastTimeAtBusyState == null ? 0L : lastTimeAtBusyState.getTime(), queueIds);
+    agents.put(agentId, entry);
+    entry.queueIds.forEach(queueId ->
+        queues.computeIfAbsent(queueId, key -> new TreeSet<>(ORDER)).add(entry));
+  }
+
+  public synchronized void remove(Long agentId) {
+    Entry entry = agents.remove(agentId);
+    if (entry != null) {
+      entry.queueIds.forEach(queueId -> removeFromQueue(queueId, entry));
+    }
+  }
+
+  /**
+   * Removes the agent from the given queue only, keeping it ready for its other queues.
+   *
+   * @return true if the agent was indexed in that queue
+   */
+  public synchronized boolean remove(Long agentId, Long queueId) {
+    Entry entry = agents.get(agentId);
+    if (entry == null || !entry.queueIds.remove(queueId)) {
+      return false;
+    }
+    removeFromQueue(queueId, entry);
+    if (entry.queueIds.isEmpty()) {
+      agents.remove(agentId);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the first agent of the queue that is not in the skipped ones.
+   */
+  public synchronized Optional<Long> peek(Long queueId, Set<Long> skippedAgentIds) {
+    NavigableSet<Entry> queue = queues.get(queueId);
+    if (queue == null) {
+      return Optional.empty();
+    }
+    return queue.stream()
+        .map(entry -> entry.agentId)
+        .filter(agentId -> !skippedAgentIds.contains(agentId))
+        .findFirst();
+  }
+
+  public synchronized int size(Long queueId) {
+    NavigableSet<Entry> queue = queues.get(queueId);
+    return queue == null ? 0 : queue.size();
+  }
+
+  public synchronized int size() {
+    return agents.size();
+  }
+
+  public synchronized void clear() {
+    queues.clear();
+    agents.clear();
+  }
+
+  private void removeFromQueue(Long queueId, Entry entry) {
+    NavigableSet<Entry> queue = queues.get(queueId);
+    queue.remove(entry);
+    if (queue.isEmpty()) {
+      queues.remove(queueId);
+    }
+  }
+
+  private static class Entry {
+
+    private final Long agentId;
+    private final long lastTimeAtBusyState;
+    private final Set<Long> queueIds;
+
+    Entry(Long agentId, long lastTimeAtBusyState, Collection<Long> queueIds) {
+      this.agentId = agentId;
+      this.lastTimeAtBusyState = lastTimeAtBusyState;
+      this.queueIds = new HashSet<>(queueIds);
+    }
+
+  }
+
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.RouterLease;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.persistence.PersistenceException;
+
+/**
+ * Splits the routers between the dispatcher nodes sharing a DB. Each round a node refreshes its
+ * membership, renews the leases it holds up to its fair share (routers / live nodes), releases the
+ * rest and takes free or expired leases to fill the share. A node that dies stops renewing, so its
+ * leases expire and the others take them over.
+ *
+ * <p>Expiration dates are wall clock times written by the owner and read by the others, so the
+ * node clocks must agree to well within the lease duration. Locally a lease is trusted for two
+ * thirds of its duration only, so a node that failed to renew stops dispatching before anyone else
+ * may take over.
+ *
+ * <p>Dispatch work a node gets for a router it does not own, e.g. a new task, is not done there.
+ * The node flags the router in the DB instead, and the owner picks the flag up within a fraction of
+ * a second rather than on its next lease round.
+ */
+public class RouterLeaseManager {
+
+  private static final Logger LOGGER = LogManager.getLogger(RouterLeaseManager.class);
+
+  private final JpaDbFacade db;
+  private final String nodeId;
+  private final long durationMillis;
+  // routerId -> System.nanoTime() until which the lease is trusted
+  private final Map<Long, Long> owned = new ConcurrentHashMap<>();
+  // Routers of other nodes with dispatch work created through this one, not flagged yet
+  private final Set<Long> dispatchRequests = ConcurrentHashMap.newKeySet();
+
+  public RouterLeaseManager(JpaDbFacade db, String nodeId, int durationSeconds) {
+    this.db = db;
+    this.nodeId = nodeId;
+    this.durationMillis = TimeUnit.SECONDS.toMillis(durationSeconds);
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public long getRenewPeriodMillis() {
+    return Math.max(1L, durationMillis / 3);
+  }
+
+  public boolean owns(Long routerId) {
+    Long trustedUntil = owned.get(routerId);
+    return trustedUntil != null && trustedUntil - System.nanoTime() > 0;
+  }
+
+  public Set<Long> getOwnedRouterIds() {
+    return owned.keySet().stream().filter(this::owns).collect(Collectors.toSet());
+  }
+
+  /**
+   * Dispatch work for a router this node does not own. The owner is told on the next exchange.
+   */
+  public void requestDispatch(Long routerId) {
+    dispatchRequests.add(routerId);
+  }
+
+  /**
+   * Flags the routers of the dispatch work gathered since the last call for their owners, then
+   * takes the flags other nodes set on the routers of this one. Two transactions, so two nodes
+   * exchanging at the same time do not wait for each other's rows.
+   *
+   * @return the routers of this node with dispatch work created through other nodes
+   */
+  public Set<Long> exchangeDispatchRequests() throws CommsRouterException {
+    List<Long> outgoing = new ArrayList<>();
+    dispatchRequests.forEach(routerId -> {
+      if (dispatchRequests.remove(routerId)) {
+        outgoing.add(routerId);
+      }
+    });
+    if (!outgoing.isEmpty()) {
+      try {
+        db.transactionManager.executeVoid(em ->
+            db.routerLease.requestDispatch(em, outgoing, new Date()));
+      } catch (CommsRouterException | RuntimeException e) {
+        // Try again on the next exchange
+        dispatchRequests.addAll(outgoing);
+        throw e;
+      }
+    }
+    List<Long> incoming = db.transactionManager.execute(em ->
+        db.routerLease.takeDispatchRequests(em, nodeId));
+    return incoming.stream().filter(this::owns).collect(Collectors.toSet());
+  }
+
+  /**
+   * Runs one lease round.
+   *
+   * @return the routers this node did not own before the round and owns now
+   */
+  public synchronized Set<Long> renew() throws CommsRouterException {
+    long trustedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(durationMillis * 2 / 3);
+    Date now = new Date();
+    Date expirationDate = new Date(now.getTime() + durationMillis);
+
+    List<Long> routerIds = new ArrayList<>();
+    List<RouterLease> leases = new ArrayList<>();
+    long liveNodes = db.transactionManager.execute(em -> {
+      db.routerLease.refreshNode(em, nodeId, expirationDate);
+      db.routerLease.deleteExpiredNodes(em, new Date(now.getTime() - durationMillis));
+      db.routerLease.deleteOrphans(em);
+      routerIds.addAll(db.router.listIds(em));
+      leases.addAll(db.routerLease.list(em));
+      return db.routerLease.countLiveNodes(em, now);
+    });
+
+    Map<Long, RouterLease> leaseByRouter = leases.stream()
+        .collect(Collectors.toMap(RouterLease::getRouterId, Function.identity()));
+    long share = (routerIds.size() + Math.max(1L, liveNodes) - 1) / Math.max(1L, liveNodes);
+
+    List<Long> mine = new ArrayList<>();
+    List<Long> free = new ArrayList<>();
+    routerIds.forEach(routerId -> {
+      RouterLease lease = leaseByRouter.get(routerId);
+      if (lease != null && nodeId.equals(lease.getOwner())) {
+        mine.add(routerId);
+      } else if (lease == null || lease.isExpired(now.getTime())) {
+        free.add(routerId);
+      }
+    });
+    // Spread the nodes starting at the same time over different routers
+    Collections.shuffle(free);
+
+    Set<Long> held = new HashSet<>();
+    for (Long routerId : mine) {
+      if (held.size() >= share) {
+        owned.remove(routerId);
+        release(routerId, now);
+      } else if (take(routerId, now, expirationDate)) {
+        held.add(routerId);
+      }
+    }
+
+    Set<Long> acquired = new HashSet<>();
+    for (Long routerId : free) {
+      if (held.size() >= share) {
+        break;
+      }
+      if (take(routerId, now, expirationDate)) {
+        held.add(routerId);
+        if (!owns(routerId)) {
+          acquired.add(routerId);
+        }
+      }
+    }
+
+    owned.keySet().retainAll(held);
+    held.forEach(routerId -> owned.put(routerId, trustedUntil));
+    LOGGER.debug("Node {}: {} live nodes, share {}, owns {}, acquired {}",
+        nodeId, liveNodes, share, held.size(), acquired);
+    return acquired;
+  }
+
+  /**
+   * Gives up all the leases of this node, e.g. on shutdown.
+   */
+  public synchronized void release() {
+    owned.clear();
+    try {
+      db.transactionManager.executeVoid(em -> {
+        db.routerLease.releaseAll(em, nodeId, new Date());
+        db.routerLease.deleteNode(em, nodeId);
+      });
+    } catch (CommsRouterException | PersistenceException e) {
+      LOGGER.warn("Node {}: could not release router leases: {}", nodeId, e.getMessage());
+    }
+  }
+
+  private boolean take(Long routerId, Date now, Date expirationDate) {
+    try {
+      return db.transactionManager.execute(em -> {
+        RouterLease lease = em.find(RouterLease.class, routerId);
+        if (lease == null) {
+          lease = new RouterLease(routerId);
+          em.persist(lease);
+        } else if (!nodeId.equals(lease.getOwner()) && !lease.isExpired(now.getTime())) {
+          return false;
+        }
+        lease.setOwner(nodeId);
+        lease.setExpirationDate(expirationDate);
+        return true;
+      });
+    } catch (CommsRouterException | PersistenceException e) {
+      // Another node got there first
+      LOGGER.debug("Node {}: lost lease of router {}: {}", nodeId, routerId, e.getMessage());
+      return false;
+    }
+  }
+
+  private void release(Long routerId, Date now) {
+    try {
+      db.transactionManager.executeVoid(em -> {
+        RouterLease lease = em.find(RouterLease.class, routerId);
+        if (lease != null && nodeId.equals(lease.getOwner())) {
+          lease.setExpirationDate(now);
+        }
+      });
+    } catch (CommsRouterException | PersistenceException e) {
+      LOGGER.debug("Node {}: could not release router {}: {}", nodeId, routerId, e.getMessage());
+    }
+  }
+
+}
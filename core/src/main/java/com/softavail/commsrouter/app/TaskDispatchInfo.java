@@ -28,6 +28,7 @@ public class TaskDispatchInfo {
   private Long queueId;
   private long queuePosition;
   private Long queuedTimeout;
+  private Long priority;
 
   public Long getRouterId() {
     return routerId;
@@ -77,4 +78,12 @@ public class TaskDispatchInfo {
     this.queuedTimeout = queuedTimeout;
   }
 
+  public Long getPriority() {
+    return priority;
+  }
+
+  public void setPriority(Long priority) {
+    this.priority = priority;
+  }
+
 }
@@ -16,6 +16,10 @@
 
 package com.softavail.commsrouter.app;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.Lists;
+import com.softavail.commsrouter.api.dto.misc.CallbackHostDto;
 import com.softavail.commsrouter.api.dto.model.AgentDto;
 import com.softavail.commsrouter.api.dto.model.AgentState;
 import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
@@ -26,23 +30,41 @@ import com.softavail.commsrouter.api.exception.CommsRouterException;
 import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
 import com.softavail.commsrouter.domain.Agent;
 import com.softavail.commsrouter.domain.Route;
+import com.softavail.commsrouter.domain.RouterConfig;
 import com.softavail.commsrouter.domain.Rule;
 import com.softavail.commsrouter.domain.Task;
 import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
 import com.softavail.commsrouter.domain.result.MatchResult;
+import com.softavail.commsrouter.domain.result.QueuedTaskResult;
+import com.softavail.commsrouter.domain.result.ReadyAgentResult;
+import com.softavail.commsrouter.domain.result.TaskExpirationResult;
 import com.softavail.commsrouter.jpa.JpaDbFacade;
-import com.softavail.commsrouter.jpa.result.TaskEnumerableResult;
+import com.softavail.commsrouter.util.PeriodicJobRunner;
 import com.softavail.commsrouter.util.ThreadPoolKiller;
+import com.softavail.commsrouter.util.TimingWheel;
 import net.jodah.failsafe.Failsafe;
 import net.jodah.failsafe.RetryPolicy;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.hibernate.Session;
 
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
 
 /**
  * @author ikrustev
@@ -51,13 +73,56 @@ public class TaskDispatcher {
 
   private static final Logger LOGGER = LogManager.getLogger(TaskDispatcher.class);
 
+  private static final int WAITING_TASKS_PAGE_SIZE = 1000;
+  private static final int TIMER_RESTORE_PAGE_SIZE = 5000;
+  // Expiration dates may come from other nodes, whose clocks differ slightly from ours
+  private static final long EXPIRATION_TOLERANCE_MILLIS = 1000;
+  // 100ms x 512 on the first level, 51.2s x 512 = 7.3h on the second one and so on
+  private static final long TIMER_TICK_MILLIS = 100;
+  private static final int TIMER_WHEEL_SIZE = 512;
+  private static final int EXPIRED_TASKS_BATCH_SIZE = 500;
+  private static final int EXPIRATION_POLL_MAX_BATCHES = 20;
+  // Expired tasks claimed by a node that died or failed to handle them are claimed again after
+  private static final long EXPIRATION_CLAIM_MILLIS = 60000;
+  // How long a task state seen by this node is trusted by the callback retries
+  private static final long TASK_STATE_MAX_AGE_MILLIS = 60000;
+  // How often a node flags the dispatch work it got for the routers of others and picks up theirs
+  private static final long DISPATCH_REQUEST_PERIOD_MILLIS = 200;
+  // How often a node without leases picks up the router configs changed through the other nodes
+  private static final long ROUTER_CONFIG_RELOAD_MILLIS = 10000;
+
   private final JpaDbFacade db;
   private final EntityMappers mappers;
   private final TaskEventHandler taskEventHandler;
-  private final ScheduledThreadPoolExecutor threadPool;
+  private final MetricRegistry metrics = new MetricRegistry();
+  private final String nodeId = createNodeId();
+  // Queue draining and agent dispatching, unless lanes are enabled
+  private final BoundedExecutor dispatchPool;
+  // Timer ticks, expiration polls, lease rounds, timeout processing and delayed retries
+  private final ScheduledThreadPoolExecutor timerPool;
+  // Assignment callbacks, so slow callback URLs hold up only each other
+  private final BoundedExecutor callbackPool;
+  private final CallbackScheduler callbackScheduler;
+  private final CallbackBreakers callbackBreakers;
+  private final CallbackBatcher callbackBatcher;
+  // Refs of the routers with callback batching on
+  private final Set<String> batchingRouterRefs = ConcurrentHashMap.newKeySet();
+  // Dispatch weights of the routers other than 1
+  private final Map<Long, Integer> routerWeights = new ConcurrentHashMap<>();
+  private final DispatchLanes dispatchLanes;
   private final CoreConfiguration configuration;
   private final QueueProcessorManager queueProcessorManager;
   private final RetryPolicy retryPolicy;
+  private final WaitingTaskIndex waitingTaskIndex;
+  private final ReadyAgentIndex readyAgentIndex;
+  private final AssignmentMatcher assignmentMatcher;
+  private final RouterLeaseManager routerLeases;
+  private final CallbackOutboxRelay outboxRelay;
+  private final TaskStateRegistry taskStates;
+  // When set the DB is polled for expired tasks instead of keeping timers in memory
+  private final boolean pollExpirations;
+  private final TimingWheel<Long> taskTimers =
+      new TimingWheel<>(TIMER_TICK_MILLIS, TIMER_WHEEL_SIZE, System.currentTimeMillis());
 
   public TaskDispatcher(JpaDbFacade db, EntityMappers mappers, TaskEventHandler taskEventHandler) {
     this(db, mappers, CoreConfiguration.DEFAULT, taskEventHandler);
@@ -69,9 +134,29 @@ public class TaskDispatcher {
     this.db = db;
     this.mappers = mappers;
     this.taskEventHandler = taskEventHandler;
-    this.threadPool = new ScheduledThreadPoolExecutor(configuration.getDispatcherThreadPoolSize());
-    this.threadPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
-    this.queueProcessorManager = QueueProcessorManager.getInstance();
+    this.timerPool = new ScheduledThreadPoolExecutor(configuration.getDispatcherTimerPoolSize(),
+        BoundedExecutor.newThreadFactory("TaskDispatcher-timer"));
+    this.timerPool.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    registerTimerPoolMetrics();
+    Integer routerLanes = configuration.getDispatcherRouterLanes();
+    this.dispatchLanes = routerLanes != null && routerLanes > 0
+        ? new DispatchLanes(routerLanes, metrics) : null;
+    this.dispatchPool = dispatchLanes == null
+        ? new BoundedExecutor("TaskDispatcher-dispatch",
+            configuration.getDispatcherThreadPoolSize(),
+            configuration.getDispatcherQueueCapacity(), metrics)
+        : null;
+    this.callbackPool = new BoundedExecutor("TaskDispatcher-callback",
+        configuration.getDispatcherCallbackPoolSize(),
+        configuration.getDispatcherCallbackQueueCapacity(), metrics);
+    this.callbackScheduler = new CallbackScheduler(timerPool, callbackPool);
+    this.callbackBreakers = new CallbackBreakers(configuration, timerPool,
+        work -> callbackScheduler.schedule(Executors.callable(work), 0, TimeUnit.MILLISECONDS),
+        metrics);
+    this.callbackBatcher = new CallbackBatcher(taskEventHandler, callbackBreakers, timerPool,
+        work -> callbackScheduler.schedule(Executors.callable(work), 0, TimeUnit.MILLISECONDS),
+        configuration.getCallbackBatchWindowMillis(), configuration.getCallbackBatchMaxSize(),
+        metrics);
     Integer backoffDelay = configuration.getBackoffDelay();
     Integer backoffDelayMax = configuration.getBackoffDelayMax();
     this.retryPolicy = new RetryPolicy()
@@ -79,8 +164,166 @@ public class TaskDispatcher {
         .retryOn(RuntimeException.class)
         .withBackoff(backoffDelay, backoffDelayMax, TimeUnit.SECONDS)
         .withJitter(configuration.getJitter(), TimeUnit.MILLISECONDS);
-    startQueueProcessors();
-    restartWaitingTaskTimers();
+    Integer leaseDuration = configuration.getDispatcherRouterLeaseDuration();
+    this.routerLeases = leaseDuration != null && leaseDuration > 0
+        ? new RouterLeaseManager(db, nodeId, leaseDuration) : null;
+    // With leases the tasks change through other nodes too, trust the local view one round only
+    this.taskStates = new TaskStateRegistry(routerLeases != null
+        ? routerLeases.getRenewPeriodMillis() : TASK_STATE_MAX_AGE_MILLIS, metrics);
+    Integer outboxRelaySeconds = configuration.getDispatcherOutboxRelaySeconds();
+    this.outboxRelay = outboxRelaySeconds != null && outboxRelaySeconds > 0
+        ? new CallbackOutboxRelay(db, mappers, nodeId, outboxRelaySeconds, routerLeases == null,
+            this::deliverTaskAssignment, metrics)
+        : null;
+    boolean enableIndexes = routerLeases == null;
+    if (!enableIndexes
+        && (configuration.getQueueEnableTaskIndex() || configuration.getQueueEnableAgentIndex())) {
+      // Tasks and agents change through all the nodes, an index would only see the local changes
+      LOGGER.warn("Router leases are enabled, the in-memory task and agent indexes are disabled");
+    }
+    this.waitingTaskIndex = enableIndexes && configuration.getQueueEnableTaskIndex()
+        ? new WaitingTaskIndex() : null;
+    this.readyAgentIndex = enableIndexes && configuration.getQueueEnableAgentIndex()
+        ? new ReadyAgentIndex() : null;
+    this.assignmentMatcher = new AssignmentMatcher(db, waitingTaskIndex, readyAgentIndex);
+    this.queueProcessorManager = new QueueProcessorManager(db, this, configuration, timerPool);
+    Integer expirationPollSeconds = configuration.getDispatcherExpirationPollSeconds();
+    this.pollExpirations = expirationPollSeconds != null && expirationPollSeconds > 0;
+    if (pollExpirations) {
+      LOGGER.info("Polling for expired tasks every {} seconds", expirationPollSeconds);
+      PeriodicJobRunner.start(timerPool, this::pollExpiredTasks, expirationPollSeconds);
+    } else {
+      metrics.register(MetricRegistry.name(TaskDispatcher.class, "timers", "pending"),
+          (Gauge<Integer>) taskTimers::size);
+      timerPool.scheduleAtFixedRate(this::fireTaskTimers, TIMER_TICK_MILLIS, TIMER_TICK_MILLIS,
+          TimeUnit.MILLISECONDS);
+    }
+    rebuildWaitingTaskIndex();
+    rebuildReadyAgentIndex();
+    loadRouterConfigs();
+    if (routerLeases != null) {
+      startRouterLeases();
+    } else {
+      // The lease rounds reload the configs, without them the configs are reloaded on their own
+      timerPool.scheduleWithFixedDelay(this::reloadRouterConfigs, ROUTER_CONFIG_RELOAD_MILLIS,
+          ROUTER_CONFIG_RELOAD_MILLIS, TimeUnit.MILLISECONDS);
+      startQueueProcessors();
+      if (!pollExpirations) {
+        restartWaitingTaskTimers();
+      }
+    }
+    if (outboxRelay != null) {
+      // The first run picks up the callbacks a previous run left undelivered
+      timerPool.scheduleWithFixedDelay(outboxRelay::run, 0, outboxRelaySeconds, TimeUnit.SECONDS);
+    }
+  }
+
+  private static String createNodeId() {
+    return ManagementFactory.getRuntimeMXBean().getName() + "/"
+        + UUID.randomUUID().toString().substring(0, 8);
+  }
+
+  private void registerTimerPoolMetrics() {
+    String prefix = MetricRegistry.name(TaskDispatcher.class, "timer");
+    metrics.register(MetricRegistry.name(prefix, "depth"),
+        (Gauge<Integer>) () -> timerPool.getQueue().size());
+    metrics.register(MetricRegistry.name(prefix, "active"),
+        (Gauge<Integer>) timerPool::getActiveCount);
+  }
+
+  private void startRouterLeases() {
+    LOGGER.info("Router leases enabled, node: {}", routerLeases.getNodeId());
+    renewRouterLeases();
+    long period = routerLeases.getRenewPeriodMillis();
+    timerPool.scheduleWithFixedDelay(this::renewRouterLeases, period, period,
+        TimeUnit.MILLISECONDS);
+    timerPool.scheduleWithFixedDelay(this::exchangeDispatchRequests,
+        DISPATCH_REQUEST_PERIOD_MILLIS, DISPATCH_REQUEST_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+  }
+
+  private void loadRouterConfigs() {
+    List<RouterConfig> configs;
+    try {
+      configs = db.transactionManager.execute(em -> db.router.listConfigs(em));
+    } catch (CommsRouterException e) {
+      throw new RuntimeException("Can not load the router configs!", e);
+    }
+    Set<Long> routerIds = new HashSet<>();
+    Set<String> routerRefs = new HashSet<>();
+    configs.forEach(config -> {
+      onRouterConfigChanged(config.getRouter().getId(), config.getRouter().getRef(), config);
+      routerIds.add(config.getRouter().getId());
+      routerRefs.add(config.getRouter().getRef());
+    });
+    // Drop the routers deleted through the other nodes
+    routerWeights.keySet().retainAll(routerIds);
+    batchingRouterRefs.retainAll(routerRefs);
+  }
+
+  private void reloadRouterConfigs() {
+    try {
+      loadRouterConfigs();
+    } catch (RuntimeException e) {
+      LOGGER.error("Router config reload failed: {}", e, e);
+    }
+  }
+
+  /**
+   * A lease round. Tasks and agents of a router may change through any node, while only the owner
+   * dispatches. So on every round the owner kicks the queues that have waiting tasks and arms the
+   * timers of the tasks expiring before the next round.
+   */
+  private void renewRouterLeases() {
+    try {
+      // The configs change through the other nodes too
+      loadRouterConfigs();
+      Set<Long> acquired = routerLeases.renew();
+      if (!acquired.isEmpty()) {
+        LOGGER.info("Node {}: acquired routers {}", routerLeases.getNodeId(), acquired);
+      }
+      for (Long routerId : routerLeases.getOwnedRouterIds()) {
+        kickRouter(routerId);
+      }
+    } catch (RuntimeException | CommsRouterException e) {
+      LOGGER.error("Router lease round failed: {}", e, e);
+    }
+  }
+
+  /**
+   * Passes the dispatch work this node got for the routers of others to their owners, and does
+   * the work the others passed for the routers of this node.
+   */
+  private void exchangeDispatchRequests() {
+    try {
+      for (Long routerId : routerLeases.exchangeDispatchRequests()) {
+        kickRouter(routerId);
+      }
+    } catch (RuntimeException | CommsRouterException e) {
+      LOGGER.error("Dispatch request exchange failed: {}", e, e);
+    }
+  }
+
+  // Arms the timers of the router's tasks expiring before the round after next and kicks the
+  // queues that have waiting tasks. A queue processor assigns them to any ready agent, so this
+  // covers the agents turned ready through other nodes as well.
+  private void kickRouter(Long routerId) throws CommsRouterException {
+    Date armBefore = new Date(System.currentTimeMillis()
+        + 2 * routerLeases.getRenewPeriodMillis());
+    db.transactionManager.executeVoid(em -> {
+      if (!pollExpirations) {
+        db.task.listWaitingExpiringBefore(em, routerId, armBefore)
+            .forEach(this::attachExpirationTimerToTask);
+      }
+      db.task.listWaitingQueueIds(em, routerId)
+          .forEach(queueId -> process(routerId, queueId));
+    });
+  }
+
+  /**
+   * Whether this node dispatches for the router: always when leases are disabled.
+   */
+  public boolean ownsRouter(Long routerId) {
+    return routerLeases == null || routerLeases.owns(routerId);
   }
 
   @SuppressWarnings("unchecked")
@@ -98,23 +341,183 @@ public class TaskDispatcher {
     }
   }
 
+  private void rebuildWaitingTaskIndex() {
+    if (waitingTaskIndex == null) {
+      return;
+    }
+    LOGGER.info("Rebuilding the waiting task index");
+    try {
+      Long afterTaskId = 0L;
+      for (; ; ) {
+        final Long lastTaskId = afterTaskId;
+        List<QueuedTaskResult> page = db.transactionManager.execute(em ->
+            db.task.listWaiting(em, lastTaskId, WAITING_TASKS_PAGE_SIZE));
+        page.forEach(queued ->
+            waitingTaskIndex.add(queued.queueId, queued.taskId, queued.priority));
+        if (page.size() < WAITING_TASKS_PAGE_SIZE) {
+          break;
+        }
+        afterTaskId = page.get(page.size() - 1).taskId;
+      }
+    } catch (CommsRouterException e) {
+      throw new RuntimeException("Can not rebuild the waiting task index!", e);
+    }
+    LOGGER.info("Waiting task index rebuilt: {} tasks", waitingTaskIndex.size());
+  }
+
+  private void rebuildReadyAgentIndex() {
+    if (readyAgentIndex == null) {
+      return;
+    }
+    LOGGER.info("Rebuilding the ready agent index");
+    try {
+      List<ReadyAgentResult> readyAgents = db.transactionManager.execute(db.agent::listReady);
+      // The rows come ordered by agent, one per attached queue
+      int from = 0;
+      for (int i = 1; i <= readyAgents.size(); ++i) {
+        if (i == readyAgents.size()
+            || !readyAgents.get(i).agentId.equals(readyAgents.get(from).agentId)) {
+          List<Long> queueIds = new ArrayList<>();
+          readyAgents.subList(from, i).forEach(ready -> queueIds.add(ready.queueId));
+          ReadyAgentResult ready = readyAgents.get(from);
+          readyAgentIndex.add(ready.agentId, ready.lastTimeAtBusyState, queueIds);
+          from = i;
+        }
+      }
+    } catch (CommsRouterException e) {
+      throw new RuntimeException("Can not rebuild the ready agent index!", e);
+    }
+    LOGGER.info("Ready agent index rebuilt: {} agents", readyAgentIndex.size());
+  }
+
+  AssignmentMatcher getAssignmentMatcher() {
+    return assignmentMatcher;
+  }
+
+  public MetricRegistry getMetricRegistry() {
+    return metrics;
+  }
+
+  /**
+   * Runs dispatch work of a router: on the router's lane if lanes are enabled, on the dispatch pool
+   * otherwise. Work the full pool rejects is retried after the queue retry delay.
+   */
+  void executeForRouter(Long routerId, Runnable work) {
+    if (dispatchLanes != null) {
+      dispatchLanes.execute(routerId, work);
+      return;
+    }
+    try {
+      dispatchPool.execute(work);
+    } catch (RejectedExecutionException e) {
+      LOGGER.warn("Router {}: dispatch pool full, retrying in {}s", routerId,
+          configuration.getQueueProcessRetryDelay());
+      timerPool.schedule(() -> executeForRouter(routerId, work),
+          configuration.getQueueProcessRetryDelay(), TimeUnit.SECONDS);
+    }
+  }
+
   private void process(Long routerId, Long queueId) {
-    queueProcessorManager
-        .processQueue(routerId, queueId, db, mappers, this, configuration, threadPool);
+    if (!ownsRouter(routerId)) {
+      requestDispatch(routerId);
+      return;
+    }
+    queueProcessorManager.processQueue(routerId, queueId);
+  }
+
+  // Leaves the dispatch work of a router of another node to its owner
+  private void requestDispatch(Long routerId) {
+    if (routerLeases != null) {
+      routerLeases.requestDispatch(routerId);
+    }
   }
 
   public void close() {
+    close(true);
+  }
+
+  /**
+   * Stops the dispatcher. If not graceful it is gone as if the node had died: its routers are taken
+   * over once the leases expire, its undelivered callbacks once its node row does.
+   */
+  void close(boolean graceful) {
     final Integer shutdownDelay = configuration.getDispatcherThreadShutdownDelay();
-    ThreadPoolKiller.shutdown(threadPool, "TaskDispatcher", shutdownDelay);
+    if (routerLeases != null && graceful) {
+      routerLeases.release();
+    }
+    if (outboxRelay != null) {
+      outboxRelay.flush();
+    }
+    ThreadPoolKiller.shutdown(timerPool, "TaskDispatcher-timer", shutdownDelay);
+    if (dispatchLanes != null) {
+      dispatchLanes.close(shutdownDelay);
+    } else {
+      dispatchPool.close(shutdownDelay);
+    }
+    callbackPool.close(shutdownDelay);
+    if (outboxRelay != null && graceful) {
+      // Only once the callbacks in flight are over, so they are not relayed meanwhile
+      outboxRelay.leave();
+    }
   }
 
   public void dispatchTask(TaskDispatchInfo dispatchInfo) {
-    process(dispatchInfo.getRouterId(), dispatchInfo.getQueueId());
-    setTaskExpirationTimeout(dispatchInfo.getTaskId(), dispatchInfo.getQueuedTimeout());
+    if (enqueueTask(dispatchInfo)) {
+      process(dispatchInfo.getRouterId(), dispatchInfo.getQueueId());
+    }
+  }
+
+  /**
+   * Dispatches many tasks, processing each of their queues once.
+   */
+  private void dispatchTasks(List<TaskDispatchInfo> dispatchInfos) {
+    Map<Long, Long> routerByQueue = new LinkedHashMap<>();
+    dispatchInfos.forEach(dispatchInfo -> {
+      if (enqueueTask(dispatchInfo)) {
+        routerByQueue.put(dispatchInfo.getQueueId(), dispatchInfo.getRouterId());
+      }
+    });
+    routerByQueue.forEach((queueId, routerId) -> process(routerId, queueId));
+  }
+
+  // Indexes the task and arms its timer. False if the router is dispatched by another node, which
+  // is asked to take the task up.
+  private boolean enqueueTask(TaskDispatchInfo dispatchInfo) {
+    if (waitingTaskIndex != null) {
+      waitingTaskIndex.add(dispatchInfo.getQueueId(), dispatchInfo.getTaskId(),
+          dispatchInfo.getPriority());
+    }
+    if (!ownsRouter(dispatchInfo.getRouterId())) {
+      requestDispatch(dispatchInfo.getRouterId());
+      return false;
+    }
+    setTaskExpirationTimeout(dispatchInfo.getTaskId(),
+        TimeUnit.SECONDS.toMillis(dispatchInfo.getQueuedTimeout()));
+    return true;
+  }
+
+  public void cancelTask(TaskDispatchInfo dispatchInfo) {
+    taskTimers.cancel(dispatchInfo.getTaskId());
+    if (waitingTaskIndex != null) {
+      waitingTaskIndex.remove(dispatchInfo.getTaskId());
+    }
+  }
+
+  /**
+   * A committed state transition of a task, so the callback retries of its assignment know about
+   * it without going to the DB.
+   */
+  public void onTaskStateChanged(Long taskId, TaskState state) {
+    taskStates.onTransition(taskId, state);
   }
 
   public void dispatchAgent(AgentDispatchInfo dispatchInfo) {
-    threadPool.submit(() -> {
+    indexAgent(dispatchInfo);
+    if (!ownsRouter(dispatchInfo.getRouterId())) {
+      requestDispatch(dispatchInfo.getRouterId());
+      return;
+    }
+    executeForRouter(dispatchInfo.getRouterId(), () -> {
       try {
         doDispatchAgent(dispatchInfo);
       } catch (RuntimeException | CommsRouterException e) {
@@ -123,14 +526,33 @@ public class TaskDispatcher {
     });
   }
 
+  /**
+   * Brings the ready agent index in line with the given agent state, without looking for a task.
+   */
+  public void indexAgent(AgentDispatchInfo dispatchInfo) {
+    if (readyAgentIndex == null) {
+      return;
+    }
+    if (dispatchInfo.getState() == AgentState.ready) {
+      readyAgentIndex.add(dispatchInfo.getAgentId(), dispatchInfo.getLastTimeAtBusyState(),
+          dispatchInfo.getQueueIds());
+    } else {
+      readyAgentIndex.remove(dispatchInfo.getAgentId());
+    }
+  }
+
+  public void releaseAgent(AgentDispatchInfo dispatchInfo) {
+    if (readyAgentIndex != null) {
+      readyAgentIndex.remove(dispatchInfo.getAgentId());
+    }
+  }
+
   private void doDispatchAgent(AgentDispatchInfo dispatchInfo) throws CommsRouterException {
 
     TaskAssignmentDto taskAssignmentDto = db.transactionManager.executeWithLockRetry(
         em -> {
-          db.router.lock(em, dispatchInfo.getRouterId());
-
-          return db.queue.findAssignmentForAgent(em, dispatchInfo.getAgentId())
-              .map(this::assignTask)
+          return assignmentMatcher.findForAgent(em, dispatchInfo.getAgentId())
+              .map(matchResult -> assignTask(em, matchResult))
               .orElse(null);
         }
     );
@@ -140,33 +562,86 @@ public class TaskDispatcher {
     }
   }
 
-  public TaskAssignmentDto assignTask(MatchResult matchResult) {
+  /**
+   * Assigns the matched pair in the given transaction, recording the assignment in the callback
+   * outbox along with it.
+   */
+  public TaskAssignmentDto assignTask(EntityManager em, MatchResult matchResult) {
     Agent agent = matchResult.agent;
     Task task = matchResult.task;
     // Assign
     agent.setState(AgentState.busy);
     task.setState(TaskState.assigned);
     task.setAgent(agent);
+    if (outboxRelay != null) {
+      outboxRelay.record(em, task, agent);
+    }
 
     TaskDto taskDto = mappers.task.toDto(task);
     AgentDto agentDto = mappers.agent.toDto(agent);
     return new TaskAssignmentDto(taskDto, agentDto);
   }
 
+  /**
+   * Takes the dispatch settings of a router: callback batching and dispatch weight. Called on
+   * start, on every lease round or periodically without leases, and on a committed config change
+   * through this node, so the assignments never have to load the config.
+   *
+   * @param routerConfig the committed config, null if the router is gone
+   */
+  public void onRouterConfigChanged(Long routerId, String routerRef, RouterConfig routerConfig) {
+    if (routerConfig != null && Boolean.TRUE.equals(routerConfig.getCallbackBatching())) {
+      batchingRouterRefs.add(routerRef);
+    } else {
+      batchingRouterRefs.remove(routerRef);
+    }
+    Integer weight = routerConfig == null ? null : routerConfig.getDispatchWeight();
+    if (weight != null && weight > 1) {
+      routerWeights.put(routerId, weight);
+    } else {
+      routerWeights.remove(routerId);
+    }
+  }
+
+  /**
+   * The assignments a queue processor of the router makes before yielding to the other queues,
+   * 0 for no limit.
+   */
+  int getTurnQuota(Long routerId) {
+    Integer quota = configuration.getQueueFairShareQuota();
+    if (quota == null || quota <= 0) {
+      return 0;
+    }
+    return quota * routerWeights.getOrDefault(routerId, 1);
+  }
+
   public void submitTaskAssignment(TaskAssignmentDto taskAssignmentDto) {
+    // The assignment is committed. Drop the pair from the indexes before the callback goes out,
+    // as a reject or complete coming back after it re-adds them.
+    taskTimers.cancel(taskAssignmentDto.getTask().getId());
+    if (waitingTaskIndex != null) {
+      waitingTaskIndex.remove(taskAssignmentDto.getTask().getId());
+    }
+    if (readyAgentIndex != null) {
+      readyAgentIndex.remove(taskAssignmentDto.getAgent().getId());
+    }
+    deliverTaskAssignment(taskAssignmentDto,
+        outboxRelay == null ? null : outboxRelay.onSubmitted(taskAssignmentDto.getTask().getId()));
+  }
+
+  /**
+   * Sends the assignment callback, retrying until it gets through or the task is no longer
+   * assigned.
+   *
+   * @param outboxEntryId the outbox entry to mark done afterwards, if any
+   */
+  private void deliverTaskAssignment(TaskAssignmentDto taskAssignmentDto, Long outboxEntryId) {
+    Long taskId = taskAssignmentDto.getTask().getId();
+    long version = taskStates.onAssigned(taskId);
+    boolean batched = batchingRouterRefs.contains(taskAssignmentDto.getTask().getRouterRef());
     RetryPolicy retryPolicy = this.retryPolicy.copy();
-    retryPolicy.abortIf(obj -> {
-      try {
-        return db.transactionManager.execute(em -> {
-          Task task = db.task.get(em, taskAssignmentDto.getTask());
-          return task.getState() != TaskState.assigned;
-        });
-      } catch (CommsRouterException e) {
-        LOGGER.debug("Error retrieving Task: {}", taskAssignmentDto.getTask().getRef());
-        return true;
-      }
-    });
-    Failsafe.with(retryPolicy).with(threadPool)
+    retryPolicy.abortIf(obj -> isNoLongerAssigned(taskAssignmentDto, version));
+    Failsafe.with(retryPolicy).with(callbackScheduler)
         .onSuccess((ignored, executionContext) -> LOGGER.debug("Task {} assigned to agent {}",
             taskAssignmentDto.getTask(), taskAssignmentDto.getAgent()))
         .onRetry(
@@ -174,104 +649,245 @@ public class TaskDispatcher {
                 taskAssignmentDto.getTask(), taskAssignmentDto.getAgent(), failure, context))
         .onFailure((ignored, throwable) -> LOGGER.error("Failure assigning task {} to agent {}: {}",
             taskAssignmentDto.getTask(), taskAssignmentDto.getAgent(), throwable, throwable))
-        .run(() -> taskEventHandler.onTaskAssigned(taskAssignmentDto));
+        // A batch takes a single breaker slot for all of its assignments
+        .future(() -> batched
+            ? callbackBatcher.submit(taskAssignmentDto,
+                () -> isNoLongerAssigned(taskAssignmentDto, version))
+            : callbackBreakers.call(taskAssignmentDto.getTask().getCallbackUrl(),
+                () -> taskEventHandler.onTaskAssignedAsync(taskAssignmentDto),
+                () -> isNoLongerAssigned(taskAssignmentDto, version)))
+        .whenComplete((ignored, throwable) -> {
+          taskStates.release(taskId, version);
+          if (outboxEntryId != null) {
+            outboxRelay.onDone(outboxEntryId);
+          }
+        });
   }
 
-  private void setTaskExpirationTimeout(Long taskId, Long seconds) {
+  private boolean isNoLongerAssigned(TaskAssignmentDto taskAssignmentDto, long version) {
+    Long taskId = taskAssignmentDto.getTask().getId();
+    Boolean assigned = taskStates.isAssigned(taskId, version);
+    if (assigned != null) {
+      return !assigned;
+    }
+    try {
+      boolean noLongerAssigned = db.transactionManager.execute(em -> {
+        Task task = db.task.get(em, taskAssignmentDto.getTask());
+        return task.getState() != TaskState.assigned;
+      });
+      if (!noLongerAssigned) {
+        taskStates.confirm(taskId, version);
+      }
+      return noLongerAssigned;
+    } catch (CommsRouterException e) {
+      LOGGER.debug("Error retrieving Task: {}", taskAssignmentDto.getTask().getRef());
+      return true;
+    }
+  }
+
+  /**
+   * The dispatch work waiting for a thread, on the lanes or in the dispatch pool.
+   */
+  public int getDispatchBacklog() {
+    return dispatchLanes != null ? dispatchLanes.getDepth() : dispatchPool.getDepth();
+  }
+
+  /**
+   * The assignment callbacks in progress, the ones waiting for a retry included.
+   */
+  public int getCallbacksInFlight() {
+    return taskStates.size();
+  }
+
+  TaskStateRegistry getTaskStates() {
+    return taskStates;
+  }
+
+  /**
+   * The circuit breaker and concurrency limit state of every callback host seen so far.
+   */
+  public List<CallbackHostDto> getCallbackHosts() {
+    return callbackBreakers.getHosts();
+  }
+
+  private void setTaskExpirationTimeout(Long taskId, long millis) {
+
+    if (pollExpirations) {
+      return;
+    }
 
-    LOGGER.debug("Set expiration timeout:{} for task:{}", seconds, taskId);
+    LOGGER.debug("Set expiration timeout:{}ms for task:{}", millis, taskId);
 
-    threadPool.schedule(() -> {
-      onQueuedTaskTimeout(taskId);
-    }, seconds, TimeUnit.SECONDS);
+    taskTimers.schedule(taskId, System.currentTimeMillis() + millis);
   }
 
-  private void onQueuedTaskTimeout(Long taskId) {
+  private void fireTaskTimers() {
+    List<Long> expired = taskTimers.advance(System.currentTimeMillis());
+    if (!expired.isEmpty()) {
+      // Keep the tick itself short, the batch is processed on its own
+      timerPool.submit(() -> onQueuedTaskTimeouts(expired));
+    }
+  }
 
+  /**
+   * Handles the tasks that expired according to the DB, in bounded batches. Each batch is claimed
+   * first, so nodes polling at once do not handle the same tasks. A batch that fails stays claimed
+   * and so is left alone for the rest of the poll, it is retried once the claim gets old.
+   */
+  private void pollExpiredTasks() {
+    Set<Long> routerIds = routerLeases == null ? null : routerLeases.getOwnedRouterIds();
+    if (routerIds != null && routerIds.isEmpty()) {
+      return;
+    }
     try {
-      LOGGER.debug("onQueuedTaskTimeout(): Task with ID='{}' timed-out", taskId);
-      processTaskTimeout(taskId);
+      for (int i = 0; i < EXPIRATION_POLL_MAX_BATCHES; ++i) {
+        Date now = new Date();
+        Date claimedBefore = new Date(now.getTime() - EXPIRATION_CLAIM_MILLIS);
+        List<Long> expired = db.transactionManager.executeWithLockRetry(em ->
+            db.task.claimWaitingExpired(em, nodeId, now, claimedBefore, routerIds,
+                EXPIRED_TASKS_BATCH_SIZE));
+        if (expired.isEmpty()) {
+          return;
+        }
+        onQueuedTaskTimeouts(expired);
+      }
+      LOGGER.warn("More expired tasks than {} batches, continuing on the next poll",
+          EXPIRATION_POLL_MAX_BATCHES);
     } catch (RuntimeException | CommsRouterException ex) {
-      LOGGER.error("Exception while processing timeout for task {}: {}", taskId, ex);
+      LOGGER.error("Exception while polling for expired tasks: {}", ex, ex);
     }
   }
 
-  private void processTaskTimeout(Long taskId) throws CommsRouterException {
+  private void onQueuedTaskTimeouts(List<Long> taskIds) {
 
-    TaskDto taskDto = db.transactionManager.execute((em) -> {
-      Task task = db.task.get(em, taskId);
-      if (null == task.getState()) {
-        return null;
+    LOGGER.debug("{} task(s) timed out", taskIds.size());
+    Map<Long, List<Long>> tasksByRouter = new HashMap<>();
+    try {
+      for (List<Long> chunk : Lists.partition(taskIds, EXPIRED_TASKS_BATCH_SIZE)) {
+        db.transactionManager.execute(em -> db.task.groupByRouter(em, chunk))
+            .forEach((routerId, routerTaskIds) -> tasksByRouter
+                .computeIfAbsent(routerId, key -> new ArrayList<>()).addAll(routerTaskIds));
       }
+    } catch (RuntimeException | CommsRouterException ex) {
+      LOGGER.error("Exception while loading timed out tasks {}: {}", taskIds, ex);
+      return;
+    }
+
+    tasksByRouter.forEach((routerId, routerTaskIds) -> {
+      if (!ownsRouter(routerId)) {
+        // Lost the router meanwhile, its new owner takes care of the timeouts
+        return;
+      }
+      try {
+        processTaskTimeouts(routerTaskIds);
+      } catch (RuntimeException | CommsRouterException ex) {
+        LOGGER.error("Exception while processing timeout for tasks {} of router {}: {}",
+            routerTaskIds, routerId, ex);
+      }
+    });
+  }
+
+  /**
+   * Moves the timed out tasks of one router to their next routes in a single transaction, then
+   * kicks each target queue once.
+   */
+  private void processTaskTimeouts(List<Long> taskIds) throws CommsRouterException {
+
+    List<Task> notYetExpired = new ArrayList<>();
+    List<TaskDispatchInfo> dispatchInfos = db.transactionManager.executeWithLockRetry((em) -> {
+      notYetExpired.clear();
+      em.unwrap(Session.class).setJdbcBatchSize(EXPIRED_TASKS_BATCH_SIZE);
+      List<TaskDispatchInfo> rerouted = new ArrayList<>();
+      for (List<Long> chunk : Lists.partition(taskIds, EXPIRED_TASKS_BATCH_SIZE)) {
+        for (Task task : db.task.listWithRoute(em, chunk)) {
+          TaskDispatchInfo dispatchInfo = processTaskTimeout(task, notYetExpired);
+          if (dispatchInfo != null) {
+            rerouted.add(dispatchInfo);
+          }
+        }
+        db.task.releaseExpirationClaims(em, nodeId, chunk);
+      }
+      return rerouted;
+    });
 
-      switch (task.getState()) {
-        case completed:
+    notYetExpired.forEach(this::attachExpirationTimerToTask);
+    dispatchTasks(dispatchInfos);
+  }
+
+  private TaskDispatchInfo processTaskTimeout(Task task, List<Task> notYetExpired) {
+
+    if (null == task.getState()) {
+      return null;
+    }
+
+    switch (task.getState()) {
+      case completed:
+        return null;
+      case assigned:
+        return null;
+      case waiting: {
+        if (task.getExpirationDate() != null && task.getExpirationDate().getTime()
+            > System.currentTimeMillis() + EXPIRATION_TOLERANCE_MILLIS) {
+          // The task has moved to a later route meanwhile, wait for its current expiration
+          notYetExpired.add(task);
           return null;
-        case assigned:
+        }
+        Route matchedRoute;
+        Rule rule = task.getRule();
+        if (rule != null) {
+          matchedRoute = getNextRoute(task.getRule(), task.getCurrentRoute().getId());
+        } else {
+          // default route
+          task.setExpirationDate(null);
           return null;
-        case waiting: {
-          Route matchedRoute;
-          Rule rule = task.getRule();
-          if (rule != null) {
-            matchedRoute = getNextRoute(task.getRule(), task.getCurrentRoute().getId());
-          } else {
-            // default route
-            task.setExpirationDate(null);
-            return null;
-          }
+        }
 
-          if (matchedRoute == null) {
-            task.setExpirationDate(null);
-            return null;
-          }
+        if (matchedRoute == null) {
+          task.setExpirationDate(null);
+          return null;
+        }
 
-          task.setCurrentRoute(matchedRoute);
+        task.setCurrentRoute(matchedRoute);
 
-          if (matchedRoute.getPriority() != null) {
-            task.setPriority(matchedRoute.getPriority());
-          }
+        if (matchedRoute.getPriority() != null) {
+          task.setPriority(matchedRoute.getPriority());
+        }
+
+        Date expirationDate = null;
+        if (matchedRoute.getTimeout() != null) {
+          task.setQueuedTimeout(matchedRoute.getTimeout());
 
-          Date expirationDate = null;
-          if (matchedRoute.getTimeout() != null) {
-            task.setQueuedTimeout(matchedRoute.getTimeout());
-
-            if (matchedRoute.getTimeout() > 0) {
-              expirationDate =
-                  new Date(System.currentTimeMillis() + matchedRoute.getTimeout() * 1000);
-              LOGGER.trace("Next route, update expirationDate:{} for task:{} ", expirationDate,
-                  task.getRef());
-            } else {
-              LOGGER.trace("Next route, clear expirationDate for task:{}", task.getRef());
-            }
-          } else if (task.getQueuedTimeout() != null) {
-            if (task.getQueuedTimeout() > 0) {
-              expirationDate =
-                  new Date(System.currentTimeMillis() + task.getQueuedTimeout() * 1000);
-              LOGGER.trace("Default, update expirationDate:{} for task:{} ", expirationDate,
-                  task.getRef());
-            } else {
-              LOGGER.trace("Default, clear expirationDate for task:{}", task.getRef());
-            }
+          if (matchedRoute.getTimeout() > 0) {
+            expirationDate =
+                new Date(System.currentTimeMillis() + matchedRoute.getTimeout() * 1000);
+            LOGGER.trace("Next route, update expirationDate:{} for task:{} ", expirationDate,
+                task.getRef());
           } else {
-            LOGGER.trace("None, clear expirationDate for task:{}", task.getRef());
+            LOGGER.trace("Next route, clear expirationDate for task:{}", task.getRef());
           }
-          task.setExpirationDate(expirationDate);
-
-          if (matchedRoute.getQueue() != null) {
-            task.setQueue(matchedRoute.getQueue());
+        } else if (task.getQueuedTimeout() != null) {
+          if (task.getQueuedTimeout() > 0) {
+            expirationDate =
+                new Date(System.currentTimeMillis() + task.getQueuedTimeout() * 1000);
+            LOGGER.trace("Default, update expirationDate:{} for task:{} ", expirationDate,
+                task.getRef());
+          } else {
+            LOGGER.trace("Default, clear expirationDate for task:{}", task.getRef());
           }
-          break;
+        } else {
+          LOGGER.trace("None, clear expirationDate for task:{}", task.getRef());
         }
-        default:
-          return null;
-      }
-      return mappers.task.toDto(task);
-    });
+        task.setExpirationDate(expirationDate);
 
-    if (taskDto != null) {
-      setTaskExpirationTimeout(taskDto.getId(), taskDto.getQueuedTimeout());
+        if (matchedRoute.getQueue() != null) {
+          task.setQueue(matchedRoute.getQueue());
+        }
+        break;
+      }
+      default:
+        return null;
     }
-
+    return mappers.task.toDispatchInfo(task);
   }
 
   public Route getNextRoute(Rule rule, Long prevRouteId) {
@@ -295,33 +911,56 @@ public class TaskDispatcher {
   }
 
   private void restartWaitingTaskTimers() {
-    threadPool.submit(this::doRestartWaitingTaskTimers);
+    timerPool.submit(this::doRestartWaitingTaskTimers);
   }
 
   private void doRestartWaitingTaskTimers() {
     LOGGER.debug("Restarting timers for waiting tasks at startup");
 
     try {
-      TaskEnumerableResult enumResults = db.task.enumerableResultFilteredByWaitingState();
-      if (enumResults != null) {
-        while (enumResults.next()) {
-          List<Task> tasks = enumResults.get();
-          tasks.forEach(this::attachExpirationTimerToTask);
-        }
-      }
+      int restored = restoreTaskTimers(db, taskTimers);
+      LOGGER.info("Restarted timers for {} waiting tasks", restored);
     } catch (Exception ex) {
       LOGGER.error("Can not restart timers for all waiting tasks!{}", ex.getMessage());
       throw new RuntimeException("Can not restart timers for all waiting tasks!", ex);
     }
   }
 
+  /**
+   * Arms the timers of all the waiting tasks. Streams just the ids and expiration dates, a page per
+   * transaction, continuing after the last id of the previous page.
+   *
+   * @return the number of timers armed
+   */
+  public static int restoreTaskTimers(JpaDbFacade db, TimingWheel<Long> taskTimers)
+      throws CommsRouterException {
+
+    int restored = 0;
+    Long afterTaskId = 0L;
+    for (; ; ) {
+      final Long lastTaskId = afterTaskId;
+      List<TaskExpirationResult> page = db.transactionManager.execute(em ->
+          db.task.listWaitingExpirations(em, lastTaskId, TIMER_RESTORE_PAGE_SIZE));
+      page.forEach(expiring ->
+          taskTimers.schedule(expiring.taskId, expiring.expirationDate.getTime()));
+      restored += page.size();
+      if (page.size() < TIMER_RESTORE_PAGE_SIZE) {
+        return restored;
+      }
+      afterTaskId = page.get(page.size() - 1).taskId;
+    }
+  }
+
   private void attachExpirationTimerToTask(Task task) {
 
+    if (pollExpirations) {
+      return;
+    }
+
     if (task.getExpirationDate() == null) {
       LOGGER.trace("No expiration date, won't attach timer for task: {}", task.getRef());
     } else {
-      long seconds = (task.getExpirationDate().getTime() - System.currentTimeMillis()) / 1000;
-      setTaskExpirationTimeout(task.getId(), seconds);
+      taskTimers.schedule(task.getId(), task.getExpirationDate().getTime());
     }
   }
 
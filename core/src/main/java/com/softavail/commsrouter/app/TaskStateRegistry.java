@@ -0,0 +1,128 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.api.dto.model.TaskState;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The state of the tasks with an assignment callback in progress, as changed through this node.
+ * Lets the callback retries find out whether their assignment still stands without going to the
+ * DB.
+ *
+ * <p>Every assignment gets a new version, so a retry of an older assignment of the same task is
+ * told apart from the current one. Entries are trusted for a limited time only, as the task may
+ * change in ways this node does not see (e.g. through another node). Past that time, and on a miss,
+ * the caller checks the DB and confirms the entry.
+ */
+public class TaskStateRegistry {
+
+  private final long maxAgeMillis;
+  private final AtomicLong versions = new AtomicLong();
+  private final Map<Long, Entry> tasks = new ConcurrentHashMap<>();
+  private final Meter hits;
+  private final Meter misses;
+
+  public TaskStateRegistry(long maxAgeMillis, MetricRegistry metrics) {
+    this.maxAgeMillis = maxAgeMillis;
+    String prefix = MetricRegistry.name(TaskStateRegistry.class);
+    metrics.register(MetricRegistry.name(prefix, "size"), (Gauge<Integer>) tasks::size);
+    this.hits = metrics.meter(MetricRegistry.name(prefix, "hits"));
+    this.misses = metrics.meter(MetricRegistry.name(prefix, "misses"));
+  }
+
+  /**
+   * The task got assigned and its callback is about to go out.
+   *
+   * @return the version of this assignment
+   */
+  public long onAssigned(Long taskId) {
+    long version = versions.incrementAndGet();
+    tasks.put(taskId, new Entry(version, TaskState.assigned, System.currentTimeMillis()));
+    return version;
+  }
+
+  /**
+   * A committed transition of the task. Only tasks with a callback in progress are tracked.
+   */
+  public void onTransition(Long taskId, TaskState state) {
+    tasks.computeIfPresent(taskId, (key, entry) ->
+        new Entry(entry.version, state, System.currentTimeMillis()));
+  }
+
+  /**
+   * Whether the given assignment of the task still stands.
+   *
+   * @return null if not known or not trusted anymore
+   */
+  public Boolean isAssigned(Long taskId, long version) {
+    Entry entry = tasks.get(taskId);
+    // A newer assignment or a transition away from assigned is final for this version, only a
+    // standing assignment can go stale
+    if (entry == null
+        || entry.version == version && entry.state == TaskState.assigned && isExpired(entry)) {
+      misses.mark();
+      return null;
+    }
+    hits.mark();
+    return entry.version == version && entry.state == TaskState.assigned;
+  }
+
+  /**
+   * The DB says the assignment still stands, trust the entry for another period.
+   */
+  public void confirm(Long taskId, long version) {
+    tasks.computeIfPresent(taskId, (key, entry) -> entry.version == version
+        ? new Entry(version, entry.state, System.currentTimeMillis()) : entry);
+  }
+
+  /**
+   * The callback of the given assignment is done, stop tracking it.
+   */
+  public void release(Long taskId, long version) {
+    tasks.computeIfPresent(taskId, (key, entry) -> entry.version == version ? null : entry);
+  }
+
+  public int size() {
+    return tasks.size();
+  }
+
+  private boolean isExpired(Entry entry) {
+    return System.currentTimeMillis() - entry.updated > maxAgeMillis;
+  }
+
+  private static class Entry {
+
+    private final long version;
+    private final TaskState state;
+    private final long updated;
+
+    Entry(long version, TaskState state, long updated) {
+      this.version = version;
+      this.state = state;
+      this.updated = updated;
+    }
+
+  }
+
+}
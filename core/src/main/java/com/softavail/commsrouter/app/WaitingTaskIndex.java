@@ -0,0 +1,133 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * In-memory index of the waiting tasks of every queue, ordered the same way as the assignment
+ * query: priority descending, then id ascending.
+ *
+ * <p>The DB stays the system of record. Entries may go stale (e.g. a waiting task got deleted),
+ * so the users of the index must verify the picked task and drop the entry if it does not match.
+ */
+public class WaitingTaskIndex {
+
+  private static final Comparator<Entry> ORDER = Comparator
+      .comparing((Entry entry) -> entry.priority, Comparator.reverseOrder())
+      .thenComparing(entry -> entry.taskId);
+
+  private final Map<Long, NavigableSet<Entry>> queues = new HashMap<>();
+  private final Map<Long, Entry> tasks = new HashMap<>();
+
+  public synchronized void add(Long queueId, Long taskId, Long priority) {
+    Objects.requireNonNull(queueId);
+    Objects.requireNonNull(taskId);
+    remove(taskId);
+    Entry entry = new Entry(queueId, taskId, priority == null ? 0L : priority);
+    tasks.put(taskId, entry);
+    queues.computeIfAbsent(queueId, key -> new TreeSet<>(ORDER)).add(entry);
+  }
+
+  public synchronized void remove(Long taskId) {
+    Entry entry = tasks.remove(taskId);
+    if (entry != null) {
+      removeFromQueue(entry);
+    }
+  }
+
+  /**
+   * Removes the task only if it is currently indexed in the given queue.
+   *
+   * @return true if the task was removed
+   */
+  public synchronized boolean remove(Long taskId, Long queueId) {
+    Entry entry = tasks.get(taskId);
+    if (entry == null || !entry.queueId.equals(queueId)) {
+      return false;
+    }
+    tasks.remove(taskId);
+    removeFromQueue(entry);
+    return true;
+  }
+
+  public synchronized Optional<Long> peek(Long queueId) {
+    NavigableSet<Entry> queue = queues.get(queueId);
+    if (queue == null) {
+      return Optional.empty();
+    }
+    return Optional.of(queue.first().taskId);
+  }
+
+  /**
+   * Returns the first task of the queue that is not in the skipped ones.
+   */
+  public synchronized Optional<Long> peek(Long queueId, Set<Long> skippedTaskIds) {
+    NavigableSet<Entry> queue = queues.get(queueId);
+    if (queue == null) {
+      return Optional.empty();
+    }
+    return queue.stream()
+        .map(entry -> entry.taskId)
+        .filter(taskId -> !skippedTaskIds.contains(taskId))
+        .findFirst();
+  }
+
+  public synchronized int size(Long queueId) {
+    NavigableSet<Entry> queue = queues.get(queueId);
+    return queue == null ? 0 : queue.size();
+  }
+
+  public synchronized int size() {
+    return tasks.size();
+  }
+
+  public synchronized void clear() {
+    queues.clear();
+    tasks.clear();
+  }
+
+  private void removeFromQueue(Entry entry) {
+    NavigableSet<Entry> queue = queues.get(entry.queueId);
+    queue.remove(entry);
+    if (queue.isEmpty()) {
+      queues.remove(entry.queueId);
+    }
+  }
+
+  private static class Entry {
+
+    private final Long queueId;
+    private final Long taskId;
+    private final Long priority;
+
+    Entry(Long queueId, Long taskId, Long priority) {
+      this.queueId = queueId;
+      this.taskId = taskId;
+      this.priority = priority;
+    }
+
+  }
+
+}
@@ -16,6 +16,7 @@ package com.softavail.commsrouter.domain;
 
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import javax.persistence.CascadeType;
 import javax.persistence.Entity;
@@ -24,6 +25,7 @@ import javax.persistence.GenerationType;
 import javax.persistence.Id;
 import javax.persistence.OneToMany;
 import javax.persistence.Table;
+import javax.persistence.Transient;
 
 /**
  *
@@ -40,6 +42,10 @@ public class AttributeGroup implements Serializable {
   @OneToMany(mappedBy = "attributeGroup", cascade = CascadeType.ALL, orphanRemoval = true)
   private List<Attribute> attributes = new ArrayList<>();
 
+  // Immutable, so a racy build at worst builds it twice
+  @Transient
+  private transient AttributeIndex index;
+
   public Long getId() {
     return id;
   }
@@ -53,57 +59,72 @@ public class AttributeGroup implements Serializable {
   }
 
   public List<Attribute> getAttributes(String attributeName) {
-    List<Attribute> result = new ArrayList<>();
-    attributes.stream().filter((attribute) -> (attribute.getName().equals(attributeName)))
-        .forEachOrdered((attribute) -> {
-          result.add(attribute);
-        });
-    return result;
+    AttributeIndex.Values values = getIndex().get(attributeName);
+    return values == null ? Collections.emptyList() : values.getAttributes();
   }
 
   public Attribute getFirstAttribute(String attributeName) {
-
-    for (Attribute attribute : attributes) {
-      if (attribute.getName().equals(attributeName)) {
-        return attribute;
-      }
+    AttributeIndex.Values values = getIndex().get(attributeName);
+    return values == null ? null : values.getFirst();
+  }
+
+  /**
+   * The attributes by name. Rebuilt after the attributes change through this group or the list
+   * changes size, a value changed in place through an {@link Attribute} needs
+   * {@link #invalidateIndex()}.
+   */
+  public AttributeIndex getIndex() {
+    AttributeIndex current = index;
+    if (current == null || !current.isCurrent(attributes)) {
+      current = AttributeIndex.of(attributes);
+      index = current;
     }
+    return current;
+  }
 
-    return null;
+  public void invalidateIndex() {
+    index = null;
   }
 
   public void setAttributes(List<Attribute> attributes) {
     this.attributes = attributes;
+    invalidateIndex();
   }
 
   public void add(String name, Double value) {
     attributes.add(createAttribute(name, value));
+    invalidateIndex();
   }
 
   public void add(String name, String value) {
     attributes.add(createAttribute(name, value));
+    invalidateIndex();
   }
 
   public void add(String name, Boolean value) {
     attributes.add(createAttribute(name, value));
+    invalidateIndex();
   }
 
   public void addArrayItem(String name, Double value) {
     Attribute attribute = createAttribute(name, value);
     attribute.setIsScalar(Boolean.FALSE);
     attributes.add(attribute);
+    invalidateIndex();
   }
 
   public void addArrayItem(String name, String value) {
     Attribute attribute = createAttribute(name, value);
     attribute.setIsScalar(Boolean.FALSE);
     attributes.add(attribute);
+    invalidateIndex();
   }
 
   public void addArrayItem(String name, Boolean value) {
     Attribute attribute = createAttribute(name, value);
     attribute.setIsScalar(Boolean.FALSE);
     attributes.add(attribute);
+    invalidateIndex();
   }
 
   public Boolean isScalar(String name) {
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.domain;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An immutable view of the attributes of a group by name. Lookups neither scan the attributes nor
+ * allocate, and the values of a name of a single type are also kept as a primitive array.
+ *
+ * <p>Built on demand and cached by {@link AttributeGroup#getIndex()}.
+ */
+public final class AttributeIndex {
+
+  private final List<Attribute> source;
+  private final int sourceSize;
+  private final Map<String, Values> byName;
+
+  private AttributeIndex(List<Attribute> source) {
+    this.source = source;
+    this.sourceSize = source.size();
+
+    Map<String, List<Attribute>> grouped = new LinkedHashMap<>();
+    source.forEach(attribute ->
+        grouped.computeIfAbsent(attribute.getName(), name -> new ArrayList<>()).add(attribute));
+    Map<String, Values> byName = new LinkedHashMap<>();
+    grouped.forEach((name, attributes) -> byName.put(name, new Values(name, attributes)));
+    this.byName = Collections.unmodifiableMap(byName);
+  }
+
+  static AttributeIndex of(List<Attribute> attributes) {
+    return new AttributeIndex(attributes);
+  }
+
+  /**
+   * Whether the index still reflects the given list. Catches a replaced list and attributes added
+   * or removed through it.
+   */
+  boolean isCurrent(List<Attribute> attributes) {
+    return source == attributes && sourceSize == attributes.size();
+  }
+
+  /**
+   * @return null if there is no attribute with that name
+   */
+  public Values get(String name) {
+    return byName.get(name);
+  }
+
+  /**
+   * The attributes by name, in the order the names first appear in the group.
+   */
+  public Collection<Values> values() {
+    return byName.values();
+  }
+
+  public int size() {
+    return byName.size();
+  }
+
+  /**
+   * The attributes with the same name, in the order they appear in the group.
+   */
+  public static final class Values {
+
+    private final String name;
+    private final List<Attribute> attributes;
+    private final List<Object> values;
+    private final Attribute.Type type;
+    private final String[] strings;
+    private final double[] doubles;
+    private final boolean[] booleans;
+
+    private Values(String name, List<Attribute> attributes) {
+      this.name = name;
+      this.attributes = Collections.unmodifiableList(attributes);
+
+      int size = attributes.size();
+      List<Object> values = new ArrayList<>(size);
+      Attribute.Type type = typeOf(attributes.get(0));
+      for (Attribute attribute : attributes) {
+        values.add(attribute.getValue());
+        if (type != typeOf(attribute)) {
+          type = null;
+        }
+      }
+      this.values = Collections.unmodifiableList(values);
+      this.type = type;
+
+      this.strings = type == Attribute.Type.STRING ? new String[size] : null;
+      this.doubles = type == Attribute.Type.DOUBLE ? new double[size] : null;
+      this.booleans = type == Attribute.Type.BOOLEAN ? new boolean[size] : null;
+      for (int i = 0; i < size; ++i) {
+        Attribute attribute = attributes.get(i);
+        if (strings != null) {
+          strings[i] = attribute.getStringValue();
+        } else if (doubles != null) {
+          doubles[i] = attribute.getDoubleValue();
+        } else if (booleans != null) {
+          booleans[i] = attribute.getBooleanValue();
+        }
+      }
+    }
+
+    private static Attribute.Type typeOf(Attribute attribute) {
+      // Unlike Attribute.getType() does not throw for an attribute with no value
+      return attribute.getValue() == null ? null : attribute.getType();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public List<Attribute> getAttributes() {
+      return attributes;
+    }
+
+    public Attribute getFirst() {
+      return attributes.get(0);
+    }
+
+    public int size() {
+      return attributes.size();
+    }
+
+    /**
+     * The values as {@link Attribute#getValue()} gives them.
+     */
+    public List<Object> getValues() {
+      return values;
+    }
+
+    /**
+     * @return null if the values are not all of the same type
+     */
+    public Attribute.Type getType() {
+      return type;
+    }
+
+    public String getString(int index) {
+      return strings[index];
+    }
+
+    public double getDouble(int index) {
+      return doubles[index];
+    }
+
+    public boolean getBoolean(int index) {
+      return booleans[index];
+    }
+
+    /**
+     * Whether any of the values equals the given one.
+     */
+    public boolean contains(Object value) {
+      if (value instanceof Double && doubles != null) {
+        // As Double.equals compares
+        long bits = Double.doubleToLongBits((Double) value);
+        for (double item : doubles) {
+          if (Double.doubleToLongBits(item) == bits) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (value instanceof String && strings != null) {
+        for (String item : strings) {
+          if (value.equals(item)) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (value instanceof Boolean && booleans != null) {
+        boolean bool = (Boolean) value;
+        for (boolean item : booleans) {
+          if (item == bool) {
+            return true;
+          }
+        }
+        return false;
+      }
+      if (type != null) {
+        // All of another type
+        return false;
+      }
+      return values.contains(value);
+    }
+
+    /**
+     * Whether any of the values is among the given ones.
+     */
+    public boolean containsAny(Collection<?> candidates) {
+      for (Object value : values) {
+        if (candidates.contains(value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+  }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.domain;
+
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.GenerationType;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+
+/**
+ * An assignment whose callback has not been delivered yet. Written in the transaction that
+ * assigns the task, deleted once the callback got through or the task moved on. The node that
+ * delivers the callback is kept along, another node takes the entry over only once it is gone.
+ */
+@Entity
+@Table(name = "callback_outbox")
+public class CallbackOutbox {
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  @Column(name = "task_id")
+  private Long taskId;
+
+  @Column(name = "agent_id")
+  private Long agentId;
+
+  @Column(name = "router_id")
+  private Long routerId;
+
+  @Column(name = "node_id")
+  private String nodeId;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "created_date")
+  private Date createdDate;
+
+  public CallbackOutbox() {}
+
+  public CallbackOutbox(Task task, Agent agent, String nodeId) {
+    this.taskId = task.getId();
+    this.agentId = agent.getId();
+    this.routerId = task.getRouter().getId();
+    this.nodeId = nodeId;
+    this.createdDate = new Date();
+  }
+
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public Long getTaskId() {
+    return taskId;
+  }
+
+  public void setTaskId(Long taskId) {
+    this.taskId = taskId;
+  }
+
+  public Long getAgentId() {
+    return agentId;
+  }
+
+  public void setAgentId(Long agentId) {
+    this.agentId = agentId;
+  }
+
+  public Long getRouterId() {
+    return routerId;
+  }
+
+  public void setRouterId(Long routerId) {
+    this.routerId = routerId;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public void setNodeId(String nodeId) {
+    this.nodeId = nodeId;
+  }
+
+  public Date getCreatedDate() {
+    return createdDate;
+  }
+
+  public void setCreatedDate(Date createdDate) {
+    this.createdDate = createdDate;
+  }
+
+}
@@ -16,6 +16,7 @@
 
 package com.softavail.commsrouter.domain;
 
+import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.FetchType;
 import javax.persistence.Id;
@@ -38,6 +39,14 @@ public class RouterConfig {
   @MapsId
   private Router router;
 
+  // Assignments going to the same callback URL are sent together
+  @Column(name = "callback_batching")
+  private Boolean callbackBatching;
+
+  // The share of the dispatch threads the router gets when busy, relative to the others
+  @Column(name = "dispatch_weight")
+  private Integer dispatchWeight;
+
   public Long getId() {
     return id;
   }
@@ -54,4 +63,20 @@ public class RouterConfig {
     this.router = router;
   }
 
+  public Boolean getCallbackBatching() {
+    return callbackBatching;
+  }
+
+  public void setCallbackBatching(Boolean callbackBatching) {
+    this.callbackBatching = callbackBatching;
+  }
+
+  public Integer getDispatchWeight() {
+    return dispatchWeight;
+  }
+
+  public void setDispatchWeight(Integer dispatchWeight) {
+    this.dispatchWeight = dispatchWeight;
+  }
+
 }
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.domain;
+
+import org.hibernate.annotations.DynamicUpdate;
+
+import java.util.Date;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import javax.persistence.Version;
+
+/**
+ * Time-bounded ownership of a router by one dispatcher node. The owner keeps extending the lease
+ * while it is alive; once it expires any node may take it over.
+ *
+ * <p>Other nodes flag dispatch work they got for the router with the request date, which they set
+ * and the owner clears by bulk updates. The lease updates must leave that column alone, hence the
+ * dynamic update.
+ */
+@Entity
+@DynamicUpdate
+@Table(name = "router_lease")
+public class RouterLease {
+
+  @Id
+  @Column(name = "router_id")
+  private Long routerId;
+
+  @Column(name = "owner")
+  private String owner;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "expiration_date")
+  private Date expirationDate;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "dispatch_request_date")
+  private Date dispatchRequestDate;
+
+  @Version
+  private Integer version;
+
+  public RouterLease() {}
+
+  public RouterLease(Long routerId) {
+    this.routerId = routerId;
+  }
+
+  public Long getRouterId() {
+    return routerId;
+  }
+
+  public void setRouterId(Long routerId) {
+    this.routerId = routerId;
+  }
+
+  public String getOwner() {
+    return owner;
+  }
+
+  public void setOwner(String owner) {
+    this.owner = owner;
+  }
+
+  public Date getExpirationDate() {
+    return expirationDate;
+  }
+
+  public void setExpirationDate(Date expirationDate) {
+    this.expirationDate = expirationDate;
+  }
+
+  public Date getDispatchRequestDate() {
+    return dispatchRequestDate;
+  }
+
+  public void setDispatchRequestDate(Date dispatchRequestDate) {
+    this.dispatchRequestDate = dispatchRequestDate;
+  }
+
+  public Integer getVersion() {
+    return version;
+  }
+
+  public void setVersion(Integer version) {
+    this.version = version;
+  }
+
+  public boolean isExpired(long now) {
+    return expirationDate == null || expirationDate.getTime() <= now;
+  }
+
+}
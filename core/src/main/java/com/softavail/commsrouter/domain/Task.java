@@ -95,6 +95,14 @@ public class Task extends RouterObject {
   @Column(name = "tag")
   private String tag;
 
+  // The node handling the expiration of the task, see TaskRepository#claimWaitingExpired
+  @Column(name = "expiration_claim_owner")
+  private String expirationClaimOwner;
+
+  @Temporal(TemporalType.TIMESTAMP)
+  @Column(name = "expiration_claim_date")
+  private Date expirationClaimDate;
+
   public Task() {}
 
   public Task(RouterObjectRef objectId) {
@@ -209,6 +217,22 @@ public class Task extends RouterObject {
     this.tag = tag;
   }
 
+  public String getExpirationClaimOwner() {
+    return expirationClaimOwner;
+  }
+
+  public void setExpirationClaimOwner(String expirationClaimOwner) {
+    this.expirationClaimOwner = expirationClaimOwner;
+  }
+
+  public Date getExpirationClaimDate() {
+    return expirationClaimDate;
+  }
+
+  public void setExpirationClaimDate(Date expirationClaimDate) {
+    this.expirationClaimDate = expirationClaimDate;
+  }
+
   @Override
   public String toString() {
     StringBuilder sb = new StringBuilder().append("JpaTask [")
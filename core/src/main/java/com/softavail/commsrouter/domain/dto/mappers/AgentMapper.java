@@ -17,9 +17,12 @@
 package com.softavail.commsrouter.domain.dto.mappers;
 
 import com.softavail.commsrouter.api.dto.model.AgentDto;
+import com.softavail.commsrouter.app.AgentDispatchInfo;
 import com.softavail.commsrouter.domain.Agent;
 import com.softavail.commsrouter.domain.AgentQueueMapping;
 
+import java.util.stream.Collectors;
+
 /**
  * @author ikrustev
  */
@@ -48,4 +51,16 @@ public class AgentMapper extends RouterObjectEntityMapper<AgentDto, Agent> {
     return dto;
   }
 
+  public AgentDispatchInfo toDispatchInfo(Agent agent) {
+    AgentDispatchInfo result = new AgentDispatchInfo();
+    result.setRouterId(agent.getRouter().getId());
+    result.setAgentId(agent.getId());
+    result.setState(agent.getState());
+    result.setLastTimeAtBusyState(agent.getLastTimeAtBusyState());
+    result.setQueueIds(agent.getAgentQueueMappings().stream()
+        .map(mapping -> mapping.getQueue().getId())
+        .collect(Collectors.toList()));
+    return result;
+  }
+
 }
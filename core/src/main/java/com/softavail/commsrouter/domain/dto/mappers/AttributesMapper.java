@@ -26,6 +26,7 @@ import com.softavail.commsrouter.api.dto.model.attribute.StringAttributeValueDto
 import com.softavail.commsrouter.api.exception.CommsRouterException;
 import com.softavail.commsrouter.domain.Attribute;
 import com.softavail.commsrouter.domain.AttributeGroup;
+import com.softavail.commsrouter.domain.AttributeIndex;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -45,33 +46,35 @@ public class AttributesMapper {
     }
 
     AttributeGroupDto dto = new AttributeGroupDto();
-    jpa.getAttributes().stream().forEach(jpaAttribute -> {
-      String name = jpaAttribute.getName();
-      Attribute.Type type = jpaAttribute.getType();
-      switch (type) {
-        case STRING:
-          if (jpaAttribute.isScalar()) {
-            dto.add(name, jpaAttribute.getStringValue());
-          } else {
-            dto.addToArray(name, jpaAttribute.getStringValue());
-          }
-          break;
-        case DOUBLE:
-          if (jpaAttribute.isScalar()) {
-            dto.add(name, jpaAttribute.getDoubleValue());
-          } else {
-            dto.addToArray(name, jpaAttribute.getDoubleValue());
-          }
-          break;
-        case BOOLEAN:
-          dto.add(name, jpaAttribute.getBooleanValue());
-          assert jpaAttribute.isScalar();
-          break;
-        default:
-          throw new RuntimeException(
-              "Unexpected attribute value type " + type + " for " + name + "in " + jpa.getId());
+    for (AttributeIndex.Values values : jpa.getIndex().values()) {
+      String name = values.getName();
+      for (Attribute jpaAttribute : values.getAttributes()) {
+        Attribute.Type type = jpaAttribute.getType();
+        switch (type) {
+          case STRING:
+            if (jpaAttribute.isScalar()) {
+              dto.add(name, jpaAttribute.getStringValue());
+            } else {
+              dto.addToArray(name, jpaAttribute.getStringValue());
+            }
+            break;
+          case DOUBLE:
+            if (jpaAttribute.isScalar()) {
+              dto.add(name, jpaAttribute.getDoubleValue());
+            } else {
+              dto.addToArray(name, jpaAttribute.getDoubleValue());
+            }
+            break;
+          case BOOLEAN:
+            dto.add(name, jpaAttribute.getBooleanValue());
+            assert jpaAttribute.isScalar();
+            break;
+          default:
+            throw new RuntimeException(
+                "Unexpected attribute value type " + type + " for " + name + "in " + jpa.getId());
+        }
       }
-    });
+    }
 
     return dto;
   }
@@ -31,6 +31,10 @@ public class RouterMapper extends EntityMapper<RouterDto, Router> {
     dto.setHash(jpa.hashString());
     dto.setName(jpa.getName());
     dto.setDescription(jpa.getDescription());
+    if (jpa.getConfig() != null) {
+      dto.setCallbackBatching(jpa.getConfig().getCallbackBatching());
+      dto.setDispatchWeight(jpa.getConfig().getDispatchWeight());
+    }
     return dto;
   }
 
@@ -56,6 +56,7 @@ public class TaskMapper extends RouterObjectEntityMapper<TaskDto, Task> {
     result.setTaskRef(task.getRef());
     result.setQueueId(task.getQueue().getId());
     result.setQueuedTimeout(task.getQueuedTimeout());
+    result.setPriority(task.getPriority());
     return result;
   }
 
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.domain.result;
+
+/**
+ * Projection of an agent and one of its capabilities. The capability is null for an agent without
+ * any, and so is the group id if the agent has no capabilities group at all.
+ */
+public class AgentCapabilityResult {
+
+  public Long agentId;
+  public Long groupId;
+  public String name;
+  public String stringValue;
+  public Double doubleValue;
+  public Boolean booleanValue;
+
+  public AgentCapabilityResult(Long agentId, Long groupId, String name, String stringValue,
+      Double doubleValue, Boolean booleanValue) {
+    this.agentId = agentId;
+    this.groupId = groupId;
+    this.name = name;
+    this.stringValue = stringValue;
+    this.doubleValue = doubleValue;
+    this.booleanValue = booleanValue;
+  }
+
+  /**
+   * The value as {@link com.softavail.commsrouter.domain.Attribute#getValue()} gives it.
+   */
+  public Object getValue() {
+    return doubleValue != null ? doubleValue : (booleanValue != null ? booleanValue : stringValue);
+  }
+
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.domain.result;
+
+/**
+ * Projection of a waiting task with just the fields needed to order it in its queue.
+ */
+public class QueuedTaskResult {
+
+  public Long taskId;
+  public Long queueId;
+  public Long priority;
+
+  public QueuedTaskResult(Long taskId, Long queueId, Long priority) {
+    this.taskId = taskId;
+    this.queueId = queueId;
+    this.priority = priority;
+  }
+
+}
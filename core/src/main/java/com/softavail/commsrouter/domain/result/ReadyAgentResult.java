@@ -0,0 +1,36 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.domain.result;
+
+import java.util.Date;
+
+/**
+ * Projection of a ready agent and one of the queues it serves.
+ */
+public class ReadyAgentResult {
+
+  public Long agentId;
+  public Long queueId;
+  public Date lastTimeAtBusyState;
+
+  public ReadyAgentResult(Long agentId, Long queueId, Date lastTimeAtBusyState) {
+    this.agentId = agentId;
+    this.queueId = queueId;
+    this.lastTimeAtBusyState = lastTimeAtBusyState;
+  }
+
+}
@@ -14,22 +14,21 @@
  * limitations under the License.
  */
 
-package com.softavail.commsrouter.app;
+package com.softavail.commsrouter.domain.result;
+
+import java.util.Date;
 
 /**
- * Created by @author mapuo on 18.10.17.
+ * Projection of a waiting task with just the fields needed to arm its expiration timer.
  */
-@FunctionalInterface
-public interface StateIdleListener extends StateChangeListener {
-
-  default void stateChanged(StateChangeEvent changeEvent) {
+public class TaskExpirationResult {
 
-    if (changeEvent.getNewState() == QueueProcessorState.IDLE) {
-      inWaitingState(changeEvent.getQueueId());
-    }
+  public Long taskId;
+  public Date expirationDate;
 
+  public TaskExpirationResult(Long taskId, Date expirationDate) {
+    this.taskId = taskId;
+    this.expirationDate = expirationDate;
   }
 
-  void inWaitingState(Long queueId);
-
 }
@@ -28,6 +28,7 @@ public class CommsRouterEvaluatorFactory {
 
   private final RsqlEvaluatorFactory rsqlFactory = new RsqlEvaluatorFactory(this);
   private RsqlValidator rsqlValidator;
+  private volatile EvaluatorCache cache;
 
   private ExpressionType determineType(String expression) {
 
@@ -50,6 +51,21 @@ public class CommsRouterEvaluatorFactory {
   public CommsRouterEvaluator provide(String predicate, String routerRef)
       throws ExpressionException {
 
+    EvaluatorCache cache = this.cache;
+    if (cache == null) {
+      return create(predicate, routerRef);
+    }
+    CommsRouterEvaluator evaluator = cache.get(routerRef, predicate);
+    if (evaluator == null) {
+      evaluator = create(predicate, routerRef);
+      cache.put(routerRef, predicate, evaluator);
+    }
+    return evaluator;
+  }
+
+  private CommsRouterEvaluator create(String predicate, String routerRef)
+      throws ExpressionException {
+
     switch (determineType(predicate)) {
       case JEVAL:
         return new JEvalEvaluator(this, predicate);
@@ -64,31 +80,21 @@ public class CommsRouterEvaluatorFactory {
     }
   }
 
-  CommsRouterEvaluator changeExpression(
-      JEvalEvaluator evaluator, String expression, String routerRef)
-      throws ExpressionException {
-
-    ExpressionType type = determineType(expression);
-    if (type == ExpressionType.JEVAL) {
-      evaluator.replaceExpression(expression);
-      return evaluator;
-    }
-    return provide(expression, routerRef);
-  }
-
-  CommsRouterEvaluator changeExpression(
-      EvaluatorBase evaluator, String expression, String routerRef)
-      throws ExpressionException {
-
-    return provide(expression, routerRef);
-  }
-
   public RsqlValidator getRsqlValidator() {
     return rsqlValidator;
   }
 
   public void setRsqlValidator(RsqlValidator rsqlValidator) {
     this.rsqlValidator = rsqlValidator;
+    EvaluatorCache cache = this.cache;
+    if (cache != null) {
+      // The RSQL evaluators hold on to the validator they were created with
+      cache.clear();
+    }
+  }
+
+  public void setCache(EvaluatorCache cache) {
+    this.cache = cache;
   }
 
   public void validateRsqlSelector(String selector) throws ExpressionException {
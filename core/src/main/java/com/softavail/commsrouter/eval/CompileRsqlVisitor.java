@@ -0,0 +1,270 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.eval;
+
+import com.softavail.commsrouter.api.exception.ExpressionException;
+import com.softavail.commsrouter.domain.Attribute;
+import com.softavail.commsrouter.domain.AttributeGroup;
+import com.softavail.commsrouter.domain.AttributeIndex;
+import cz.jirutka.rsql.parser.ast.AndNode;
+import cz.jirutka.rsql.parser.ast.ComparisonNode;
+import cz.jirutka.rsql.parser.ast.Node;
+import cz.jirutka.rsql.parser.ast.OrNode;
+import cz.jirutka.rsql.parser.ast.RSQLVisitor;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles a parsed RSQL expression into an {@link RsqlPredicate}, with the same semantics as
+ * {@link EvalRsqlVisitor}. The type of an attribute is only known at evaluation time, so every
+ * argument is parsed upfront for each of the types and the {@code =in=}/{@code =out=} arguments go
+ * into a hash set per type. The evaluation then allocates nothing.
+ */
+public class CompileRsqlVisitor implements RSQLVisitor<RsqlPredicate, Void> {
+
+  public RsqlPredicate compile(Node rootNode) throws ExpressionException {
+    try {
+      return rootNode.accept(this);
+    } catch (RuntimeException ex) {
+      throw new ExpressionException(ex.getMessage(), ex);
+    }
+  }
+
+  @Override
+  public RsqlPredicate visit(AndNode andNode, Void param) {
+    RsqlPredicate[] children = compileChildren(andNode.getChildren());
+    return attributeGroup -> {
+      for (RsqlPredicate child : children) {
+        if (!child.test(attributeGroup)) {
+          return false;
+        }
+      }
+      return true;
+    };
+  }
+
+  @Override
+  public RsqlPredicate visit(OrNode orNode, Void param) {
+    RsqlPredicate[] children = compileChildren(orNode.getChildren());
+    return attributeGroup -> {
+      for (RsqlPredicate child : children) {
+        if (child.test(attributeGroup)) {
+          return true;
+        }
+      }
+      return false;
+    };
+  }
+
+  @Override
+  public RsqlPredicate visit(ComparisonNode comparisonNode, Void param) {
+    String symbol = comparisonNode.getOperator().getSymbol();
+    Operator operator = Operator.fromSymbol(symbol);
+    if (operator == null) {
+      throw new RuntimeException("Unsupported operator: " + symbol);
+    }
+    return new Comparison(comparisonNode.getSelector(), symbol, operator,
+        comparisonNode.getArguments());
+  }
+
+  private RsqlPredicate[] compileChildren(List<Node> nodes) {
+    RsqlPredicate[] children = new RsqlPredicate[nodes.size()];
+    for (int i = 0; i < children.length; ++i) {
+      children[i] = nodes.get(i).accept(this);
+    }
+    return children;
+  }
+
+  private enum Operator {
+
+    EQ(false), NE(true), GT(false), GE(false), LT(false), LE(false), IN(false), OUT(true);
+
+    // The result when the attribute is missing
+    private final boolean missing;
+
+    Operator(boolean missing) {
+      this.missing = missing;
+    }
+
+    static Operator fromSymbol(String symbol) {
+      switch (symbol) {
+        case "==":
+          return EQ;
+        case "!=":
+          return NE;
+        case "=gt=":
+        case ">":
+          return GT;
+        case "=ge=":
+        case ">=":
+          return GE;
+        case "=lt=":
+        case "<":
+          return LT;
+        case "=le=":
+        case "<=":
+          return LE;
+        case "=in=":
+          return IN;
+        case "=out=":
+          return OUT;
+        default:
+          return null;
+      }
+    }
+
+  }
+
+  private static class Comparison implements RsqlPredicate {
+
+    private final String selector;
+    private final String symbol;
+    private final Operator operator;
+
+    // The first argument per type, for the single argument operators
+    private final String string;
+    private final Double number;
+    private final Boolean bool;
+
+    // All the arguments per type, for =in= and =out=
+    private final Set<Object> strings = new HashSet<>();
+    private final Set<Object> numbers = new HashSet<>();
+    private final Set<Object> bools = new HashSet<>();
+
+    // Why some argument is not a number, reported only if compared to a number
+    private final String numberError;
+
+    Comparison(String selector, String symbol, Operator operator, List<String> arguments) {
+      this.selector = selector;
+      this.symbol = symbol;
+      this.operator = operator;
+
+      String error = null;
+      for (String argument : arguments) {
+        strings.add(argument);
+        bools.add(Boolean.parseBoolean(argument));
+        try {
+          numbers.add(Double.parseDouble(argument));
+        } catch (NumberFormatException ex) {
+          error = error == null ? ex.getMessage() : error;
+        }
+      }
+      this.numberError = error;
+
+      String first = arguments.get(0);
+      this.string = first;
+      this.bool = Boolean.parseBoolean(first);
+      this.number = error == null ? Double.valueOf(first) : null;
+    }
+
+    @Override
+    public boolean test(AttributeGroup attributeGroup) throws ExpressionException {
+      AttributeIndex.Values values = attributeGroup.getIndex().get(selector);
+
+      switch (operator) {
+        case GT:
+          return compare(values) > 0;
+        case GE:
+          return compare(values) >= 0;
+        case LT:
+          return compare(values) < 0;
+        case LE:
+          return compare(values) <= 0;
+        default:
+          break;
+      }
+
+      if (values == null) {
+        return operator.missing;
+      }
+
+      Attribute.Type type = values.getFirst().getType();
+      switch (operator) {
+        case EQ:
+          return values.contains(argument(type));
+        case NE:
+          return !values.contains(argument(type));
+        case IN:
+          return values.containsAny(arguments(type));
+        case OUT:
+          return !values.containsAny(arguments(type));
+        default:
+          throw new ExpressionException("Unsupported operator: " + symbol);
+      }
+    }
+
+    private int compare(AttributeIndex.Values values) throws ExpressionException {
+      int found = values == null ? 0 : values.size();
+      if (found != 1) {
+        throw new ExpressionException("Invalid arguments number for operator '" + symbol
+            + "'. Expected 1 but found " + found);
+      }
+
+      Attribute attribute = values.getFirst();
+      switch (attribute.getType()) {
+        case STRING:
+          return attribute.getStringValue().compareTo(string);
+        case DOUBLE:
+          checkNumbers();
+          return attribute.getDoubleValue().compareTo(number);
+        case BOOLEAN:
+          return attribute.getBooleanValue().compareTo(bool);
+        default:
+          throw new ExpressionException("Unexpected attribute type " + attribute.getType()
+              + " for " + attribute.getName());
+      }
+    }
+
+    private Object argument(Attribute.Type type) throws ExpressionException {
+      switch (type) {
+        case STRING:
+          return string;
+        case DOUBLE:
+          checkNumbers();
+          return number;
+        case BOOLEAN:
+          return bool;
+        default:
+          throw new ExpressionException("Unexpected argument type");
+      }
+    }
+
+    private Set<Object> arguments(Attribute.Type type) throws ExpressionException {
+      switch (type) {
+        case STRING:
+          return strings;
+        case DOUBLE:
+          checkNumbers();
+          return numbers;
+        case BOOLEAN:
+          return bools;
+        default:
+          throw new ExpressionException("Unexpected argument type");
+      }
+    }
+
+    private void checkNumbers() throws ExpressionException {
+      if (numberError != null) {
+        throw new ExpressionException(numberError);
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,780 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.eval;
+
+import com.softavail.commsrouter.domain.Attribute;
+import com.softavail.commsrouter.domain.AttributeGroup;
+import net.sourceforge.jeval.EvaluationConstants;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A JEval predicate parsed once into a tree that is evaluated directly against the attributes,
+ * giving the results {@link ExpressionEvaluator} would. Covers the dialect the predicates are
+ * written in: {@code #{variables}}, string and number literals, true/false, {@code HAS()},
+ * {@code IN()}, {@code CONTAINS()}, {@code !}, the comparisons, {@code &&} and {@code ||}.
+ * {@link #compile(String)} returns null for anything else (arithmetic, array literals, other
+ * functions), which is then left to JEval.
+ *
+ * <p>JEval substitutes the variables as text and parses the result again, so a value with
+ * characters that would change the meaning of that text (quotes, brackets, separators, ...) makes
+ * the evaluation fall back to JEval too: {@link #evaluate(AttributeGroup)} returns null.
+ *
+ * <p>The JEval rules kept here: {@code !} binds tightest, then the relational, the equality,
+ * {@code &&} and {@code ||} operators. {@code &&}, {@code ||} and {@code !} take 1 as true and
+ * anything else as false. Strings only compare to strings and numbers to numbers. Every operand is
+ * evaluated, and a missing variable or a type mismatch anywhere makes the whole predicate false.
+ */
+public class CompiledJEvalExpression {
+
+  private static final Logger LOGGER = LogManager.getLogger(CompiledJEvalExpression.class);
+
+  private static final Double ONE = 1.0;
+  private static final Double ZERO = 0.0;
+
+  private static final Failure MISSING = new Failure("Can not resolve variable.");
+  private static final Failure INVALID = new Failure("Expression is invalid.");
+  private static final Failure INVALID_UNARY = new Failure("Invalid operand for unary operator.");
+  private static final Failure INVALID_ARGUMENT = new Failure("Invalid function argument.");
+
+  private final Node root;
+  private final String[] names;
+
+  private CompiledJEvalExpression(Node root, String[] names) {
+    this.root = root;
+    this.names = names;
+  }
+
+  /**
+   * @return null if the expression is not in the supported dialect
+   */
+  public static CompiledJEvalExpression compile(String predicate) {
+    if (predicate == null || predicate.indexOf('[') >= 0 || predicate.indexOf(']') >= 0) {
+      return null;
+    }
+    Parser parser = new Parser(predicate);
+    Node root = parser.parse();
+    if (root == null) {
+      return null;
+    }
+    return new CompiledJEvalExpression(root, parser.names.toArray(new String[0]));
+  }
+
+  /**
+   * @return null if the attributes have to be left to JEval
+   */
+  public Boolean evaluate(AttributeGroup attributeGroup) {
+    if (attributeGroup == null || attributeGroup.getAttributes().isEmpty()) {
+      // JEval warns about these, let it
+      return null;
+    }
+    Bindings bindings = Bindings.bind(names, attributeGroup.getAttributes());
+    if (bindings == null) {
+      return null;
+    }
+    try {
+      Object result = root.eval(bindings);
+      // JEval takes anything but a numeric 0 for true
+      return !(result instanceof Double
+          && Double.doubleToRawLongBits((Double) result) == 0L);
+    } catch (Failure ex) {
+      LOGGER.info("Evaluator expression failed with message: {}", ex.getMessage());
+      return false;
+    }
+  }
+
+  // Values that JEval reads back the same after substituting them as text
+
+  static boolean isSafe(String value) {
+    int length = value.length();
+    if (length == 0 || value.equalsIgnoreCase("true") || value.equalsIgnoreCase("false")
+        || value.equalsIgnoreCase("null") || value.equals("NaN") || value.equals("Infinity")) {
+      return false;
+    }
+    char first = value.charAt(0);
+    if (first >= '0' && first <= '9' || first == '.' || first == '-' || first == '+'
+        || first == ' ' || value.charAt(length - 1) == ' ') {
+      return false;
+    }
+    for (int i = 0; i < length; ++i) {
+      if (!isSafe(value.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static boolean isSafe(char ch) {
+    if (ch >= 'a' && ch <= 'z' || ch >= 'A' && ch <= 'Z' || ch >= '0' && ch <= '9') {
+      return true;
+    }
+    switch (ch) {
+      case ' ':
+      case '_':
+      case '.':
+      case '-':
+      case '@':
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  private static boolean isSafe(double value) {
+    // Plain notation and no sign, which JEval would take for an operator
+    return Double.doubleToRawLongBits(value) == 0L || value >= 1e-3 && value < 1e7;
+  }
+
+  private static boolean isDouble(String value) {
+    try {
+      Double.parseDouble(value);
+      return true;
+    } catch (NumberFormatException ex) {
+      return false;
+    }
+  }
+
+  private static int compareQuoted(String left, String right) {
+    // String.compareTo of the two strings in quotes, without building them
+    int leftLength = left.length() + 1;
+    int rightLength = right.length() + 1;
+    int length = Math.min(leftLength, rightLength);
+    for (int i = 0; i < length; ++i) {
+      char leftChar = i < left.length() ? left.charAt(i) : '\'';
+      char rightChar = i < right.length() ? right.charAt(i) : '\'';
+      if (leftChar != rightChar) {
+        return leftChar - rightChar;
+      }
+    }
+    return leftLength - rightLength;
+  }
+
+  private static final class Failure extends RuntimeException {
+
+    Failure(String message) {
+      super(message, null, false, false);
+    }
+
+  }
+
+  /**
+   * The values of the variables used by the expression, the way JEval sees them: the array items
+   * of a name win over its scalars, the last scalar wins over the earlier ones.
+   */
+  private static final class Bindings {
+
+    private final List<Attribute> attributes;
+    private final String[] names;
+    private final Object[] scalars;
+    private final boolean[] arrays;
+
+    private Bindings(List<Attribute> attributes, String[] names) {
+      this.attributes = attributes;
+      this.names = names;
+      this.scalars = new Object[names.length];
+      this.arrays = new boolean[names.length];
+    }
+
+    static Bindings bind(String[] names, List<Attribute> attributes) {
+      Bindings bindings = new Bindings(attributes, names);
+      for (int i = 0; i < attributes.size(); ++i) {
+        Attribute attribute = attributes.get(i);
+        if (attribute.isScalar() == null || attribute.getValue() == null) {
+          return null;
+        }
+        boolean scalar = attribute.isScalar();
+        if (!scalar && attribute.getStringValue() == null && attribute.getDoubleValue() == null) {
+          // JEval rejects arrays of booleans
+          return null;
+        }
+        int slot = bindings.slot(attribute.getName());
+        if (slot < 0) {
+          continue;
+        }
+        Object value = valueOf(attribute);
+        if (value == null) {
+          return null;
+        }
+        if (scalar) {
+          bindings.scalars[slot] = value;
+        } else {
+          bindings.arrays[slot] = true;
+        }
+      }
+      return bindings;
+    }
+
+    private static Object valueOf(Attribute attribute) {
+      if (attribute.getStringValue() != null) {
+        return isSafe(attribute.getStringValue()) ? attribute.getStringValue() : null;
+      }
+      if (attribute.getDoubleValue() != null) {
+        return isSafe(attribute.getDoubleValue()) ? attribute.getDoubleValue() : null;
+      }
+      if (attribute.getBooleanValue() != null) {
+        return attribute.getBooleanValue() ? ONE : ZERO;
+      }
+      return null;
+    }
+
+    private int slot(String name) {
+      for (int i = 0; i < names.length; ++i) {
+        if (names[i].equals(name)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    boolean isArray(int slot) {
+      return arrays[slot];
+    }
+
+    /**
+     * The value as a scalar, an array as the string JEval makes of it.
+     */
+    Object scalar(int slot) {
+      if (arrays[slot]) {
+        StringBuilder value = new StringBuilder(EvaluatorHelpers.openBracketCharacter);
+        boolean first = true;
+        for (int i = 0; i < attributes.size(); ++i) {
+          Attribute attribute = attributes.get(i);
+          if (!isItem(attribute, slot)) {
+            continue;
+          }
+          if (!first) {
+            value.append(EvaluatorHelpers.ARRAY_ITEMS_DELIMITER);
+          }
+          first = false;
+          value.append(attribute.getValue());
+        }
+        return value.append(EvaluatorHelpers.closeBracketCharacter).toString();
+      }
+      Object value = scalars[slot];
+      if (value == null) {
+        throw MISSING;
+      }
+      return value;
+    }
+
+    boolean isItem(Attribute attribute, int slot) {
+      return Boolean.FALSE.equals(attribute.isScalar()) && names[slot].equals(attribute.getName());
+    }
+
+    List<Attribute> getAttributes() {
+      return attributes;
+    }
+
+  }
+
+  private abstract static class Node {
+
+    abstract Object eval(Bindings bindings);
+
+  }
+
+  private static final class Literal extends Node {
+
+    private final Object value;
+
+    Literal(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object eval(Bindings bindings) {
+      return value;
+    }
+
+  }
+
+  private static final class Variable extends Node {
+
+    private final int slot;
+
+    Variable(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    Object eval(Bindings bindings) {
+      return bindings.scalar(slot);
+    }
+
+  }
+
+  private static final class Not extends Node {
+
+    private final Node operand;
+
+    Not(Node operand) {
+      this.operand = operand;
+    }
+
+    @Override
+    Object eval(Bindings bindings) {
+      Object value = operand.eval(bindings);
+      if (!(value instanceof Double)) {
+        throw INVALID_UNARY;
+      }
+      return (Double) value == 1 ? ZERO : ONE;
+    }
+
+  }
+
+  private enum Operator {
+    AND, OR, EQ, NE, LT, LE, GT, GE
+  }
+
+  private static final class Binary extends Node {
+
+    private final Operator operator;
+    private final Node left;
+    private final Node right;
+
+    Binary(Operator operator, Node left, Node right) {
+      this.operator = operator;
+      this.left = left;
+      this.right = right;
+    }
+
+    @Override
+    Object eval(Bindings bindings) {
+      // No short cut, an invalid operand fails the expression even where it does not matter
+      Object leftValue = left.eval(bindings);
+      Object rightValue = right.eval(bindings);
+      if (leftValue instanceof Double && rightValue instanceof Double) {
+        return apply((Double) leftValue, (Double) rightValue) ? ONE : ZERO;
+      }
+      if (leftValue instanceof String && rightValue instanceof String
+          && operator != Operator.AND && operator != Operator.OR) {
+        return apply(compareQuoted((String) leftValue, (String) rightValue)) ? ONE : ZERO;
+      }
+      throw INVALID;
+    }
+
+    private boolean apply(double leftValue, double rightValue) {
+      switch (operator) {
+        case AND:
+          return leftValue == 1 && rightValue == 1;
+        case OR:
+          return leftValue == 1 || rightValue == 1;
+        case EQ:
+          return leftValue == rightValue;
+        case NE:
+          return leftValue != rightValue;
+        case LT:
+          return leftValue < rightValue;
+        case LE:
+          return leftValue <= rightValue;
+        case GT:
+          return leftValue > rightValue;
+        case GE:
+          return leftValue >= rightValue;
+        default:
+          throw INVALID;
+      }
+    }
+
+    private boolean apply(int comparison) {
+      switch (operator) {
+        case EQ:
+          return comparison == 0;
+        case NE:
+          return comparison != 0;
+        case LT:
+          return comparison < 0;
+        case LE:
+          return comparison <= 0;
+        case GT:
+          return comparison > 0;
+        case GE:
+          return comparison >= 0;
+        default:
+          throw INVALID;
+      }
+    }
+
+  }
+
+  /**
+   * HAS(array, item) and IN(item, array). JEval makes a JSON array of the first and looks for the
+   * second in it as a string. When the item is a number, every array item is turned into a number
+   * first, which fails for anything but numbers.
+   */
+  private static final class Has extends Node {
+
+    private final Variable array;
+    private final Node item;
+    // A string literal needle is known upfront
+    private final String literal;
+    private final boolean literalNumeric;
+    private final boolean literalMatchable;
+    private final double literalNumber;
+
+    Has(Variable array, Node item) {
+      this.array = array;
+      this.item = item;
+      if (item instanceof Literal && ((Literal) item).value instanceof String) {
+        literal = (String) ((Literal) item).value;
+        literalNumeric = isDouble(literal);
+        literalNumber = literalNumeric ? Double.parseDouble(literal) : 0;
+        // Only the notation Double.toString gives can match an array item
+        literalMatchable = !literalNumeric || Double.toString(literalNumber).equals(literal);
+      } else {
+        literal = null;
+        literalNumeric = false;
+        literalMatchable = false;
+        literalNumber = 0;
+      }
+    }
+
+    @Override
+    Object eval(Bindings bindings) {
+      boolean numeric;
+      boolean matchable;
+      double number = 0;
+      String string = null;
+      if (literal != null) {
+        string = literal;
+        numeric = literalNumeric;
+        matchable = literalMatchable;
+        number = literalNumber;
+      } else {
+        Object value = item.eval(bindings);
+        if (value instanceof Double) {
+          numeric = true;
+          matchable = true;
+          number = (Double) value;
+        } else {
+          // A safe string or an array, neither of which parses as a number
+          numeric = false;
+          matchable = true;
+          string = (String) value;
+        }
+      }
+
+      boolean found = false;
+      int slot = array.slot;
+      if (bindings.isArray(slot)) {
+        List<Attribute> attributes = bindings.getAttributes();
+        for (int i = 0; i < attributes.size(); ++i) {
+          Attribute attribute = attributes.get(i);
+          if (bindings.isItem(attribute, slot)) {
+            found |= matches(attribute.getValue(), numeric, matchable, number, string);
+          }
+        }
+      } else {
+        found = matches(bindings.scalar(slot), numeric, matchable, number, string);
+      }
+      return found ? ONE : ZERO;
+    }
+
+    private static boolean matches(Object value, boolean numeric, boolean matchable, double number,
+        String string) {
+
+      if (value instanceof Double) {
+        return numeric && matchable
+            && Double.doubleToLongBits((Double) value) == Double.doubleToLongBits(number);
+      }
+      if (numeric) {
+        throw INVALID_ARGUMENT;
+      }
+      return value.equals(string);
+    }
+
+  }
+
+  private static final class Contains extends Node {
+
+    private final Node source;
+    private final Node substring;
+
+    Contains(Node source, Node substring) {
+      this.source = source;
+      this.substring = substring;
+    }
+
+    @Override
+    Object eval(Bindings bindings) {
+      String sourceValue = String.valueOf(source.eval(bindings));
+      String substringValue = String.valueOf(substring.eval(bindings));
+      return sourceValue.contains(substringValue) ? ONE : ZERO;
+    }
+
+  }
+
+  private static final class Parser {
+
+    private final String text;
+    private final List<String> names = new ArrayList<>();
+    private int position;
+
+    Parser(String text) {
+      this.text = text;
+    }
+
+    Node parse() {
+      Node root = parseOr();
+      skipSpaces();
+      return position == text.length() ? root : null;
+    }
+
+    private Node parseOr() {
+      Node left = parseAnd();
+      while (left != null && accept("||")) {
+        left = binary(Operator.OR, left, parseAnd());
+      }
+      return left;
+    }
+
+    private Node parseAnd() {
+      Node left = parseEquality();
+      while (left != null && accept("&&")) {
+        left = binary(Operator.AND, left, parseEquality());
+      }
+      return left;
+    }
+
+    private Node parseEquality() {
+      Node left = parseRelational();
+      while (left != null) {
+        if (accept("==")) {
+          left = binary(Operator.EQ, left, parseRelational());
+        } else if (accept("!=")) {
+          left = binary(Operator.NE, left, parseRelational());
+        } else {
+          break;
+        }
+      }
+      return left;
+    }
+
+    private Node parseRelational() {
+      Node left = parseUnary();
+      while (left != null) {
+        if (accept("<=")) {
+          left = binary(Operator.LE, left, parseUnary());
+        } else if (accept(">=")) {
+          left = binary(Operator.GE, left, parseUnary());
+        } else if (accept("<")) {
+          left = binary(Operator.LT, left, parseUnary());
+        } else if (accept(">")) {
+          left = binary(Operator.GT, left, parseUnary());
+        } else {
+          break;
+        }
+      }
+      return left;
+    }
+
+    private static Node binary(Operator operator, Node left, Node right) {
+      return right == null ? null : new Binary(operator, left, right);
+    }
+
+    private Node parseUnary() {
+      skipSpaces();
+      if (peek() == '!' && !text.startsWith("!=", position)) {
+        ++position;
+        skipSpaces();
+        // JEval does not take two unary operators in a row
+        if (peek() == '!') {
+          return null;
+        }
+        Node operand = parsePrimary();
+        return operand == null ? null : new Not(operand);
+      }
+      return parsePrimary();
+    }
+
+    private Node parsePrimary() {
+      skipSpaces();
+      char ch = peek();
+      if (ch == '(') {
+        ++position;
+        Node inner = parseOr();
+        return inner != null && accept(")") ? inner : null;
+      }
+      if (Character.isLetter(ch)) {
+        String word = parseWord();
+        switch (word) {
+          case "true":
+          case "TRUE":
+            return new Literal(ONE);
+          case "false":
+          case "FALSE":
+            return new Literal(ZERO);
+          case "HAS":
+            return parseFunction(false);
+          case "IN":
+            return parseFunction(true);
+          case "CONTAINS":
+            return parseContains();
+          default:
+            return null;
+        }
+      }
+      return parseOperand();
+    }
+
+    /**
+     * A variable or a literal, the only things taken as function arguments.
+     */
+    private Node parseOperand() {
+      skipSpaces();
+      char ch = peek();
+      if (ch == '#') {
+        return parseVariable();
+      }
+      if (ch == '\'') {
+        return parseString();
+      }
+      if (ch >= '0' && ch <= '9') {
+        return parseNumber();
+      }
+      return null;
+    }
+
+    private Node parseFunction(boolean itemFirst) {
+      Node[] arguments = parseArguments();
+      if (arguments == null) {
+        return null;
+      }
+      Node array = itemFirst ? arguments[1] : arguments[0];
+      Node item = itemFirst ? arguments[0] : arguments[1];
+      // JSON reads a literal array argument by rules of its own, leave those to JEval
+      return array instanceof Variable ? new Has((Variable) array, item) : null;
+    }
+
+    private Node parseContains() {
+      Node[] arguments = parseArguments();
+      return arguments == null ? null : new Contains(arguments[0], arguments[1]);
+    }
+
+    private Node[] parseArguments() {
+      if (!accept("(")) {
+        return null;
+      }
+      Node first = parseOperand();
+      if (first == null || !accept(",")) {
+        return null;
+      }
+      Node second = parseOperand();
+      if (second == null || !accept(")")) {
+        return null;
+      }
+      return new Node[]{first, second};
+    }
+
+    private Node parseVariable() {
+      if (!text.startsWith("#{", position)) {
+        return null;
+      }
+      int end = text.indexOf('}', position);
+      if (end < 0) {
+        return null;
+      }
+      String name = text.substring(position + 2, end);
+      if (name.isEmpty() || !name.chars().allMatch(ch -> ch < 128 && Character.isLetterOrDigit(ch)
+          || ch == '_')) {
+        return null;
+      }
+      position = end + 1;
+      // Resolved before the attributes
+      String resolved = EvaluatorHelpers.resolveBooleanVariable(name);
+      if (resolved != null) {
+        return new Literal(resolved.equals(EvaluationConstants.BOOLEAN_STRING_TRUE) ? ONE : ZERO);
+      }
+      int slot = names.indexOf(name);
+      if (slot < 0) {
+        slot = names.size();
+        names.add(name);
+      }
+      return new Variable(slot);
+    }
+
+    private Node parseString() {
+      int end = text.indexOf('\'', position + 1);
+      if (end < 0) {
+        return null;
+      }
+      String value = text.substring(position + 1, end);
+      for (int i = 0; i < value.length(); ++i) {
+        if (!isSafe(value.charAt(i))) {
+          return null;
+        }
+      }
+      if (!value.isEmpty() && (value.charAt(0) == ' ' || value.charAt(value.length() - 1) == ' ')) {
+        return null;
+      }
+      position = end + 1;
+      return new Literal(value);
+    }
+
+    private Node parseNumber() {
+      int start = position;
+      while (Character.isDigit(peek())) {
+        ++position;
+      }
+      if (peek() == '.') {
+        ++position;
+        if (!Character.isDigit(peek())) {
+          return null;
+        }
+        while (Character.isDigit(peek())) {
+          ++position;
+        }
+      }
+      if (Character.isLetter(peek())) {
+        return null;
+      }
+      return new Literal(Double.valueOf(text.substring(start, position)));
+    }
+
+    private String parseWord() {
+      int start = position;
+      while (Character.isLetterOrDigit(peek()) || peek() == '_') {
+        ++position;
+      }
+      return text.substring(start, position);
+    }
+
+    private boolean accept(String token) {
+      skipSpaces();
+      if (text.startsWith(token, position)) {
+        position += token.length();
+        return true;
+      }
+      return false;
+    }
+
+    private void skipSpaces() {
+      while (peek() == ' ') {
+        ++position;
+      }
+    }
+
+    private char peek() {
+      return position < text.length() ? text.charAt(position) : 0;
+    }
+
+  }
+
+}
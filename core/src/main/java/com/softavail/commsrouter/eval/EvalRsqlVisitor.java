@@ -21,6 +21,7 @@ import static com.softavail.commsrouter.eval.ValidationUtils.validateAttributes;
 import com.softavail.commsrouter.api.exception.ExpressionException;
 import com.softavail.commsrouter.domain.Attribute;
 import com.softavail.commsrouter.domain.AttributeGroup;
+import com.softavail.commsrouter.domain.AttributeIndex;
 import cz.jirutka.rsql.parser.ast.AndNode;
 import cz.jirutka.rsql.parser.ast.ComparisonNode;
 import cz.jirutka.rsql.parser.ast.ComparisonOperator;
@@ -30,6 +31,7 @@ import cz.jirutka.rsql.parser.ast.RSQLVisitor;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.stream.Collectors;
@@ -88,7 +90,8 @@ public class EvalRsqlVisitor implements RSQLVisitor<Boolean, AttributeGroup> {
       AttributeGroup attributeGroup)
       throws ExpressionException {
 
-    List<Attribute> attributes = attributeGroup.getAttributes(selector);
+    AttributeIndex.Values values = attributeGroup.getIndex().get(selector);
+    List<Attribute> attributes = values == null ? Collections.emptyList() : values.getAttributes();
     String operator = comparisonOperator.getSymbol();
 
     validateAttributes(operator, attributes);
@@ -118,9 +121,9 @@ public class EvalRsqlVisitor implements RSQLVisitor<Boolean, AttributeGroup> {
 
     switch (operator) {
       case "==":
-        return getValues(attributes).contains(parseArgument(arguments.get(0), type));
+        return values.contains(parseArgument(arguments.get(0), type));
       case "!=":
-        return !getValues(attributes).contains(parseArgument(arguments.get(0), type));
+        return !values.contains(parseArgument(arguments.get(0), type));
       case "=gt=":
       case ">":
         return compareType(attributes.get(0), arguments.get(0)) > 0;
@@ -134,18 +137,14 @@ public class EvalRsqlVisitor implements RSQLVisitor<Boolean, AttributeGroup> {
       case "<=":
         return compareType(attributes.get(0), arguments.get(0)) <= 0;
       case "=in=":
-        return compareIn(attributes, parseArguments(arguments, type));
+        return values.containsAny(parseArguments(arguments, type));
       case "=out=":
-        return !compareIn(attributes, parseArguments(arguments, type));
+        return !values.containsAny(parseArguments(arguments, type));
       default:
         throw new ExpressionException("Unsupported operator: " + comparisonOperator.getSymbol());
     }
   }
 
-  private List<Object> getValues(List<Attribute> attributes) {
-    return attributes.stream().map(Attribute::getValue).collect(Collectors.toList());
-  }
-
   private Object parseArgument(String argument, Attribute.Type type) {
     switch (type) {
       case STRING:
@@ -178,8 +177,4 @@ public class EvalRsqlVisitor implements RSQLVisitor<Boolean, AttributeGroup> {
     }
   }
 
-  private boolean compareIn(List<Attribute> attributes, List<Object> arguments) {
-    return attributes.stream().anyMatch(attribute -> arguments.contains(attribute.getValue()));
-  }
-
 }
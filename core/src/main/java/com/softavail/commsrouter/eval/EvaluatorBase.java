@@ -32,7 +32,7 @@ public abstract class EvaluatorBase implements CommsRouterEvaluator {
   public CommsRouterEvaluator changeExpression(String expression, String routerRef)
       throws ExpressionException {
 
-    return factory.changeExpression(this, expression, routerRef);
+    return factory.provide(expression, routerRef);
   }
 
   @Override
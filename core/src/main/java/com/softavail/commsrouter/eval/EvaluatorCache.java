@@ -0,0 +1,94 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.eval;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import java.util.Objects;
+
+/**
+ * The evaluators created so far, keyed by router and expression. The least recently used are
+ * dropped once the cache is full. Evaluators are immutable, so a cached one is shared by all the
+ * threads asking for the same expression.
+ */
+public class EvaluatorCache {
+
+  private final Cache<Key, CommsRouterEvaluator> evaluators;
+  private final Meter hits;
+  private final Meter misses;
+
+  public EvaluatorCache(int maxSize, MetricRegistry metrics) {
+    this.evaluators = CacheBuilder.newBuilder().maximumSize(maxSize).build();
+    String prefix = MetricRegistry.name(EvaluatorCache.class);
+    metrics.register(MetricRegistry.name(prefix, "size"), (Gauge<Long>) evaluators::size);
+    this.hits = metrics.meter(MetricRegistry.name(prefix, "hits"));
+    this.misses = metrics.meter(MetricRegistry.name(prefix, "misses"));
+  }
+
+  public CommsRouterEvaluator get(String routerRef, String expression) {
+    CommsRouterEvaluator evaluator = evaluators.getIfPresent(new Key(routerRef, expression));
+    if (evaluator == null) {
+      misses.mark();
+    } else {
+      hits.mark();
+    }
+    return evaluator;
+  }
+
+  public void put(String routerRef, String expression, CommsRouterEvaluator evaluator) {
+    evaluators.put(new Key(routerRef, expression), evaluator);
+  }
+
+  public void clear() {
+    evaluators.invalidateAll();
+  }
+
+  private static class Key {
+
+    private final String routerRef;
+    private final String expression;
+
+    Key(String routerRef, String expression) {
+      this.routerRef = routerRef;
+      this.expression = expression;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+      if (this == object) {
+        return true;
+      }
+      if (!(object instanceof Key)) {
+        return false;
+      }
+      Key other = (Key) object;
+      return Objects.equals(routerRef, other.routerRef)
+          && Objects.equals(expression, other.expression);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(routerRef, expression);
+    }
+
+  }
+
+}
@@ -16,12 +16,10 @@
 
 package com.softavail.commsrouter.eval;
 
-import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.ListMultimap;
-
 import com.softavail.commsrouter.api.exception.ExpressionException;
 import com.softavail.commsrouter.domain.Attribute;
 import com.softavail.commsrouter.domain.AttributeGroup;
+import com.softavail.commsrouter.domain.AttributeIndex;
 import net.sourceforge.jeval.EvaluationConstants;
 import net.sourceforge.jeval.EvaluationException;
 import net.sourceforge.jeval.EvaluationResult;
@@ -29,11 +27,6 @@ import net.sourceforge.jeval.Evaluator;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import java.util.Iterator;
-import java.util.List;
-
-
-
 /**
  *
  * @author Ergyun Syuleyman
@@ -86,6 +79,14 @@ public class ExpressionEvaluator extends Evaluator {
       this.predicate = EvaluatorHelpers.supportArraysInExpression(predicate);
     }
   }
+
+  /**
+   * Same as {@link #setPredicate(String)}, with the arrays in the expression already converted.
+   */
+  void setPredicate(String predicateOrigin, String predicate) {
+    this.predicateOrigin = predicateOrigin;
+    this.predicate = predicate;
+  }
   
   public String getPredicate() {
     return predicateOrigin;
@@ -105,6 +106,8 @@ public class ExpressionEvaluator extends Evaluator {
       throw new ExpressionException("Expression cannot be NULL or empty.");
     }
     try {
+      // Validate as a fresh evaluator would, without the variables of an earlier evaluation
+      clearVariables();
       this.setIsValidation(true);
       super.evaluate(predicate);
     } catch (EvaluationException ex) {
@@ -144,63 +147,63 @@ public class ExpressionEvaluator extends Evaluator {
       LOGGER.warn("Missing attributes for matching to predicate");
       return;
     }
-    List<Attribute> attributes = attributesGroup.getAttributes();
-    if (attributes.isEmpty()) {
+    AttributeIndex index = attributesGroup.getIndex();
+    if (index.size() == 0) {
       LOGGER.warn("Missing attributes for matching to predicate");
       return;
     }
 
-    ListMultimap<String, Object> attributesMap = ArrayListMultimap.create();
-    attributes.forEach(jpaAttribute -> {
-      String name = jpaAttribute.getName();
-      Attribute.Type valueType = jpaAttribute.getType();
-      switch (valueType) {
-        case STRING:
-          if (jpaAttribute.isScalar()) {
-            putVariable(name, String.format("'%s'", jpaAttribute.getStringValue()));
-          } else {
-            attributesMap.put(name, jpaAttribute.getStringValue());
-          }
-          break;
-        case DOUBLE:
-          if (jpaAttribute.isScalar()) {
-            putVariable(name, jpaAttribute.getDoubleValue().toString());
-          } else {
-            attributesMap.put(name, jpaAttribute.getDoubleValue());
-          }
-          break;
-        case BOOLEAN:
-          if (jpaAttribute.isScalar()) {
-            putVariable(name,
-                jpaAttribute.getBooleanValue() ? EvaluationConstants.BOOLEAN_STRING_TRUE
-                    : EvaluationConstants.BOOLEAN_STRING_FALSE);
-          } else {
-            throw new RuntimeException(
-                "Evaluator: Unexpected array of booleans for attribute" + name);
-          }
-          break;
-        default:
-          LOGGER.error("Unexpected attribute value type={}, name={}", valueType,
-              jpaAttribute.getName());
-          break;
-      }
-    });
-
-    attributesMap.asMap().forEach((key, value) -> {
-      Iterator<Object> iterator = value.iterator();
-      String strValue = EvaluatorHelpers.openBracketCharacter;
-      boolean firstItem = true;
-      while (iterator.hasNext()) {
-        if (!firstItem) {
-          strValue += EvaluatorHelpers.ARRAY_ITEMS_DELIMITER;
-        } else {
-          firstItem = false;
+    for (AttributeIndex.Values values : index.values()) {
+      String name = values.getName();
+      StringBuilder array = null;
+      for (Attribute jpaAttribute : values.getAttributes()) {
+        Attribute.Type valueType = jpaAttribute.getType();
+        switch (valueType) {
+          case STRING:
+            if (jpaAttribute.isScalar()) {
+              putVariable(name, String.format("'%s'", jpaAttribute.getStringValue()));
+            } else {
+              array = appendArrayItem(array, jpaAttribute.getStringValue());
+            }
+            break;
+          case DOUBLE:
+            if (jpaAttribute.isScalar()) {
+              putVariable(name, jpaAttribute.getDoubleValue().toString());
+            } else {
+              array = appendArrayItem(array, jpaAttribute.getDoubleValue());
+            }
+            break;
+          case BOOLEAN:
+            if (jpaAttribute.isScalar()) {
+              putVariable(name,
+                  jpaAttribute.getBooleanValue() ? EvaluationConstants.BOOLEAN_STRING_TRUE
+                      : EvaluationConstants.BOOLEAN_STRING_FALSE);
+            } else {
+              throw new RuntimeException(
+                  "Evaluator: Unexpected array of booleans for attribute" + name);
+            }
+            break;
+          default:
+            LOGGER.error("Unexpected attribute value type={}, name={}", valueType,
+                jpaAttribute.getName());
+            break;
         }
-        strValue += iterator.next();
       }
-      strValue += EvaluatorHelpers.closeBracketCharacter;
-      putVariable(key, String.format("'%s'", strValue));
-    });
+      // The array items win over the scalars of the same name
+      if (array != null) {
+        array.append(EvaluatorHelpers.closeBracketCharacter);
+        putVariable(name, String.format("'%s'", array));
+      }
+    }
+  }
+
+  private static StringBuilder appendArrayItem(StringBuilder array, Object item) {
+    if (array == null) {
+      array = new StringBuilder(EvaluatorHelpers.openBracketCharacter);
+    } else {
+      array.append(EvaluatorHelpers.ARRAY_ITEMS_DELIMITER);
+    }
+    return array.append(item);
   }
 
 }
@@ -28,26 +28,35 @@ import org.apache.logging.log4j.Logger;
  */
 public class JEvalEvaluator implements CommsRouterEvaluator {
 
-  private final CommsRouterEvaluatorFactory factory;
-  private final ExpressionEvaluator evaluator;
-
   private static final Logger LOGGER = LogManager.getLogger(JEvalEvaluator.class);
 
+  // JEval evaluators keep the variables of the evaluation in progress, so every thread gets its
+  // own and this class only holds the expression. That makes it safe to share between threads.
+  private static final ThreadLocal<ExpressionEvaluator> EVALUATORS =
+      ThreadLocal.withInitial(() -> {
+        ExpressionEvaluator evaluator = new ExpressionEvaluator();
+        evaluator.init(null);
+        return evaluator;
+      });
+
+  private final CommsRouterEvaluatorFactory factory;
+  private final String predicateOrigin;
+  private final String predicate;
+  private final CompiledJEvalExpression compiled;
+
   public JEvalEvaluator(CommsRouterEvaluatorFactory factory, String predicate) {
     this.factory = factory;
-    evaluator = new ExpressionEvaluator();
-    evaluator.init(predicate);
+    this.predicateOrigin = predicate;
+    this.predicate =
+        predicate == null ? null : EvaluatorHelpers.supportArraysInExpression(predicate);
+    this.compiled = CompiledJEvalExpression.compile(predicate);
   }
 
   @Override
   public CommsRouterEvaluator changeExpression(String expression, String routerRef)
       throws ExpressionException {
 
-    return factory.changeExpression(this, expression, routerRef);
-  }
-
-  void replaceExpression(String expression) {
-    evaluator.setPredicate(expression);
+    return factory.provide(expression, routerRef);
   }
 
   /**
@@ -58,7 +67,7 @@ public class JEvalEvaluator implements CommsRouterEvaluator {
   public void validate() throws ExpressionException {
 
     long millis = System.currentTimeMillis();
-    evaluator.validateImpl();
+    evaluator().validateImpl();
     LOGGER.trace("Predicate expression validation time is: {}",
         (System.currentTimeMillis() - millis));
   }
@@ -71,17 +80,22 @@ public class JEvalEvaluator implements CommsRouterEvaluator {
    */
   @Override
   public boolean evaluate(AttributeGroup attributesGroup) throws CommsRouterException {
-    if (evaluator == null) {
-      throw new ExpressionException("Predicate evaluator is not initialized with expression value. "
-          + "Please call 'init(String predicate)' first.");
+    Boolean matched = compiled == null ? null : compiled.evaluate(attributesGroup);
+    if (matched == null) {
+      matched = evaluator().evaluate(attributesGroup);
     }
-    if (evaluator.evaluate(attributesGroup)) {
-      LOGGER.info("Attributes={} matched to predicate={}", attributesGroup,
-          evaluator.getPredicate());
+    if (matched) {
+      LOGGER.info("Attributes={} matched to predicate={}", attributesGroup, predicateOrigin);
       return true;
     }
     
     return false;
   }
 
+  private ExpressionEvaluator evaluator() {
+    ExpressionEvaluator evaluator = EVALUATORS.get();
+    evaluator.setPredicate(predicateOrigin, predicate);
+    return evaluator;
+  }
+
 }
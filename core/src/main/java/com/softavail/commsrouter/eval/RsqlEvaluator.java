@@ -24,15 +24,16 @@ import cz.jirutka.rsql.parser.ast.Node;
  */
 public class RsqlEvaluator extends EvaluatorBase {
 
-  private final EvalRsqlVisitor visitor;
   private final Node rootNode;
+  private final RsqlPredicate predicate;
   private final RsqlValidator rsqlValidator;
   private final String routerRef;
 
-  public RsqlEvaluator(CommsRouterEvaluatorFactory factory, Node rootNode, String routerRef) {
+  public RsqlEvaluator(CommsRouterEvaluatorFactory factory, Node rootNode,
+      RsqlPredicate predicate, String routerRef) {
     super(factory);
-    this.visitor = new EvalRsqlVisitor();
     this.rootNode = rootNode;
+    this.predicate = predicate;
     this.rsqlValidator = factory.getRsqlValidator();
     this.routerRef =   routerRef;
   }
@@ -40,12 +41,16 @@ public class RsqlEvaluator extends EvaluatorBase {
   @Override
   public boolean evaluate(AttributeGroup attributeGroup) throws ExpressionException {
     try {
-      return rootNode.accept(visitor, attributeGroup);
+      return predicate.test(attributeGroup);
     } catch (RuntimeException ex) {
       throw new ExpressionException(ex.getMessage(), ex);
     }
   }
 
+  public Node getRootNode() {
+    return rootNode;
+  }
+
   @Override
   public void validate() throws ExpressionException {
     rsqlValidator.validate(rootNode, routerRef);
@@ -47,7 +47,9 @@ public class RsqlEvaluatorFactory {
 
   public RsqlEvaluator create(String expression, String routerRef) throws ExpressionException {
     try {
-      return new RsqlEvaluator(factory, parse(expression), routerRef);
+      Node rootNode = parse(expression);
+      return new RsqlEvaluator(factory, rootNode, new CompileRsqlVisitor().compile(rootNode),
+          routerRef);
     } catch (RSQLParserException ex) {
       throw new ExpressionException("Invalid expression: " + ex.getMessage());
     }
@@ -16,15 +16,68 @@
 
 package com.softavail.commsrouter.jpa;
 
+import com.softavail.commsrouter.api.dto.model.AgentState;
 import com.softavail.commsrouter.domain.Agent;
+import com.softavail.commsrouter.domain.result.AgentCapabilityResult;
+import com.softavail.commsrouter.domain.result.ReadyAgentResult;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import javax.persistence.EntityManager;
 
 /**
  * @author ikrustev
  */
 public class AgentRepository extends RouterObjectRepository<Agent> {
 
+  private static final int MAX_IDS_PER_QUERY = 1000;
+
   public AgentRepository(JpaTransactionManager transactionManager) {
     super(transactionManager);
   }
 
+  @SuppressWarnings("unchecked")
+  public List<ReadyAgentResult> listReady(EntityManager em) {
+
+    String query = "SELECT NEW com.softavail.commsrouter.domain.result.ReadyAgentResult("
+        + "a.id, q.id, a.lastTimeAtBusyState) FROM Agent a "
+        + "JOIN a.agentQueueMappings m JOIN m.queue q "
+        + "WHERE a.state = :state ORDER BY a.id ASC";
+
+    return em.createQuery(query)
+        .setParameter("state", AgentState.ready)
+        .getResultList();
+  }
+
+  /**
+   * The capabilities of all the agents of the router, ordered by agent.
+   */
+  @SuppressWarnings("unchecked")
+  public List<AgentCapabilityResult> listCapabilities(EntityManager em, String routerRef) {
+
+    String query = "SELECT NEW com.softavail.commsrouter.domain.result.AgentCapabilityResult("
+        + "a.id, c.id, attr.name, attr.stringValue, attr.doubleValue, attr.booleanValue) "
+        + "FROM Agent a JOIN a.router r LEFT JOIN a.capabilities c LEFT JOIN c.attributes attr "
+        + "WHERE r.ref = :routerRef ORDER BY a.id ASC, attr.id ASC";
+
+    return em.createQuery(query)
+        .setParameter("routerRef", routerRef)
+        .getResultList();
+  }
+
+  @SuppressWarnings("unchecked")
+  public List<Agent> list(EntityManager em, Collection<Long> ids) {
+    List<Long> remaining = new ArrayList<>(ids);
+    List<Agent> agents = new ArrayList<>(remaining.size());
+    for (int from = 0; from < remaining.size(); from += MAX_IDS_PER_QUERY) {
+      List<Long> chunk =
+          remaining.subList(from, Math.min(remaining.size(), from + MAX_IDS_PER_QUERY));
+      agents.addAll(em.createQuery("SELECT a FROM Agent a WHERE a.id IN :ids ORDER BY a.id ASC")
+          .setParameter("ids", chunk)
+          .getResultList());
+    }
+    return agents;
+  }
+
 }
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.jpa;
+
+import com.softavail.commsrouter.domain.CallbackOutbox;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import javax.persistence.EntityManager;
+import javax.persistence.Query;
+
+/**
+ * The assignments with callbacks still to deliver.
+ */
+public class CallbackOutboxRepository extends GenericRepository<CallbackOutbox> {
+
+  public CallbackOutboxRepository(JpaTransactionManager transactionManager) {
+    super(transactionManager);
+  }
+
+  /**
+   * A page of the entries created before the given date by nodes that are no longer alive,
+   * continuing after the given id. A node is alive while its dispatcher node row has not expired.
+   */
+  public List<CallbackOutbox> listAbandoned(EntityManager em, Long afterId, Date createdBefore,
+      Date now, int maxResults) {
+
+    return em.createQuery("SELECT o FROM CallbackOutbox o "
+        + "WHERE o.id > :afterId AND o.createdDate < :createdBefore AND (o.nodeId IS NULL "
+        + "OR o.nodeId NOT IN (SELECT n.id FROM DispatcherNode n WHERE n.expirationDate > :now)) "
+        + "ORDER BY o.id", CallbackOutbox.class)
+        .setParameter("afterId", afterId)
+        .setParameter("createdBefore", createdBefore)
+        .setParameter("now", now)
+        .setMaxResults(maxResults)
+        .getResultList();
+  }
+
+  /**
+   * Takes the entry over from the node that wrote it, unless another node did so first.
+   */
+  public boolean takeOver(EntityManager em, CallbackOutbox entry, String nodeId) {
+    Query query = em.createQuery("UPDATE CallbackOutbox o SET o.nodeId = :nodeId "
+        + "WHERE o.id = :id AND " + (entry.getNodeId() == null
+            ? "o.nodeId IS NULL" : "o.nodeId = :previousNodeId"))
+        .setParameter("nodeId", nodeId)
+        .setParameter("id", entry.getId());
+    if (entry.getNodeId() != null) {
+      query.setParameter("previousNodeId", entry.getNodeId());
+    }
+    return query.executeUpdate() == 1;
+  }
+
+  public int delete(EntityManager em, Collection<Long> ids) {
+    return em.createQuery("DELETE FROM CallbackOutbox o WHERE o.id IN :ids")
+        .setParameter("ids", ids)
+        .executeUpdate();
+  }
+
+}
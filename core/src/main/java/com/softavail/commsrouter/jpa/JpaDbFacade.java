@@ -35,9 +35,11 @@ public class JpaDbFacade {
   public final RouterRepository router;
   public final QueueRepository queue;
   public final PlanRepository plan;
-  public final RouterObjectRepository<Agent> agent;
+  public final AgentRepository agent;
   public final TaskRepository task;
   public final RouterObjectRepository<Skill> skill;
+  public final RouterLeaseRepository routerLease;
+  public final CallbackOutboxRepository callbackOutbox;
 
   public JpaDbFacade() {
     this(CoreConfiguration.DEFAULT, PERSISTENCE_UNIT);
@@ -63,6 +65,8 @@ public class JpaDbFacade {
     this.agent = new AgentRepository(transactionManager);
     this.task = new TaskRepository(transactionManager);
     this.skill = new SkillRepository(transactionManager);
+    this.routerLease = new RouterLeaseRepository(transactionManager);
+    this.callbackOutbox = new CallbackOutboxRepository(transactionManager);
 
   }
 
@@ -20,12 +20,16 @@ import com.softavail.commsrouter.api.dto.model.AgentState;
 import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
 import com.softavail.commsrouter.api.dto.model.TaskState;
 import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.Agent;
 import com.softavail.commsrouter.domain.Queue;
+import com.softavail.commsrouter.domain.Task;
 import com.softavail.commsrouter.domain.result.MatchResult;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 import javax.persistence.EntityManager;
+import javax.persistence.Query;
 
 /**
  * @author ikrustev
@@ -59,42 +63,104 @@ public class QueueRepository extends RouterObjectRepository<Queue> {
         .getSingleResult();
   }
 
+  /**
+   * The next waiting task/ready agent pair of the queue. The excluded ids are the candidates
+   * already matched or lost to a concurrent claim in the current transaction: a plain read may keep
+   * returning them from its snapshot even after a locking read saw them taken.
+   */
   @SuppressWarnings("unchecked")
-  public Optional<MatchResult> findAssignment(EntityManager em, Long queueId)
+  public Optional<MatchResult> findAssignment(EntityManager em, Long queueId,
+      Collection<Long> excludedTaskIds, Collection<Long> excludedAgentIds)
       throws CommsRouterException {
 
     String query = "SELECT NEW com.softavail.commsrouter.domain.result.MatchResult(t, a) "
         + "FROM Task t JOIN t.queue q JOIN q.agentQueueMappings m JOIN m.agent a "
         + "WHERE t.state = :taskState AND a.state = :agentState AND q.id = :queueId "
+        + excluding("t", "excludedTaskIds", excludedTaskIds)
+        + excluding("a", "excludedAgentIds", excludedAgentIds)
         + "ORDER BY t.priority DESC, t.id ASC, a.lastTimeAtBusyState ASC";
 
-    List<MatchResult> result = em.createQuery(query)
+    Query q = em.createQuery(query)
         .setParameter("taskState", TaskState.waiting)
         .setParameter("agentState", AgentState.ready)
         .setParameter("queueId", queueId)
-        .setMaxResults(1)
-        .getResultList();
+        .setMaxResults(1);
+    bindExcluded(q, "excludedTaskIds", excludedTaskIds);
+    bindExcluded(q, "excludedAgentIds", excludedAgentIds);
+    List<MatchResult> result = q.getResultList();
 
     return result.stream().findFirst();
   }
 
   @SuppressWarnings("unchecked")
-  public Optional<MatchResult> findAssignmentForAgent(EntityManager em, Long agentId)
-      throws CommsRouterException {
+  public Optional<Task> findWaitingTask(EntityManager em, Collection<Long> queueIds,
+      Collection<Long> excludedTaskIds) throws CommsRouterException {
+
+    String query = "SELECT t FROM Task t JOIN t.queue q "
+        + "WHERE t.state = :taskState AND q.id IN :queueIds "
+        + excluding("t", "excludedTaskIds", excludedTaskIds)
+        + "ORDER BY t.priority DESC, t.id ASC";
+
+    Query q = em.createQuery(query)
+        .setParameter("taskState", TaskState.waiting)
+        .setParameter("queueIds", queueIds)
+        .setMaxResults(1);
+    bindExcluded(q, "excludedTaskIds", excludedTaskIds);
+    List<Task> result = q.getResultList();
+
+    return result.stream().findFirst();
+  }
+
+  @SuppressWarnings("unchecked")
+  public Optional<Agent> findReadyAgent(EntityManager em, Long queueId,
+      Collection<Long> excludedAgentIds) throws CommsRouterException {
+
+    String query = "SELECT a FROM Agent a JOIN a.agentQueueMappings m JOIN m.queue q "
+        + "WHERE a.state = :agentState AND q.id = :queueId "
+        + excluding("a", "excludedAgentIds", excludedAgentIds)
+        + "ORDER BY a.lastTimeAtBusyState ASC";
+
+    Query q = em.createQuery(query)
+        .setParameter("agentState", AgentState.ready)
+        .setParameter("queueId", queueId)
+        .setMaxResults(1);
+    bindExcluded(q, "excludedAgentIds", excludedAgentIds);
+    List<Agent> result = q.getResultList();
+
+    return result.stream().findFirst();
+  }
+
+  @SuppressWarnings("unchecked")
+  public Optional<MatchResult> findAssignmentForAgent(EntityManager em, Long agentId,
+      Collection<Long> excludedTaskIds) throws CommsRouterException {
 
     String query = "SELECT NEW com.softavail.commsrouter.domain.result.MatchResult(t, a) "
         + "FROM Task t JOIN t.queue q JOIN q.agentQueueMappings m JOIN m.agent a "
         + "WHERE t.state = :taskState AND a.state = :agentState AND a.id = :agentId "
+        + excluding("t", "excludedTaskIds", excludedTaskIds)
         + "ORDER BY t.priority DESC, t.id ASC, a.lastTimeAtBusyState ASC";
 
-    List<MatchResult> result = em.createQuery(query)
+    Query q = em.createQuery(query)
         .setParameter("taskState", TaskState.waiting)
         .setParameter("agentState", AgentState.ready)
         .setParameter("agentId", agentId)
-        .setMaxResults(1)
-        .getResultList();
+        .setMaxResults(1);
+    bindExcluded(q, "excludedTaskIds", excludedTaskIds);
+    List<MatchResult> result = q.getResultList();
 
     return result.stream().findFirst();
   }
 
+  // An empty NOT IN list is not valid SQL, so the condition is left out altogether then
+
+  private static String excluding(String alias, String parameter, Collection<Long> ids) {
+    return ids.isEmpty() ? "" : "AND " + alias + ".id NOT IN :" + parameter + " ";
+  }
+
+  private static void bindExcluded(Query query, String parameter, Collection<Long> ids) {
+    if (!ids.isEmpty()) {
+      query.setParameter(parameter, ids);
+    }
+  }
+
 }
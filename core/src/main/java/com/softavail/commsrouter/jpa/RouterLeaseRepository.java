@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.jpa;
+
+import com.softavail.commsrouter.domain.DispatcherNode;
+import com.softavail.commsrouter.domain.RouterLease;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import javax.persistence.EntityManager;
+
+/**
+ * Router leases and the live dispatcher nodes sharing them.
+ */
+public class RouterLeaseRepository extends GenericRepository<RouterLease> {
+
+  public RouterLeaseRepository(JpaTransactionManager transactionManager) {
+    super(transactionManager);
+  }
+
+  public void refreshNode(EntityManager em, String nodeId, Date expirationDate) {
+    DispatcherNode node = em.find(DispatcherNode.class, nodeId);
+    if (node == null) {
+      node = new DispatcherNode(nodeId);
+      em.persist(node);
+    }
+    node.setExpirationDate(expirationDate);
+  }
+
+  public long countLiveNodes(EntityManager em, Date now) {
+    return em.createQuery(
+        "SELECT COUNT(n) FROM DispatcherNode n WHERE n.expirationDate > :now", Long.class)
+        .setParameter("now", now)
+        .getSingleResult();
+  }
+
+  public int deleteExpiredNodes(EntityManager em, Date before) {
+    return em.createQuery("DELETE FROM DispatcherNode n WHERE n.expirationDate < :before")
+        .setParameter("before", before)
+        .executeUpdate();
+  }
+
+  public void deleteNode(EntityManager em, String nodeId) {
+    DispatcherNode node = em.find(DispatcherNode.class, nodeId);
+    if (node != null) {
+      em.remove(node);
+    }
+  }
+
+  public int deleteOrphans(EntityManager em) {
+    return em.createQuery("DELETE FROM RouterLease l "
+        + "WHERE l.routerId NOT IN (SELECT r.id FROM Router r)")
+        .executeUpdate();
+  }
+
+  /**
+   * Flags dispatch work created through this node for the owners of the routers. A router flagged
+   * already stays as is, its owner has not picked the earlier request up yet.
+   */
+  public int requestDispatch(EntityManager em, Collection<Long> routerIds, Date now) {
+    return em.createQuery("UPDATE RouterLease l SET l.dispatchRequestDate = :now "
+        + "WHERE l.routerId IN :routerIds AND l.dispatchRequestDate IS NULL")
+        .setParameter("now", now)
+        .setParameter("routerIds", routerIds)
+        .executeUpdate();
+  }
+
+  /**
+   * Clears and returns the dispatch requests for the routers of the node. The work requested
+   * before is committed by then, so whatever the node dispatches afterwards sees it.
+   */
+  public List<Long> takeDispatchRequests(EntityManager em, String nodeId) {
+    List<Long> routerIds = em.createQuery("SELECT l.routerId FROM RouterLease l "
+        + "WHERE l.owner = :owner AND l.dispatchRequestDate IS NOT NULL", Long.class)
+        .setParameter("owner", nodeId)
+        .getResultList();
+    if (!routerIds.isEmpty()) {
+      em.createQuery("UPDATE RouterLease l SET l.dispatchRequestDate = NULL "
+          + "WHERE l.owner = :owner AND l.routerId IN :routerIds")
+          .setParameter("owner", nodeId)
+          .setParameter("routerIds", routerIds)
+          .executeUpdate();
+    }
+    return routerIds;
+  }
+
+  /**
+   * Expires all the leases of the node at once, so other nodes can take them over right away.
+   */
+  public int releaseAll(EntityManager em, String nodeId, Date now) {
+    return em.createQuery("UPDATE RouterLease l SET l.expirationDate = :now, "
+        + "l.version = l.version + 1 WHERE l.owner = :owner")
+        .setParameter("now", now)
+        .setParameter("owner", nodeId)
+        .executeUpdate();
+  }
+
+}
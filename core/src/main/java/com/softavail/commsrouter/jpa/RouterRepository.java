@@ -82,6 +82,10 @@ public class RouterRepository extends GenericRepository<Router> {
     return result.get(0);
   }
 
+  public List<Long> listIds(EntityManager em) {
+    return em.createQuery("SELECT r.id FROM Router r ORDER BY r.id", Long.class).getResultList();
+  }
+
   public void deleteByRef(EntityManager em, String ref) throws CommsRouterException {
     Router router = getByRefNoThrow(em, ref);
     if (router != null) {
@@ -89,8 +93,9 @@ public class RouterRepository extends GenericRepository<Router> {
     }
   }
 
-  public void lock(EntityManager em, Long routerId) {
-    em.find(Router.class, routerId, LockModeType.PESSIMISTIC_WRITE);
+  public List<RouterConfig> listConfigs(EntityManager em) {
+    return em.createQuery("SELECT c FROM RouterConfig c JOIN FETCH c.router", RouterConfig.class)
+        .getResultList();
   }
 
   public void lockConfig(EntityManager em, Long routerId) {
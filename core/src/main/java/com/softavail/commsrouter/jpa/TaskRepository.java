@@ -19,9 +19,17 @@ package com.softavail.commsrouter.jpa;
 import com.softavail.commsrouter.api.dto.model.TaskState;
 import com.softavail.commsrouter.api.exception.NotFoundException;
 import com.softavail.commsrouter.domain.Task;
-import com.softavail.commsrouter.jpa.result.TaskEnumerableResult;
+import com.softavail.commsrouter.domain.result.QueuedTaskResult;
+import com.softavail.commsrouter.domain.result.TaskExpirationResult;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
 
 /**
  * @author ikrustev
@@ -32,14 +40,144 @@ public class TaskRepository extends RouterObjectRepository<Task> {
     super(transactionManager);
   }
 
-  public TaskEnumerableResult enumerableResultFilteredByWaitingState() {
+  @SuppressWarnings("unchecked")
+  public List<QueuedTaskResult> listWaiting(EntityManager em, Long afterTaskId, int maxResults) {
 
-    TaskEnumerableResult result =
-        new TaskEnumerableResult(this.transactionManager, TaskState.waiting);
+    String query = "SELECT NEW com.softavail.commsrouter.domain.result.QueuedTaskResult("
+        + "t.id, q.id, t.priority) FROM Task t JOIN t.queue q "
+        + "WHERE t.state = :state AND t.id > :afterTaskId ORDER BY t.id ASC";
 
+    return em.createQuery(query)
+        .setParameter("state", TaskState.waiting)
+        .setParameter("afterTaskId", afterTaskId)
+        .setMaxResults(maxResults)
+        .getResultList();
+  }
+
+  /**
+   * A page of the waiting tasks that have an expiration, keyset paginated by id: pass the last id
+   * of the previous page to get the next one.
+   */
+  public List<TaskExpirationResult> listWaitingExpirations(EntityManager em, Long afterTaskId,
+      int maxResults) {
+
+    return em.createQuery("SELECT NEW com.softavail.commsrouter.domain.result."
+        + "TaskExpirationResult(t.id, t.expirationDate) FROM Task t "
+        + "WHERE t.state = :state AND t.expirationDate IS NOT NULL AND t.id > :afterTaskId "
+        + "ORDER BY t.id ASC", TaskExpirationResult.class)
+        .setParameter("state", TaskState.waiting)
+        .setParameter("afterTaskId", afterTaskId)
+        .setMaxResults(maxResults)
+        .getResultList();
+  }
+
+  /**
+   * Claims for the node the oldest waiting tasks that expired by the given time, optionally of
+   * some routers only. Tasks claimed by any node after claimedBefore are left out, so several
+   * nodes polling at once each get their own tasks. The claims are taken by a conditional update:
+   * of two nodes racing for a task, the one updating second no longer matches it.
+   *
+   * @return the ids of the tasks claimed, at most maxResults
+   */
+  public List<Long> claimWaitingExpired(EntityManager em, String nodeId, Date now,
+      Date claimedBefore, Collection<Long> routerIds, int maxResults) {
+
+    String query = "SELECT t.id FROM Task t "
+        + "WHERE t.state = :state AND t.expirationDate <= :now"
+        + " AND (t.expirationClaimDate IS NULL OR t.expirationClaimDate < :claimedBefore)"
+        + (routerIds == null ? "" : " AND t.router.id IN :routerIds")
+        + " ORDER BY t.expirationDate ASC";
+    TypedQuery<Long> typedQuery = em.createQuery(query, Long.class)
+        .setParameter("state", TaskState.waiting)
+        .setParameter("now", now)
+        .setParameter("claimedBefore", claimedBefore)
+        .setMaxResults(maxResults);
+    if (routerIds != null) {
+      typedQuery.setParameter("routerIds", routerIds);
+    }
+    List<Long> candidates = typedQuery.getResultList();
+    if (candidates.isEmpty()) {
+      return candidates;
+    }
+
+    em.createQuery("UPDATE Task t "
+        + "SET t.expirationClaimOwner = :nodeId, t.expirationClaimDate = :now "
+        + "WHERE t.id IN :ids AND t.state = :state "
+        + "AND (t.expirationClaimDate IS NULL OR t.expirationClaimDate < :claimedBefore)")
+        .setParameter("nodeId", nodeId)
+        .setParameter("now", now)
+        .setParameter("ids", candidates)
+        .setParameter("state", TaskState.waiting)
+        .setParameter("claimedBefore", claimedBefore)
+        .executeUpdate();
+    return em.createQuery("SELECT t.id FROM Task t WHERE t.id IN :ids "
+        + "AND t.expirationClaimOwner = :nodeId AND t.expirationClaimDate = :now", Long.class)
+        .setParameter("ids", candidates)
+        .setParameter("nodeId", nodeId)
+        .setParameter("now", now)
+        .getResultList();
+  }
+
+  /**
+   * Drops the expiration claims of the node on the given tasks, once their timeouts are handled.
+   */
+  public int releaseExpirationClaims(EntityManager em, String nodeId, Collection<Long> taskIds) {
+    return em.createQuery("UPDATE Task t "
+        + "SET t.expirationClaimOwner = NULL, t.expirationClaimDate = NULL "
+        + "WHERE t.id IN :ids AND t.expirationClaimOwner = :nodeId")
+        .setParameter("ids", taskIds)
+        .setParameter("nodeId", nodeId)
+        .executeUpdate();
+  }
+
+  public long countWaiting(EntityManager em, Long routerId) {
+    return em.createQuery("SELECT COUNT(t.id) FROM Task t "
+        + "WHERE t.router.id = :routerId AND t.state = :state", Long.class)
+        .setParameter("routerId", routerId)
+        .setParameter("state", TaskState.waiting)
+        .getSingleResult();
+  }
+
+  public List<Long> listWaitingQueueIds(EntityManager em, Long routerId) {
+    return em.createQuery("SELECT DISTINCT t.queue.id FROM Task t "
+        + "WHERE t.router.id = :routerId AND t.state = :state", Long.class)
+        .setParameter("routerId", routerId)
+        .setParameter("state", TaskState.waiting)
+        .getResultList();
+  }
+
+  public List<Task> listWaitingExpiringBefore(EntityManager em, Long routerId, Date before) {
+    return em.createQuery("SELECT t FROM Task t WHERE t.router.id = :routerId "
+        + "AND t.state = :state AND t.expirationDate < :before", Task.class)
+        .setParameter("routerId", routerId)
+        .setParameter("state", TaskState.waiting)
+        .setParameter("before", before)
+        .getResultList();
+  }
+
+  /**
+   * Groups the given tasks by router, leaving out the ones that no longer exist.
+   */
+  public Map<Long, List<Long>> groupByRouter(EntityManager em, Collection<Long> taskIds) {
+    Map<Long, List<Long>> result = new HashMap<>();
+    em.createQuery("SELECT t.router.id, t.id FROM Task t WHERE t.id IN :ids", Object[].class)
+        .setParameter("ids", taskIds)
+        .getResultList()
+        .forEach(row -> result.computeIfAbsent((Long) row[0], key -> new ArrayList<>())
+            .add((Long) row[1]));
     return result;
   }
 
+  /**
+   * Loads the given tasks together with their rule and current route, for re-routing.
+   */
+  public List<Task> listWithRoute(EntityManager em, Collection<Long> taskIds) {
+    return em.createQuery("SELECT t FROM Task t LEFT JOIN FETCH t.rule "
+        + "LEFT JOIN FETCH t.currentRoute WHERE t.id IN :ids", Task.class)
+        .setParameter("ids", taskIds)
+        .getResultList();
+  }
+
   public Task getByTag(EntityManager em, String routerId, String tag)
       throws NotFoundException {
 
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.softavail.commsrouter.api.dto.arg.CreateAgentArg;
+import com.softavail.commsrouter.api.dto.arg.CreateQueueArg;
+import com.softavail.commsrouter.api.dto.arg.CreateRouterArg;
+import com.softavail.commsrouter.api.dto.arg.CreateTaskArg;
+import com.softavail.commsrouter.api.dto.arg.UpdateAgentArg;
+import com.softavail.commsrouter.api.dto.model.AgentState;
+import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
+import com.softavail.commsrouter.api.dto.model.attribute.AttributeGroupDto;
+import com.softavail.commsrouter.api.exception.AdmissionDeniedException;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
+import com.softavail.commsrouter.api.service.CoreAgentService;
+import com.softavail.commsrouter.api.service.CoreQueueService;
+import com.softavail.commsrouter.api.service.CoreRouterService;
+import com.softavail.commsrouter.api.service.CoreTaskService;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.eval.CommsRouterEvaluatorFactory;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * New tasks are refused once their queue or router is full, or while callbacks pile up.
+ */
+public class AdmissionControllerTest {
+
+  private final EntityMappers mappers = new EntityMappers();
+  private final Map<String, Integer> limits = new HashMap<>();
+  private JpaDbFacade db;
+  private TaskDispatcher taskDispatcher;
+  private AppContext app;
+  private String routerRef;
+  private String queueRef;
+
+  @Before
+  public void setUp() {
+    db = new JpaDbFacade("mnf-pu-test");
+  }
+
+  @After
+  public void tearDown() {
+    if (taskDispatcher != null) {
+      taskDispatcher.close();
+    }
+    db.close();
+  }
+
+  @Test
+  public void testQueueLimit() throws Exception {
+    limits.put("getAdmissionMaxWaitingPerQueue", 2);
+    startDispatcher();
+    createQueue();
+
+    createTask();
+    createTask();
+    AdmissionDeniedException denied = expectDenied();
+    assertFalse(denied.isOverloaded());
+    assertEquals(5, denied.getRetryAfterSeconds());
+    assertEquals(1, denials("queue"));
+  }
+
+  @Test
+  public void testRouterLimit() throws Exception {
+    limits.put("getAdmissionMaxWaitingPerRouter", 1);
+    startDispatcher();
+    createQueue();
+
+    createTask();
+    assertFalse(expectDenied().isOverloaded());
+    assertEquals(1, denials("router"));
+  }
+
+  @Test
+  public void testCallbacksInFlightLimit() throws Exception {
+    limits.put("getAdmissionMaxCallbacksInFlight", 1);
+    startDispatcher();
+    createQueue();
+    createReadyAgent();
+
+    createTask();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (taskDispatcher.getCallbacksInFlight() < 1 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertTrue(expectDenied().isOverloaded());
+    assertEquals(1, denials("callbacks"));
+  }
+
+  private AdmissionDeniedException expectDenied() throws Exception {
+    try {
+      createTask();
+      fail("Expected the task to be refused");
+      return null;
+    } catch (AdmissionDeniedException e) {
+      return e;
+    }
+  }
+
+  private long denials(String reason) {
+    return taskDispatcher.getMetricRegistry().meter(
+        "com.softavail.commsrouter.app.AdmissionController.denied." + reason).getCount();
+  }
+
+  private void startDispatcher() {
+    // The callbacks never complete, so the assigned tasks stay in flight
+    TaskEventHandler handler = TestBase.asyncHandler(taskAssignment -> new CompletableFuture<>());
+    CoreConfiguration configuration = TestBase.configuration(limits);
+    taskDispatcher = new TaskDispatcher(db, mappers, configuration, handler);
+    app = new AppContext(db, new CommsRouterEvaluatorFactory(), taskDispatcher, mappers,
+        configuration);
+  }
+
+  private void createQueue() throws Exception {
+    CreateRouterArg routerArg = new CreateRouterArg();
+    routerArg.setName("admission");
+    routerRef = new CoreRouterService(app).create(routerArg).getRef();
+
+    CreateQueueArg queueArg = new CreateQueueArg();
+    queueArg.setPredicate("1==1");
+    queueRef = new CoreQueueService(app).create(queueArg, routerRef).getRef();
+  }
+
+  private void createReadyAgent() throws Exception {
+    CoreAgentService agentService = new CoreAgentService(app);
+    CreateAgentArg agentArg = new CreateAgentArg();
+    agentArg.setCapabilities(new AttributeGroupDto());
+    String agentRef = agentService.create(agentArg, routerRef).getRef();
+    UpdateAgentArg updateAgentArg = new UpdateAgentArg();
+    updateAgentArg.setState(AgentState.ready);
+    agentService.update(updateAgentArg, agentService.get(
+        RouterObjectRef.builder().setRef(agentRef).setRouterRef(routerRef).build()));
+  }
+
+  private void createTask() throws Exception {
+    CreateTaskArg taskArg = new CreateTaskArg();
+    taskArg.setCallbackUrl(new URL("https://test.com"));
+    taskArg.setRequirements(new AttributeGroupDto());
+    taskArg.setQueueRef(queueRef);
+    new CoreTaskService(app).create(taskArg, routerRef);
+  }
+
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.dto.model.AgentState;
+import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
+import com.softavail.commsrouter.api.dto.model.TaskState;
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.Agent;
+import com.softavail.commsrouter.domain.AgentQueueMapping;
+import com.softavail.commsrouter.domain.Queue;
+import com.softavail.commsrouter.domain.Router;
+import com.softavail.commsrouter.domain.RouterConfig;
+import com.softavail.commsrouter.domain.Task;
+import com.softavail.commsrouter.domain.result.MatchResult;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import javax.persistence.EntityManager;
+
+/**
+ * Many processors of the same router assign concurrently, without a router lock. No agent may end
+ * up with two tasks and no task with two agents.
+ */
+public class AssignmentClaimStressTest {
+
+  private static final int QUEUES = 4;
+  private static final int PROCESSORS_PER_QUEUE = 3;
+  private static final int AGENTS = 30;
+  private static final int TASKS = 80;
+
+  private JpaDbFacade db;
+  private List<Long> queueIds;
+  private List<Long> agentIds;
+  private WaitingTaskIndex waitingTaskIndex;
+  private ReadyAgentIndex readyAgentIndex;
+
+  @Before
+  public void setUp() throws CommsRouterException {
+    db = new JpaDbFacade("mnf-pu-test");
+    queueIds = new ArrayList<>();
+    agentIds = new ArrayList<>();
+    waitingTaskIndex = new WaitingTaskIndex();
+    readyAgentIndex = new ReadyAgentIndex();
+
+    db.transactionManager.executeVoid(em -> {
+      Router router = new Router();
+      router.setRef("claim-router");
+      RouterConfig config = new RouterConfig();
+      config.setRouter(router);
+      router.setConfig(config);
+      em.persist(router);
+      em.persist(config);
+
+      List<Queue> queues = new ArrayList<>();
+      for (int i = 0; i < QUEUES; ++i) {
+        Queue queue = new Queue(ref("queue-" + i));
+        queue.setRouter(router);
+        queue.setPredicate("true");
+        em.persist(queue);
+        queues.add(queue);
+      }
+
+      for (int i = 0; i < AGENTS; ++i) {
+        Agent agent = new Agent(ref("agent-" + i));
+        agent.setRouter(router);
+        agent.setState(AgentState.ready);
+        em.persist(agent);
+        for (Queue queue : queues) {
+          AgentQueueMapping mapping = new AgentQueueMapping(agent, queue);
+          em.persist(mapping);
+          agent.getAgentQueueMappings().add(mapping);
+        }
+      }
+
+      for (int i = 0; i < TASKS; ++i) {
+        Task task = new Task(ref("task-" + i));
+        task.setRouter(router);
+        task.setQueue(queues.get(i % QUEUES));
+        task.setPriority((long) (i % 3));
+        task.setState(TaskState.waiting);
+        em.persist(task);
+      }
+      em.flush();
+
+      queues.forEach(queue -> queueIds.add(queue.getId()));
+      em.createQuery("SELECT a FROM Agent a WHERE a.router = :router", Agent.class)
+          .setParameter("router", router).getResultList().forEach(agent -> {
+            agentIds.add(agent.getId());
+            List<Long> agentQueueIds = new ArrayList<>(queueIds);
+            readyAgentIndex.add(agent.getId(), agent.getLastTimeAtBusyState(), agentQueueIds);
+          });
+      em.createQuery("SELECT t FROM Task t WHERE t.router = :router", Task.class)
+          .setParameter("router", router).getResultList().forEach(task ->
+              waitingTaskIndex.add(task.getQueue().getId(), task.getId(), task.getPriority()));
+    });
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void testQueryClaims() throws Exception {
+    runProcessors(new AssignmentMatcher(db, null, null), 1);
+  }
+
+  @Test
+  public void testIndexedClaims() throws Exception {
+    runProcessors(new AssignmentMatcher(db, waitingTaskIndex, readyAgentIndex), 1);
+  }
+
+  @Test
+  public void testBatchedClaims() throws Exception {
+    runProcessors(new AssignmentMatcher(db, null, null), 5);
+  }
+
+  private void runProcessors(AssignmentMatcher matcher, int batchSize) throws Exception {
+    ConcurrentLinkedQueue<long[]> assignments = new ConcurrentLinkedQueue<>();
+    ExecutorService executor = Executors.newFixedThreadPool(QUEUES * PROCESSORS_PER_QUEUE + 4);
+    CountDownLatch start = new CountDownLatch(1);
+
+    for (Long queueId : queueIds) {
+      for (int i = 0; i < PROCESSORS_PER_QUEUE; ++i) {
+        executor.submit(() -> {
+          start.await();
+          while (assign(em -> matcher.claimForQueue(em, queueId, batchSize), assignments)) {
+            // keep draining
+          }
+          return null;
+        });
+      }
+    }
+    // Agent dispatches racing with the queue processors
+    for (Long agentId : agentIds) {
+      executor.submit(() -> {
+        start.await();
+        assign(em -> matcher.findForAgent(em, agentId)
+            .map(Collections::singletonList).orElse(Collections.emptyList()), assignments);
+        return null;
+      });
+    }
+
+    start.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+
+    Set<Long> assignedTasks = new HashSet<>();
+    Set<Long> assignedAgents = new HashSet<>();
+    for (long[] assignment : assignments) {
+      assertTrue("Task assigned twice: " + assignment[0], assignedTasks.add(assignment[0]));
+      assertTrue("Agent assigned twice: " + assignment[1], assignedAgents.add(assignment[1]));
+    }
+    assertEquals(AGENTS, assignments.size());
+
+    db.transactionManager.executeVoid(em -> {
+      List<?> perAgent = em.createQuery("SELECT t.agent.id, COUNT(t) FROM Task t "
+          + "WHERE t.state = :state GROUP BY t.agent.id")
+          .setParameter("state", TaskState.assigned)
+          .getResultList();
+      assertEquals(AGENTS, perAgent.size());
+      perAgent.forEach(row -> assertEquals(1L, ((Object[]) row)[1]));
+    });
+  }
+
+  private boolean assign(Finder finder, ConcurrentLinkedQueue<long[]> assignments)
+      throws InterruptedException {
+    for (; ; ) {
+      try {
+        List<long[]> batch = db.transactionManager.executeWithLockRetry(em -> {
+          List<long[]> pairs = new ArrayList<>();
+          for (MatchResult match : finder.find(em)) {
+            match.agent.setState(AgentState.busy);
+            match.task.setState(TaskState.assigned);
+            match.task.setAgent(match.agent);
+            pairs.add(new long[]{match.task.getId(), match.agent.getId()});
+          }
+          return pairs;
+        });
+        if (batch.isEmpty()) {
+          return false;
+        }
+        assignments.addAll(batch);
+        return true;
+      } catch (CommsRouterException | RuntimeException e) {
+        // Out of lock retries, like the queue processor try again a bit later
+        Thread.sleep(10);
+      }
+    }
+  }
+
+  private static RouterObjectRef ref(String ref) {
+    return RouterObjectRef.builder().setRef(ref).setRouterRef("claim-router").build();
+  }
+
+  private interface Finder {
+
+    List<MatchResult> find(EntityManager em) throws CommsRouterException;
+
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+public class BoundedExecutorTest {
+
+  @Test
+  public void testRejectsBeyondQueueCapacity() throws InterruptedException {
+    MetricRegistry metrics = new MetricRegistry();
+    BoundedExecutor executor = new BoundedExecutor("test", 1, 2, metrics);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+
+    executor.execute(() -> {
+      await(release);
+      done.countDown();
+    });
+    executor.execute(done::countDown);
+    executor.execute(done::countDown);
+    try {
+      executor.execute(done::countDown);
+      fail("Expected the full pool to reject");
+    } catch (RejectedExecutionException e) {
+      // expected
+    }
+
+    String prefix = MetricRegistry.name(BoundedExecutor.class, "test");
+    assertEquals(2, metrics.getGauges().get(MetricRegistry.name(prefix, "depth")).getValue());
+    assertEquals(1, metrics.meter(MetricRegistry.name(prefix, "rejected")).getCount());
+
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    executor.close(1);
+  }
+
+  @Test
+  public void testCallbackSchedulerHoldsBackRejectedAttempts() throws Exception {
+    MetricRegistry metrics = new MetricRegistry();
+    BoundedExecutor callbackPool = new BoundedExecutor("callback", 1, 1, metrics);
+    ScheduledThreadPoolExecutor timerPool = new ScheduledThreadPoolExecutor(1);
+    CallbackScheduler scheduler = new CallbackScheduler(timerPool, callbackPool);
+    CountDownLatch release = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(3);
+
+    scheduler.schedule(() -> {
+      await(release);
+      done.countDown();
+      return null;
+    }, 0, TimeUnit.MILLISECONDS);
+    scheduler.schedule(() -> {
+      done.countDown();
+      return null;
+    }, 0, TimeUnit.MILLISECONDS);
+    // The pool is busy and its queue full: held back instead of dropped
+    scheduler.schedule(() -> {
+      done.countDown();
+      return null;
+    }, 0, TimeUnit.MILLISECONDS);
+    assertEquals(1, metrics.meter(MetricRegistry.name(BoundedExecutor.class, "callback",
+        "rejected")).getCount());
+
+    release.countDown();
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    callbackPool.close(1);
+    timerPool.shutdownNow();
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await(10, TimeUnit.SECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
+import com.softavail.commsrouter.api.dto.model.TaskDto;
+import com.softavail.commsrouter.api.exception.CallbackException;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+public class CallbackBatcherTest {
+
+  private static final int MAX_CONCURRENCY = 1;
+
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+  private final ConcurrentLinkedQueue<List<String>> batches = new ConcurrentLinkedQueue<>();
+
+  @After
+  public void tearDown() {
+    timer.shutdownNow();
+  }
+
+  @Test
+  public void testWindowCollectsPerUrl() throws Exception {
+    CallbackBatcher batcher = newBatcher(50, 100, ref -> false);
+    List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+    deliveries.add(batcher.submit(assignment("t1", "http://a"), () -> false));
+    deliveries.add(batcher.submit(assignment("t2", "http://b"), () -> false));
+    deliveries.add(batcher.submit(assignment("t3", "http://a"), () -> false));
+
+    for (CompletableFuture<Void> delivery : deliveries) {
+      delivery.get(5, TimeUnit.SECONDS);
+    }
+    assertEquals(2, batches.size());
+    assertTrue(batches.stream().anyMatch(batch -> batch.equals(listOf("t1", "t3"))));
+    assertTrue(batches.stream().anyMatch(batch -> batch.equals(listOf("t2"))));
+  }
+
+  @Test
+  public void testFullBatchGoesOutRightAway() throws Exception {
+    CallbackBatcher batcher = newBatcher(60000, 2, ref -> false);
+    CompletableFuture<Void> first = batcher.submit(assignment("t1", "http://a"), () -> false);
+    CompletableFuture<Void> second = batcher.submit(assignment("t2", "http://a"), () -> false);
+
+    first.get(1, TimeUnit.SECONDS);
+    second.get(1, TimeUnit.SECONDS);
+    assertEquals(listOf("t1", "t2"), batches.peek());
+  }
+
+  @Test
+  public void testItemsFailOnTheirOwn() throws Exception {
+    CallbackBatcher batcher = newBatcher(20, 100, ref -> ref.equals("t2"));
+    CompletableFuture<Void> first = batcher.submit(assignment("t1", "http://a"), () -> false);
+    CompletableFuture<Void> second = batcher.submit(assignment("t2", "http://a"), () -> false);
+
+    first.get(5, TimeUnit.SECONDS);
+    try {
+      second.get(5, TimeUnit.SECONDS);
+      assertFalse("Expected the second assignment to fail", true);
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CallbackException);
+    }
+  }
+
+  @Test
+  public void testBatchTakesOneBreakerSlot() throws Exception {
+    CallbackBatcher batcher = newBatcher(60000, 3, ref -> false);
+    List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+    deliveries.add(batcher.submit(assignment("t1", "http://a/1"), () -> false));
+    deliveries.add(batcher.submit(assignment("t2", "http://a/1"), () -> false));
+    deliveries.add(batcher.submit(assignment("t3", "http://a/1"), () -> false));
+
+    for (CompletableFuture<Void> delivery : deliveries) {
+      delivery.get(1, TimeUnit.SECONDS);
+    }
+    // More assignments than the concurrency limit of the host, still in a single POST
+    assertEquals(listOf("t1", "t2", "t3"), batches.peek());
+    assertEquals(1, batches.size());
+  }
+
+  private CallbackBatcher newBatcher(long windowMillis, int maxSize, FailurePlan failurePlan) {
+    TaskEventHandler handler = new TaskEventHandler() {
+      @Override
+      public void onTaskAssigned(TaskAssignmentDto taskAssignment) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public List<CompletableFuture<Void>> onTasksAssignedAsync(
+          List<TaskAssignmentDto> taskAssignments) {
+
+        batches.add(taskAssignments.stream()
+            .map(assignment -> assignment.getTask().getRef())
+            .collect(Collectors.toList()));
+        return taskAssignments.stream().map(assignment -> {
+          CompletableFuture<Void> delivery = new CompletableFuture<>();
+          if (failurePlan.fails(assignment.getTask().getRef())) {
+            delivery.completeExceptionally(new CallbackException());
+          } else {
+            delivery.complete(null);
+          }
+          return delivery;
+        }).collect(Collectors.toList());
+      }
+    };
+    CoreConfiguration configuration = TestBase.configuration(
+        Collections.singletonMap("getCallbackMaxConcurrency", MAX_CONCURRENCY));
+    CallbackBreakers breakers =
+        new CallbackBreakers(configuration, timer, Runnable::run, new MetricRegistry());
+    return new CallbackBatcher(handler, breakers, timer, Runnable::run, windowMillis, maxSize,
+        new MetricRegistry());
+  }
+
+  private static TaskAssignmentDto assignment(String taskRef, String callbackUrl) {
+    TaskDto task = new TaskDto();
+    task.setRef(taskRef);
+    task.setCallbackUrl(callbackUrl);
+    return new TaskAssignmentDto(task, null);
+  }
+
+  private static List<String> listOf(String... refs) {
+    List<String> list = new ArrayList<>();
+    for (String ref : refs) {
+      list.add(ref);
+    }
+    return list;
+  }
+
+  private interface FailurePlan {
+
+    boolean fails(String taskRef);
+
+  }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.softavail.commsrouter.api.exception.CallbackException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CallbackBreakerTest {
+
+  private final ScheduledThreadPoolExecutor timerPool = new ScheduledThreadPoolExecutor(1);
+  private final List<CompletableFuture<Void>> requests =
+      Collections.synchronizedList(new ArrayList<>());
+  private final AtomicInteger sent = new AtomicInteger();
+
+  @After
+  public void tearDown() {
+    timerPool.shutdownNow();
+  }
+
+  @Test
+  public void testOpensParksAndReplays() throws Exception {
+    CallbackBreaker breaker = new CallbackBreaker("host", 2, 200, 10, timerPool, Runnable::run);
+
+    CompletableFuture<Void> first = breaker.call(this::send, () -> false);
+    CompletableFuture<Void> second = breaker.call(this::send, () -> false);
+    failRequest(0);
+    failRequest(1);
+    assertTrue(first.isCompletedExceptionally());
+    assertTrue(second.isCompletedExceptionally());
+    assertEquals(CallbackBreaker.State.OPEN, breaker.getState());
+
+    // Parked while open, nothing goes out
+    CompletableFuture<Void> probe = breaker.call(this::send, () -> false);
+    CompletableFuture<Void> parked = breaker.call(this::send, () -> false);
+    assertEquals(2, sent.get());
+    assertEquals(2, breaker.getParked());
+
+    // After the open period a single probe goes out
+    awaitSent(3);
+    assertEquals(CallbackBreaker.State.HALF_OPEN, breaker.getState());
+    assertEquals(1, breaker.getParked());
+
+    requests.get(2).complete(null);
+    probe.get(1, TimeUnit.SECONDS);
+    assertEquals(CallbackBreaker.State.CLOSED, breaker.getState());
+    assertEquals(4, sent.get());
+    requests.get(3).complete(null);
+    parked.get(1, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void testFailedProbeReopens() throws Exception {
+    CallbackBreaker breaker = new CallbackBreaker("host", 1, 100, 10, timerPool, Runnable::run);
+
+    breaker.call(this::send, () -> false);
+    failRequest(0);
+    breaker.call(this::send, () -> false);
+    awaitSent(2);
+    failRequest(1);
+    assertEquals(CallbackBreaker.State.OPEN, breaker.getState());
+
+    breaker.call(this::send, () -> false);
+    awaitSent(3);
+    requests.get(2).complete(null);
+    assertEquals(CallbackBreaker.State.CLOSED, breaker.getState());
+  }
+
+  @Test
+  public void testConcurrencyLimitAdapts() {
+    CallbackBreaker breaker = new CallbackBreaker("host", 100, 1000, 4, timerPool, Runnable::run);
+
+    for (int i = 0; i < 6; ++i) {
+      breaker.call(this::send, () -> false);
+    }
+    assertEquals(4, sent.get());
+    assertEquals(2, breaker.getParked());
+
+    // A failure halves the limit to 2: with 3 still in flight nothing more goes out
+    failRequest(0);
+    assertEquals(4, sent.get());
+    assertEquals(2, breaker.toDto().getConcurrencyLimit());
+
+    requests.get(1).complete(null);
+    requests.get(2).complete(null);
+    assertEquals(5, sent.get());
+    assertEquals(1, breaker.getParked());
+  }
+
+  @Test
+  public void testAbandonedWhileParked() throws Exception {
+    CallbackBreaker breaker = new CallbackBreaker("host", 1, 100, 10, timerPool, Runnable::run);
+
+    breaker.call(this::send, () -> false);
+    failRequest(0);
+    CompletableFuture<Void> abandoned = breaker.call(this::send, () -> true);
+    CompletableFuture<Void> probe = breaker.call(this::send, () -> false);
+
+    awaitSent(2);
+    try {
+      abandoned.get(1, TimeUnit.SECONDS);
+      fail("Expected the abandoned callback to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof CallbackException);
+    }
+    requests.get(1).complete(null);
+    probe.get(1, TimeUnit.SECONDS);
+    assertFalse(probe.isCompletedExceptionally());
+  }
+
+  @Test
+  public void testHostKey() {
+    assertEquals("example.com", CallbackBreakers.getHost("https://example.com/callback?a=1"));
+    assertEquals("example.com:8080", CallbackBreakers.getHost("http://example.com:8080/cb"));
+  }
+
+  private CompletableFuture<Void> send() {
+    CompletableFuture<Void> request = new CompletableFuture<>();
+    requests.add(request);
+    sent.incrementAndGet();
+    return request;
+  }
+
+  private void failRequest(int request) {
+    requests.get(request).completeExceptionally(new CallbackException());
+  }
+
+  private void awaitSent(int expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sent.get() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(expected, sent.get());
+  }
+
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.dto.arg.CreateAgentArg;
+import com.softavail.commsrouter.api.dto.arg.CreateQueueArg;
+import com.softavail.commsrouter.api.dto.arg.CreateRouterArg;
+import com.softavail.commsrouter.api.dto.arg.CreateTaskArg;
+import com.softavail.commsrouter.api.dto.arg.UpdateAgentArg;
+import com.softavail.commsrouter.api.dto.arg.UpdateTaskArg;
+import com.softavail.commsrouter.api.dto.model.AgentState;
+import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
+import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
+import com.softavail.commsrouter.api.dto.model.TaskState;
+import com.softavail.commsrouter.api.dto.model.attribute.AttributeGroupDto;
+import com.softavail.commsrouter.api.exception.CallbackException;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
+import com.softavail.commsrouter.api.service.CoreAgentService;
+import com.softavail.commsrouter.api.service.CoreQueueService;
+import com.softavail.commsrouter.api.service.CoreRouterService;
+import com.softavail.commsrouter.api.service.CoreTaskService;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.eval.CommsRouterEvaluatorFactory;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Assignment callbacks completing on a thread of their own: failed deliveries are retried until
+ * one gets through or the task is no longer assigned.
+ */
+public class CallbackDeliveryTest {
+
+  private final EntityMappers mappers = new EntityMappers();
+  // Stands for the HTTP client completing the requests
+  private final ScheduledExecutorService client = Executors.newSingleThreadScheduledExecutor();
+  private final AtomicInteger attempts = new AtomicInteger();
+  private JpaDbFacade db;
+  private TaskDispatcher taskDispatcher;
+  private AppContext app;
+  private String routerRef;
+
+  @Before
+  public void setUp() {
+    db = new JpaDbFacade("mnf-pu-test");
+  }
+
+  @After
+  public void tearDown() {
+    if (taskDispatcher != null) {
+      taskDispatcher.close();
+    }
+    client.shutdownNow();
+    db.close();
+  }
+
+  @Test
+  public void testRetriedUntilDelivered() throws Exception {
+    startDispatcher(assignment -> attempts.incrementAndGet() < 3);
+    assignTask();
+
+    awaitAttempts(3);
+    Thread.sleep(1500);
+    assertEquals(3, attempts.get());
+  }
+
+  @Test
+  public void testAbortedOnceNoLongerAssigned() throws Exception {
+    startDispatcher(assignment -> {
+      attempts.incrementAndGet();
+      return true;
+    });
+    String taskRef = assignTask();
+
+    awaitAttempts(1);
+    UpdateTaskArg updateArg = new UpdateTaskArg();
+    updateArg.setState(TaskState.completed);
+    CoreTaskService taskService = new CoreTaskService(app);
+    taskService.update(updateArg, taskService.get(
+        RouterObjectRef.builder().setRef(taskRef).setRouterRef(routerRef).build()));
+    int completedAfter = attempts.get();
+    Thread.sleep(3000);
+    assertTrue(attempts.get() <= completedAfter + 1);
+  }
+
+  private void startDispatcher(FailurePlan failurePlan) {
+    TaskEventHandler handler = TestBase.asyncHandler(taskAssignment -> {
+      CompletableFuture<Void> delivery = new CompletableFuture<>();
+      boolean fail = failurePlan.fails(taskAssignment);
+      client.schedule(() -> {
+        if (fail) {
+          delivery.completeExceptionally(new CallbackException());
+        } else {
+          delivery.complete(null);
+        }
+      }, 50, TimeUnit.MILLISECONDS);
+      return delivery;
+    });
+    CoreConfiguration configuration = retryQuickly();
+    taskDispatcher = new TaskDispatcher(db, mappers, configuration, handler);
+    app = new AppContext(db, new CommsRouterEvaluatorFactory(), taskDispatcher, mappers,
+        configuration);
+  }
+
+  private String assignTask() throws Exception {
+    CreateRouterArg routerArg = new CreateRouterArg();
+    routerArg.setName("callbacks");
+    routerRef = new CoreRouterService(app).create(routerArg).getRef();
+
+    CreateQueueArg queueArg = new CreateQueueArg();
+    queueArg.setPredicate("1==1");
+    String queueRef = new CoreQueueService(app).create(queueArg, routerRef).getRef();
+
+    CoreAgentService agentService = new CoreAgentService(app);
+    CreateAgentArg agentArg = new CreateAgentArg();
+    agentArg.setCapabilities(new AttributeGroupDto());
+    String agentRef = agentService.create(agentArg, routerRef).getRef();
+    UpdateAgentArg updateAgentArg = new UpdateAgentArg();
+    updateAgentArg.setState(AgentState.ready);
+    agentService.update(updateAgentArg, agentService.get(
+        RouterObjectRef.builder().setRef(agentRef).setRouterRef(routerRef).build()));
+
+    CreateTaskArg taskArg = new CreateTaskArg();
+    taskArg.setCallbackUrl(new URL("https://test.com"));
+    taskArg.setRequirements(new AttributeGroupDto());
+    taskArg.setQueueRef(queueRef);
+    return new CoreTaskService(app).create(taskArg, routerRef).getRef();
+  }
+
+  private void awaitAttempts(int expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (attempts.get() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(expected, attempts.get());
+  }
+
+  private static CoreConfiguration retryQuickly() {
+    Map<String, Integer> overrides = new HashMap<>();
+    overrides.put("getBackoffDelay", 1);
+    overrides.put("getBackoffDelayMax", 2);
+    overrides.put("getJitter", 1);
+    return TestBase.configuration(overrides);
+  }
+
+  private interface FailurePlan {
+
+    boolean fails(TaskAssignmentDto taskAssignment);
+
+  }
+
+}
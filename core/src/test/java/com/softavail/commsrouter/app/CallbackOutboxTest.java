@@ -0,0 +1,183 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.dto.arg.CreateAgentArg;
+import com.softavail.commsrouter.api.dto.arg.CreateQueueArg;
+import com.softavail.commsrouter.api.dto.arg.CreateRouterArg;
+import com.softavail.commsrouter.api.dto.arg.CreateTaskArg;
+import com.softavail.commsrouter.api.dto.arg.UpdateAgentArg;
+import com.softavail.commsrouter.api.dto.model.AgentState;
+import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
+import com.softavail.commsrouter.api.dto.model.attribute.AttributeGroupDto;
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
+import com.softavail.commsrouter.api.service.CoreAgentService;
+import com.softavail.commsrouter.api.service.CoreQueueService;
+import com.softavail.commsrouter.api.service.CoreRouterService;
+import com.softavail.commsrouter.api.service.CoreTaskService;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.eval.CommsRouterEvaluatorFactory;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Assignments are recorded in the outbox along with the assignment and forgotten once delivered.
+ * A callback cut short by a restart is relayed by the next dispatcher.
+ */
+public class CallbackOutboxTest {
+
+  private final EntityMappers mappers = new EntityMappers();
+  private final Queue<String> delivered = new ConcurrentLinkedQueue<>();
+  private JpaDbFacade db;
+  private TaskDispatcher taskDispatcher;
+  private AppContext app;
+
+  @Before
+  public void setUp() {
+    db = new JpaDbFacade("mnf-pu-test");
+  }
+
+  @After
+  public void tearDown() {
+    if (taskDispatcher != null) {
+      taskDispatcher.close();
+    }
+    db.close();
+  }
+
+  @Test
+  public void testDeliveredAssignmentIsForgotten() throws Exception {
+    startDispatcher(true);
+    String taskRef = assignTask();
+
+    awaitDelivered(1);
+    assertEquals(taskRef, delivered.peek());
+    awaitOutboxSize(0);
+  }
+
+  @Test
+  public void testRelayedAfterRestart() throws Exception {
+    // The callback never completes, as if the node went down in the middle of it
+    startDispatcher(false);
+    String taskRef = assignTask();
+    awaitOutboxSize(1);
+    taskDispatcher.close();
+
+    startDispatcher(true);
+    awaitDelivered(1);
+    assertEquals(taskRef, delivered.peek());
+    awaitOutboxSize(0);
+  }
+
+  @Test
+  public void testNotRelayedWhileTheWriterIsAlive() throws Exception {
+    startDispatcher(false);
+    String taskRef = assignTask();
+    awaitOutboxSize(1);
+    TaskDispatcher writer = taskDispatcher;
+
+    startDispatcher(true);
+    // A few relay periods, the writer keeps its node alive meanwhile
+    Thread.sleep(2500);
+    assertTrue(delivered.isEmpty());
+
+    // Gone without leaving, its entry is relayed once its node expires
+    writer.close(false);
+    awaitDelivered(1);
+    assertEquals(taskRef, delivered.peek());
+    awaitOutboxSize(0);
+  }
+
+  private void startDispatcher(boolean deliver) {
+    TaskEventHandler handler = TestBase.asyncHandler(taskAssignment -> {
+      CompletableFuture<Void> delivery = new CompletableFuture<>();
+      if (deliver) {
+        delivered.add(taskAssignment.getTask().getRef());
+        delivery.complete(null);
+      }
+      return delivery;
+    });
+    CoreConfiguration configuration = relayEverySecond();
+    taskDispatcher = new TaskDispatcher(db, mappers, configuration, handler);
+    app = new AppContext(db, new CommsRouterEvaluatorFactory(), taskDispatcher, mappers,
+        configuration);
+  }
+
+  private String assignTask() throws Exception {
+    CreateRouterArg routerArg = new CreateRouterArg();
+    routerArg.setName("outbox");
+    String routerRef = new CoreRouterService(app).create(routerArg).getRef();
+
+    CreateQueueArg queueArg = new CreateQueueArg();
+    queueArg.setPredicate("1==1");
+    String queueRef = new CoreQueueService(app).create(queueArg, routerRef).getRef();
+
+    CoreAgentService agentService = new CoreAgentService(app);
+    CreateAgentArg agentArg = new CreateAgentArg();
+    agentArg.setCapabilities(new AttributeGroupDto());
+    String agentRef = agentService.create(agentArg, routerRef).getRef();
+    UpdateAgentArg updateAgentArg = new UpdateAgentArg();
+    updateAgentArg.setState(AgentState.ready);
+    agentService.update(updateAgentArg, agentService.get(
+        RouterObjectRef.builder().setRef(agentRef).setRouterRef(routerRef).build()));
+
+    CreateTaskArg taskArg = new CreateTaskArg();
+    taskArg.setCallbackUrl(new URL("https://test.com"));
+    taskArg.setRequirements(new AttributeGroupDto());
+    taskArg.setQueueRef(queueRef);
+    return new CoreTaskService(app).create(taskArg, routerRef).getRef();
+  }
+
+  private void awaitDelivered(int expected) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (delivered.size() < expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(expected, delivered.size());
+  }
+
+  private void awaitOutboxSize(long expected) throws Exception {
+    long deadline = System.currentTimeMillis() + 10000;
+    while (outboxSize() != expected && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(expected, outboxSize());
+  }
+
+  private long outboxSize() throws CommsRouterException {
+    return db.transactionManager.execute(em -> em.createQuery(
+        "SELECT COUNT(o) FROM CallbackOutbox o", Long.class).getSingleResult());
+  }
+
+  private static CoreConfiguration relayEverySecond() {
+    return TestBase.configuration(Collections.singletonMap("getDispatcherOutboxRelaySeconds", 1));
+  }
+
+}
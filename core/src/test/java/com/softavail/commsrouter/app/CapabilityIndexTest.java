@@ -0,0 +1,281 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.dto.arg.CreateAgentArg;
+import com.softavail.commsrouter.api.dto.arg.CreateQueueArg;
+import com.softavail.commsrouter.api.dto.arg.CreateRouterArg;
+import com.softavail.commsrouter.api.dto.arg.UpdateAgentArg;
+import com.softavail.commsrouter.api.dto.arg.UpdateQueueArg;
+import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
+import com.softavail.commsrouter.api.dto.model.attribute.AttributeGroupDto;
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.api.exception.ExpressionException;
+import com.softavail.commsrouter.api.service.CoreAgentService;
+import com.softavail.commsrouter.api.service.CoreQueueService;
+import com.softavail.commsrouter.api.service.CoreRouterService;
+import com.softavail.commsrouter.domain.Agent;
+import com.softavail.commsrouter.domain.AgentQueueMapping;
+import com.softavail.commsrouter.domain.Queue;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.eval.CommsRouterEvaluator;
+import com.softavail.commsrouter.eval.CommsRouterEvaluatorFactory;
+import com.softavail.commsrouter.eval.RsqlDummyValidator;
+import com.softavail.commsrouter.eval.RsqlEvaluator;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * The agents the index resolves a predicate to are the ones the evaluation matches, or the index
+ * leaves the predicate to the evaluation.
+ */
+public class CapabilityIndexTest {
+
+  private static final String[] SELECTORS = {"language", "skill", "vip", "languages", "shifts",
+      "missing"};
+  private static final String[] ARGUMENTS = {"en", "fr", "de", "5", "7.5", "true", "false", "x"};
+  private static final String[] OPERATORS = {"==", "!=", "=in=", "=out=", ">", ">=", "<", "<="};
+
+  private final EntityMappers mappers = new EntityMappers();
+  private final Random random = new Random(20180701L);
+  private JpaDbFacade db;
+  private TaskDispatcher taskDispatcher;
+  private AppContext app;
+  private CoreAgentService agentService;
+  private String routerRef;
+  private final List<String> agentRefs = new ArrayList<>();
+
+  @Before
+  public void setUp() throws CommsRouterException {
+    db = new JpaDbFacade("mnf-pu-test");
+    CoreConfiguration configuration = TestBase.configuration(
+        Collections.singletonMap("getQueueEnableCapabilityIndex", Boolean.TRUE));
+    taskDispatcher = new TaskDispatcher(db, mappers, configuration, null);
+    CommsRouterEvaluatorFactory evaluatorFactory = new CommsRouterEvaluatorFactory();
+    evaluatorFactory.setRsqlValidator(new RsqlDummyValidator());
+    app = new AppContext(db, evaluatorFactory, taskDispatcher, mappers, configuration);
+    agentService = new CoreAgentService(app);
+
+    CreateRouterArg routerArg = new CreateRouterArg();
+    routerArg.setName("capabilities");
+    routerRef = new CoreRouterService(app).create(routerArg).getRef();
+  }
+
+  @After
+  public void tearDown() {
+    taskDispatcher.close();
+    db.close();
+  }
+
+  @Test
+  public void testSameAsEvaluation() throws Exception {
+    for (int i = 0; i < 30; ++i) {
+      createAgent(randomCapabilities(true));
+    }
+    int resolved = checkRandomPredicates(300);
+
+    // Changes after the index got loaded
+    for (int i = 0; i < 10; ++i) {
+      updateAgent(agentRefs.get(random.nextInt(agentRefs.size())), randomCapabilities(true));
+    }
+    agentService.delete(ref(agentRefs.remove(0)));
+    createAgent(randomCapabilities(true));
+    resolved += checkRandomPredicates(300);
+
+    // The rest would fail on some agent, mostly the ranges over a capability not all agents have
+    assertTrue("Resolved through the index: " + resolved, resolved > 50);
+  }
+
+  @Test
+  public void testRangeLeftToEvaluation() throws Exception {
+    AttributeGroupDto capabilities = new AttributeGroupDto();
+    capabilities.add("skill", 5D);
+    createAgent(capabilities);
+    assertNotNull(resolve("skill>3"));
+
+    // The evaluation fails on an agent without the capability
+    createAgent(new AttributeGroupDto());
+    assertNull(resolve("skill>3"));
+    assertEquals(1, resolve("skill==5").size());
+    assertEquals(1, resolve("skill!=5").size());
+    // And on the numbers against an argument that is not one
+    assertNull(resolve("skill==x"));
+  }
+
+  @Test
+  public void testAgentWithoutCapabilitiesLeftToEvaluation() throws Exception {
+    AttributeGroupDto english = new AttributeGroupDto();
+    english.add("language", "en");
+    createAgent(english);
+    AttributeGroupDto french = new AttributeGroupDto();
+    french.add("language", "fr");
+    createAgent(french);
+    createAgent(null);
+    Long englishId = agentId(agentRefs.get(0));
+    Long withoutId = agentId(agentRefs.get(2));
+
+    // Resolved for the other agents still, the one without capabilities is evaluated on its own
+    assertEquals(new HashSet<>(Arrays.asList(englishId, withoutId)), resolve("language==en"));
+    assertEquals(Collections.singleton(withoutId), resolve("language==de"));
+  }
+
+  @Test
+  public void testQueueAttachment() throws Exception {
+    for (int i = 0; i < 20; ++i) {
+      createAgent(randomCapabilities(false));
+    }
+    CoreQueueService queueService = new CoreQueueService(app);
+    CreateQueueArg queueArg = new CreateQueueArg();
+    queueArg.setPredicate("language=in=(en,fr);skill>=5");
+    String queueRef = queueService.create(queueArg, routerRef).getRef();
+    assertEquals(evaluate(queueArg.getPredicate()), attachedAgents(queueRef));
+    assertEquals(1, resolvedCount());
+
+    UpdateQueueArg updateArg = new UpdateQueueArg();
+    updateArg.setPredicate("vip==true,languages==de");
+    queueService.update(updateArg, queueService.get(ref(queueRef)));
+    assertEquals(evaluate(updateArg.getPredicate()), attachedAgents(queueRef));
+    assertEquals(2, resolvedCount());
+  }
+
+  private int checkRandomPredicates(int count) throws Exception {
+    int resolved = 0;
+    for (int i = 0; i < count; ++i) {
+      String predicate = randomPredicate(2);
+      Set<Long> expected;
+      try {
+        expected = evaluate(predicate);
+      } catch (ExpressionException ex) {
+        assertNull(predicate, resolve(predicate));
+        continue;
+      }
+      Set<Long> agentIds = resolve(predicate);
+      if (agentIds != null) {
+        assertEquals(predicate, expected, agentIds);
+        ++resolved;
+      }
+    }
+    return resolved;
+  }
+
+  private Set<Long> resolve(String predicate) throws CommsRouterException {
+    RsqlEvaluator evaluator = (RsqlEvaluator) app.evaluatorFactory.provide(predicate, routerRef);
+    return db.transactionManager.execute(em ->
+        app.capabilityIndex.resolve(em, routerRef, evaluator.getRootNode()));
+  }
+
+  private Set<Long> evaluate(String predicate) throws CommsRouterException {
+    CommsRouterEvaluator evaluator = app.evaluatorFactory.provide(predicate, routerRef);
+    return db.transactionManager.execute(em -> {
+      Set<Long> agentIds = new HashSet<>();
+      for (Agent agent : db.agent.list(em, routerRef)) {
+        if (evaluator.evaluate(agent.getCapabilities())) {
+          agentIds.add(agent.getId());
+        }
+      }
+      return agentIds;
+    });
+  }
+
+  private Set<Long> attachedAgents(String queueRef) throws CommsRouterException {
+    return db.transactionManager.execute(em -> {
+      Queue queue = db.queue.get(em, ref(queueRef));
+      return queue.getAgentQueueMappings().stream()
+          .map(AgentQueueMapping::getAgent)
+          .map(Agent::getId)
+          .collect(Collectors.toSet());
+    });
+  }
+
+  private Long agentId(String agentRef) throws CommsRouterException {
+    return db.transactionManager.execute(em -> db.agent.get(em, ref(agentRef)).getId());
+  }
+
+  private long resolvedCount() {
+    return taskDispatcher.getMetricRegistry()
+        .meter("com.softavail.commsrouter.app.CapabilityIndex.resolved").getCount();
+  }
+
+  private void createAgent(AttributeGroupDto capabilities) throws CommsRouterException {
+    CreateAgentArg agentArg = new CreateAgentArg();
+    agentArg.setCapabilities(capabilities);
+    agentRefs.add(agentService.create(agentArg, routerRef).getRef());
+  }
+
+  private void updateAgent(String agentRef, AttributeGroupDto capabilities)
+      throws CommsRouterException {
+
+    UpdateAgentArg agentArg = new UpdateAgentArg();
+    agentArg.setCapabilities(capabilities);
+    agentService.update(agentArg, agentService.get(ref(agentRef)));
+  }
+
+  private RouterObjectRef ref(String ref) {
+    return RouterObjectRef.builder().setRef(ref).setRouterRef(routerRef).build();
+  }
+
+  private AttributeGroupDto randomCapabilities(boolean sparse) {
+    AttributeGroupDto capabilities = new AttributeGroupDto();
+    if (!sparse || random.nextInt(4) > 0) {
+      capabilities.add("language", new String[]{"en", "fr", "de", "es"}[random.nextInt(4)]);
+    }
+    if (!sparse || random.nextInt(4) > 0) {
+      capabilities.add("skill", (double) random.nextInt(10));
+    }
+    if (!sparse || random.nextInt(4) > 0) {
+      capabilities.add("vip", random.nextBoolean());
+    }
+    for (int i = random.nextInt(3); i > 0; --i) {
+      capabilities.addToArray("languages", new String[]{"en", "fr", "de"}[random.nextInt(3)]);
+    }
+    for (int i = random.nextInt(3); i > 0; --i) {
+      capabilities.addToArray("shifts", (double) random.nextInt(8));
+    }
+    return capabilities;
+  }
+
+  private String randomPredicate(int depth) {
+    if (depth == 0 || random.nextInt(3) == 0) {
+      String operator = OPERATORS[random.nextInt(OPERATORS.length)];
+      String argument = ARGUMENTS[random.nextInt(ARGUMENTS.length)];
+      if (operator.equals("=in=") || operator.equals("=out=")) {
+        argument = "(" + argument + "," + ARGUMENTS[random.nextInt(ARGUMENTS.length)] + ")";
+      }
+      return SELECTORS[random.nextInt(SELECTORS.length)] + operator + argument;
+    }
+    return "(" + randomPredicate(depth - 1) + (random.nextBoolean() ? ";" : ",")
+        + randomPredicate(depth - 1) + ")";
+  }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.softavail.commsrouter.api.dto.arg.CreateAgentArg;
+import com.softavail.commsrouter.api.dto.arg.CreateQueueArg;
+import com.softavail.commsrouter.api.dto.arg.CreateRouterArg;
+import com.softavail.commsrouter.api.dto.arg.CreateTaskArg;
+import com.softavail.commsrouter.api.dto.arg.UpdateAgentArg;
+import com.softavail.commsrouter.api.dto.model.AgentState;
+import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
+import com.softavail.commsrouter.api.dto.model.attribute.AttributeGroupDto;
+import com.softavail.commsrouter.api.service.CoreAgentService;
+import com.softavail.commsrouter.api.service.CoreQueueService;
+import com.softavail.commsrouter.api.service.CoreRouterService;
+import com.softavail.commsrouter.api.service.CoreTaskService;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.eval.CommsRouterEvaluatorFactory;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Several task dispatchers sharing one DB with router leases, as several nodes would.
+ */
+public class ClusterDispatchTest {
+
+  private static final int ROUTERS = 4;
+  private static final long AWAIT_MILLIS = 20000;
+
+  private final EntityMappers mappers = new EntityMappers();
+  // routerRef -> the nodes that assigned its tasks
+  private final Map<String, Set<String>> dispatchedBy = new ConcurrentHashMap<>();
+  private final AtomicInteger assignments = new AtomicInteger();
+  private final List<Node> running = new ArrayList<>();
+  private final Map<String, Long> routerIds = new HashMap<>();
+  private final Map<String, String> queueRefs = new HashMap<>();
+  private JpaDbFacade db;
+
+  private class Node {
+
+    final String name;
+    final TaskDispatcher taskDispatcher;
+    final AppContext app;
+
+    Node(String name) {
+      this.name = name;
+      CoreConfiguration configuration =
+          TestBase.configuration(Collections.singletonMap("getDispatcherRouterLeaseDuration", 3));
+      taskDispatcher = new TaskDispatcher(db, mappers, configuration,
+          TestBase.asyncHandler(taskAssignment -> {
+            dispatchedBy.computeIfAbsent(taskAssignment.getTask().getRouterRef(),
+                key -> ConcurrentHashMap.newKeySet()).add(name);
+            assignments.incrementAndGet();
+            return CompletableFuture.completedFuture(null);
+          }));
+      app = new AppContext(db, new CommsRouterEvaluatorFactory(), taskDispatcher, mappers,
+          configuration);
+    }
+
+    boolean owns(String routerRef) {
+      return taskDispatcher.ownsRouter(routerIds.get(routerRef));
+    }
+
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    db = new JpaDbFacade("mnf-pu-test");
+    running.add(new Node("a"));
+    running.add(new Node("b"));
+    for (int i = 0; i < ROUTERS; ++i) {
+      createRouter(running.get(0), "cluster-" + i);
+    }
+  }
+
+  @After
+  public void tearDown() {
+    running.forEach(node -> node.taskDispatcher.close());
+    db.close();
+  }
+
+  @Test
+  public void testEachRouterIsDispatchedByItsOwner() throws Exception {
+    awaitPartition();
+
+    // Agents and tasks come in through both nodes, whoever owns the router
+    for (String routerRef : routerIds.keySet()) {
+      for (Node node : running) {
+        createReadyAgent(node, routerRef);
+        createTask(node, routerRef);
+      }
+    }
+
+    await(() -> assignments.get() == 2 * ROUTERS, "all tasks assigned");
+    assertDispatchedByOwner(running);
+  }
+
+  @Test
+  public void testRoutersOfDeadNodeAreTakenOver() throws Exception {
+    awaitPartition();
+    Node dead = running.remove(0);
+    Node survivor = running.get(0);
+    List<String> deadRouters = new ArrayList<>();
+    routerIds.keySet().stream().filter(dead::owns).forEach(deadRouters::add);
+
+    // Gone without releasing its leases, as if the process had been killed
+    dead.taskDispatcher.close(false);
+    for (String routerRef : deadRouters) {
+      createReadyAgent(survivor, routerRef);
+      createTask(survivor, routerRef);
+    }
+
+    await(() -> assignments.get() == deadRouters.size(), "the tasks of the dead node assigned");
+    assertDispatchedByOwner(running);
+    assertEquals(deadRouters.size(), dispatchedBy.size());
+  }
+
+  private void awaitPartition() throws InterruptedException {
+    await(() -> routerIds.keySet().stream().allMatch(routerRef ->
+        running.stream().filter(node -> node.owns(routerRef)).count() == 1)
+        && running.stream().allMatch(node ->
+            routerIds.keySet().stream().filter(node::owns).count() == ROUTERS / running.size()),
+        "the routers split between the nodes");
+  }
+
+  private void assertDispatchedByOwner(List<Node> nodes) {
+    dispatchedBy.forEach((routerRef, dispatchers) -> {
+      assertEquals(routerRef + " dispatched by " + dispatchers, 1, dispatchers.size());
+      Node dispatcher = nodes.stream()
+          .filter(node -> dispatchers.contains(node.name)).findFirst().get();
+      assertTrue(routerRef + " dispatched by " + dispatcher.name + " without owning it",
+          dispatcher.owns(routerRef));
+    });
+  }
+
+  private static void await(BooleanSupplier condition, String what) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + AWAIT_MILLIS;
+    while (!condition.getAsBoolean()) {
+      if (System.currentTimeMillis() > deadline) {
+        fail("Timed out waiting for " + what);
+      }
+      Thread.sleep(50);
+    }
+  }
+
+  private void createRouter(Node node, String name) throws Exception {
+    CreateRouterArg routerArg = new CreateRouterArg();
+    routerArg.setName(name);
+    String routerRef = new CoreRouterService(node.app).create(routerArg).getRef();
+    routerIds.put(routerRef, db.transactionManager.execute(em ->
+        db.router.getIdByRef(em, routerRef)));
+
+    CreateQueueArg queueArg = new CreateQueueArg();
+    queueArg.setPredicate("1==1");
+    queueRefs.put(routerRef, new CoreQueueService(node.app).create(queueArg, routerRef).getRef());
+  }
+
+  private void createReadyAgent(Node node, String routerRef) throws Exception {
+    CoreAgentService agentService = new CoreAgentService(node.app);
+    CreateAgentArg agentArg = new CreateAgentArg();
+    agentArg.setCapabilities(new AttributeGroupDto());
+    String agentRef = agentService.create(agentArg, routerRef).getRef();
+    UpdateAgentArg updateAgentArg = new UpdateAgentArg();
+    updateAgentArg.setState(AgentState.ready);
+    agentService.update(updateAgentArg, agentService.get(
+        RouterObjectRef.builder().setRef(agentRef).setRouterRef(routerRef).build()));
+  }
+
+  private void createTask(Node node, String routerRef) throws Exception {
+    CreateTaskArg taskArg = new CreateTaskArg();
+    taskArg.setCallbackUrl(new URL("https://test.com"));
+    taskArg.setRequirements(new AttributeGroupDto());
+    taskArg.setQueueRef(queueRefs.get(routerRef));
+    new CoreTaskService(node.app).create(taskArg, routerRef);
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class DispatchLanesTest {
+
+  @Test
+  public void testRouterWorkRunsInOrderOnOneThread() throws InterruptedException {
+    MetricRegistry metrics = new MetricRegistry();
+    DispatchLanes lanes = new DispatchLanes(3, metrics);
+    Map<Long, List<Integer>> executed = new ConcurrentHashMap<>();
+    Map<Long, Thread> threads = new ConcurrentHashMap<>();
+    CountDownLatch done = new CountDownLatch(5 * 100);
+
+    for (int i = 0; i < 100; ++i) {
+      final int order = i;
+      for (long routerId = 1; routerId <= 5; ++routerId) {
+        final Long router = routerId;
+        lanes.execute(router, () -> {
+          executed.computeIfAbsent(router, key -> Collections.synchronizedList(new ArrayList<>()))
+              .add(order);
+          Thread previous = threads.putIfAbsent(router, Thread.currentThread());
+          assertTrue(previous == null || previous == Thread.currentThread());
+          done.countDown();
+        });
+      }
+    }
+
+    assertTrue(done.await(10, TimeUnit.SECONDS));
+    for (long routerId = 1; routerId <= 5; ++routerId) {
+      List<Integer> order = executed.get(routerId);
+      for (int i = 0; i < 100; ++i) {
+        assertEquals(Integer.valueOf(i), order.get(i));
+      }
+    }
+    assertEquals(3, metrics.getGauges().size());
+    assertEquals(500, metrics.getTimers().values().stream().mapToLong(t -> t.getCount()).sum());
+    lanes.close(1);
+  }
+
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.dto.model.AgentState;
+import com.softavail.commsrouter.api.dto.model.RouterObjectRef;
+import com.softavail.commsrouter.api.dto.model.TaskState;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
+import com.softavail.commsrouter.domain.Agent;
+import com.softavail.commsrouter.domain.AgentQueueMapping;
+import com.softavail.commsrouter.domain.Queue;
+import com.softavail.commsrouter.domain.Router;
+import com.softavail.commsrouter.domain.RouterConfig;
+import com.softavail.commsrouter.domain.Task;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A router with a big backlog takes turns with the others instead of holding the dispatch thread
+ * until it is drained.
+ */
+public class FairShareTest {
+
+  private static final int QUOTA = 5;
+  private static final int BIG_TASKS = 30;
+  private static final int SMALL_TASKS = 3;
+
+  private final List<String> assignedRouters = new ArrayList<>();
+  private JpaDbFacade db;
+  private TaskDispatcher taskDispatcher;
+  private Long bigRouterId;
+
+  @Before
+  public void setUp() throws Exception {
+    db = new JpaDbFacade("mnf-pu-test");
+    db.transactionManager.executeVoid(em -> {
+      // The big router comes first, so it starts draining first
+      bigRouterId = createRouter(em, "big", BIG_TASKS, 2).getId();
+      createRouter(em, "small", SMALL_TASKS, null);
+    });
+  }
+
+  @After
+  public void tearDown() {
+    if (taskDispatcher != null) {
+      taskDispatcher.close();
+    }
+    db.close();
+  }
+
+  @Test
+  public void testSmallRouterGetsTurn() throws Exception {
+    TaskEventHandler handler = TestBase.asyncHandler(taskAssignment -> {
+      synchronized (assignedRouters) {
+        assignedRouters.add(taskAssignment.getTask().getRouterRef());
+      }
+      return CompletableFuture.completedFuture(null);
+    });
+    // A single lane, so the routers compete for the same thread
+    Map<String, Integer> overrides = new HashMap<>();
+    overrides.put("getQueueFairShareQuota", QUOTA);
+    overrides.put("getDispatcherRouterLanes", 1);
+    taskDispatcher = new TaskDispatcher(db, new EntityMappers(),
+        TestBase.configuration(overrides), handler);
+
+    long deadline = System.currentTimeMillis() + 20000;
+    while (assignedCount() < BIG_TASKS + SMALL_TASKS && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(BIG_TASKS + SMALL_TASKS, assignedCount());
+
+    // Without turns the small router would come after all the big one's tasks. Callbacks run on
+    // a pool, so allow for some reordering.
+    int lastSmall;
+    synchronized (assignedRouters) {
+      lastSmall = assignedRouters.lastIndexOf("small");
+    }
+    assertTrue("Small router served at " + lastSmall, lastSmall < 3 * QUOTA);
+    assertEquals(2 * QUOTA, taskDispatcher.getTurnQuota(bigRouterId));
+
+    // Router updates reach the dispatcher without waiting for an assignment
+    taskDispatcher.onRouterConfigChanged(bigRouterId, "big", new RouterConfig());
+    assertEquals(QUOTA, taskDispatcher.getTurnQuota(bigRouterId));
+  }
+
+  private int assignedCount() {
+    synchronized (assignedRouters) {
+      return assignedRouters.size();
+    }
+  }
+
+  private static Router createRouter(javax.persistence.EntityManager em, String ref, int tasks,
+      Integer dispatchWeight) {
+
+    Router router = new Router();
+    router.setRef(ref);
+    RouterConfig config = new RouterConfig();
+    config.setRouter(router);
+    config.setDispatchWeight(dispatchWeight);
+    router.setConfig(config);
+    em.persist(router);
+    em.persist(config);
+
+    Queue queue = new Queue(ref(ref, "queue"));
+    queue.setRouter(router);
+    queue.setPredicate("true");
+    em.persist(queue);
+
+    for (int i = 0; i < tasks; ++i) {
+      Agent agent = new Agent(ref(ref, "agent-" + i));
+      agent.setRouter(router);
+      agent.setState(AgentState.ready);
+      em.persist(agent);
+      AgentQueueMapping mapping = new AgentQueueMapping(agent, queue);
+      em.persist(mapping);
+      agent.getAgentQueueMappings().add(mapping);
+
+      Task task = new Task(ref(ref, "task-" + i));
+      task.setRouter(router);
+      task.setQueue(queue);
+      task.setState(TaskState.waiting);
+      task.setCallbackUrl("https://test.com/" + ref);
+      em.persist(task);
+    }
+    return router;
+  }
+
+  private static RouterObjectRef ref(String routerRef, String ref) {
+    return RouterObjectRef.builder().setRef(ref).setRouterRef(routerRef).build();
+  }
+
+}
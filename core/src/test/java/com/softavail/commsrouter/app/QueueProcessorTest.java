@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class QueueProcessorTest {
+
+  private final AtomicInteger dispatched = new AtomicInteger();
+
+  private QueueProcessor newQueueProcessor() {
+    return new QueueProcessor.Builder()
+        .setRouterId(1L)
+        .setQueueId(2L)
+        .setDispatchExecutor(work -> dispatched.incrementAndGet())
+        .build();
+  }
+
+  @Test
+  public void testConcurrentProcessDispatchesOnce() throws InterruptedException {
+    QueueProcessor queueProcessor = newQueueProcessor();
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    CountDownLatch start = new CountDownLatch(1);
+    for (int i = 0; i < 1000; ++i) {
+      executor.submit(() -> {
+        start.await();
+        return queueProcessor.process();
+      });
+    }
+    start.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+    assertEquals(1, dispatched.get());
+    assertTrue(queueProcessor.isWorking());
+  }
+
+  @Test
+  public void testEvictedProcessorRefusesWork() {
+    QueueProcessor queueProcessor = newQueueProcessor();
+    assertFalse(queueProcessor.tryEvict(TimeUnit.HOURS.toNanos(1)));
+    assertTrue(queueProcessor.tryEvict(0));
+
+    assertFalse(queueProcessor.process());
+    assertEquals(0, dispatched.get());
+  }
+
+  @Test
+  public void testWorkingProcessorIsNotEvicted() {
+    QueueProcessor queueProcessor = newQueueProcessor();
+    assertTrue(queueProcessor.process());
+
+    assertFalse(queueProcessor.tryEvict(0));
+    assertTrue(queueProcessor.process());
+    assertEquals(1, dispatched.get());
+  }
+
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Optional;
+
+public class ReadyAgentIndexTest {
+
+  @Test
+  public void testLongestIdleFirst() {
+    ReadyAgentIndex index = new ReadyAgentIndex();
+    index.add(1L, new Date(3000), Arrays.asList(10L, 20L));
+    index.add(2L, new Date(1000), Collections.singletonList(10L));
+    index.add(3L, null, Collections.singletonList(20L));
+
+    assertEquals(Optional.of(2L), index.peek(10L, Collections.emptySet()));
+    assertEquals(Optional.of(3L), index.peek(20L, Collections.emptySet()));
+    index.remove(2L);
+    index.remove(3L);
+    assertEquals(Optional.of(1L), index.peek(10L, Collections.emptySet()));
+    assertEquals(Optional.of(1L), index.peek(20L, Collections.emptySet()));
+    index.remove(1L);
+    assertEquals(Optional.empty(), index.peek(10L, Collections.emptySet()));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testAddReplacesQueues() {
+    ReadyAgentIndex index = new ReadyAgentIndex();
+    index.add(1L, new Date(1000), Arrays.asList(10L, 20L));
+    index.add(1L, new Date(2000), Collections.singletonList(30L));
+
+    assertEquals(0, index.size(10L));
+    assertEquals(0, index.size(20L));
+    assertEquals(1, index.size(30L));
+    assertEquals(Optional.of(1L), index.peek(30L, Collections.emptySet()));
+  }
+
+  @Test
+  public void testRemoveFromQueue() {
+    ReadyAgentIndex index = new ReadyAgentIndex();
+    index.add(1L, new Date(1000), Arrays.asList(10L, 20L));
+
+    assertFalse(index.remove(1L, 30L));
+    assertTrue(index.remove(1L, 10L));
+    assertEquals(Optional.empty(), index.peek(10L, Collections.emptySet()));
+    assertEquals(Optional.of(1L), index.peek(20L, Collections.emptySet()));
+    assertTrue(index.remove(1L, 20L));
+    assertEquals(0, index.size());
+  }
+
+}
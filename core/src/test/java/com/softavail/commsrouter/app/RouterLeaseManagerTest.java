@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.domain.Router;
+import com.softavail.commsrouter.domain.RouterConfig;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Several nodes sharing one DB, each with its own lease manager.
+ */
+public class RouterLeaseManagerTest {
+
+  private static final int ROUTERS = 9;
+
+  private JpaDbFacade db;
+
+  @Before
+  public void setUp() throws CommsRouterException {
+    db = new JpaDbFacade("mnf-pu-test");
+    db.transactionManager.executeVoid(em -> {
+      for (int i = 0; i < ROUTERS; ++i) {
+        Router router = new Router();
+        router.setRef("lease-router-" + i);
+        RouterConfig config = new RouterConfig();
+        config.setRouter(router);
+        router.setConfig(config);
+        em.persist(router);
+        em.persist(config);
+      }
+    });
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void testRoutersSplitBetweenNodes() throws CommsRouterException {
+    List<RouterLeaseManager> nodes = Arrays.asList(node("a", 30), node("b", 30), node("c", 30));
+
+    rounds(nodes, 3);
+
+    assertPartition(nodes, 3);
+  }
+
+  @Test
+  public void testLeasesOfDeadNodeAreTakenOver() throws Exception {
+    RouterLeaseManager dead = node("dead", 1);
+    List<RouterLeaseManager> alive = Arrays.asList(node("a", 1), node("b", 1));
+    rounds(Arrays.asList(alive.get(0), alive.get(1), dead), 3);
+    Set<Long> deadRouters = dead.getOwnedRouterIds();
+    assertEquals(3, deadRouters.size());
+
+    // The dead node stops renewing without releasing anything
+    Thread.sleep(1100);
+    assertTrue(dead.getOwnedRouterIds().isEmpty());
+    rounds(alive, 2);
+
+    assertPartition(alive, 5);
+    Set<Long> takenOver = new HashSet<>(alive.get(0).getOwnedRouterIds());
+    takenOver.addAll(alive.get(1).getOwnedRouterIds());
+    assertTrue(takenOver.containsAll(deadRouters));
+  }
+
+  @Test
+  public void testReleasedLeasesAreTakenOverRightAway() throws CommsRouterException {
+    RouterLeaseManager leaving = node("leaving", 30);
+    RouterLeaseManager staying = node("staying", 30);
+    rounds(Arrays.asList(leaving, staying), 2);
+    assertPartition(Arrays.asList(leaving, staying), 5);
+
+    leaving.release();
+    assertFalse(leaving.owns(db.transactionManager.execute(db.router::listIds).get(0)));
+    staying.renew();
+
+    assertEquals(ROUTERS, staying.getOwnedRouterIds().size());
+  }
+
+  @Test
+  public void testDispatchRequestsReachTheOwner() throws CommsRouterException {
+    RouterLeaseManager a = node("a", 30);
+    RouterLeaseManager b = node("b", 30);
+    rounds(Arrays.asList(a, b), 2);
+    Long routerOfB = b.getOwnedRouterIds().iterator().next();
+    assertFalse(a.owns(routerOfB));
+
+    a.requestDispatch(routerOfB);
+    a.requestDispatch(routerOfB);
+    assertTrue(b.exchangeDispatchRequests().isEmpty());
+    assertTrue(a.exchangeDispatchRequests().isEmpty());
+
+    assertEquals(Collections.singleton(routerOfB), b.exchangeDispatchRequests());
+    // Taken once only
+    assertTrue(b.exchangeDispatchRequests().isEmpty());
+    // A lease round keeps a request not taken yet
+    a.requestDispatch(routerOfB);
+    a.exchangeDispatchRequests();
+    rounds(Arrays.asList(a, b), 1);
+    assertEquals(Collections.singleton(routerOfB), b.exchangeDispatchRequests());
+  }
+
+  private RouterLeaseManager node(String nodeId, int durationSeconds) {
+    return new RouterLeaseManager(db, nodeId, durationSeconds);
+  }
+
+  private static void rounds(List<RouterLeaseManager> nodes, int count)
+      throws CommsRouterException {
+
+    for (int i = 0; i < count; ++i) {
+      for (RouterLeaseManager node : nodes) {
+        node.renew();
+      }
+    }
+  }
+
+  private static void assertPartition(List<RouterLeaseManager> nodes, int maxShare) {
+    Set<Long> all = new HashSet<>();
+    for (RouterLeaseManager node : nodes) {
+      Set<Long> owned = node.getOwnedRouterIds();
+      assertTrue(node.getNodeId() + " owns " + owned.size(), owned.size() <= maxShare);
+      for (Long routerId : owned) {
+        assertTrue("Router " + routerId + " owned twice", all.add(routerId));
+      }
+    }
+    assertEquals(ROUTERS, all.size());
+  }
+
+}
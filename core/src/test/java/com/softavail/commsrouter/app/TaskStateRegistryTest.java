@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.api.dto.model.TaskState;
+import org.junit.Test;
+
+public class TaskStateRegistryTest {
+
+  @Test
+  public void testTransitionEndsAssignment() {
+    TaskStateRegistry registry = new TaskStateRegistry(60000, new MetricRegistry());
+    long version = registry.onAssigned(1L);
+
+    assertTrue(registry.isAssigned(1L, version));
+    registry.onTransition(1L, TaskState.completed);
+    assertFalse(registry.isAssigned(1L, version));
+  }
+
+  @Test
+  public void testNewerAssignmentEndsOlderOne() {
+    TaskStateRegistry registry = new TaskStateRegistry(60000, new MetricRegistry());
+    long first = registry.onAssigned(1L);
+    registry.onTransition(1L, TaskState.waiting);
+    long second = registry.onAssigned(1L);
+
+    assertFalse(registry.isAssigned(1L, first));
+    assertTrue(registry.isAssigned(1L, second));
+
+    // The older callback finishing does not drop the newer one
+    registry.release(1L, first);
+    assertTrue(registry.isAssigned(1L, second));
+    registry.release(1L, second);
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testUntrackedTasksAreMisses() {
+    TaskStateRegistry registry = new TaskStateRegistry(60000, new MetricRegistry());
+    registry.onTransition(1L, TaskState.waiting);
+
+    assertNull(registry.isAssigned(1L, 1L));
+    assertEquals(0, registry.size());
+  }
+
+  @Test
+  public void testStandingAssignmentExpires() throws InterruptedException {
+    TaskStateRegistry registry = new TaskStateRegistry(50, new MetricRegistry());
+    long version = registry.onAssigned(1L);
+    Thread.sleep(100);
+
+    assertNull(registry.isAssigned(1L, version));
+    registry.confirm(1L, version);
+    assertTrue(registry.isAssigned(1L, version));
+
+    // Ended assignments stay ended however old
+    registry.onTransition(1L, TaskState.completed);
+    Thread.sleep(100);
+    assertFalse(registry.isAssigned(1L, version));
+  }
+
+}
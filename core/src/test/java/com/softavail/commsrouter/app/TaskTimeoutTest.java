@@ -0,0 +1,196 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.dto.arg.CreatePlanArg;
+import com.softavail.commsrouter.api.dto.arg.CreateQueueArg;
+import com.softavail.commsrouter.api.dto.arg.CreateRouterArg;
+import com.softavail.commsrouter.api.dto.arg.CreateTaskArg;
+import com.softavail.commsrouter.api.dto.model.RouteDto;
+import com.softavail.commsrouter.api.dto.model.RuleDto;
+import com.softavail.commsrouter.api.dto.model.attribute.AttributeGroupDto;
+import com.softavail.commsrouter.api.service.CorePlanService;
+import com.softavail.commsrouter.api.service.CoreQueueService;
+import com.softavail.commsrouter.api.service.CoreRouterService;
+import com.softavail.commsrouter.api.service.CoreTaskService;
+import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
+import com.softavail.commsrouter.eval.CommsRouterEvaluatorFactory;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.jpa.test.TestBase;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * A whole queue of tasks timing out at once moves on to the next route, exactly once.
+ */
+public class TaskTimeoutTest {
+
+  private static final int TASKS = 40;
+
+  private final EntityMappers mappers = new EntityMappers();
+  private final List<TaskDispatcher> taskDispatchers = new ArrayList<>();
+  private JpaDbFacade db;
+
+  @Before
+  public void setUp() {
+    db = new JpaDbFacade("mnf-pu-test");
+  }
+
+  @After
+  public void tearDown() {
+    taskDispatchers.forEach(TaskDispatcher::close);
+    db.close();
+  }
+
+  @Test
+  public void testInMemoryTimers() throws Exception {
+    testExpiredTasksMoveToNextRoute(startDispatcher(CoreConfiguration.DEFAULT));
+  }
+
+  @Test
+  public void testPolledExpirations() throws Exception {
+    testExpiredTasksMoveToNextRoute(startDispatcher(pollEverySecond()));
+  }
+
+  @Test
+  public void testPolledExpirationsOnTwoNodes() throws Exception {
+    AppContext app = startDispatcher(pollEverySecond());
+    startDispatcher(pollEverySecond());
+    testExpiredTasksMoveToNextRoute(app);
+  }
+
+  @Test
+  public void testNodesClaimDisjointExpiredTasks() throws Exception {
+    AppContext app = startDispatcher(CoreConfiguration.DEFAULT);
+    CreateRouterArg routerArg = new CreateRouterArg();
+    routerArg.setName("claims");
+    String routerRef = new CoreRouterService(app).create(routerArg).getRef();
+    String queueRef = new CoreQueueService(app).create(queueArg(), routerRef).getRef();
+    CoreTaskService taskService = new CoreTaskService(app);
+    for (int i = 0; i < TASKS; ++i) {
+      CreateTaskArg taskArg = new CreateTaskArg();
+      taskArg.setCallbackUrl(new URL("https://test.com"));
+      taskArg.setRequirements(new AttributeGroupDto());
+      taskArg.setQueueRef(queueRef);
+      taskService.create(taskArg, routerRef);
+    }
+    Date now = new Date();
+    db.transactionManager.executeVoid(em -> em.createQuery(
+        "UPDATE Task t SET t.expirationDate = :now").setParameter("now", now).executeUpdate());
+
+    List<Long> first = claim("a", now, 10);
+    List<Long> second = claim("b", now, TASKS);
+    assertEquals(10, first.size());
+    assertEquals(TASKS - 10, second.size());
+    assertTrue(Collections.disjoint(first, second));
+    // Claimed already, e.g. a batch that failed, until the claims get old
+    assertTrue(claim("a", now, TASKS).isEmpty());
+
+    db.transactionManager.executeVoid(em -> db.task.releaseExpirationClaims(em, "a", first));
+    assertEquals(new HashSet<>(first), new HashSet<>(claim("b", now, TASKS)));
+  }
+
+  private List<Long> claim(String nodeId, Date now, int maxResults) throws Exception {
+    return db.transactionManager.execute(em -> db.task.claimWaitingExpired(em, nodeId, now,
+        new Date(now.getTime() - 60000), null, maxResults));
+  }
+
+  private void testExpiredTasksMoveToNextRoute(AppContext app) throws Exception {
+    CreateRouterArg routerArg = new CreateRouterArg();
+    routerArg.setName("timeouts");
+    String routerRef = new CoreRouterService(app).create(routerArg).getRef();
+
+    CoreQueueService queueService = new CoreQueueService(app);
+    String firstQueue = queueService.create(queueArg(), routerRef).getRef();
+    String secondQueue = queueService.create(queueArg(), routerRef).getRef();
+    String thirdQueue = queueService.create(queueArg(), routerRef).getRef();
+
+    // Handling a timeout twice would move the task on to the third queue
+    RuleDto rule = new RuleDto();
+    rule.setTag("timeouts");
+    rule.setPredicate("1==1");
+    rule.setRoutes(Arrays.asList(
+        route(firstQueue, 1L), route(secondQueue, 3600L), route(thirdQueue, 0L)));
+    CreatePlanArg planArg = new CreatePlanArg();
+    planArg.setRules(Arrays.asList(rule));
+    planArg.setDefaultRoute(route(thirdQueue, 0L));
+    String planRef = new CorePlanService(app).create(planArg, routerRef).getRef();
+
+    CoreTaskService taskService = new CoreTaskService(app);
+    for (int i = 0; i < TASKS; ++i) {
+      CreateTaskArg taskArg = new CreateTaskArg();
+      taskArg.setCallbackUrl(new URL("https://test.com"));
+      taskArg.setRequirements(new AttributeGroupDto());
+      taskArg.setPlanRef(planRef);
+      taskService.create(taskArg, routerRef);
+    }
+
+    long deadline = System.currentTimeMillis() + 10000;
+    while (countTasksIn(secondQueue) < TASKS && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100);
+    }
+
+    assertEquals(TASKS, countTasksIn(secondQueue));
+    assertEquals(0, countTasksIn(firstQueue));
+    assertEquals(0, countTasksIn(thirdQueue));
+  }
+
+  private AppContext startDispatcher(CoreConfiguration configuration) {
+    TaskDispatcher taskDispatcher = new TaskDispatcher(db, mappers, configuration, null);
+    taskDispatchers.add(taskDispatcher);
+    return new AppContext(db, new CommsRouterEvaluatorFactory(), taskDispatcher, mappers,
+        configuration);
+  }
+
+  private static CoreConfiguration pollEverySecond() {
+    return TestBase.configuration(
+        Collections.singletonMap("getDispatcherExpirationPollSeconds", 1));
+  }
+
+  private long countTasksIn(String queueRef) throws Exception {
+    return db.transactionManager.execute(em -> em.createQuery(
+        "SELECT COUNT(t) FROM Task t WHERE t.queue.ref = :ref", Long.class)
+        .setParameter("ref", queueRef)
+        .getSingleResult());
+  }
+
+  private static CreateQueueArg queueArg() {
+    CreateQueueArg queueArg = new CreateQueueArg();
+    queueArg.setPredicate("1==1");
+    return queueArg;
+  }
+
+  private static RouteDto route(String queueRef, Long timeout) {
+    RouteDto route = new RouteDto();
+    route.setQueueRef(queueRef);
+    route.setTimeout(timeout);
+    return route;
+  }
+
+}
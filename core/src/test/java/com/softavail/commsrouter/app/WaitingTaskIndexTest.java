@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.app;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Optional;
+
+public class WaitingTaskIndexTest {
+
+  @Test
+  public void testOrderByPriorityThenId() {
+    WaitingTaskIndex index = new WaitingTaskIndex();
+    index.add(1L, 10L, 0L);
+    index.add(1L, 11L, 5L);
+    index.add(1L, 12L, 5L);
+    index.add(2L, 9L, 100L);
+
+    assertEquals(Optional.of(11L), index.peek(1L));
+    index.remove(11L);
+    assertEquals(Optional.of(12L), index.peek(1L));
+    index.remove(12L);
+    assertEquals(Optional.of(10L), index.peek(1L));
+    index.remove(10L);
+    assertEquals(Optional.empty(), index.peek(1L));
+    assertEquals(Optional.of(9L), index.peek(2L));
+  }
+
+  @Test
+  public void testAddMovesTask() {
+    WaitingTaskIndex index = new WaitingTaskIndex();
+    index.add(1L, 10L, 0L);
+    index.add(2L, 10L, 3L);
+
+    assertEquals(0, index.size(1L));
+    assertEquals(1, index.size(2L));
+    assertEquals(1, index.size());
+  }
+
+  @Test
+  public void testConditionalRemove() {
+    WaitingTaskIndex index = new WaitingTaskIndex();
+    index.add(2L, 10L, 0L);
+
+    assertFalse(index.remove(10L, 1L));
+    assertEquals(Optional.of(10L), index.peek(2L));
+    assertTrue(index.remove(10L, 2L));
+    assertEquals(0, index.size());
+  }
+
+  @Test
+  public void testPeekSkipsMatchedTasks() {
+    WaitingTaskIndex index = new WaitingTaskIndex();
+    index.add(1L, 10L, 0L);
+    index.add(1L, 11L, 5L);
+    index.add(1L, 12L, 0L);
+
+    assertEquals(Optional.of(10L), index.peek(1L, new HashSet<>(Arrays.asList(11L))));
+    assertEquals(Optional.empty(), index.peek(1L, new HashSet<>(Arrays.asList(10L, 11L, 12L))));
+    assertEquals(3, index.size(1L));
+  }
+
+}
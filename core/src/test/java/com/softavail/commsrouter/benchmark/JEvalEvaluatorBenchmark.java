@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.benchmark;
+
+import com.softavail.commsrouter.domain.AttributeGroup;
+import com.softavail.commsrouter.eval.CompiledJEvalExpression;
+import com.softavail.commsrouter.eval.ExpressionEvaluator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of evaluating a queue predicate against the capabilities of an agent, substituting the
+ * variables and parsing the text with JEval versus running the {@link CompiledJEvalExpression}.
+ *
+ * <p>Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.softavail.commsrouter.benchmark.JEvalEvaluatorBenchmark} from core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JEvalEvaluatorBenchmark {
+
+  @Param({
+      "#{language} == 'en'",
+      "(#{language} == 'de' || #{language} == 'en') && #{skill} >= 5 && #{region} != 'apac'",
+      "#{vip} == true || (HAS(#{languages}, 'es') && !HAS(#{products}, 'legacy') && #{tier} < 3)"
+  })
+  public String expression;
+
+  private final AttributeGroup agent = new AttributeGroup();
+  private final ExpressionEvaluator evaluator = new ExpressionEvaluator();
+  private CompiledJEvalExpression compiled;
+
+  @Setup
+  public void setUp() {
+    // A typical agent: a dozen scalar capabilities and a few multi-valued ones
+    agent.getAttributes().clear();
+    agent.add("language", "en");
+    agent.add("region", "emea");
+    agent.add("department", "support");
+    agent.add("team", "blue");
+    agent.add("site", "sofia");
+    agent.add("skill", 7d);
+    agent.add("tier", 2d);
+    agent.add("experience", 4.5);
+    agent.add("maxTasks", 3d);
+    agent.add("vip", false);
+    agent.add("remote", true);
+    agent.add("trainee", false);
+    for (String language : new String[]{"en", "es", "pt", "bg"}) {
+      agent.addArrayItem("languages", language);
+    }
+    for (String product : new String[]{"billing", "mobile", "broadband", "tv", "cloud"}) {
+      agent.addArrayItem("products", product);
+    }
+    for (double shift : new double[]{1, 2, 3}) {
+      agent.addArrayItem("shifts", shift);
+    }
+
+    evaluator.init(expression);
+    compiled = CompiledJEvalExpression.compile(expression);
+  }
+
+  @Benchmark
+  public boolean jeval() {
+    return evaluator.evaluate(agent);
+  }
+
+  @Benchmark
+  public Boolean compiled() {
+    return compiled.evaluate(agent);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(JEvalEvaluatorBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.benchmark;
+
+import com.softavail.commsrouter.app.QueueProcessor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of {@link QueueProcessor#process()} when many threads signal many queues, the hot path
+ * of every task create and agent ready event. The consume work itself is not run, so the numbers
+ * show the cost of the processor lookup and the state transition only.
+ *
+ * <p>Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.softavail.commsrouter.benchmark.QueueProcessorBenchmark} from core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueProcessorBenchmark {
+
+  @Param({"1", "100", "10000"})
+  public int queues;
+
+  private final ConcurrentMap<Long, QueueProcessor> processors = new ConcurrentHashMap<>();
+
+  @Setup
+  public void setUp() {
+    processors.clear();
+  }
+
+  @Benchmark
+  public boolean process() {
+    Long queueId = (long) ThreadLocalRandom.current().nextInt(queues);
+    QueueProcessor processor = processors.computeIfAbsent(queueId, key ->
+        new QueueProcessor.Builder()
+            .setRouterId(1L)
+            .setQueueId(key)
+            .setDispatchExecutor(work -> {
+            })
+            .build());
+    return processor.process();
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    for (int threads : new int[]{1, 4, 16}) {
+      Options options = new OptionsBuilder()
+          .include(QueueProcessorBenchmark.class.getSimpleName())
+          .threads(threads)
+          .build();
+      new Runner(options).run();
+    }
+  }
+
+}
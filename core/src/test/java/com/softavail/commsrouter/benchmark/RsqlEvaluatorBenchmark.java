@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.benchmark;
+
+import com.softavail.commsrouter.api.exception.ExpressionException;
+import com.softavail.commsrouter.domain.AttributeGroup;
+import com.softavail.commsrouter.eval.CompileRsqlVisitor;
+import com.softavail.commsrouter.eval.EvalRsqlVisitor;
+import com.softavail.commsrouter.eval.RsqlPredicate;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.ast.Node;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of evaluating a queue predicate against the capabilities of an agent, walking the parsed
+ * tree with {@link EvalRsqlVisitor} versus running the compiled {@link RsqlPredicate}.
+ *
+ * <p>Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.softavail.commsrouter.benchmark.RsqlEvaluatorBenchmark} from core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RsqlEvaluatorBenchmark {
+
+  @Param({
+      "language==en",
+      "language=in=(de,fr,en);skill>=5;region!=apac",
+      "vip==true,(languages=in=(es,pt);products=out=(legacy,beta);tier<3)"
+  })
+  public String expression;
+
+  private final AttributeGroup agent = new AttributeGroup();
+  private final EvalRsqlVisitor visitor = new EvalRsqlVisitor();
+  private Node rootNode;
+  private RsqlPredicate predicate;
+
+  @Setup
+  public void setUp() throws ExpressionException {
+    // A typical agent: a dozen scalar capabilities and a few multi-valued ones
+    agent.getAttributes().clear();
+    agent.add("language", "en");
+    agent.add("region", "emea");
+    agent.add("department", "support");
+    agent.add("team", "blue");
+    agent.add("site", "sofia");
+    agent.add("skill", 7d);
+    agent.add("tier", 2d);
+    agent.add("experience", 4.5);
+    agent.add("maxTasks", 3d);
+    agent.add("vip", false);
+    agent.add("remote", true);
+    agent.add("trainee", false);
+    for (String language : new String[]{"en", "es", "pt", "bg"}) {
+      agent.addArrayItem("languages", language);
+    }
+    for (String product : new String[]{"billing", "mobile", "broadband", "tv", "cloud"}) {
+      agent.addArrayItem("products", product);
+    }
+    for (double shift : new double[]{1, 2, 3}) {
+      agent.addArrayItem("shifts", shift);
+    }
+
+    rootNode = new RSQLParser().parse(expression);
+    predicate = new CompileRsqlVisitor().compile(rootNode);
+  }
+
+  @Benchmark
+  public boolean visitor() {
+    return rootNode.accept(visitor, agent);
+  }
+
+  @Benchmark
+  public boolean compiled() throws ExpressionException {
+    return predicate.test(agent);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(RsqlEvaluatorBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
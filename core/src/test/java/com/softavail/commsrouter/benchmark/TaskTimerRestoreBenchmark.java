@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.benchmark;
+
+import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.app.TaskDispatcher;
+import com.softavail.commsrouter.domain.Queue;
+import com.softavail.commsrouter.domain.Router;
+import com.softavail.commsrouter.domain.RouterConfig;
+import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.util.TimingWheel;
+import org.hibernate.Session;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.sql.PreparedStatement;
+import java.sql.Timestamp;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup restore of the expiration timers of a large waiting backlog on H2, from the DB into the
+ * timing wheel.
+ *
+ * <p>Run with {@code mvn test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.softavail.commsrouter.benchmark.TaskTimerRestoreBenchmark} from core.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class TaskTimerRestoreBenchmark {
+
+  private static final int INSERT_BATCH_SIZE = 10000;
+
+  @Param({"100000", "1000000"})
+  public int tasks;
+
+  private JpaDbFacade db;
+
+  @Setup(Level.Trial)
+  public void setUp() throws CommsRouterException {
+    db = new JpaDbFacade("mnf-pu-test");
+    Long[] ids = db.transactionManager.execute(em -> {
+      Router router = new Router();
+      router.setRef("restore-router");
+      RouterConfig config = new RouterConfig();
+      config.setRouter(router);
+      router.setConfig(config);
+      em.persist(router);
+      em.persist(config);
+      Queue queue = new Queue();
+      queue.setRef("restore-queue");
+      queue.setRouter(router);
+      queue.setPredicate("true");
+      em.persist(queue);
+      em.flush();
+      return new Long[]{router.getId(), queue.getId()};
+    });
+
+    long now = System.currentTimeMillis();
+    db.transactionManager.executeVoid(em -> em.unwrap(Session.class).doWork(connection -> {
+      try (PreparedStatement insert = connection.prepareStatement("INSERT INTO task "
+          + "(id, ref, version, router_id, queue_id, state, priority, timeout, expiration_date) "
+          + "VALUES (?, ?, 1, ?, ?, 'waiting', 0, 3600, ?)")) {
+        for (int i = 1; i <= tasks; ++i) {
+          insert.setLong(1, i);
+          insert.setString(2, "task-" + i);
+          insert.setLong(3, ids[0]);
+          insert.setLong(4, ids[1]);
+          // Spread over the next hour, so the timers land on several wheel levels
+          insert.setTimestamp(5, new Timestamp(now + (i * 7919L) % 3600000L));
+          insert.addBatch();
+          if (i % INSERT_BATCH_SIZE == 0) {
+            insert.executeBatch();
+          }
+        }
+        insert.executeBatch();
+      }
+    }));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    db.close();
+  }
+
+  @Benchmark
+  public int restore() throws CommsRouterException {
+    TimingWheel<Long> timers = new TimingWheel<>(100, 512, System.currentTimeMillis());
+    return TaskDispatcher.restoreTaskTimers(db, timers);
+  }
+
+  public static void main(String[] args) throws RunnerException {
+    Options options = new OptionsBuilder()
+        .include(TaskTimerRestoreBenchmark.class.getSimpleName())
+        .build();
+    new Runner(options).run();
+  }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.domain;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+
+public class AttributeIndexTest {
+
+  @Test
+  public void testGroupsByName() {
+    AttributeGroup group = new AttributeGroup();
+    group.add("language", "en");
+    group.addArrayItem("prices", 20D);
+    group.add("vip", true);
+    group.addArrayItem("prices", 30D);
+
+    AttributeIndex index = group.getIndex();
+    assertEquals(Arrays.asList("language", "prices", "vip"),
+        index.values().stream().map(AttributeIndex.Values::getName).collect(Collectors.toList()));
+    assertNull(index.get("missing"));
+
+    AttributeIndex.Values prices = index.get("prices");
+    assertEquals(Attribute.Type.DOUBLE, prices.getType());
+    assertEquals(Arrays.asList(20D, 30D), prices.getValues());
+    assertEquals(30D, prices.getDouble(1), 0);
+    assertTrue(prices.contains(30D));
+    assertFalse(prices.contains(40D));
+    assertFalse(prices.contains("30.0"));
+    assertTrue(prices.containsAny(Arrays.asList(1D, 20D)));
+
+    assertTrue(index.get("vip").getBoolean(0));
+    assertEquals("en", index.get("language").getString(0));
+    assertEquals(2, group.getAttributes("prices").size());
+    assertTrue(group.getAttributes("missing").isEmpty());
+  }
+
+  @Test
+  public void testMixedTypes() {
+    AttributeGroup group = new AttributeGroup();
+    group.addArrayItem("mixed", "a");
+    group.addArrayItem("mixed", 1D);
+
+    AttributeIndex.Values mixed = group.getIndex().get("mixed");
+    assertNull(mixed.getType());
+    assertTrue(mixed.contains("a"));
+    assertTrue(mixed.contains(1D));
+    assertFalse(mixed.contains(true));
+  }
+
+  @Test
+  public void testInvalidation() {
+    AttributeGroup group = new AttributeGroup();
+    group.add("language", "en");
+    AttributeIndex index = group.getIndex();
+    assertSame(index, group.getIndex());
+
+    group.add("color", "red");
+    assertNotSame(index, group.getIndex());
+    assertEquals("red", group.getFirstAttribute("color").getStringValue());
+
+    group.getAttributes().remove(1);
+    assertNull(group.getIndex().get("color"));
+
+    group.setAttributes(new ArrayList<>());
+    assertEquals(0, group.getIndex().size());
+  }
+
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.eval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.api.exception.ExpressionException;
+import com.softavail.commsrouter.domain.AttributeGroup;
+import cz.jirutka.rsql.parser.RSQLParser;
+import cz.jirutka.rsql.parser.ast.Node;
+import org.junit.Test;
+
+/**
+ * The compiled predicates give the same results and fail the same way as {@link EvalRsqlVisitor}.
+ */
+public class CompileRsqlVisitorTest {
+
+  private static final String[] EXPRESSIONS = {
+      "language==en", "language==bg", "language!=en", "language!=bg", "missing==en",
+      "missing!=en", "languages==es", "languages!=es", "languages==bg",
+      "price==30", "price==30.0", "price!=30", "prices==50", "price==abc",
+      "price>10", "price>=30", "price<30", "price<=30", "price=gt=abc", "color>blue",
+      "color<=red", "boolTrue>false", "missing>1", "languages>en",
+      "boolTrue==true", "boolTrue==TRUE", "boolFalse==true", "boolFalse!=yes",
+      "language=in=(bg,en)", "language=out=(bg,en)", "languages=in=(bg,fr)",
+      "languages=out=(bg,de)", "prices=in=(10,20)", "prices=in=(1,abc)", "price=out=(1,2)",
+      "missing=in=(1,2)", "missing=out=(1,2)", "boolTrue=in=(false,true)",
+      "language==en;price=in=(20,30,40);price=gt=10;boolTrue==true",
+      "language==bg,price<100;boolFalse==false",
+      "language=in=(en,fr,es);prices==30,color==blue",
+      "language==bg;price==abc", "language==en,price==abc", "(missing>1,language==en)",
+  };
+
+  private final AttributeGroup attributeGroup = new AttributeGroup();
+
+  public CompileRsqlVisitorTest() {
+    attributeGroup.add("language", "en");
+    attributeGroup.add("color", "red");
+    attributeGroup.add("price", 30d);
+    attributeGroup.add("boolTrue", true);
+    attributeGroup.add("boolFalse", false);
+    attributeGroup.addArrayItem("languages", "en");
+    attributeGroup.addArrayItem("languages", "es");
+    attributeGroup.addArrayItem("languages", "fr");
+    attributeGroup.addArrayItem("prices", 20D);
+    attributeGroup.addArrayItem("prices", 30D);
+    attributeGroup.addArrayItem("prices", 50D);
+  }
+
+  @Test
+  public void testSameAsVisitor() throws Exception {
+    for (String expression : EXPRESSIONS) {
+      Node rootNode = new RSQLParser().parse(expression);
+      RsqlPredicate predicate = new CompileRsqlVisitor().compile(rootNode);
+      assertEquals(expression, visit(rootNode), test(predicate));
+    }
+  }
+
+  @Test
+  public void testMixedTypes() throws Exception {
+    AttributeGroup mixed = new AttributeGroup();
+    mixed.addArrayItem("tags", "1");
+    mixed.addArrayItem("tags", 1d);
+
+    RsqlPredicate predicate = new CompileRsqlVisitor().compile(new RSQLParser().parse("tags==1"));
+    assertTrue(predicate.test(mixed));
+    predicate = new CompileRsqlVisitor().compile(new RSQLParser().parse("tags=in=(2,1.0)"));
+    assertFalse(predicate.test(mixed));
+  }
+
+  private String visit(Node rootNode) {
+    try {
+      return String.valueOf(rootNode.accept(new EvalRsqlVisitor(), attributeGroup));
+    } catch (RuntimeException ex) {
+      return "error: " + ex.getMessage();
+    }
+  }
+
+  private String test(RsqlPredicate predicate) {
+    try {
+      return String.valueOf(predicate.test(attributeGroup));
+    } catch (ExpressionException ex) {
+      return "error: " + ex.getMessage();
+    }
+  }
+
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.eval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.softavail.commsrouter.domain.AttributeGroup;
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * The native evaluation gives the results of JEval wherever it does not leave the expression or
+ * the attributes to JEval.
+ */
+public class CompiledJEvalExpressionTest {
+
+  // The expressions of JEvalEvaluatorTest and the corners of the JEval rules
+  private static final String[] EXPRESSIONS = {
+      "#{language} == 'en' && IN(50, #{prices}) && #{price} > 10 && #{boolTrue} == true",
+      "#{language} == 'en' && !#{boolFalse} && #{price} > 100",
+      "(IN('fr',#{languages}) || #{color}=='red') && HAS(#{prices}, 30)",
+      "(IN('de',#{languages}) || #{color}=='red') && HAS(#{prices}, 90)",
+      "CONTAINS(#{nickname}, 'Sto') && HAS(#{languages}, 'fr') && IN('en', #{languages}) "
+          + "&& #{color}=='red'",
+      "CONTAINS(#{nickname}, 'Sto') && HAS(#{languages}, 'de') && #{color}=='red'",
+      "1==1", "2==3", "HAS(#{language}, 'en')", "CONTAINS('Sto')", "CONTAINS(#{nickname}, #Stone)",
+      "HAS(100)", "HAS([false, 'true'], #{true}) && #{'true'}", "HAS(#{departments}, 'sales')",
+      "HAS(#{languages}, 100)", "IN(#{language}, 'en]')", "IN(200, #{languages})", "IN(50)",
+      "IN(#{false}, [true, 'true']) && #{'false'}", "IN('fr', ['en','fr'])",
+      "#{price}", "#{price} && true", "#{language}", "#{missing} == 1 || true", "!#{price}",
+      "!3 == 0", "3 == 3 == 1", "3 > 2 == 2", "1 == 2 > 1", "1 || 1 && 0", "0 && 1 || 1",
+      "2 || 0", "2 && 1", "!0.5", "!!1", "!'a'", "'a' == 1", "'a!' > 'a'", "'ab' > 'a'",
+      "#{languages} == #{languages}", "#{prices} > 'a'", "#{price} == '42'", "TRUE", "False",
+      "#{TRUE}", "#{True}", "HAS(#{prices}, '30')", "HAS(#{prices}, 30.0)", "HAS(#{prices}, 3e1)",
+      "HAS(#{prices}, #{price})", "HAS(#{languages}, en)", "HAS(#{price}, 42)",
+      "HAS(#{price}, '42.0')", "HAS(#{boolTrue}, 1)", "HAS(#{boolFalse}, 'false')",
+      "HAS(#{boolTrue}, true)", "IN(#{language}, #{languages})", "IN('20.0', #{prices})",
+      "CONTAINS(#{price}, 42)", "CONTAINS(#{price}, '.0')", "CONTAINS(#{languages}, 'es')",
+      "CONTAINS(#{prices}, '20.0')", "CONTAINS('abc', '')", "has(#{prices}, 30)",
+      "HAS (#{prices}, 30)", "1 + 1 == 2", "- 1", "01 == 1", "1. == 1", "(1 == 1", "1 ==",
+  };
+
+  private static final String[] NATIVE = {
+      EXPRESSIONS[0], EXPRESSIONS[1], EXPRESSIONS[2], EXPRESSIONS[3], EXPRESSIONS[4],
+      EXPRESSIONS[5], "1==1", "HAS(#{language}, 'en')", "!3 == 0", "#{prices} > 'a'",
+  };
+
+  @Test
+  public void testSameAsJEval() {
+    AttributeGroup attributes = createAttributes();
+    int compiled = 0;
+    for (String expression : EXPRESSIONS) {
+      compiled += check(expression, attributes) ? 1 : 0;
+    }
+    // The rest uses constructs left to JEval
+    assertTrue(compiled > EXPRESSIONS.length / 2);
+  }
+
+  @Test
+  public void testCompiled() {
+    for (String expression : NATIVE) {
+      assertNotNull(expression, CompiledJEvalExpression.compile(expression));
+    }
+    AttributeGroup attributes = createAttributes();
+    for (String expression : NATIVE) {
+      assertNotNull(expression, CompiledJEvalExpression.compile(expression).evaluate(attributes));
+    }
+  }
+
+  @Test
+  public void testUnsafeValuesLeftToJEval() {
+    CompiledJEvalExpression expression = CompiledJEvalExpression.compile("#{a} == 'x'");
+    for (String value : new String[]{"x'y", "[x]", "x;y", " x", "true", "12", "-x", "NaN", "x,y"}) {
+      AttributeGroup attributes = new AttributeGroup();
+      attributes.add("a", value);
+      assertNull(value, expression.evaluate(attributes));
+    }
+    AttributeGroup attributes = new AttributeGroup();
+    attributes.add("a", -1d);
+    assertNull(expression.evaluate(attributes));
+    attributes = new AttributeGroup();
+    attributes.add("a", "x");
+    attributes.addArrayItem("flags", true);
+    assertNull(expression.evaluate(attributes));
+  }
+
+  @Test
+  public void testRandomSameAsJEval() {
+    Random random = new Random(20180601L);
+    int evaluated = 0;
+    for (int i = 0; i < 20000; ++i) {
+      String expression = randomExpression(random, 3);
+      if (check(expression, randomAttributes(random))) {
+        ++evaluated;
+      }
+    }
+    // Most of the generated cases are in the dialect
+    assertTrue(evaluated > 5000);
+  }
+
+  private static boolean check(String expression, AttributeGroup attributes) {
+    CompiledJEvalExpression compiled = CompiledJEvalExpression.compile(expression);
+    if (compiled == null) {
+      return false;
+    }
+    Boolean result = compiled.evaluate(attributes);
+    if (result == null) {
+      return false;
+    }
+    ExpressionEvaluator evaluator = new ExpressionEvaluator();
+    evaluator.init(expression);
+    assertEquals(expression + " " + attributes.getAttributes(), evaluator.evaluate(attributes),
+        result);
+    return true;
+  }
+
+  private static AttributeGroup createAttributes() {
+    AttributeGroup attributes = new AttributeGroup();
+    attributes.add("language", "en");
+    attributes.add("nickname", "The Stone");
+    attributes.add("color", "red");
+    attributes.add("price", 42D);
+    attributes.add("boolTrue", true);
+    attributes.add("boolFalse", false);
+    attributes.add("departments", "sales support");
+    attributes.addArrayItem("languages", "en");
+    attributes.addArrayItem("languages", "es");
+    attributes.addArrayItem("languages", "fr");
+    attributes.addArrayItem("prices", 20D);
+    attributes.addArrayItem("prices", 30D);
+    attributes.addArrayItem("prices", 50D);
+    return attributes;
+  }
+
+  private static final String[] NAMES = {"a", "b", "c", "arr", "nums", "missing", "true", "FALSE"};
+
+  private static String randomString(Random random) {
+    String alphabet = random.nextInt(4) == 0 ? "abc019 _.-@!&|<>=#'(),;[]{}" : "abcXYZ019 _.-@";
+    StringBuilder value = new StringBuilder();
+    for (int i = random.nextInt(5); i > 0; --i) {
+      value.append(alphabet.charAt(random.nextInt(alphabet.length())));
+    }
+    return value.toString();
+  }
+
+  private static double randomDouble(Random random) {
+    double[] values = {0.0, -0.0, 1.0, -2.0, 20.0, 30.0, 0.0001, 1e8, 12.25};
+    return values[random.nextInt(values.length)];
+  }
+
+  private static AttributeGroup randomAttributes(Random random) {
+    AttributeGroup attributes = new AttributeGroup();
+    for (int i = random.nextInt(7); i > 0; --i) {
+      String name = NAMES[random.nextInt(NAMES.length - 3)];
+      switch (random.nextInt(6)) {
+        case 0:
+        case 1:
+          attributes.add(name, randomString(random));
+          break;
+        case 2:
+          attributes.add(name, randomDouble(random));
+          break;
+        case 3:
+          attributes.add(name, random.nextBoolean());
+          break;
+        case 4:
+          attributes.addArrayItem(name, randomString(random));
+          break;
+        default:
+          attributes.addArrayItem(name, randomDouble(random));
+          break;
+      }
+    }
+    return attributes;
+  }
+
+  private static String randomOperand(Random random, boolean argument) {
+    switch (random.nextInt(argument ? 4 : 5)) {
+      case 0:
+      case 1:
+        return "#{" + NAMES[random.nextInt(NAMES.length)] + "}";
+      case 2:
+        return "'" + randomString(random) + "'";
+      case 3:
+        String[] numbers = {"0", "1", "2", "30", "1.5", "0.0001", "01", "20.0", "100000000"};
+        return numbers[random.nextInt(numbers.length)];
+      default:
+        String[] booleans = {"true", "false", "TRUE"};
+        return booleans[random.nextInt(booleans.length)];
+    }
+  }
+
+  private static String randomExpression(Random random, int depth) {
+    switch (random.nextInt(depth <= 0 ? 3 : 8)) {
+      case 0:
+        return randomOperand(random, false);
+      case 1:
+        String[] functions = {"HAS", "IN", "CONTAINS"};
+        return functions[random.nextInt(functions.length)] + "(" + randomOperand(random, true)
+            + ", " + randomOperand(random, true) + ")";
+      case 2:
+        return "HAS(#{" + NAMES[random.nextInt(5)] + "}," + randomOperand(random, true) + ")";
+      case 3:
+        return "!" + (random.nextBoolean()
+            ? "(" + randomExpression(random, depth - 1) + ")" : randomOperand(random, false));
+      case 4:
+        return "(" + randomExpression(random, depth - 1) + ")";
+      default:
+        String[] operators = {"&&", "||", "==", "!=", "<", "<=", ">", ">=", "&&", "||"};
+        return randomExpression(random, depth - 1) + " "
+            + operators[random.nextInt(operators.length)] + " "
+            + randomExpression(random, depth - 1);
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.eval;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.codahale.metrics.MetricRegistry;
+import com.softavail.commsrouter.domain.AttributeGroup;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class EvaluatorCacheTest {
+
+  private MetricRegistry metrics;
+  private CommsRouterEvaluatorFactory factory;
+
+  @Before
+  public void setUp() {
+    metrics = new MetricRegistry();
+    factory = new CommsRouterEvaluatorFactory();
+    factory.setRsqlValidator(new RsqlDummyValidator());
+    factory.setCache(new EvaluatorCache(2, metrics));
+  }
+
+  @Test
+  public void testSharedPerRouterAndExpression() throws Exception {
+    CommsRouterEvaluator evaluator = factory.provide("language==en", "router");
+    assertSame(evaluator, factory.provide("language==en", "router"));
+    assertSame(evaluator, factory.provide(null, null).changeExpression("language==en", "router"));
+    assertNotSame(evaluator, factory.provide("language==en", "other"));
+
+    assertEquals(2, metrics.meter("com.softavail.commsrouter.eval.EvaluatorCache.hits")
+        .getCount());
+    assertEquals(3, metrics.meter("com.softavail.commsrouter.eval.EvaluatorCache.misses")
+        .getCount());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedDropped() throws Exception {
+    CommsRouterEvaluator first = factory.provide("a==1", "router");
+    CommsRouterEvaluator second = factory.provide("b==1", "router");
+    assertSame(first, factory.provide("a==1", "router"));
+    factory.provide("c==1", "router");
+
+    assertSame(first, factory.provide("a==1", "router"));
+    assertNotSame(second, factory.provide("b==1", "router"));
+  }
+
+  @Test
+  public void testNewValidatorClears() throws Exception {
+    CommsRouterEvaluator evaluator = factory.provide("a==1", "router");
+    factory.setRsqlValidator(new RsqlDummyValidator());
+    assertNotSame(evaluator, factory.provide("a==1", "router"));
+  }
+
+  @Test
+  public void testJEvalSharedBetweenThreads() throws Exception {
+    CommsRouterEvaluator evaluator = factory.provide("#{language}=='en' && #{price}>10", "router");
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    try {
+      List<Future<Boolean>> results = new ArrayList<>();
+      for (int i = 0; i < 2000; ++i) {
+        boolean match = i % 2 == 0;
+        results.add(executor.submit(() -> {
+          AttributeGroup attributes = new AttributeGroup();
+          attributes.add("language", match ? "en" : "fr");
+          attributes.add("price", match ? 20d : 5d);
+          return evaluator.evaluate(attributes) == match;
+        }));
+      }
+      for (Future<Boolean> result : results) {
+        assertTrue(result.get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+}
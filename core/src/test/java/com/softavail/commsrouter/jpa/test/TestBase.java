@@ -18,9 +18,11 @@ import com.softavail.commsrouter.api.dto.arg.UpdateTaskContext;
 import com.softavail.commsrouter.api.dto.model.AgentState;
 import com.softavail.commsrouter.api.dto.model.RouteDto;
 import com.softavail.commsrouter.api.dto.model.RuleDto;
+import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
 import com.softavail.commsrouter.api.dto.model.TaskState;
 import com.softavail.commsrouter.api.dto.model.attribute.AttributeGroupDto;
 import com.softavail.commsrouter.api.exception.CommsRouterException;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
 import com.softavail.commsrouter.api.service.CoreAgentService;
 import com.softavail.commsrouter.api.service.CorePlanService;
 import com.softavail.commsrouter.api.service.CoreQueueService;
@@ -43,10 +45,15 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.BeforeClass;
 
+import java.lang.reflect.Proxy;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Function;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
@@ -83,62 +90,12 @@ public class TestBase {
   public static void setTestCoreQueueService() {
     CommsRouterEvaluatorFactory evf = new CommsRouterEvaluatorFactory();
     JpaDbFacade db = new JpaDbFacade( "mnf-pu-test");
-    TaskDispatcher td = new TaskDispatcher(db, null, new CoreConfiguration() {
-      @Override
-      public Integer getBackoffDelay() {
-        return CoreConfiguration.DEFAULT.getBackoffDelay();
-      }
-
-      @Override
-      public Integer getBackoffDelayMax() {
-        return CoreConfiguration.DEFAULT.getBackoffDelayMax();
-      }
-
-      @Override
-      public Integer getJitter() {
-        return CoreConfiguration.DEFAULT.getJitter();
-      }
-
-      @Override
-      public Integer getDispatcherThreadPoolSize() {
-        return 20;
-      }
-
-      @Override
-      public Integer getDispatcherThreadShutdownDelay() {
-        return CoreConfiguration.DEFAULT.getDispatcherThreadShutdownDelay();
-      }
-
-      @Override
-      public Integer getQueueProcessRetryDelay() {
-        return CoreConfiguration.DEFAULT.getQueueProcessRetryDelay();
-      }
-
-      @Override
-      public Long getQueueProcessorEvictionDelay() {
-        return CoreConfiguration.DEFAULT.getQueueProcessorEvictionDelay();
-      }
-
-      @Override
-      public Integer getJpaLockRetryCount() {
-        return CoreConfiguration.DEFAULT.getJpaLockRetryCount();
-      }
-
-      @Override
-      public Boolean getApiEnableExpressionSkillValidation() {
-        return false;
-      }
-
-      @Override
-      public Boolean getApiEnableAgentCapabilitiesValidation() {
-        return false;
-      }
-
-      @Override
-      public Boolean getApiEnableTaskRequirementsValidation() {
-        return false;
-      }
-    }, null);
+    Map<String, Object> overrides = new HashMap<>();
+    overrides.put("getDispatcherThreadPoolSize", 20);
+    overrides.put("getApiEnableExpressionSkillValidation", false);
+    overrides.put("getApiEnableAgentCapabilitiesValidation", false);
+    overrides.put("getApiEnableTaskRequirementsValidation", false);
+    TaskDispatcher td = new TaskDispatcher(db, null, configuration(overrides), null);
     EntityMappers enm = new EntityMappers();
     app = new AppContext(db, evf, td, enm, CoreConfiguration.DEFAULT);
     // Instantiating all of the services
@@ -157,6 +114,38 @@ public class TestBase {
     emf.close();
   }
 
+  /**
+   * The default configuration with some of its getters, by method name, returning other values.
+   * The map is read on every call, so it may still change until the dispatcher is created.
+   */
+  public static CoreConfiguration configuration(Map<String, ?> overrides) {
+    return (CoreConfiguration) Proxy.newProxyInstance(CoreConfiguration.class.getClassLoader(),
+        new Class<?>[]{CoreConfiguration.class}, (proxy, method, args) ->
+            overrides.containsKey(method.getName())
+                ? overrides.get(method.getName())
+                : method.invoke(CoreConfiguration.DEFAULT, args));
+  }
+
+  /**
+   * A handler for the asynchronous assignment callbacks of the dispatcher, answering each of them
+   * with the given delivery. The blocking callback is not used by the dispatcher.
+   */
+  public static TaskEventHandler asyncHandler(
+      Function<TaskAssignmentDto, CompletableFuture<Void>> delivery) {
+
+    return new TaskEventHandler() {
+      @Override
+      public void onTaskAssigned(TaskAssignmentDto taskAssignment) {
+        throw new UnsupportedOperationException();
+      }
+
+      @Override
+      public CompletableFuture<Void> onTaskAssignedAsync(TaskAssignmentDto taskAssignment) {
+        return delivery.apply(taskAssignment);
+      }
+    };
+  }
+
   // Creates and adds a new router object to the DB
   public static void createRouter(String name, String description, String ref) {
     em.getTransaction().begin();
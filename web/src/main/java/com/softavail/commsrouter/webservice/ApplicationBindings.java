@@ -29,6 +29,7 @@ import com.softavail.commsrouter.api.service.CoreRouterService;
 import com.softavail.commsrouter.api.service.CoreSkillService;
 import com.softavail.commsrouter.api.service.CoreTaskService;
 import com.softavail.commsrouter.app.AppContext;
+import com.softavail.commsrouter.app.TaskDispatcher;
 import com.softavail.commsrouter.providers.ClientFactory;
 import org.glassfish.hk2.utilities.binding.AbstractBinder;
 
@@ -77,6 +78,9 @@ public class ApplicationBindings extends AbstractBinder {
         .to(RouterService.class)
         .to(CoreRouterService.class);
 
+    bind(context.taskDispatcher)
+        .to(TaskDispatcher.class);
+
   }
 
 }
@@ -16,8 +16,7 @@
 
 package com.softavail.commsrouter.webservice;
 
-import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
-import com.softavail.commsrouter.api.exception.CallbackException;
+import com.codahale.metrics.JmxReporter;
 import com.softavail.commsrouter.app.AppContext;
 import com.softavail.commsrouter.app.TaskDispatcher;
 import com.softavail.commsrouter.domain.dto.mappers.EntityMappers;
@@ -26,8 +25,10 @@ import com.softavail.commsrouter.eval.RsqlDummyValidator;
 import com.softavail.commsrouter.eval.RsqlSkillValidator;
 import com.softavail.commsrouter.eval.RsqlValidator;
 import com.softavail.commsrouter.jpa.JpaDbFacade;
+import com.softavail.commsrouter.webservice.client.CallbackAsyncClient;
 import com.softavail.commsrouter.webservice.config.ConfigurationImpl;
 import com.softavail.commsrouter.webservice.config.ManifestConfigurationImpl;
+import com.softavail.commsrouter.webservice.providers.ObjectMapperContextResolver;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.glassfish.jersey.client.ClientConfig;
@@ -35,13 +36,8 @@ import org.glassfish.jersey.client.ClientProperties;
 import org.glassfish.jersey.logging.LoggingFeature;
 
 import javax.servlet.ServletContext;
-import javax.ws.rs.ProcessingException;
 import javax.ws.rs.client.Client;
 import javax.ws.rs.client.ClientBuilder;
-import javax.ws.rs.client.Entity;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
-import javax.ws.rs.core.Response.Status;
 
 /**
  * Created by @author mapuo on 16.10.17.
@@ -50,24 +46,34 @@ public class ApplicationContext {
 
   private static final Logger LOGGER = LogManager.getLogger(ApplicationContext.class);
 
+  private final CallbackAsyncClient callbackAsyncClient;
   private final Client client;
   private final AppContext coreContext;
   private final ConfigurationImpl configuration;
   private final ManifestConfigurationImpl manifest;
+  private final JmxReporter metricsReporter;
 
   public ApplicationContext(ServletContext servletContext) {
     configuration = new ConfigurationImpl(servletContext);
     LOGGER.debug("configuration: {}", configuration);
     manifest = new ManifestConfigurationImpl(servletContext);
     client = createClient();
+    callbackAsyncClient = new CallbackAsyncClient(configuration,
+        ObjectMapperContextResolver.getObjectMapper());
 
     JpaDbFacade db = new JpaDbFacade(configuration);
     CommsRouterEvaluatorFactory evaluatorFactory = new CommsRouterEvaluatorFactory();
     EntityMappers mappers = new EntityMappers();
-    TaskDispatcher taskDispatcher =
-        new TaskDispatcher(db, mappers, configuration, this::handleAssignment);
+    TaskDispatcher taskDispatcher = new TaskDispatcher(db, mappers, configuration,
+        new AssignmentCallbackHandler(client, callbackAsyncClient,
+            configuration.getClientFollowRedirects()));
     coreContext = new AppContext(db, evaluatorFactory, taskDispatcher, mappers, configuration);
     evaluatorFactory.setRsqlValidator(createRsqlValidator());
+    callbackAsyncClient.registerMetrics(taskDispatcher.getMetricRegistry());
+    metricsReporter = JmxReporter.forRegistry(taskDispatcher.getMetricRegistry())
+        .inDomain("comms-router")
+        .build();
+    metricsReporter.start();
   }
 
   public Client getClient() {
@@ -94,30 +100,10 @@ public class ApplicationContext {
     return ClientBuilder.newClient(config);
   }
 
-  private void handleAssignment(TaskAssignmentDto taskAssignment)
-      throws CallbackException {
-
-    try {
-      String callbackUrl = taskAssignment.getTask().getCallbackUrl();
-
-      Response response = client.target(callbackUrl)
-          .property(ClientProperties.FOLLOW_REDIRECTS, configuration.getClientFollowRedirects())
-          .request(MediaType.WILDCARD_TYPE)
-          .post(Entity.entity(taskAssignment, MediaType.APPLICATION_JSON_TYPE));
-
-      if (response.getStatus() == Status.SERVICE_UNAVAILABLE.getStatusCode()) {
-        // On 503 response we will try again
-        // TODO Retry-After header?!
-        throw new CallbackException();
-      }
-
-    } catch (ProcessingException e) {
-      throw new CallbackException();
-    }
-  }
-
   public void close() {
+    metricsReporter.stop();
     client.close();
+    callbackAsyncClient.close();
     coreContext.taskDispatcher.close();
     coreContext.db.close();
   }
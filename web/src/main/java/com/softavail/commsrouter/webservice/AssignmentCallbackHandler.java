@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.webservice;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.softavail.commsrouter.api.dto.model.TaskAssignmentDto;
+import com.softavail.commsrouter.api.exception.CallbackException;
+import com.softavail.commsrouter.api.interfaces.TaskEventHandler;
+import com.softavail.commsrouter.webservice.client.CallbackAsyncClient;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.entity.ContentType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.glassfish.jersey.client.ClientProperties;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import javax.ws.rs.ProcessingException;
+import javax.ws.rs.client.Client;
+import javax.ws.rs.client.Entity;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+/**
+ * POSTs the task assignments to the callback URL of the task. The async deliveries go out through
+ * the non-blocking {@link CallbackAsyncClient}: the dispatcher thread returns as soon as the
+ * request is queued, and no thread waits for the response.
+ *
+ * <p>Batched assignments go out as a JSON array in a single POST. The endpoint may answer with a
+ * JSON array of status codes, one per assignment in the order received: a 503 there has just that
+ * assignment retried. A 503 for the whole request has all of them retried.
+ */
+public class AssignmentCallbackHandler implements TaskEventHandler {
+
+  private static final Logger LOGGER = LogManager.getLogger(AssignmentCallbackHandler.class);
+
+  private static final TypeReference<List<Integer>> ITEM_STATUSES =
+      new TypeReference<List<Integer>>() {};
+
+  private final Client client;
+  private final CallbackAsyncClient asyncClient;
+  private final Boolean followRedirects;
+
+  public AssignmentCallbackHandler(Client client, CallbackAsyncClient asyncClient,
+      Boolean followRedirects) {
+
+    this.client = client;
+    this.asyncClient = asyncClient;
+    this.followRedirects = followRedirects;
+  }
+
+  @Override
+  public void onTaskAssigned(TaskAssignmentDto taskAssignment)
+      throws CallbackException {
+
+    try {
+      String callbackUrl = taskAssignment.getTask().getCallbackUrl();
+
+      Response response = client.target(callbackUrl)
+          .property(ClientProperties.FOLLOW_REDIRECTS, followRedirects)
+          .request(MediaType.WILDCARD_TYPE)
+          .post(Entity.entity(taskAssignment, MediaType.APPLICATION_JSON_TYPE));
+      response.close();
+
+      if (response.getStatus() == Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+        // On 503 response we will try again
+        // TODO Retry-After header?!
+        throw new CallbackException();
+      }
+
+    } catch (ProcessingException e) {
+      throw new CallbackException();
+    }
+  }
+
+  @Override
+  public CompletableFuture<Void> onTaskAssignedAsync(TaskAssignmentDto taskAssignment) {
+    CompletableFuture<Void> delivery = new CompletableFuture<>();
+
+    asyncClient.post(taskAssignment.getTask().getCallbackUrl(), taskAssignment)
+        .whenComplete((response, throwable) -> {
+          if (throwable != null) {
+            // The request did not get through: connection refused, timeout and alike
+            delivery.completeExceptionally(new CallbackException());
+          } else if (response.getStatusLine().getStatusCode()
+              == Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+            // On 503 response we will try again
+            delivery.completeExceptionally(new CallbackException());
+          } else {
+            delivery.complete(null);
+          }
+        });
+
+    return delivery;
+  }
+
+  @Override
+  public List<CompletableFuture<Void>> onTasksAssignedAsync(
+      List<TaskAssignmentDto> taskAssignments) {
+
+    List<CompletableFuture<Void>> deliveries = new ArrayList<>();
+    taskAssignments.forEach(ignored -> deliveries.add(new CompletableFuture<>()));
+    String callbackUrl = taskAssignments.get(0).getTask().getCallbackUrl();
+
+    asyncClient.post(callbackUrl, taskAssignments)
+        .whenComplete((response, throwable) -> {
+          if (throwable != null || response.getStatusLine().getStatusCode()
+              == Status.SERVICE_UNAVAILABLE.getStatusCode()) {
+            deliveries.forEach(delivery ->
+                delivery.completeExceptionally(new CallbackException()));
+            return;
+          }
+          List<Integer> statuses = readItemStatuses(response, callbackUrl);
+          for (int i = 0; i < deliveries.size(); ++i) {
+            if (statuses != null && i < statuses.size()
+                && Integer.valueOf(Status.SERVICE_UNAVAILABLE.getStatusCode())
+                    .equals(statuses.get(i))) {
+              deliveries.get(i).completeExceptionally(new CallbackException());
+            } else {
+              deliveries.get(i).complete(null);
+            }
+          }
+        });
+
+    return deliveries;
+  }
+
+  // The per assignment statuses, null if the endpoint acknowledged the request as a whole
+  private List<Integer> readItemStatuses(HttpResponse response, String callbackUrl) {
+    HttpEntity entity = response.getEntity();
+    if (entity == null || !ContentType.APPLICATION_JSON.getMimeType()
+        .equalsIgnoreCase(ContentType.getOrDefault(entity).getMimeType())) {
+      return null;
+    }
+    try (InputStream content = entity.getContent()) {
+      return asyncClient.getObjectMapper().readValue(content, ITEM_STATUSES);
+    } catch (IOException e) {
+      LOGGER.warn("Unexpected response to batched callback {}: {}", callbackUrl, e.getMessage());
+      return null;
+    }
+  }
+
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.webservice.client;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.softavail.commsrouter.webservice.config.Configuration;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.ManagedNHttpClientConnectionFactory;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.NHttpConnectionFactory;
+import org.apache.http.nio.conn.ManagedNHttpClientConnection;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.entity.NByteArrayEntity;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking HTTP client of the assignment callbacks. The requests are multiplexed over a few
+ * I/O threads, a request waiting for its response or for a free connection holds no thread. The
+ * keep-alive connections to the callback hosts are pooled, limited per host and in total, and
+ * closed once idle for too long. A pooled connection needs no check before reuse: the I/O reactor
+ * watches it while idle and drops it from the pool as soon as the host closes it.
+ *
+ * <p>The responses are handed over to a few worker threads, so whatever runs on completion, e.g.
+ * the abort check of a retry policy, never holds up the I/O threads.
+ *
+ * <p>Reports the requests sent ({@code requests}), the connections opened for them
+ * ({@code connections.opened}), the share of requests that went over a reused connection
+ * ({@code connections.reuse}) and the pool state ({@code connections.leased},
+ * {@code connections.available}, {@code connections.pending}).
+ */
+public class CallbackAsyncClient {
+
+  private static final Logger LOGGER = LogManager.getLogger(CallbackAsyncClient.class);
+
+  private final PoolingNHttpClientConnectionManager connectionManager;
+  private final CloseableHttpAsyncClient httpClient;
+  private final ScheduledThreadPoolExecutor workers;
+  private final RequestConfig requestConfig;
+  private final ObjectMapper objectMapper;
+  private final Meter requests = new Meter();
+  private final Meter openedConnections = new Meter();
+
+  /**
+   * The entities are serialized with the given mapper, the one of the API.
+   */
+  public CallbackAsyncClient(Configuration configuration, ObjectMapper objectMapper) {
+    this.objectMapper = objectMapper;
+    int ioThreads = Runtime.getRuntime().availableProcessors();
+    DefaultConnectingIOReactor ioReactor;
+    try {
+      ioReactor = new DefaultConnectingIOReactor(IOReactorConfig.custom()
+          .setIoThreadCount(ioThreads)
+          .setConnectTimeout(configuration.getClientConnectTimeout())
+          .setSoTimeout(configuration.getClientReadTimeout())
+          .build());
+    } catch (IOReactorException e) {
+      throw new RuntimeException("Can not start the callback I/O reactor!", e);
+    }
+    // Counts the connections opened, a request that does not open one reuses a pooled connection
+    NHttpConnectionFactory<ManagedNHttpClientConnection> connectionFactory =
+        (session, config) -> {
+          openedConnections.mark();
+          return ManagedNHttpClientConnectionFactory.INSTANCE.create(session, config);
+        };
+    connectionManager = new PoolingNHttpClientConnectionManager(ioReactor, connectionFactory,
+        RegistryBuilder.<SchemeIOSessionStrategy>create()
+            .register("http", NoopIOSessionStrategy.INSTANCE)
+            .register("https", SSLIOSessionStrategy.getDefaultStrategy())
+            .build(),
+        null, null, configuration.getClientPoolKeepAlive(), TimeUnit.SECONDS);
+    connectionManager.setMaxTotal(configuration.getClientPoolMaxTotal());
+    connectionManager.setDefaultMaxPerRoute(configuration.getClientPoolMaxPerHost());
+
+    requestConfig = RequestConfig.custom()
+        .setConnectTimeout(configuration.getClientConnectTimeout())
+        .setSocketTimeout(configuration.getClientReadTimeout())
+        .setConnectionRequestTimeout(configuration.getClientPoolCheckoutTimeout())
+        .setRedirectsEnabled(configuration.getClientFollowRedirects())
+        .build();
+
+    httpClient = HttpAsyncClients.custom()
+        .setConnectionManager(connectionManager)
+        .setDefaultRequestConfig(requestConfig)
+        .disableCookieManagement()
+        .build();
+    httpClient.start();
+
+    AtomicInteger counter = new AtomicInteger();
+    workers = new ScheduledThreadPoolExecutor(ioThreads,
+        runnable -> new Thread(runnable, "CallbackAsyncClient-" + counter.incrementAndGet()));
+    int idleTimeout = configuration.getClientPoolIdleTimeout();
+    workers.scheduleWithFixedDelay(() -> {
+      connectionManager.closeExpiredConnections();
+      connectionManager.closeIdleConnections(idleTimeout, TimeUnit.SECONDS);
+    }, idleTimeout, idleTimeout, TimeUnit.SECONDS);
+
+    LOGGER.info("Async callback client: {} I/O threads, {} connections, {} per host", ioThreads,
+        configuration.getClientPoolMaxTotal(), configuration.getClientPoolMaxPerHost());
+  }
+
+  /**
+   * POSTs the entity as JSON. The future fails if the request did not get through: connection
+   * refused, timeout and alike.
+   */
+  public CompletableFuture<HttpResponse> post(String url, Object entity) {
+    CompletableFuture<HttpResponse> response = new CompletableFuture<>();
+    HttpPost post;
+    try {
+      post = new HttpPost(url);
+      post.setEntity(new NByteArrayEntity(objectMapper.writeValueAsBytes(entity),
+          ContentType.APPLICATION_JSON));
+    } catch (IllegalArgumentException | JsonProcessingException e) {
+      response.completeExceptionally(e);
+      return response;
+    }
+    post.setHeader(HttpHeaders.ACCEPT, ContentType.WILDCARD.getMimeType());
+    requests.mark();
+    httpClient.execute(post, new FutureCallback<HttpResponse>() {
+      @Override
+      public void completed(HttpResponse result) {
+        complete(() -> response.complete(result));
+      }
+
+      @Override
+      public void failed(Exception ex) {
+        complete(() -> response.completeExceptionally(ex));
+      }
+
+      @Override
+      public void cancelled() {
+        complete(() -> response.completeExceptionally(new CancellationException()));
+      }
+    });
+    return response;
+  }
+
+  public ObjectMapper getObjectMapper() {
+    return objectMapper;
+  }
+
+  private void complete(Runnable completion) {
+    try {
+      workers.execute(completion);
+    } catch (RejectedExecutionException e) {
+      // Shutting down
+      completion.run();
+    }
+  }
+
+  public void registerMetrics(MetricRegistry metrics) {
+    String prefix = MetricRegistry.name(CallbackAsyncClient.class);
+    metrics.register(MetricRegistry.name(prefix, "requests"), requests);
+    metrics.register(MetricRegistry.name(prefix, "connections", "opened"), openedConnections);
+    metrics.register(MetricRegistry.name(prefix, "connections", "reuse"), new RatioGauge() {
+      @Override
+      protected Ratio getRatio() {
+        long total = requests.getCount();
+        return Ratio.of(total - Math.min(total, openedConnections.getCount()), total);
+      }
+    });
+    metrics.register(MetricRegistry.name(prefix, "connections", "leased"),
+        (Gauge<Integer>) () -> connectionManager.getTotalStats().getLeased());
+    metrics.register(MetricRegistry.name(prefix, "connections", "available"),
+        (Gauge<Integer>) () -> connectionManager.getTotalStats().getAvailable());
+    metrics.register(MetricRegistry.name(prefix, "connections", "pending"),
+        (Gauge<Integer>) () -> connectionManager.getTotalStats().getPending());
+  }
+
+  public void close() {
+    try {
+      httpClient.close();
+    } catch (IOException e) {
+      LOGGER.warn("Failure closing the async callback client: {}", e.getMessage());
+    }
+    workers.shutdownNow();
+  }
+
+}
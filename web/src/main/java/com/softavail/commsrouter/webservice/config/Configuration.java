@@ -39,6 +39,31 @@ public interface Configuration {
       return true;
     }
 
+    @Override
+    public Integer getClientPoolMaxTotal() {
+      return 200;
+    }
+
+    @Override
+    public Integer getClientPoolMaxPerHost() {
+      return 20;
+    }
+
+    @Override
+    public Integer getClientPoolIdleTimeout() {
+      return 30;
+    }
+
+    @Override
+    public Integer getClientPoolKeepAlive() {
+      return 60;
+    }
+
+    @Override
+    public Integer getClientPoolCheckoutTimeout() {
+      return 1000;
+    }
+
     @Override
     public String getShiroConfigLocations() {
       return "classpath:shiro.ini";
@@ -52,6 +77,16 @@ public interface Configuration {
   Integer getClientReadTimeout();
 
   Boolean getClientFollowRedirects();
+
+  Integer getClientPoolMaxTotal();
+
+  Integer getClientPoolMaxPerHost();
+
+  Integer getClientPoolIdleTimeout();
+
+  Integer getClientPoolKeepAlive();
+
+  Integer getClientPoolCheckoutTimeout();
   
   String getShiroConfigLocations();
 
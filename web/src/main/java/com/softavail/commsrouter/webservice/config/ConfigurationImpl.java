@@ -49,6 +49,11 @@ public class ConfigurationImpl implements CoreConfiguration, Configuration {
   private static final String CLIENT_TIMEOUT_CONNECT = "client.timeout.connect";
   private static final String CLIENT_TIMEOUT_READ = "client.timeout.read";
   private static final String CLIENT_FOLLOW_REDIRECTS = "client.followRedirects";
+  private static final String CLIENT_POOL_MAX_TOTAL = "client.pool.maxTotal";
+  private static final String CLIENT_POOL_MAX_PER_HOST = "client.pool.maxPerHost";
+  private static final String CLIENT_POOL_IDLE_TIMEOUT = "client.pool.idleTimeoutSeconds";
+  private static final String CLIENT_POOL_KEEP_ALIVE = "client.pool.keepAliveSeconds";
+  private static final String CLIENT_POOL_CHECKOUT_TIMEOUT = "client.pool.checkoutTimeout";
   private static final String BACKOFF_DELAY_SECONDS = "client.retry.delaySeconds";
   private static final String BACKOFF_DELAY_MAX_SECONDS = "client.retry.delayMaxSeconds";
   private static final String BACKOFF_JITTER_MILLIS = "client.retry.jitterMilliseconds";
@@ -58,6 +63,38 @@ public class ConfigurationImpl implements CoreConfiguration, Configuration {
   private static final String QUEUE_RETRY_DELAY_SECONDS = "queue.retry.delaySeconds";
   private static final String QUEUE_PROCESSOR_EVICTION_DELAY = "queue.remove.idleDelaySeconds";
   private static final String JPA_OPTIMISTIC_LOCK_RETRY_COUNT = "jpa.optimisticLock.retryCount";
+  private static final String QUEUE_ENABLE_TASK_INDEX = "queue.enableTaskIndex";
+  private static final String QUEUE_ENABLE_AGENT_INDEX = "queue.enableAgentIndex";
+  private static final String QUEUE_ASSIGNMENT_BATCH_SIZE = "queue.assignmentBatchSize";
+  private static final String DISPATCHER_ROUTER_LANES = "task_dispatcher.router_lanes";
+  private static final String DISPATCHER_ROUTER_LEASE_DURATION =
+      "task_dispatcher.router_lease.durationSeconds";
+  private static final String DISPATCHER_EXPIRATION_POLL_SECONDS =
+      "task_dispatcher.expiration.pollSeconds";
+  private static final String THREAD_POOL_QUEUE_CAPACITY =
+      "task_dispatcher.thread_pool.queueCapacity";
+  private static final String TIMER_POOL_SIZE = "task_dispatcher.timer_pool.size";
+  private static final String CALLBACK_POOL_SIZE = "task_dispatcher.callback_pool.size";
+  private static final String CALLBACK_POOL_QUEUE_CAPACITY =
+      "task_dispatcher.callback_pool.queueCapacity";
+  private static final String CALLBACK_BREAKER_FAILURE_THRESHOLD =
+      "client.breaker.failureThreshold";
+  private static final String CALLBACK_BREAKER_OPEN_SECONDS = "client.breaker.openSeconds";
+  private static final String CALLBACK_MAX_CONCURRENCY = "client.breaker.maxConcurrency";
+  private static final String DISPATCHER_OUTBOX_RELAY_SECONDS =
+      "task_dispatcher.outbox.relaySeconds";
+  private static final String CALLBACK_BATCH_WINDOW_MILLIS = "client.batch.windowMilliseconds";
+  private static final String CALLBACK_BATCH_MAX_SIZE = "client.batch.maxSize";
+  private static final String ADMISSION_MAX_WAITING_PER_ROUTER =
+      "task.admission.maxWaitingPerRouter";
+  private static final String ADMISSION_MAX_WAITING_PER_QUEUE = "task.admission.maxWaitingPerQueue";
+  private static final String ADMISSION_MAX_DISPATCH_BACKLOG = "task.admission.maxDispatchBacklog";
+  private static final String ADMISSION_MAX_CALLBACKS_IN_FLIGHT =
+      "task.admission.maxCallbacksInFlight";
+  private static final String ADMISSION_RETRY_AFTER_SECONDS = "task.admission.retryAfterSeconds";
+  private static final String QUEUE_FAIR_SHARE_QUOTA = "queue.fairShare.quota";
+  private static final String EVALUATOR_CACHE_SIZE = "evaluator.cacheSize";
+  private static final String QUEUE_ENABLE_CAPABILITY_INDEX = "queue.enableCapabilityIndex";
   private static final String API_ENABLE_EXPRESSION_SKILL_VALIDATION =
       "api.enableExpressionSkillValidation";
   private static final String API_ENABLE_ENABLE_AGENT_CAPABILITIES_VALIDATION =
@@ -88,6 +125,54 @@ public class ConfigurationImpl implements CoreConfiguration, Configuration {
         String.valueOf(CoreConfiguration.DEFAULT.getQueueProcessRetryDelay()));
     defaultProperties.setProperty(JPA_OPTIMISTIC_LOCK_RETRY_COUNT,
         String.valueOf(CoreConfiguration.DEFAULT.getJpaLockRetryCount()));
+    defaultProperties.setProperty(QUEUE_ENABLE_TASK_INDEX,
+        String.valueOf(CoreConfiguration.DEFAULT.getQueueEnableTaskIndex()));
+    defaultProperties.setProperty(QUEUE_ENABLE_AGENT_INDEX,
+        String.valueOf(CoreConfiguration.DEFAULT.getQueueEnableAgentIndex()));
+    defaultProperties.setProperty(QUEUE_ASSIGNMENT_BATCH_SIZE,
+        String.valueOf(CoreConfiguration.DEFAULT.getQueueAssignmentBatchSize()));
+    defaultProperties.setProperty(DISPATCHER_ROUTER_LANES,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherRouterLanes()));
+    defaultProperties.setProperty(DISPATCHER_ROUTER_LEASE_DURATION,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherRouterLeaseDuration()));
+    defaultProperties.setProperty(DISPATCHER_EXPIRATION_POLL_SECONDS,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherExpirationPollSeconds()));
+    defaultProperties.setProperty(THREAD_POOL_QUEUE_CAPACITY,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherQueueCapacity()));
+    defaultProperties.setProperty(TIMER_POOL_SIZE,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherTimerPoolSize()));
+    defaultProperties.setProperty(CALLBACK_POOL_SIZE,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherCallbackPoolSize()));
+    defaultProperties.setProperty(CALLBACK_POOL_QUEUE_CAPACITY,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherCallbackQueueCapacity()));
+    defaultProperties.setProperty(CALLBACK_BREAKER_FAILURE_THRESHOLD,
+        String.valueOf(CoreConfiguration.DEFAULT.getCallbackBreakerFailureThreshold()));
+    defaultProperties.setProperty(CALLBACK_BREAKER_OPEN_SECONDS,
+        String.valueOf(CoreConfiguration.DEFAULT.getCallbackBreakerOpenSeconds()));
+    defaultProperties.setProperty(CALLBACK_MAX_CONCURRENCY,
+        String.valueOf(CoreConfiguration.DEFAULT.getCallbackMaxConcurrency()));
+    defaultProperties.setProperty(DISPATCHER_OUTBOX_RELAY_SECONDS,
+        String.valueOf(CoreConfiguration.DEFAULT.getDispatcherOutboxRelaySeconds()));
+    defaultProperties.setProperty(CALLBACK_BATCH_WINDOW_MILLIS,
+        String.valueOf(CoreConfiguration.DEFAULT.getCallbackBatchWindowMillis()));
+    defaultProperties.setProperty(CALLBACK_BATCH_MAX_SIZE,
+        String.valueOf(CoreConfiguration.DEFAULT.getCallbackBatchMaxSize()));
+    defaultProperties.setProperty(ADMISSION_MAX_WAITING_PER_ROUTER,
+        String.valueOf(CoreConfiguration.DEFAULT.getAdmissionMaxWaitingPerRouter()));
+    defaultProperties.setProperty(ADMISSION_MAX_WAITING_PER_QUEUE,
+        String.valueOf(CoreConfiguration.DEFAULT.getAdmissionMaxWaitingPerQueue()));
+    defaultProperties.setProperty(ADMISSION_MAX_DISPATCH_BACKLOG,
+        String.valueOf(CoreConfiguration.DEFAULT.getAdmissionMaxDispatchBacklog()));
+    defaultProperties.setProperty(ADMISSION_MAX_CALLBACKS_IN_FLIGHT,
+        String.valueOf(CoreConfiguration.DEFAULT.getAdmissionMaxCallbacksInFlight()));
+    defaultProperties.setProperty(ADMISSION_RETRY_AFTER_SECONDS,
+        String.valueOf(CoreConfiguration.DEFAULT.getAdmissionRetryAfterSeconds()));
+    defaultProperties.setProperty(QUEUE_FAIR_SHARE_QUOTA,
+        String.valueOf(CoreConfiguration.DEFAULT.getQueueFairShareQuota()));
+    defaultProperties.setProperty(EVALUATOR_CACHE_SIZE,
+        String.valueOf(CoreConfiguration.DEFAULT.getEvaluatorCacheSize()));
+    defaultProperties.setProperty(QUEUE_ENABLE_CAPABILITY_INDEX,
+        String.valueOf(CoreConfiguration.DEFAULT.getQueueEnableCapabilityIndex()));
     defaultProperties.setProperty(API_ENABLE_EXPRESSION_SKILL_VALIDATION,
         String.valueOf(CoreConfiguration.DEFAULT.getApiEnableExpressionSkillValidation()));
     defaultProperties.setProperty(API_ENABLE_ENABLE_AGENT_CAPABILITIES_VALIDATION,
@@ -101,6 +186,16 @@ public class ConfigurationImpl implements CoreConfiguration, Configuration {
         String.valueOf(Configuration.DEFAULT.getClientReadTimeout()));
     defaultProperties.setProperty(CLIENT_FOLLOW_REDIRECTS,
         String.valueOf(Configuration.DEFAULT.getClientFollowRedirects()));
+    defaultProperties.setProperty(CLIENT_POOL_MAX_TOTAL,
+        String.valueOf(Configuration.DEFAULT.getClientPoolMaxTotal()));
+    defaultProperties.setProperty(CLIENT_POOL_MAX_PER_HOST,
+        String.valueOf(Configuration.DEFAULT.getClientPoolMaxPerHost()));
+    defaultProperties.setProperty(CLIENT_POOL_IDLE_TIMEOUT,
+        String.valueOf(Configuration.DEFAULT.getClientPoolIdleTimeout()));
+    defaultProperties.setProperty(CLIENT_POOL_KEEP_ALIVE,
+        String.valueOf(Configuration.DEFAULT.getClientPoolKeepAlive()));
+    defaultProperties.setProperty(CLIENT_POOL_CHECKOUT_TIMEOUT,
+        String.valueOf(Configuration.DEFAULT.getClientPoolCheckoutTimeout()));
     defaultProperties.setProperty(SHIRO_CONFIG_LOCATIONS,
         String.valueOf(Configuration.DEFAULT.getShiroConfigLocations()));
   }
@@ -158,6 +253,31 @@ public class ConfigurationImpl implements CoreConfiguration, Configuration {
     return provider.getProperty(CLIENT_FOLLOW_REDIRECTS, Boolean.class);
   }
 
+  @Override
+  public Integer getClientPoolMaxTotal() {
+    return provider.getProperty(CLIENT_POOL_MAX_TOTAL, Integer.class);
+  }
+
+  @Override
+  public Integer getClientPoolMaxPerHost() {
+    return provider.getProperty(CLIENT_POOL_MAX_PER_HOST, Integer.class);
+  }
+
+  @Override
+  public Integer getClientPoolIdleTimeout() {
+    return provider.getProperty(CLIENT_POOL_IDLE_TIMEOUT, Integer.class);
+  }
+
+  @Override
+  public Integer getClientPoolKeepAlive() {
+    return provider.getProperty(CLIENT_POOL_KEEP_ALIVE, Integer.class);
+  }
+
+  @Override
+  public Integer getClientPoolCheckoutTimeout() {
+    return provider.getProperty(CLIENT_POOL_CHECKOUT_TIMEOUT, Integer.class);
+  }
+
   @Override
   public Boolean getApiEnableExpressionSkillValidation() {
     return provider.getProperty(API_ENABLE_EXPRESSION_SKILL_VALIDATION, Boolean.class);
@@ -218,6 +338,126 @@ public class ConfigurationImpl implements CoreConfiguration, Configuration {
     return provider.getProperty(JPA_OPTIMISTIC_LOCK_RETRY_COUNT, Integer.class);
   }
 
+  @Override
+  public Boolean getQueueEnableTaskIndex() {
+    return provider.getProperty(QUEUE_ENABLE_TASK_INDEX, Boolean.class);
+  }
+
+  @Override
+  public Boolean getQueueEnableAgentIndex() {
+    return provider.getProperty(QUEUE_ENABLE_AGENT_INDEX, Boolean.class);
+  }
+
+  @Override
+  public Integer getQueueAssignmentBatchSize() {
+    return provider.getProperty(QUEUE_ASSIGNMENT_BATCH_SIZE, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherRouterLanes() {
+    return provider.getProperty(DISPATCHER_ROUTER_LANES, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherRouterLeaseDuration() {
+    return provider.getProperty(DISPATCHER_ROUTER_LEASE_DURATION, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherExpirationPollSeconds() {
+    return provider.getProperty(DISPATCHER_EXPIRATION_POLL_SECONDS, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherQueueCapacity() {
+    return provider.getProperty(THREAD_POOL_QUEUE_CAPACITY, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherTimerPoolSize() {
+    return provider.getProperty(TIMER_POOL_SIZE, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherCallbackPoolSize() {
+    return provider.getProperty(CALLBACK_POOL_SIZE, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherCallbackQueueCapacity() {
+    return provider.getProperty(CALLBACK_POOL_QUEUE_CAPACITY, Integer.class);
+  }
+
+  @Override
+  public Integer getCallbackBreakerFailureThreshold() {
+    return provider.getProperty(CALLBACK_BREAKER_FAILURE_THRESHOLD, Integer.class);
+  }
+
+  @Override
+  public Integer getCallbackBreakerOpenSeconds() {
+    return provider.getProperty(CALLBACK_BREAKER_OPEN_SECONDS, Integer.class);
+  }
+
+  @Override
+  public Integer getCallbackMaxConcurrency() {
+    return provider.getProperty(CALLBACK_MAX_CONCURRENCY, Integer.class);
+  }
+
+  @Override
+  public Integer getDispatcherOutboxRelaySeconds() {
+    return provider.getProperty(DISPATCHER_OUTBOX_RELAY_SECONDS, Integer.class);
+  }
+
+  @Override
+  public Integer getCallbackBatchWindowMillis() {
+    return provider.getProperty(CALLBACK_BATCH_WINDOW_MILLIS, Integer.class);
+  }
+
+  @Override
+  public Integer getCallbackBatchMaxSize() {
+    return provider.getProperty(CALLBACK_BATCH_MAX_SIZE, Integer.class);
+  }
+
+  @Override
+  public Integer getAdmissionMaxWaitingPerRouter() {
+    return provider.getProperty(ADMISSION_MAX_WAITING_PER_ROUTER, Integer.class);
+  }
+
+  @Override
+  public Integer getAdmissionMaxWaitingPerQueue() {
+    return provider.getProperty(ADMISSION_MAX_WAITING_PER_QUEUE, Integer.class);
+  }
+
+  @Override
+  public Integer getAdmissionMaxDispatchBacklog() {
+    return provider.getProperty(ADMISSION_MAX_DISPATCH_BACKLOG, Integer.class);
+  }
+
+  @Override
+  public Integer getAdmissionMaxCallbacksInFlight() {
+    return provider.getProperty(ADMISSION_MAX_CALLBACKS_IN_FLIGHT, Integer.class);
+  }
+
+  @Override
+  public Integer getAdmissionRetryAfterSeconds() {
+    return provider.getProperty(ADMISSION_RETRY_AFTER_SECONDS, Integer.class);
+  }
+
+  @Override
+  public Integer getQueueFairShareQuota() {
+    return provider.getProperty(QUEUE_FAIR_SHARE_QUOTA, Integer.class);
+  }
+
+  @Override
+  public Integer getEvaluatorCacheSize() {
+    return provider.getProperty(EVALUATOR_CACHE_SIZE, Integer.class);
+  }
+
+  @Override
+  public Boolean getQueueEnableCapabilityIndex() {
+    return provider.getProperty(QUEUE_ENABLE_CAPABILITY_INDEX, Boolean.class);
+  }
+
   @Override
   public String toString() {
     final StringBuilder sb = new StringBuilder("ConfigurationImpl{");
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.webservice.mappers;
+
+import com.softavail.commsrouter.api.exception.AdmissionDeniedException;
+import com.softavail.commsrouter.api.exception.ExceptionPresentation;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.ext.ExceptionMapper;
+import javax.ws.rs.ext.Provider;
+
+/**
+ * A refused task: 429 when its router or queue is over the limit, 503 when the whole node is
+ * behind. Both come with a Retry-After header.
+ */
+@Provider
+public class AdmissionDeniedMapper implements ExceptionMapper<AdmissionDeniedException> {
+
+  private static final Logger LOGGER = LogManager.getLogger(AdmissionDeniedMapper.class);
+
+  private static final int TOO_MANY_REQUESTS = 429;
+
+  @Context
+  protected HttpHeaders headers;
+
+  @Override
+  public Response toResponse(AdmissionDeniedException exception) {
+
+    // Expected under load, not worth an error with a stack trace per request
+    LOGGER.warn(exception.getMessage());
+
+    return Response.status(exception.isOverloaded()
+        ? Status.SERVICE_UNAVAILABLE.getStatusCode() : TOO_MANY_REQUESTS)
+        .header(HttpHeaders.RETRY_AFTER, exception.getRetryAfterSeconds())
+        .entity(new ExceptionPresentation(exception))
+        .type(headers.getMediaType())
+        .build();
+  }
+
+}
@@ -28,16 +28,22 @@ import javax.ws.rs.ext.Provider;
 @Provider
 public class ObjectMapperContextResolver implements ContextResolver<ObjectMapper> {
 
-  private final ObjectMapper objectMapper;
+  // Shared with the callback client, so the callbacks are serialized like the API responses
+  private static final ObjectMapper OBJECT_MAPPER = createObjectMapper();
 
-  public ObjectMapperContextResolver() {
-    objectMapper = new ObjectMapper();
+  private static ObjectMapper createObjectMapper() {
+    ObjectMapper objectMapper = new ObjectMapper();
     objectMapper.setSerializationInclusion(Include.NON_NULL);
+    return objectMapper;
+  }
+
+  public static ObjectMapper getObjectMapper() {
+    return OBJECT_MAPPER;
   }
 
   @Override
   public ObjectMapper getContext(Class<?> type) {
-    return objectMapper;
+    return OBJECT_MAPPER;
   }
 
 }
@@ -0,0 +1,57 @@
+/*
+ * Copyright 2017 SoftAvail Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.softavail.commsrouter.webservice.resources;
+
+import com.softavail.commsrouter.api.dto.misc.CallbackHostDto;
+import com.softavail.commsrouter.app.TaskDispatcher;
+import io.swagger.annotations.Api;
+import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiResponse;
+import io.swagger.annotations.ApiResponses;
+
+import java.util.List;
+import javax.inject.Inject;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.Produces;
+import javax.ws.rs.core.MediaType;
+
+/**
+ * Admin view of the callback circuit breakers.
+ */
+@Path("admin/callback-hosts")
+@Api()
+@Produces({MediaType.APPLICATION_JSON})
+public class CallbackHostResource {
+
+  @Inject
+  private TaskDispatcher taskDispatcher;
+
+  @GET
+  @ApiOperation(value = "Get Callback Hosts",
+      notes = "Returns the circuit breaker state, the callbacks in flight, the concurrency limit "
+          + "and the parked callbacks of every callback host seen so far.",
+      response = CallbackHostDto.class,
+      responseContainer = "List",
+      tags = "admin")
+  @ApiResponses(
+      @ApiResponse(code = 200, message = "Successful operation"))
+  public List<CallbackHostDto> list() {
+    return taskDispatcher.getCallbackHosts();
+  }
+
+}
@@ -102,7 +102,7 @@ public class TaskResource extends GenericRouterObjectResource<TaskDto> {
   @ApiOperation(
       value = "Add new Task",
       notes = "Create a new Task within a Router")
-  @ApiResponses(
+  @ApiResponses({
       @ApiResponse(
           code = 201,
           message = "Created successfully",
@@ -115,7 +115,15 @@ public class TaskResource extends GenericRouterObjectResource<TaskDto> {
               @ResponseHeader(
                   name = TaskService.X_QUEUE_SIZE,
                   response = Long.class,
-                  description = "The number of tasks in the queue before that one")}))
+                  description = "The number of tasks in the queue before that one")}),
+      @ApiResponse(code = 429, message = "Too many waiting tasks in the router or queue",
+          response = ExceptionPresentation.class,
+          responseHeaders = @ResponseHeader(name = HttpHeaders.RETRY_AFTER, response = Long.class,
+              description = "Seconds to wait before trying again")),
+      @ApiResponse(code = 503, message = "Dispatching or callback delivery is behind",
+          response = ExceptionPresentation.class,
+          responseHeaders = @ResponseHeader(name = HttpHeaders.RETRY_AFTER, response = Long.class,
+              description = "Seconds to wait before trying again"))})
   public Response create(CreateTaskArg taskArg)
       throws CommsRouterException {
 
@@ -139,6 +147,10 @@ public class TaskResource extends GenericRouterObjectResource<TaskDto> {
       @ApiResponse(code = 404, message = "Task not found",
           response = ExceptionPresentation.class),
       @ApiResponse(code = 405, message = "Validation exception",
+          response = ExceptionPresentation.class),
+      @ApiResponse(code = 429, message = "Too many waiting tasks in the router or queue",
+          response = ExceptionPresentation.class),
+      @ApiResponse(code = 503, message = "Dispatching or callback delivery is behind",
           response = ExceptionPresentation.class)})
   public Response create(
       @ApiParam(value = "The id of the task to be replaced", required = true)